@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.net.SocketException;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free byte ring buffer with a single producer and a single consumer - one direction of a
+ * LoopbackTransport.
+ *
+ * The producer only moves the write position, and the consumer only moves the read position, so neither side ever
+ * takes a lock.  A side that finds the ring full (or empty) parks until the other side moves its position or closes
+ * the ring.  Callers must serialize their own writes and reads - LoopbackTransport does this with a lock per direction.
+ */
+class ByteRing {
+    final byte[] buffer;
+    final int mask;
+
+    // Moved only by the consumer
+    final AtomicLong readPosition = new AtomicLong();
+
+    // Moved only by the producer
+    final AtomicLong writePosition = new AtomicLong();
+
+    volatile Thread parkedReader;
+    volatile Thread parkedWriter;
+
+    // The producer will not write any more data - the consumer sees the end of the stream once the ring is empty
+    volatile boolean writeClosed;
+
+    // The consumer has gone away - further writes fail
+    volatile boolean readClosed;
+
+    // The consumer has shutdown its input - further writes are discarded
+    volatile boolean discarding;
+
+    // The producer aborted the connection - reads fail, and any data still in the ring is lost
+    volatile boolean reset;
+
+    /**
+     * @param capacity the capacity of the ring in bytes - rounded up to a power of two
+     */
+    ByteRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("Ring capacity must be greater than zero [%d]", capacity));
+        }
+
+        buffer = new byte[(capacity == 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1];
+        mask = buffer.length - 1;
+    }
+
+    int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * @return the number of bytes that can be read without blocking
+     */
+    int available() {
+        if (reset || discarding) {
+            return 0;
+        }
+
+        return (int) (writePosition.get() - readPosition.get());
+    }
+
+    /**
+     * Read up to length bytes, blocking until at least one byte is available.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    int read(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        while (true) {
+            if (reset) {
+                throw new SocketException("Connection reset");
+            }
+            if (discarding || readClosed) {
+                return -1;
+            }
+
+            long read = readPosition.get();
+            int available = (int) (writePosition.get() - read);
+            if (available > 0) {
+                int readCount = Math.min(length, available);
+                int index = (int) (read & mask);
+                int firstCount = Math.min(readCount, buffer.length - index);
+                System.arraycopy(buffer, index, data, offset, firstCount);
+                System.arraycopy(buffer, 0, data, offset + firstCount, readCount - firstCount);
+
+                // A volatile write, so a writer that parks after this can not miss the space that was freed
+                readPosition.set(read + readCount);
+                LockSupport.unpark(parkedWriter);
+                return readCount;
+            }
+
+            if (writeClosed) {
+                if (writePosition.get() == read) {
+                    return -1;
+                }
+                continue;
+            }
+
+            parkedReader = Thread.currentThread();
+            if (writePosition.get() == read && !writeClosed && !reset && !readClosed && !discarding) {
+                LockSupport.park(this);
+            }
+            parkedReader = null;
+            checkInterrupted();
+        }
+    }
+
+    /**
+     * Write all of the data, blocking while the ring is full.
+     */
+    void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (reset || readClosed) {
+                throw new SocketException("Broken pipe");
+            }
+            if (discarding) {
+                return;
+            }
+
+            long write = writePosition.get();
+            int free = buffer.length - (int) (write - readPosition.get());
+            if (free > 0) {
+                int writeCount = Math.min(length, free);
+                int index = (int) (write & mask);
+                int firstCount = Math.min(writeCount, buffer.length - index);
+                System.arraycopy(data, offset, buffer, index, firstCount);
+                System.arraycopy(data, offset + firstCount, buffer, 0, writeCount - firstCount);
+
+                // A volatile write, so a reader that parks after this can not miss the data
+                writePosition.set(write + writeCount);
+                LockSupport.unpark(parkedReader);
+                offset += writeCount;
+                length -= writeCount;
+                continue;
+            }
+
+            parkedWriter = Thread.currentThread();
+            if (readPosition.get() + buffer.length == write && !reset && !readClosed && !discarding) {
+                LockSupport.park(this);
+            }
+            parkedWriter = null;
+            checkInterrupted();
+        }
+    }
+
+    void checkInterrupted() throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on the ring buffer");
+        }
+    }
+
+    /**
+     * Signal the end of the stream - the consumer can still read the data already in the ring.
+     */
+    void closeWrite() {
+        writeClosed = true;
+        wakeAll();
+    }
+
+    /**
+     * The consumer has gone away - any data in the ring is discarded, and further writes fail.
+     */
+    void closeRead() {
+        readClosed = true;
+        wakeAll();
+    }
+
+    /**
+     * The consumer has shutdown its input - any data in the ring is discarded, and further writes are silently
+     * dropped.
+     */
+    void shutdownRead() {
+        discarding = true;
+        wakeAll();
+    }
+
+    /**
+     * Abort the stream - the consumer fails with a connection reset, even if there is still data in the ring.
+     */
+    void reset() {
+        reset = true;
+        wakeAll();
+    }
+
+    void wakeAll() {
+        LockSupport.unpark(parkedReader);
+        LockSupport.unpark(parkedWriter);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.IOException;
+
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Moves data between a FileChannel and a connection.
+ *
+ * TCP and Unix domain connections hand the transfer to the transport's socket channel, so FileChannel moves the data
+ * between the file and the socket without it passing through the Java heap.  Connections that cannot use the channel
+ * directly (TLS, queued writes, background reads or loopback) are streamed in small chunks instead, so the payload is
+ * still never held on the Java heap all at once.
+ */
+final class ChannelTransfer {
+    private ChannelTransfer() {
+    }
+
+    /**
+     * Write count bytes from the file, starting at position, to the connection.
+     *
+     * @return the number of bytes written
+     */
+    static long transferTo(FileChannel source, long position, long count, SimpleTcpConnection connection) throws IOException {
+        if (connection.isChannelWritable()) {
+            return connection.getTransport().transferFrom(source, position, count);
+        }
+
+        WritableByteChannel target = Channels.newChannel(connection.getOutputStream());
+
+        long transferred = 0;
+        while (transferred < count) {
+            long written = source.transferTo(position + transferred, count - transferred, target);
+            if (written <= 0) {
+                // End of the file was reached before count bytes were written
+                break;
+            }
+            transferred += written;
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Read the data currently available from the connection into the file, up to maxBytes.
+     *
+     * @return the number of bytes read
+     */
+    static long transferFrom(SimpleTcpConnection connection, FileChannel target, long maxBytes) throws IOException {
+        long transferred = 0;
+        if (connection.isChannelReadable()) {
+            transferred = connection.getTransport().transferTo(target, target.position(), maxBytes);
+        } else {
+            ReadableByteChannel source = Channels.newChannel(connection.getInputStream());
+            int available;
+            while (transferred < maxBytes && (available = connection.available()) > 0) {
+                long read = target.transferFrom(source, target.position() + transferred, Math.min(available, maxBytes - transferred));
+                if (read <= 0) {
+                    break;
+                }
+                transferred += read;
+            }
+        }
+        target.position(target.position() + transferred);
+
+        return transferred;
+    }
+}
@@ -0,0 +1,455 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Transport over a connected SocketChannel - a TCP channel, or one that has no java.net.Socket adaptor (e.g. a Unix
+ * domain socket).
+ *
+ * The channel is switched to non-blocking mode so that available() can be answered by reading ahead, and blocking
+ * reads and writes wait on their own selectors - so one thread can block reading while another writes.  For TCP
+ * channels the socket adaptor's SO_TIMEOUT bounds blocking reads, as it would for a plain Socket.
+ *
+ * File transfers are handed to the channel itself, so FileChannel can move the data between the file and the socket
+ * without it passing through the Java heap.
+ */
+class ChannelTransport implements Transport {
+    static final int READ_AHEAD_SIZE = 8192;
+
+    final SocketChannel channel;
+    final Socket socket;
+
+    // A lock rather than a monitor so available() can skip the read-ahead while a reader is blocked holding it
+    final ReentrantLock readLock = new ReentrantLock();
+    final Object writeLock = new Object();
+
+    // Guarded by readLock - kept in read mode (flipped)
+    final ByteBuffer readAhead = (ByteBuffer) ((Buffer) ByteBuffer.allocateDirect(READ_AHEAD_SIZE)).flip();
+    // The bytes in readAhead, for available() while another thread holds readLock
+    volatile int readAheadCount;
+    // Only set once a read finds the read-ahead empty, so nothing is left to read when it is true
+    volatile boolean endOfStream;
+
+    // Created under the read and write locks, but closed by close()
+    volatile Selector readSelector;
+    volatile Selector writeSelector;
+
+    volatile boolean inputShutdown;
+    volatile boolean outputShutdown;
+
+    final InputStream inputStream = new ChannelTransportInputStream();
+    final OutputStream outputStream = new ChannelTransportOutputStream();
+    final ReadableByteChannel readableChannel = new ChannelTransportReadableChannel();
+
+    ChannelTransport(SocketChannel channel) throws IOException {
+        this(channel, null);
+    }
+
+    /**
+     * @param channel the connected channel
+     * @param socket  the channel's socket adaptor for a TCP channel, or null if the channel does not have one
+     */
+    ChannelTransport(SocketChannel channel, Socket socket) throws IOException {
+        this.channel = channel;
+        this.socket = socket;
+        channel.configureBlocking(false);
+    }
+
+    @Override
+    public Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public ByteChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public ReadableByteChannel getReadableChannel() {
+        return readableChannel;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        try {
+            return channel.getLocalAddress();
+        } catch (IOException addressEx) {
+            return null;
+        }
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        try {
+            return channel.getRemoteAddress();
+        } catch (IOException addressEx) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen() && channel.isConnected();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return inputShutdown;
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return outputShutdown;
+    }
+
+    @Override
+    public boolean isEndOfStream() {
+        return endOfStream;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (!readLock.tryLock()) {
+            // Another thread is reading - it may be blocked waiting for data, so report what is buffered without waiting
+            return readAheadCount;
+        }
+        try {
+            if (!readAhead.hasRemaining() && !endOfStream && channel.isOpen()) {
+                fillReadAhead();
+            }
+            return readAhead.remaining();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    int read(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        readLock.lock();
+        try {
+            long deadline = readDeadline();
+            while (!readAhead.hasRemaining()) {
+                if (endOfStream) {
+                    return -1;
+                }
+                if (fillReadAhead() == 0) {
+                    readSelector = await(readSelector, SelectionKey.OP_READ, deadline);
+                }
+            }
+
+            int readCount = Math.min(length, readAhead.remaining());
+            readAhead.get(data, offset, readCount);
+            readAheadCount = readAhead.remaining();
+            return readCount;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Read into the buffer, blocking until at least one byte is available - straight from the channel once the
+     * read-ahead is empty, so a direct buffer is filled without a copy through the heap.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    int read(ByteBuffer target) throws IOException {
+        if (!target.hasRemaining()) {
+            return 0;
+        }
+
+        readLock.lock();
+        try {
+            long deadline = readDeadline();
+            while (true) {
+                if (readAhead.hasRemaining()) {
+                    int readCount = Math.min(target.remaining(), readAhead.remaining());
+                    int limit = readAhead.limit();
+                    ((Buffer) readAhead).limit(readAhead.position() + readCount);
+                    target.put(readAhead);
+                    ((Buffer) readAhead).limit(limit);
+                    readAheadCount = readAhead.remaining();
+                    return readCount;
+                }
+                if (endOfStream) {
+                    return -1;
+                }
+
+                int readCount = channel.read(target);
+                if (readCount == -1) {
+                    endOfStream = true;
+                    return -1;
+                }
+                if (readCount > 0) {
+                    return readCount;
+                }
+                readSelector = await(readSelector, SelectionKey.OP_READ, deadline);
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    int fillReadAhead() throws IOException {
+        ((Buffer) readAhead).clear();
+        int readCount;
+        try {
+            readCount = channel.read(readAhead);
+        } finally {
+            ((Buffer) readAhead).flip();
+            readAheadCount = readAhead.remaining();
+        }
+        if (readCount == -1) {
+            endOfStream = true;
+        }
+        return readCount;
+    }
+
+    void write(byte[] data, int offset, int length) throws IOException {
+        synchronized (writeLock) {
+            ByteBuffer source = ByteBuffer.wrap(data, offset, length);
+            while (source.hasRemaining()) {
+                if (channel.write(source) == 0) {
+                    writeSelector = await(writeSelector, SelectionKey.OP_WRITE, 0);
+                }
+            }
+        }
+    }
+
+    @Override
+    public long transferFrom(FileChannel source, long position, long count) throws IOException {
+        synchronized (writeLock) {
+            long transferred = 0;
+            while (transferred < count && position + transferred < source.size()) {
+                long written = source.transferTo(position + transferred, count - transferred, channel);
+                if (written == 0) {
+                    writeSelector = await(writeSelector, SelectionKey.OP_WRITE, 0);
+                }
+                transferred += written;
+            }
+            return transferred;
+        }
+    }
+
+    @Override
+    public long transferTo(FileChannel target, long position, long maxBytes) throws IOException {
+        readLock.lock();
+        try {
+            long transferred = 0;
+            // Data already read ahead goes first, so the file receives the bytes in order
+            while (readAhead.hasRemaining() && transferred < maxBytes) {
+                int limit = readAhead.limit();
+                ((Buffer) readAhead).limit(readAhead.position() + (int) Math.min(readAhead.remaining(), maxBytes - transferred));
+                try {
+                    transferred += target.write(readAhead, position + transferred);
+                } finally {
+                    ((Buffer) readAhead).limit(limit);
+                }
+            }
+            readAheadCount = readAhead.remaining();
+            // The channel is non-blocking, so this stops when no more data is available
+            if (transferred < maxBytes && !endOfStream) {
+                transferred += target.transferFrom(channel, position + transferred, maxBytes - transferred);
+            }
+            return transferred;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @return the System.nanoTime() deadline for a blocking read from the socket's SO_TIMEOUT, or zero to wait forever
+     */
+    long readDeadline() throws IOException {
+        int timeout = (socket != null) ? socket.getSoTimeout() : 0;
+        return (timeout > 0) ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+    }
+
+    /**
+     * Block until the channel is ready for the operation.
+     *
+     * @param deadline the System.nanoTime() deadline to wait until, or zero to wait forever
+     *
+     * @return the selector used - created the first time it is needed
+     */
+    Selector await(Selector selector, int operation, long deadline) throws IOException {
+        if (!channel.isOpen()) {
+            throw new SocketException("Socket is closed");
+        }
+
+        long timeoutMillis = 0;
+        if (deadline != 0) {
+            timeoutMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (timeoutMillis <= 0) {
+                throw new SocketTimeoutException("Read timed out");
+            }
+        }
+
+        try {
+            if (selector == null) {
+                selector = Selector.open();
+                channel.register(selector, operation);
+            }
+            selector.select(timeoutMillis);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException closedEx) {
+            throw new SocketException("Socket is closed");
+        }
+
+        return selector;
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        channel.shutdownInput();
+        inputShutdown = true;
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        channel.shutdownOutput();
+        outputShutdown = true;
+    }
+
+    /**
+     * Abort the connection - TCP channels send a RST instead of a FIN; other channels have no abortive close.
+     */
+    @Override
+    public void reset() throws IOException {
+        try {
+            if (socket != null) {
+                socket.setSoLinger(true, 0);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            // Closing the selectors wakes any thread blocked waiting on them
+            closeSelector(readSelector);
+            closeSelector(writeSelector);
+        }
+    }
+
+    void closeSelector(Selector selector) {
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException closeEx) {
+                // Nothing more can be done
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(getRemoteAddress());
+    }
+
+    class ChannelTransportInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int readCount = ChannelTransport.this.read(single, 0, 1);
+            return (readCount == -1) ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            return ChannelTransport.this.read(data, offset, length);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return ChannelTransport.this.available();
+        }
+    }
+
+    class ChannelTransportReadableChannel implements ReadableByteChannel {
+        @Override
+        public int read(ByteBuffer target) throws IOException {
+            return ChannelTransport.this.read(target);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            ChannelTransport.this.close();
+        }
+    }
+
+    class ChannelTransportOutputStream extends OutputStream {
+        @Override
+        public void write(int data) throws IOException {
+            ChannelTransport.this.write(new byte[] {(byte) data}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            ChannelTransport.this.write(data, offset, length);
+        }
+    }
+}
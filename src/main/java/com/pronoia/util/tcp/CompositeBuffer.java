@@ -0,0 +1,254 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A read-only view over the chunks of data returned by a single read, without concatenating them.
+ *
+ * Each chunk is the array the data was read into from the connection - nothing else holds a reference to it, so the
+ * data can not change.  Indexed access, slicing and writing to an OutputStream or WritableByteChannel work on the
+ * chunks directly; only toByteArray() and toString(Charset) copy the data.
+ */
+public class CompositeBuffer {
+    static final CompositeBuffer EMPTY = new CompositeBuffer(new byte[0][], new int[0], new int[0], new int[0], 0);
+
+    final byte[][] arrays;
+    final int[] arrayOffsets;
+    final int[] lengths;
+    final int[] starts;
+    final int size;
+
+    CompositeBuffer(byte[][] arrays, int[] arrayOffsets, int[] lengths, int[] starts, int size) {
+        this.arrays = arrays;
+        this.arrayOffsets = arrayOffsets;
+        this.lengths = lengths;
+        this.starts = starts;
+        this.size = size;
+    }
+
+    /**
+     * @return the number of bytes in the buffer
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the number of chunks the data is held in
+     */
+    public int getChunkCount() {
+        return arrays.length;
+    }
+
+    /**
+     * @return read-only ByteBuffers over each chunk, in order
+     */
+    public List<ByteBuffer> getChunks() {
+        List<ByteBuffer> answer = new ArrayList<>(arrays.length);
+        for (int i = 0; i < arrays.length; ++i) {
+            answer.add(ByteBuffer.wrap(arrays[i], arrayOffsets[i], lengths[i]).slice().asReadOnlyBuffer());
+        }
+
+        return Collections.unmodifiableList(answer);
+    }
+
+    /**
+     * @param index the index of the byte in the buffer
+     *
+     * @return the byte at the index
+     */
+    public byte get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(String.format("Index [%d] is out of bounds for buffer of size [%d]", index, size));
+        }
+
+        int chunk = chunkOf(index);
+        return arrays[chunk][arrayOffsets[chunk] + index - starts[chunk]];
+    }
+
+    /**
+     * Create a view over part of the buffer, sharing the same chunks.
+     *
+     * @param fromIndex the index of the first byte in the slice (inclusive)
+     * @param toIndex   the index after the last byte in the slice (exclusive)
+     *
+     * @return the slice
+     */
+    public CompositeBuffer slice(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException(String.format("Slice [%d - %d] is out of bounds for buffer of size [%d]", fromIndex, toIndex, size));
+        }
+        if (fromIndex == toIndex) {
+            return EMPTY;
+        }
+        if (fromIndex == 0 && toIndex == size) {
+            return this;
+        }
+
+        int firstChunk = chunkOf(fromIndex);
+        int lastChunk = chunkOf(toIndex - 1);
+        int count = lastChunk - firstChunk + 1;
+
+        byte[][] sliceArrays = Arrays.copyOfRange(arrays, firstChunk, lastChunk + 1);
+        int[] sliceOffsets = new int[count];
+        int[] sliceLengths = new int[count];
+        int[] sliceStarts = new int[count];
+        int position = 0;
+        for (int i = 0; i < count; ++i) {
+            int chunk = firstChunk + i;
+            int from = Math.max(fromIndex, starts[chunk]) - starts[chunk];
+            int to = Math.min(toIndex, starts[chunk] + lengths[chunk]) - starts[chunk];
+            sliceOffsets[i] = arrayOffsets[chunk] + from;
+            sliceLengths[i] = to - from;
+            sliceStarts[i] = position;
+            position += to - from;
+        }
+
+        return new CompositeBuffer(sliceArrays, sliceOffsets, sliceLengths, sliceStarts, position);
+    }
+
+    /**
+     * Write the buffer to a stream, one chunk at a time.
+     *
+     * @return the number of bytes written
+     */
+    public int writeTo(OutputStream outputStream) throws IOException {
+        for (int i = 0; i < arrays.length; ++i) {
+            outputStream.write(arrays[i], arrayOffsets[i], lengths[i]);
+        }
+
+        return size;
+    }
+
+    /**
+     * Write the buffer to a channel, one chunk at a time - blocking until every byte is written.
+     *
+     * @return the number of bytes written
+     */
+    public int writeTo(WritableByteChannel channel) throws IOException {
+        for (int i = 0; i < arrays.length; ++i) {
+            ByteBuffer chunk = ByteBuffer.wrap(arrays[i], arrayOffsets[i], lengths[i]);
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return a copy of the data in a single array
+     */
+    public byte[] toByteArray() {
+        byte[] answer = new byte[size];
+        for (int i = 0; i < arrays.length; ++i) {
+            System.arraycopy(arrays[i], arrayOffsets[i], answer, starts[i], lengths[i]);
+        }
+
+        return answer;
+    }
+
+    public String toString(Charset charset) {
+        if (arrays.length == 1) {
+            return new String(arrays[0], arrayOffsets[0], lengths[0], charset);
+        }
+
+        return new String(toByteArray(), charset);
+    }
+
+    @Override
+    public String toString() {
+        return "CompositeBuffer{"
+            + "size=" + size
+            + ", chunks=" + arrays.length
+            + '}';
+    }
+
+    int chunkOf(int index) {
+        int chunk = Arrays.binarySearch(starts, index);
+        return (chunk >= 0) ? chunk : -chunk - 2;
+    }
+
+    /**
+     * Collects the chunks of a read.
+     */
+    static class Builder {
+        final List<byte[]> chunks = new ArrayList<>();
+        final List<Integer> chunkOffsets = new ArrayList<>();
+        final List<Integer> chunkLengths = new ArrayList<>();
+        int size;
+
+        /**
+         * Add a chunk - the builder takes ownership of the array.
+         */
+        void add(byte[] chunk, int length) {
+            add(chunk, 0, length);
+        }
+
+        /**
+         * Add part of a chunk - the builder takes ownership of the array.
+         */
+        void add(byte[] chunk, int offset, int length) {
+            if (length > 0) {
+                chunks.add(chunk);
+                chunkOffsets.add(offset);
+                chunkLengths.add(length);
+                size += length;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        CompositeBuffer build() {
+            int count = chunks.size();
+            if (count == 0) {
+                return EMPTY;
+            }
+
+            int[] arrayOffsets = new int[count];
+            int[] lengths = new int[count];
+            int[] starts = new int[count];
+            int position = 0;
+            for (int i = 0; i < count; ++i) {
+                arrayOffsets[i] = chunkOffsets.get(i);
+                lengths[i] = chunkLengths.get(i);
+                starts[i] = position;
+                position += lengths[i];
+            }
+
+            return new CompositeBuffer(chunks.toArray(new byte[count][]), arrayOffsets, lengths, starts, size);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Publishes the inbound data publisher of each connection accepted by a SimpleTcpServer after the subscription starts.
+ *
+ * Accepted connections are held until the subscriber requests them.  Any number of subscribers are allowed - each
+ * connection is offered to every subscriber, but its inbound data can only be subscribed to once.
+ */
+class ConnectionPublisher implements TcpFlow.Publisher<TcpFlow.Publisher<byte[]>> {
+    final List<ConnectionSubscription> subscriptions = new ArrayList<>();
+
+    @Override
+    public void subscribe(TcpFlow.Subscriber<? super TcpFlow.Publisher<byte[]>> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber must not be null");
+        }
+
+        ConnectionSubscription subscription = new ConnectionSubscription(subscriber);
+        synchronized (subscriptions) {
+            subscriptions.add(subscription);
+        }
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Offer a newly accepted connection to every subscriber.
+     */
+    void publish(TcpFlow.Publisher<byte[]> inboundPublisher) {
+        List<ConnectionSubscription> current;
+        synchronized (subscriptions) {
+            current = new ArrayList<>(subscriptions);
+        }
+        for (ConnectionSubscription subscription : current) {
+            subscription.offer(inboundPublisher);
+        }
+    }
+
+    /**
+     * Complete every subscription - called when the server is stopped.
+     */
+    void complete() {
+        List<ConnectionSubscription> current;
+        synchronized (subscriptions) {
+            current = new ArrayList<>(subscriptions);
+            subscriptions.clear();
+        }
+        for (ConnectionSubscription subscription : current) {
+            subscription.complete();
+        }
+    }
+
+    class ConnectionSubscription implements TcpFlow.Subscription {
+        final TcpFlow.Subscriber<? super TcpFlow.Publisher<byte[]>> subscriber;
+
+        // Guarded by this
+        final Queue<TcpFlow.Publisher<byte[]>> pending = new ArrayDeque<>();
+        long demand;
+        boolean emitting;
+        boolean completed;
+        boolean cancelled;
+        Throwable error;
+
+        ConnectionSubscription(TcpFlow.Subscriber<? super TcpFlow.Publisher<byte[]>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (n <= 0) {
+                    error = new IllegalArgumentException(String.format("Requested %d - demand must be greater than zero", n));
+                } else {
+                    demand = (demand + n < 0) ? Long.MAX_VALUE : demand + n;
+                }
+            }
+            emit();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                pending.clear();
+            }
+            synchronized (subscriptions) {
+                subscriptions.remove(this);
+            }
+        }
+
+        void offer(TcpFlow.Publisher<byte[]> inboundPublisher) {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                pending.add(inboundPublisher);
+            }
+            emit();
+        }
+
+        void complete() {
+            synchronized (this) {
+                completed = true;
+            }
+            emit();
+        }
+
+        /**
+         * Deliver pending signals - only one thread delivers at a time, so the subscriber's signals are serialized even
+         * when it requests more from inside onNext.
+         */
+        void emit() {
+            while (true) {
+                TcpFlow.Publisher<byte[]> next = null;
+                Throwable failure = null;
+                boolean finished = false;
+                synchronized (this) {
+                    if (emitting || cancelled) {
+                        return;
+                    }
+                    if (error != null) {
+                        failure = error;
+                        cancelled = true;
+                    } else if (demand > 0 && !pending.isEmpty()) {
+                        next = pending.poll();
+                        if (demand != Long.MAX_VALUE) {
+                            demand--;
+                        }
+                    } else if (completed && pending.isEmpty()) {
+                        finished = true;
+                        cancelled = true;
+                    } else {
+                        return;
+                    }
+                    emitting = true;
+                }
+
+                try {
+                    if (failure != null) {
+                        subscriber.onError(failure);
+                    } else if (finished) {
+                        subscriber.onComplete();
+                    } else {
+                        subscriber.onNext(next);
+                    }
+                } finally {
+                    synchronized (this) {
+                        emitting = false;
+                    }
+                }
+            }
+        }
+    }
+}
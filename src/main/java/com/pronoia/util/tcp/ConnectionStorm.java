@@ -0,0 +1,387 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Opens and closes connections to a SimpleTcpServer as fast as possible from many client threads, and reports the
+ * server's accept rate, the connect latency percentiles, and the number of connects that were refused or timed out.
+ *
+ * The server must accept continuously (see SimpleTcpServer.setContinuousAccept), and should have a backlog large
+ * enough for the burst.  The storm closes the server's side of each connection as soon as it is accepted, so the
+ * server does not run out of file descriptors - any other connections to the server are closed too.
+ *
+ * By default clients close their connections with a reset, so a long storm does not exhaust the ephemeral ports with
+ * connections in TIME_WAIT.
+ */
+public class ConnectionStorm {
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    final SimpleTcpServer server;
+
+    Supplier<SimpleTcpClient> clientFactory;
+    int threads = 8;
+    long durationNanos = TimeUnit.SECONDS.toNanos(5);
+    int connectionsPerThread;
+    boolean reset = true;
+
+    volatile boolean stopped;
+
+    public ConnectionStorm(SimpleTcpServer server) {
+        this.server = server;
+        this.clientFactory = this::createClient;
+    }
+
+    /**
+     * Run the storm, blocking until the duration has elapsed or every thread has made its connections.
+     *
+     * @return the outcome of the storm
+     */
+    public Result run() {
+        if (!server.isStarted()) {
+            throw new IllegalStateException(String.format("%s cannot run a connection storm before server has been started", server.getName()));
+        }
+        if (!server.isContinuousAccept()) {
+            throw new IllegalStateException(String.format("%s cannot run a connection storm unless the server accepts continuously", server.getName()));
+        }
+
+        stopped = false;
+        long acceptedBefore = server.getAcceptedCount();
+
+        Thread closer = new Thread(this::closeServerConnections, server.getName() + " storm closer");
+        closer.setDaemon(true);
+        closer.start();
+
+        List<StormThread> stormThreads = new ArrayList<>(threads);
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + durationNanos;
+        for (int i = 0; i < threads; ++i) {
+            StormThread stormThread = new StormThread(i, endNanos);
+            stormThreads.add(stormThread);
+            stormThread.start();
+        }
+
+        LatencyHistogram connectLatency = new LatencyHistogram();
+        long connectedCount = 0;
+        long refusedCount = 0;
+        long timedOutCount = 0;
+        long failedCount = 0;
+        try {
+            for (StormThread stormThread : stormThreads) {
+                stormThread.join();
+                connectLatency.add(stormThread.connectLatency);
+                connectedCount += stormThread.connectedCount;
+                refusedCount += stormThread.refusedCount;
+                timedOutCount += stormThread.timedOutCount;
+                failedCount += stormThread.failedCount;
+            }
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(String.format("%s interrupted waiting for the connection storm", server.getName()), interruptedEx);
+        } finally {
+            stopped = true;
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        // Wait for the acceptor to catch up with the connects that completed
+        long acceptDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (server.getAcceptedCount() - acceptedBefore < connectedCount && System.nanoTime() - acceptDeadline < 0) {
+            pause(1);
+        }
+        long acceptedCount = server.getAcceptedCount() - acceptedBefore;
+
+        try {
+            closer.join();
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+        }
+        closeAll();
+
+        Result result = new Result(elapsedNanos, acceptedCount, connectedCount, refusedCount, timedOutCount, failedCount, connectLatency);
+        log.info("{} connection storm: {}", server.getName(), result);
+        return result;
+    }
+
+    void closeServerConnections() {
+        while (!stopped) {
+            if (!closeAll()) {
+                pause(1);
+            }
+        }
+    }
+
+    /**
+     * @return true if any connections were closed
+     */
+    boolean closeAll() {
+        Deque<SimpleTcpConnection> connections = server.getConnections();
+        if (connections.isEmpty()) {
+            return false;
+        }
+        for (SimpleTcpConnection connection : connections) {
+            server.closeConnection(connection);
+        }
+        return true;
+    }
+
+    void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+            stopped = true;
+        }
+    }
+
+    SimpleTcpClient createClient() {
+        // Registering thousands of short-lived clients with JMX would dominate the connect rate
+        return server.newClient(server.getName() + "-storm-client").jmxEnabled(false);
+    }
+
+    public Supplier<SimpleTcpClient> getClientFactory() {
+        return clientFactory;
+    }
+
+    /**
+     * @param clientFactory supplies a configured (but not started) client for each connection
+     */
+    public void setClientFactory(Supplier<SimpleTcpClient> clientFactory) {
+        this.clientFactory = (clientFactory != null) ? clientFactory : this::createClient;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal storm thread count [%d].  Count must be greater than zero", server.getName(), threads));
+        }
+
+        this.threads = threads;
+    }
+
+    public long getDuration(TimeUnit unit) {
+        return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void setDuration(long duration, TimeUnit unit) {
+        if (duration <= 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal storm duration [%d].  Duration must be greater than zero", server.getName(), duration));
+        }
+
+        this.durationNanos = unit.toNanos(duration);
+    }
+
+    public int getConnectionsPerThread() {
+        return connectionsPerThread;
+    }
+
+    /**
+     * Stop each thread after it has attempted the given number of connections, even if the duration has not elapsed.
+     *
+     * @param connectionsPerThread the number of connection attempts per thread - zero for no limit
+     */
+    public void setConnectionsPerThread(int connectionsPerThread) {
+        if (connectionsPerThread < 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal connections per thread [%d].  Count must not be negative", server.getName(), connectionsPerThread));
+        }
+
+        this.connectionsPerThread = connectionsPerThread;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    /**
+     * @param reset if true, clients close their connections with a reset rather than a FIN
+     */
+    public void setReset(boolean reset) {
+        this.reset = reset;
+    }
+
+    // Builder-style setters
+    public ConnectionStorm clientFactory(Supplier<SimpleTcpClient> clientFactory) {
+        this.setClientFactory(clientFactory);
+
+        return this;
+    }
+
+    public ConnectionStorm threads(int threads) {
+        this.setThreads(threads);
+
+        return this;
+    }
+
+    public ConnectionStorm duration(long duration, TimeUnit unit) {
+        this.setDuration(duration, unit);
+
+        return this;
+    }
+
+    public ConnectionStorm connectionsPerThread(int connectionsPerThread) {
+        this.setConnectionsPerThread(connectionsPerThread);
+
+        return this;
+    }
+
+    public ConnectionStorm reset(boolean reset) {
+        this.setReset(reset);
+
+        return this;
+    }
+
+    static boolean hasCause(Throwable throwable, Class<? extends Throwable> type) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    class StormThread extends Thread {
+        final long endNanos;
+        final LatencyHistogram connectLatency = new LatencyHistogram();
+
+        long connectedCount;
+        long refusedCount;
+        long timedOutCount;
+        long failedCount;
+
+        StormThread(int index, long endNanos) {
+            super(String.format("%s storm %d", server.getName(), index));
+            setDaemon(true);
+            this.endNanos = endNanos;
+        }
+
+        @Override
+        public void run() {
+            long limit = (connectionsPerThread > 0) ? connectionsPerThread : Long.MAX_VALUE;
+            for (long attempt = 0; attempt < limit && !stopped && System.nanoTime() - endNanos < 0; ++attempt) {
+                SimpleTcpClient client = clientFactory.get();
+                long startNanos = System.nanoTime();
+                try {
+                    client.start();
+                } catch (RuntimeException connectEx) {
+                    if (hasCause(connectEx, SocketTimeoutException.class)) {
+                        ++timedOutCount;
+                    } else if (hasCause(connectEx, ConnectException.class)) {
+                        ++refusedCount;
+                    } else {
+                        ++failedCount;
+                        log.debug("{} storm connect failed", getName(), connectEx);
+                    }
+                    continue;
+                }
+                connectLatency.record(System.nanoTime() - startNanos);
+                ++connectedCount;
+
+                if (reset) {
+                    client.reset();
+                } else {
+                    client.stop();
+                }
+            }
+        }
+    }
+
+    /**
+     * The outcome of a connection storm.
+     */
+    public static class Result {
+        final long elapsedNanos;
+        final long acceptedCount;
+        final long connectedCount;
+        final long refusedCount;
+        final long timedOutCount;
+        final long failedCount;
+        final LatencyHistogram connectLatency;
+
+        Result(long elapsedNanos, long acceptedCount, long connectedCount, long refusedCount, long timedOutCount, long failedCount, LatencyHistogram connectLatency) {
+            this.elapsedNanos = elapsedNanos;
+            this.acceptedCount = acceptedCount;
+            this.connectedCount = connectedCount;
+            this.refusedCount = refusedCount;
+            this.timedOutCount = timedOutCount;
+            this.failedCount = failedCount;
+            this.connectLatency = connectLatency;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return the number of connections accepted by the server during the storm
+         */
+        public long getAcceptedCount() {
+            return acceptedCount;
+        }
+
+        public double getAcceptsPerSecond() {
+            return (elapsedNanos > 0) ? acceptedCount / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1)) : 0;
+        }
+
+        /**
+         * @return the number of connects that succeeded
+         */
+        public long getConnectedCount() {
+            return connectedCount;
+        }
+
+        public long getRefusedCount() {
+            return refusedCount;
+        }
+
+        public long getTimedOutCount() {
+            return timedOutCount;
+        }
+
+        /**
+         * @return the number of connects that failed for any other reason (e.g. a failed TLS handshake)
+         */
+        public long getFailedCount() {
+            return failedCount;
+        }
+
+        /**
+         * @return the time taken by each successful connect, in nanoseconds
+         */
+        public LatencyHistogram getConnectLatency() {
+            return connectLatency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("accepted=%d (%.0f/s) connected=%d refused=%d timedOut=%d failed=%d connect %s",
+                acceptedCount, getAcceptsPerSecond(), connectedCount, refusedCount, timedOutCount, failedCount, connectLatency);
+        }
+    }
+}
@@ -0,0 +1,641 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.net.SocketTimeoutException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * A scripted conversation with a peer - e.g. expect "HELO", send "250 OK", expect "DATA" - for modelling a peer without
+ * writing a thread of blocking reads for it.
+ *
+ * The steps are compiled into a state machine when the conversation is run on a connection (see
+ * SimpleTcpServer.converse() and SimpleTcpClient.converse()), and the state machine is run by the shared conversation
+ * loop, so thousands of scripted sessions can run at once on a handful of threads.  Adding steps after a conversation
+ * has been run does not change the sessions already running, so one conversation can be run on any number of
+ * connections.
+ *
+ * An expect step waits for the peer to send data matching the expectation, and consumes the data up to the end of the
+ * match - so anything the peer sends before the match is skipped.  A session fails if an expectation is not met within
+ * the expect timeout that was set when the step was added, or if the connection ends first.
+ *
+ * Send steps never write from the loop thread - they hand the data to the connection's write queue (started with the
+ * default watermarks if the connection does not have one), and a session whose queue is above its high watermark waits,
+ * without holding the loop, until the peer has read enough to bring it back to the low watermark.  So a peer that stops
+ * reading only stalls its own session, which fails if the queue stays unwritable for longer than the expect timeout.
+ * A close step likewise waits for the queue to drain before closing the connection.
+ */
+public class Conversation {
+    static final long DEFAULT_EXPECT_TIMEOUT_MILLIS = 5000;
+    static final int SEND_HIGH_WATERMARK = 64 * 1024;
+    static final int SEND_LOW_WATERMARK = 32 * 1024;
+
+    final String name;
+    final List<Step> steps = new ArrayList<>();
+    long expectTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_EXPECT_TIMEOUT_MILLIS);
+
+    public Conversation(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getExpectTimeout(TimeUnit unit) {
+        return unit.convert(expectTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Set the deadline for the expect steps added after this call.
+     *
+     * @param timeout the time the peer has to meet each expectation
+     */
+    public void setExpectTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal expect timeout [%d].  Timeout must be greater than zero", name, timeout));
+        }
+
+        this.expectTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * @return the number of steps in the conversation
+     */
+    public int getStepCount() {
+        return steps.size();
+    }
+
+    // Fluent step methods
+
+    public Conversation expectTimeout(long timeout, TimeUnit unit) {
+        this.setExpectTimeout(timeout, unit);
+
+        return this;
+    }
+
+    /**
+     * Wait for the peer to send the bytes.
+     */
+    public Conversation expect(byte[] expected) {
+        final byte[] delimiter = expected.clone();
+        IncrementalSearch.delimiter(delimiter);
+        steps.add(new ExpectStep(() -> IncrementalSearch.delimiter(delimiter), "expect " + printable(delimiter), expectTimeoutNanos));
+
+        return this;
+    }
+
+    /**
+     * Wait for the peer to send the string.
+     */
+    public Conversation expect(String expected) {
+        return this.expect(expected.getBytes());
+    }
+
+    /**
+     * Wait for the peer to send data matching the pattern - the pattern is matched against the bytes as ISO-8859-1
+     * characters (see SimpleTcpServer.readUntil(Pattern, int)).
+     */
+    public Conversation expect(final Pattern pattern) {
+        IncrementalSearch.pattern(pattern);
+        steps.add(new ExpectStep(() -> IncrementalSearch.pattern(pattern), "expect /" + pattern + "/", expectTimeoutNanos));
+
+        return this;
+    }
+
+    /**
+     * Wait for the peer to send a frame - with any payload.
+     */
+    public Conversation expectFrame(MessageFraming framing) {
+        return this.expectFrame(framing, null);
+    }
+
+    /**
+     * Wait for the peer to send a frame with the payload.
+     *
+     * @param expected the expected payload, or null to accept any payload
+     */
+    public Conversation expectFrame(MessageFraming framing, byte[] expected) {
+        if (framing == null) {
+            throw new NullPointerException("Message framing must not be null");
+        }
+
+        steps.add(new ExpectFrameStep(framing, (expected != null) ? expected.clone() : null, expectTimeoutNanos));
+
+        return this;
+    }
+
+    public Conversation send(byte[] data) {
+        steps.add(new SendStep(data.clone(), "send " + printable(data), expectTimeoutNanos));
+
+        return this;
+    }
+
+    public Conversation send(String data) {
+        return this.send(data.getBytes());
+    }
+
+    /**
+     * Send a framed message.
+     */
+    public Conversation sendFrame(MessageFraming framing, byte[] payload) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 16);
+        try {
+            framing.writeFrame(frame, payload);
+        } catch (IOException ioEx) {
+            // ByteArrayOutputStream does not throw IOException
+            throw new IllegalStateException(ioEx);
+        }
+        steps.add(new SendStep(frame.toByteArray(), "send frame " + printable(payload), expectTimeoutNanos));
+
+        return this;
+    }
+
+    /**
+     * Pause the conversation - without holding a thread.
+     */
+    public Conversation delay(long delay, TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal delay [%d].  Delay must not be negative", name, delay));
+        }
+
+        steps.add(new DelayStep(unit.toNanos(delay)));
+
+        return this;
+    }
+
+    /**
+     * Close the connection.
+     */
+    public Conversation close() {
+        steps.add(new CloseStep(false, expectTimeoutNanos));
+
+        return this;
+    }
+
+    /**
+     * Reset the connection (SO_LINGER=0 followed by close for TCP).
+     */
+    public Conversation reset() {
+        steps.add(new CloseStep(true, expectTimeoutNanos));
+
+        return this;
+    }
+
+    /**
+     * Compile the conversation and run it on a connection.
+     */
+    Session run(SimpleTcpConnection connection) {
+        Session session = new Session(connection, steps.toArray(new Step[0]));
+        ConversationLoop.shared().submit(session);
+
+        return session;
+    }
+
+    static String printable(byte[] data) {
+        StringBuilder builder = new StringBuilder(data.length + 2).append('"');
+        for (int i = 0; i < Math.min(data.length, 64); ++i) {
+            int value = data[i] & 0xFF;
+            if (value >= 0x20 && value < 0x7F) {
+                builder.append((char) value);
+            } else {
+                builder.append(String.format("\\x%02x", value));
+            }
+        }
+        if (data.length > 64) {
+            builder.append("...");
+        }
+
+        return builder.append('"').toString();
+    }
+
+    @Override
+    public String toString() {
+        return "Conversation{"
+            + "name='" + name + '\''
+            + ", steps=" + steps
+            + '}';
+    }
+
+    /**
+     * A running conversation on a single connection.
+     *
+     * The state is only changed by the conversation loop thread that runs the session - other threads see it through
+     * the completion future.
+     */
+    public class Session {
+        final SimpleTcpConnection connection;
+        final Step[] sessionSteps;
+        final CompletableFuture<Session> completion = new CompletableFuture<>();
+
+        volatile int step;
+        boolean stepStarted;
+        long stepDeadline;
+        IncrementalSearch search;
+
+        byte[] received = new byte[1024];
+        int receivedLength;
+
+        Session(SimpleTcpConnection connection, Step[] sessionSteps) {
+            this.connection = connection;
+            this.sessionSteps = sessionSteps;
+        }
+
+        public Conversation getConversation() {
+            return Conversation.this;
+        }
+
+        /**
+         * @return the index of the step the session is running, or the number of steps once it has finished
+         */
+        public int getStep() {
+            return step;
+        }
+
+        public boolean isDone() {
+            return completion.isDone();
+        }
+
+        public boolean isFailed() {
+            return completion.isCompletedExceptionally();
+        }
+
+        /**
+         * @return the reason the session failed, or null if it has not failed
+         */
+        public Throwable getFailure() {
+            if (!isFailed()) {
+                return null;
+            }
+            try {
+                completion.get();
+                return null;
+            } catch (ExecutionException failedEx) {
+                return failedEx.getCause();
+            } catch (InterruptedException interruptedEx) {
+                Thread.currentThread().interrupt();
+                return interruptedEx;
+            }
+        }
+
+        /**
+         * @return a future that completes when the session has run every step, or completes exceptionally when it fails
+         */
+        public CompletableFuture<Session> getCompletion() {
+            return completion;
+        }
+
+        /**
+         * Wait for the session to finish.
+         *
+         * @return true if the session ran every step, false if it is still running after the timeout
+         *
+         * @throws IllegalStateException if the session failed
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            try {
+                completion.get(timeout, unit);
+                return true;
+            } catch (TimeoutException timeoutEx) {
+                return false;
+            } catch (ExecutionException failedEx) {
+                throw new IllegalStateException(failedEx.getCause().getMessage(), failedEx.getCause());
+            }
+        }
+
+        /**
+         * Run steps until one has to wait for the peer or the clock, or the session finishes.
+         *
+         * @return true if the session made any progress
+         */
+        boolean advance() {
+            boolean progress = false;
+            try {
+                while (step < sessionSteps.length) {
+                    Step current = sessionSteps[step];
+                    if (!stepStarted) {
+                        current.start(this);
+                        stepStarted = true;
+                    }
+                    if (!current.run(this)) {
+                        return progress;
+                    }
+                    stepStarted = false;
+                    search = null;
+                    ++step;
+                    progress = true;
+                }
+                // Anything the peer sent after the last match is left for the test to read
+                connection.pushBack(received, 0, receivedLength);
+                completion.complete(this);
+            } catch (IOException | RuntimeException failureEx) {
+                completion.completeExceptionally(new IOException(String.format("%s conversation failed at step %d (%s) with %s: %s",
+                    name, step, sessionSteps[step], connection.getRemoteAddress(), failureEx.getMessage()), failureEx));
+            }
+
+            return true;
+        }
+
+        /**
+         * Read whatever the peer has sent without blocking.
+         *
+         * @return the number of bytes read, or -1 at the end of the stream
+         */
+        int receive() throws IOException {
+            int available = connection.available();
+            if (available == 0) {
+                return connection.isEndOfStream() ? -1 : 0;
+            }
+
+            if (receivedLength + available > received.length) {
+                received = Arrays.copyOf(received, Math.max(received.length * 2, receivedLength + available));
+            }
+            int readCount = connection.getInputStream().read(received, receivedLength, available);
+            if (readCount > 0) {
+                receivedLength += readCount;
+                connection.touch();
+                connection.record(EventJournal.EventType.READ, readCount);
+            }
+
+            return readCount;
+        }
+
+        /**
+         * Discard the data up to the end of a match.
+         */
+        void consume(int count) {
+            System.arraycopy(received, count, received, 0, receivedLength - count);
+            receivedLength -= count;
+        }
+
+        /**
+         * @param timeoutNanos the write timeout for the queue if it has to be started
+         *
+         * @return the connection's write queue - started with the default watermarks if the connection does not have one
+         */
+        WriteQueue getWriteQueue(long timeoutNanos) throws IOException {
+            WriteQueue queue = connection.writeQueue;
+            if (queue == null) {
+                connection.startWriteQueue(SEND_HIGH_WATERMARK, SEND_LOW_WATERMARK, (int) TimeUnit.NANOSECONDS.toMillis(timeoutNanos), null);
+                queue = connection.writeQueue;
+            }
+
+            return queue;
+        }
+
+        void checkWriteDeadline(WriteQueue queue) throws IOException {
+            if (System.nanoTime() - stepDeadline > 0) {
+                throw new SocketTimeoutException(String.format("Peer is not reading - %d bytes queued", queue.getQueuedBytes()));
+            }
+        }
+
+        void checkDeadline(int readCount) throws IOException {
+            if (readCount == -1) {
+                throw new EOFException(String.format("Connection ended with %d unmatched bytes", receivedLength));
+            }
+            if (System.nanoTime() - stepDeadline > 0) {
+                throw new SocketTimeoutException(String.format("Expectation not met - %d unmatched bytes", receivedLength));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Session{"
+                + "conversation='" + name + '\''
+                + ", step=" + step
+                + ", connection=" + connection.getRemoteAddress()
+                + '}';
+        }
+    }
+
+    /**
+     * A step in the state machine.
+     */
+    abstract static class Step {
+        /**
+         * Called when the session reaches the step.
+         */
+        void start(Conversation.Session session) throws IOException {
+        }
+
+        /**
+         * @return true when the step is finished, false if it has to wait
+         */
+        abstract boolean run(Conversation.Session session) throws IOException;
+    }
+
+    static class ExpectStep extends Step {
+        final Supplier<IncrementalSearch> searchFactory;
+        final String description;
+        final long timeoutNanos;
+
+        ExpectStep(Supplier<IncrementalSearch> searchFactory, String description, long timeoutNanos) {
+            this.searchFactory = searchFactory;
+            this.description = description;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        @Override
+        void start(Conversation.Session session) {
+            session.search = searchFactory.get();
+            session.stepDeadline = System.nanoTime() + timeoutNanos;
+        }
+
+        @Override
+        boolean run(Conversation.Session session) throws IOException {
+            int end = session.search.search(session.received, session.receivedLength);
+            while (end < 0) {
+                int readCount = session.receive();
+                if (readCount <= 0) {
+                    session.checkDeadline(readCount);
+                    return false;
+                }
+                end = session.search.search(session.received, session.receivedLength);
+            }
+            session.consume(end);
+
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    static class ExpectFrameStep extends Step {
+        final MessageFraming framing;
+        final byte[] expected;
+        final long timeoutNanos;
+
+        ExpectFrameStep(MessageFraming framing, byte[] expected, long timeoutNanos) {
+            this.framing = framing;
+            this.expected = expected;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        @Override
+        void start(Conversation.Session session) {
+            session.stepDeadline = System.nanoTime() + timeoutNanos;
+        }
+
+        @Override
+        boolean run(Conversation.Session session) throws IOException {
+            while (true) {
+                ByteArrayInputStream frameInput = new ByteArrayInputStream(session.received, 0, session.receivedLength);
+                byte[] frame;
+                try {
+                    frame = framing.readFrame(frameInput);
+                } catch (EOFException partialFrame) {
+                    frame = null;
+                }
+                if (frame != null) {
+                    if (expected != null && !Arrays.equals(expected, frame)) {
+                        throw new IOException(String.format("Unexpected frame payload %s", printable(frame)));
+                    }
+                    session.consume(session.receivedLength - frameInput.available());
+                    return true;
+                }
+
+                int readCount = session.receive();
+                if (readCount <= 0) {
+                    session.checkDeadline(readCount);
+                    return false;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "expect frame " + ((expected != null) ? printable(expected) : "(any)");
+        }
+    }
+
+    static class SendStep extends Step {
+        final byte[] data;
+        final String description;
+        final long timeoutNanos;
+
+        SendStep(byte[] data, String description, long timeoutNanos) {
+            this.data = data;
+            this.description = description;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        @Override
+        void start(Conversation.Session session) {
+            session.stepDeadline = System.nanoTime() + timeoutNanos;
+        }
+
+        @Override
+        boolean run(Conversation.Session session) throws IOException {
+            SimpleTcpConnection connection = session.connection;
+            WriteQueue queue = session.getWriteQueue(timeoutNanos);
+            Object writeEvent = connection.beginEvent(FlightRecorderEvents.Kind.WRITE);
+            if (!queue.offer(data, 0, data.length)) {
+                // Wait for the peer to read enough to make the queue writable again
+                session.checkWriteDeadline(queue);
+                return false;
+            }
+            connection.touch();
+            connection.record(EventJournal.EventType.WRITE, data.length);
+            connection.commitEvent(writeEvent, data.length, null);
+
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    static class DelayStep extends Step {
+        final long delayNanos;
+
+        DelayStep(long delayNanos) {
+            this.delayNanos = delayNanos;
+        }
+
+        @Override
+        void start(Conversation.Session session) {
+            session.stepDeadline = System.nanoTime() + delayNanos;
+        }
+
+        @Override
+        boolean run(Conversation.Session session) {
+            return System.nanoTime() - session.stepDeadline >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("delay %d-ms", TimeUnit.NANOSECONDS.toMillis(delayNanos));
+        }
+    }
+
+    static class CloseStep extends Step {
+        final boolean reset;
+        final long timeoutNanos;
+
+        CloseStep(boolean reset, long timeoutNanos) {
+            this.reset = reset;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        @Override
+        void start(Conversation.Session session) {
+            session.stepDeadline = System.nanoTime() + timeoutNanos;
+        }
+
+        @Override
+        boolean run(Conversation.Session session) throws IOException {
+            WriteQueue queue = session.connection.writeQueue;
+            if (!reset && queue != null && queue.getQueuedBytes() > 0) {
+                // Closing flushes the queue - wait for the peer to read it first, so the close does not block the loop
+                queue.checkFailure();
+                session.checkWriteDeadline(queue);
+                return false;
+            }
+            if (reset) {
+                session.connection.reset("conversation reset");
+            } else {
+                session.connection.close();
+            }
+
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return reset ? "reset" : "close";
+        }
+    }
+}
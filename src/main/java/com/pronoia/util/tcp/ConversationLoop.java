@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The event loop that runs conversation sessions (see {@link Conversation}).
+ *
+ * Each loop thread owns the sessions submitted to it, and advances each of them in turn until every session is waiting
+ * for its peer or for the clock.  The transports only offer blocking streams, so readiness is found by checking how
+ * much data each waiting session has available (which never blocks) - when a pass makes no progress the thread backs
+ * off, up to the maximum poll interval, and when it has no sessions it parks until one is submitted.  A single instance
+ * (see {@link #shared()}) is used by every SimpleTcpServer and SimpleTcpClient in the JVM, with one thread per CPU up to
+ * four.
+ */
+class ConversationLoop {
+    static final long MIN_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    static final long MAX_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    static final int MAX_THREADS = 4;
+
+    private static final ConversationLoop SHARED = new ConversationLoop("tcp-test-util-conversation",
+        Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors())));
+
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    final String name;
+    final Worker[] workers;
+    final AtomicInteger nextWorker = new AtomicInteger();
+
+    ConversationLoop(String name, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(String.format("Thread count must be greater than zero [%d]", threads));
+        }
+
+        this.name = name;
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; ++i) {
+            workers[i] = new Worker(String.format("%s-%d", name, i + 1));
+        }
+    }
+
+    /**
+     * @return the loop shared by every SimpleTcpServer and SimpleTcpClient in the JVM
+     */
+    static ConversationLoop shared() {
+        return SHARED;
+    }
+
+    /**
+     * Start running a session - the session is run by the same thread until it finishes.
+     */
+    void submit(Conversation.Session session) {
+        workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)].submit(session);
+    }
+
+    int getThreadCount() {
+        return workers.length;
+    }
+
+    class Worker {
+        final String threadName;
+        final MpscQueue<Conversation.Session> submitted = new MpscQueue<>();
+        final AtomicBoolean started = new AtomicBoolean();
+
+        volatile Thread thread;
+
+        Worker(String threadName) {
+            this.threadName = threadName;
+        }
+
+        void submit(Conversation.Session session) {
+            start();
+            submitted.offer(session);
+            LockSupport.unpark(thread);
+        }
+
+        void start() {
+            if (started.compareAndSet(false, true)) {
+                Thread worker = new Thread(this::runSessions, threadName);
+                worker.setDaemon(true);
+                thread = worker;
+                worker.start();
+            }
+
+            while (thread == null) {
+                Thread.yield();
+            }
+        }
+
+        void runSessions() {
+            List<Conversation.Session> sessions = new ArrayList<>();
+            long pollNanos = MIN_POLL_NANOS;
+            while (true) {
+                Conversation.Session added;
+                while ((added = submitted.poll()) != null) {
+                    sessions.add(added);
+                }
+
+                boolean progress = false;
+                for (int i = 0; i < sessions.size(); ) {
+                    Conversation.Session session = sessions.get(i);
+                    try {
+                        progress |= session.advance();
+                    } catch (Throwable unexpectedEx) {
+                        log.warn(String.format("%s abandoning %s after an unexpected exception", threadName, session), unexpectedEx);
+                        session.completion.completeExceptionally(unexpectedEx);
+                    }
+                    if (session.isDone()) {
+                        // Order does not matter - move the last session into the finished session's place
+                        sessions.set(i, sessions.get(sessions.size() - 1));
+                        sessions.remove(sessions.size() - 1);
+                    } else {
+                        ++i;
+                    }
+                }
+
+                if (sessions.isEmpty()) {
+                    if (submitted.isEmpty()) {
+                        LockSupport.park(this);
+                    }
+                } else if (progress) {
+                    pollNanos = MIN_POLL_NANOS;
+                } else {
+                    LockSupport.parkNanos(this, pollNanos);
+                    pollNanos = Math.min(pollNanos * 2, MAX_POLL_NANOS);
+                }
+            }
+        }
+    }
+}
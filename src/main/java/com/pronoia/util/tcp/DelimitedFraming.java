@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.Arrays;
+
+/**
+ * Frames each message with a trailing delimiter.
+ *
+ * Frames are read a byte at a time, so the input stream should be buffered (socket and loopback streams are read
+ * straight from the receive buffer, so this is only a concern for unusual streams).
+ */
+class DelimitedFraming implements MessageFraming {
+    final byte[] delimiter;
+
+    DelimitedFraming(byte[] delimiter) {
+        if (delimiter == null || delimiter.length == 0) {
+            throw new IllegalArgumentException("Frame delimiter must not be empty");
+        }
+
+        this.delimiter = delimiter.clone();
+    }
+
+    @Override
+    public void writeFrame(OutputStream outputStream, byte[] message) throws IOException {
+        byte[] frame = Arrays.copyOf(message, message.length + delimiter.length);
+        System.arraycopy(delimiter, 0, frame, message.length, delimiter.length);
+
+        outputStream.write(frame);
+    }
+
+    @Override
+    public byte[] readFrame(InputStream inputStream) throws IOException {
+        byte[] frame = new byte[256];
+        int length = 0;
+        while (true) {
+            int nextByte = inputStream.read();
+            if (nextByte < 0) {
+                if (length == 0) {
+                    return null;
+                }
+                throw new EOFException(String.format("Stream ended after %d bytes of an unterminated frame", length));
+            }
+
+            if (length == frame.length) {
+                frame = Arrays.copyOf(frame, frame.length * 2);
+            }
+            frame[length++] = (byte) nextByte;
+
+            if (endsWithDelimiter(frame, length)) {
+                return Arrays.copyOf(frame, length - delimiter.length);
+            }
+        }
+    }
+
+    boolean endsWithDelimiter(byte[] frame, int length) {
+        if (length < delimiter.length) {
+            return false;
+        }
+        for (int i = 1; i <= delimiter.length; ++i) {
+            if (frame[length - i] != delimiter[delimiter.length - i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "DelimitedFraming{delimiter=" + Arrays.toString(delimiter) + '}';
+    }
+}
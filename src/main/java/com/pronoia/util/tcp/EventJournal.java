@@ -0,0 +1,288 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.IOException;
+
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size, lock-free ring buffer of connection lifecycle and I/O events, for post-mortem analysis of failed tests.
+ *
+ * Recording an event never allocates and practically never blocks - each slot is stored in preallocated arrays, and a
+ * writer claims a slot with a single atomic increment (only waiting if the writer a whole lap behind it is still writing
+ * the same slot).  Once the buffer is full the oldest events are overwritten.  Each slot carries
+ * the sequence number of the event in it (negated while the event is being written), so a dump skips slots that are
+ * overwritten while it is reading them.
+ *
+ * A single journal is shared by every SimpleTcpServer and SimpleTcpClient in the JVM.  Its capacity is set with the
+ * system property tcp-test-util.journal.capacity (rounded up to a power of two, zero disables the journal).
+ */
+public class EventJournal {
+    public static final String CAPACITY_PROPERTY = "tcp-test-util.journal.capacity";
+
+    static final int DEFAULT_CAPACITY = 16384;
+
+    private static final EventJournal SHARED = new EventJournal(Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+
+    public enum EventType {
+        STARTED,
+        STOPPED,
+        ACCEPTED,
+        ACCEPT_TIMEOUT,
+        CONNECTED,
+        CONNECT_TIMEOUT,
+        HANDSHAKE,
+        READ,
+        RECEIVED,
+        WRITE,
+        SHUTDOWN_INPUT,
+        SHUTDOWN_OUTPUT,
+        CLOSED,
+        RESET,
+        IDLE_REAPED,
+        ERROR
+    }
+
+    static final EventType[] EVENT_TYPES = EventType.values();
+
+    final int capacity;
+    final int mask;
+
+    final long startNanos = System.nanoTime();
+    final long startMillis = System.currentTimeMillis();
+
+    final AtomicLong cursor = new AtomicLong();
+    final AtomicLongArray sequences;
+    final AtomicLongArray timestamps;
+    final AtomicLongArray connectionIds;
+    final AtomicLongArray byteCounts;
+    final AtomicIntegerArray types;
+    final AtomicReferenceArray<String> sources;
+
+    public EventJournal(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException(String.format("Journal capacity must not be negative [%d]", capacity));
+        }
+
+        this.capacity = (capacity <= 1) ? capacity : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+
+        sequences = new AtomicLongArray(this.capacity);
+        timestamps = new AtomicLongArray(this.capacity);
+        connectionIds = new AtomicLongArray(this.capacity);
+        byteCounts = new AtomicLongArray(this.capacity);
+        types = new AtomicIntegerArray(this.capacity);
+        sources = new AtomicReferenceArray<>(this.capacity);
+    }
+
+    /**
+     * @return the journal shared by every SimpleTcpServer and SimpleTcpClient in the JVM
+     */
+    public static EventJournal shared() {
+        return SHARED;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * @return the sequence number that will be assigned to the next event
+     */
+    public long getSequence() {
+        return cursor.get();
+    }
+
+    /**
+     * Record an event.
+     *
+     * @param source       the name of the server or client
+     * @param connectionId the id of the connection, or zero for events that are not specific to a connection
+     * @param type         the type of the event
+     * @param byteCount    the number of bytes read or written, or zero
+     */
+    public void record(String source, long connectionId, EventType type, long byteCount) {
+        if (capacity == 0) {
+            return;
+        }
+
+        long sequence = cursor.getAndIncrement();
+        int slot = (int) (sequence & mask);
+
+        // A writer that falls a whole lap behind must not overwrite the newer event in its slot
+        while (true) {
+            long current = sequences.get(slot);
+            if (Math.abs(current) > sequence + 1) {
+                return;
+            } else if (current < 0) {
+                // The writer from the previous lap is still writing this slot
+                Thread.yield();
+            } else if (sequences.compareAndSet(slot, current, -(sequence + 1))) {
+                break;
+            }
+        }
+        timestamps.lazySet(slot, System.nanoTime());
+        connectionIds.lazySet(slot, connectionId);
+        byteCounts.lazySet(slot, byteCount);
+        types.lazySet(slot, type.ordinal());
+        sources.lazySet(slot, source);
+        sequences.lazySet(slot, sequence + 1);
+    }
+
+    /**
+     * @return the events still held in the journal, oldest first
+     */
+    public List<Event> snapshot() {
+        return snapshotSince(0);
+    }
+
+    /**
+     * @param fromSequence the sequence number of the first event of interest (see {@link #getSequence()})
+     *
+     * @return the events from the given sequence number that are still held in the journal, oldest first
+     */
+    public List<Event> snapshotSince(long fromSequence) {
+        long end = cursor.get();
+        long start = Math.max(fromSequence, end - capacity);
+
+        List<Event> answer = new ArrayList<>((int) Math.max(0, end - start));
+        for (long sequence = start; sequence < end; ++sequence) {
+            int slot = (int) (sequence & mask);
+
+            long before = sequences.get(slot);
+            if (before != sequence + 1) {
+                // Not published yet, or already overwritten
+                continue;
+            }
+            Event event = new Event(sequence, timestamps.get(slot), sources.get(slot), connectionIds.get(slot),
+                EVENT_TYPES[types.get(slot)], byteCounts.get(slot));
+            if (sequences.get(slot) == before) {
+                answer.add(event);
+            }
+        }
+
+        return answer;
+    }
+
+    /**
+     * Write the events still held in the journal, oldest first.
+     */
+    public void dump(Appendable appendable) throws IOException {
+        dumpSince(0, appendable);
+    }
+
+    /**
+     * Write the events from the given sequence number that are still held in the journal, oldest first.
+     */
+    public void dumpSince(long fromSequence, Appendable appendable) throws IOException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        for (Event event : snapshotSince(fromSequence)) {
+            long elapsedNanos = event.getTimestamp() - startNanos;
+            appendable.append(String.format("%s %10d.%06d %-24s #%-6d %-16s %d%n",
+                dateFormat.format(new Date(startMillis + TimeUnit.NANOSECONDS.toMillis(elapsedNanos))),
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos), elapsedNanos % 1000000,
+                event.getSource(), event.getConnectionId(), event.getType(), event.getByteCount()));
+        }
+    }
+
+    /**
+     * @return the events still held in the journal, formatted one per line
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        try {
+            dump(builder);
+        } catch (IOException ioEx) {
+            // StringBuilder does not throw IOException
+            throw new IllegalStateException(ioEx);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A copy of a recorded event.
+     */
+    public static class Event {
+        final long sequence;
+        final long timestamp;
+        final String source;
+        final long connectionId;
+        final EventType type;
+        final long byteCount;
+
+        Event(long sequence, long timestamp, String source, long connectionId, EventType type, long byteCount) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.source = source;
+            this.connectionId = connectionId;
+            this.type = type;
+            this.byteCount = byteCount;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the System.nanoTime() when the event was recorded
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public long getConnectionId() {
+            return connectionId;
+        }
+
+        public EventType getType() {
+            return type;
+        }
+
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Event{"
+                + "sequence=" + sequence
+                + ", source='" + source + '\''
+                + ", connectionId=" + connectionId
+                + ", type=" + type
+                + ", byteCount=" + byteCount
+                + '}';
+        }
+    }
+}
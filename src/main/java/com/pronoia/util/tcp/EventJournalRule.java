@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JUnit 4 rule that logs the events recorded in the shared {@link EventJournal} while a test was running, if the
+ * test fails.
+ * <pre>
+ *     &#64;Rule
+ *     public EventJournalRule journal = new EventJournalRule();
+ * </pre>
+ */
+public class EventJournalRule implements TestRule {
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    final EventJournal journal;
+
+    public EventJournalRule() {
+        this(EventJournal.shared());
+    }
+
+    public EventJournalRule(EventJournal journal) {
+        this.journal = journal;
+    }
+
+    public EventJournal getJournal() {
+        return journal;
+    }
+
+    @Override
+    public Statement apply(final Statement base, final Description description) {
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                long startSequence = journal.getSequence();
+                try {
+                    base.evaluate();
+                } catch (Throwable failure) {
+                    dump(description, startSequence);
+                    throw failure;
+                }
+            }
+        };
+    }
+
+    void dump(Description description, long startSequence) {
+        if (!journal.isEnabled()) {
+            return;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        try {
+            journal.dumpSince(startSequence, builder);
+        } catch (Exception dumpEx) {
+            log.warn(String.format("Ignoring exception encountered dumping the event journal for %s", description.getDisplayName()), dumpEx);
+            return;
+        }
+
+        if (journal.getSequence() - startSequence > journal.getCapacity()) {
+            log.error("{} failed - the last {} of {} events recorded during the test:{}{}",
+                description.getDisplayName(), journal.getCapacity(), journal.getSequence() - startSequence, System.lineSeparator(), builder);
+        } else {
+            log.error("{} failed - events recorded during the test:{}{}", description.getDisplayName(), System.lineSeparator(), builder);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the running SimpleTcpServers and SimpleTcpClients (for the metrics reporter), and registers them with the
+ * platform MBean server.
+ *
+ * Each fixture is registered as com.pronoia.util.tcp:type=&lt;SimpleTcpServer|SimpleTcpClient&gt;,name=&lt;name&gt;,id=&lt;n&gt;
+ * - the id keeps fixtures with the same name apart.  JMX registration can be disabled for every fixture with the
+ * system property tcp-test-util.jmx.enabled=false.
+ */
+abstract class FixtureMonitor implements SimpleTcpFixtureMXBean {
+    public static final String DOMAIN = "com.pronoia.util.tcp";
+    public static final String ENABLED_PROPERTY = "tcp-test-util.jmx.enabled";
+
+    static final AtomicLong FIXTURE_IDS = new AtomicLong();
+
+    static final Set<FixtureMonitor> RUNNING = ConcurrentHashMap.newKeySet();
+
+    static final Logger LOG = LoggerFactory.getLogger(FixtureMonitor.class);
+
+    final long fixtureId = FIXTURE_IDS.incrementAndGet();
+    final TcpStatistics statistics;
+
+    volatile ObjectName objectName;
+
+    FixtureMonitor(TcpStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    static boolean isEnabledByDefault() {
+        return Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"));
+    }
+
+    /**
+     * @return the fixtures that are currently running
+     */
+    static Set<FixtureMonitor> running() {
+        return RUNNING;
+    }
+
+    long getFixtureId() {
+        return fixtureId;
+    }
+
+    /**
+     * @return the name the fixture is registered under, or null if it is not registered
+     */
+    ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * Track the running fixture, and register it with the platform MBean server if requested - failures are logged and
+     * ignored, so monitoring never stops a test.
+     *
+     * @param jmx if true, register the fixture with the platform MBean server
+     */
+    synchronized void register(boolean jmx) {
+        RUNNING.add(this);
+        if (!jmx || objectName != null) {
+            return;
+        }
+
+        try {
+            ObjectName name = new ObjectName(String.format("%s:type=%s,name=%s,id=%d", DOMAIN, getType(), ObjectName.quote(getName()), fixtureId));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException | RuntimeException registerEx) {
+            LOG.warn(String.format("%s ignoring exception encountered registering MBean", getName()), registerEx);
+        }
+    }
+
+    synchronized void unregister() {
+        RUNNING.remove(this);
+        ObjectName name = objectName;
+        if (name == null) {
+            return;
+        }
+
+        objectName = null;
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (mbeanServer.isRegistered(name)) {
+                mbeanServer.unregisterMBean(name);
+            }
+        } catch (JMException | RuntimeException unregisterEx) {
+            LOG.warn(String.format("%s ignoring exception encountered unregistering MBean %s", getName(), name), unregisterEx);
+        }
+    }
+
+    @Override
+    public long getBytesRead() {
+        return statistics.getBytesRead();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return statistics.getBytesWritten();
+    }
+
+    @Override
+    public long getReadCount() {
+        return statistics.getReadCount();
+    }
+
+    @Override
+    public long getWriteCount() {
+        return statistics.getWriteCount();
+    }
+
+    @Override
+    public double getBytesReadPerSecond() {
+        return statistics.getRates().bytesReadPerSecond;
+    }
+
+    @Override
+    public double getBytesWrittenPerSecond() {
+        return statistics.getRates().bytesWrittenPerSecond;
+    }
+
+    @Override
+    public double getReadsPerSecond() {
+        return statistics.getRates().readsPerSecond;
+    }
+
+    @Override
+    public double getWritesPerSecond() {
+        return statistics.getRates().writesPerSecond;
+    }
+
+    @Override
+    public long getErrorCount() {
+        return statistics.getErrorCount();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return statistics.getTimeoutCount();
+    }
+
+    static class ServerMonitor extends FixtureMonitor {
+        final SimpleTcpServer server;
+
+        ServerMonitor(SimpleTcpServer server) {
+            super(server.statistics);
+            this.server = server;
+        }
+
+        @Override
+        public String getName() {
+            return server.getName();
+        }
+
+        @Override
+        public String getType() {
+            return SimpleTcpServer.class.getSimpleName();
+        }
+
+        @Override
+        public boolean isStarted() {
+            return server.isStarted();
+        }
+
+        @Override
+        public String getLocalAddress() {
+            return server.localAddress();
+        }
+
+        @Override
+        public int getConnectionCount() {
+            int answer = 0;
+            for (SimpleTcpConnection connection : server.getConnections()) {
+                if (connection.isOpen()) {
+                    ++answer;
+                }
+            }
+            return answer;
+        }
+
+        @Override
+        public long getTotalConnectionCount() {
+            return server.getAcceptedCount();
+        }
+
+        @Override
+        public long getQueuedWriteBytes() {
+            long answer = 0;
+            for (SimpleTcpConnection connection : server.getConnections()) {
+                WriteQueue queue = connection.writeQueue;
+                if (queue != null) {
+                    answer += queue.getQueuedBytes();
+                }
+            }
+            return answer;
+        }
+
+        @Override
+        public void resetConnections() {
+            server.resetConnections();
+        }
+
+        @Override
+        public void closeConnections() {
+            server.closeConnections();
+        }
+    }
+
+    static class ClientMonitor extends FixtureMonitor {
+        final SimpleTcpClient client;
+
+        ClientMonitor(SimpleTcpClient client) {
+            super(client.statistics);
+            this.client = client;
+        }
+
+        @Override
+        public String getName() {
+            return client.getName();
+        }
+
+        @Override
+        public String getType() {
+            return SimpleTcpClient.class.getSimpleName();
+        }
+
+        @Override
+        public boolean isStarted() {
+            return client.isStarted();
+        }
+
+        @Override
+        public String getLocalAddress() {
+            SimpleTcpConnection connection = client.connection;
+            return (connection != null) ? String.valueOf(connection.getTransport().getLocalAddress()) : null;
+        }
+
+        @Override
+        public int getConnectionCount() {
+            SimpleTcpConnection connection = client.connection;
+            return (connection != null && connection.isOpen()) ? 1 : 0;
+        }
+
+        @Override
+        public long getTotalConnectionCount() {
+            return client.getConnectCount();
+        }
+
+        @Override
+        public long getQueuedWriteBytes() {
+            return client.getQueuedWriteBytes();
+        }
+
+        /**
+         * Reset the connection - the client stays registered until it is stopped.
+         */
+        @Override
+        public void resetConnections() {
+            SimpleTcpConnection connection = client.connection;
+            if (connection != null && connection.isOpen()) {
+                try {
+                    connection.reset("reset over JMX");
+                } catch (IOException resetEx) {
+                    LOG.warn(String.format("%s ignoring exception encountered resetting the connection over JMX", getName()), resetEx);
+                }
+            }
+        }
+
+        /**
+         * Close the connection - the client stays registered until it is stopped.
+         */
+        @Override
+        public void closeConnections() {
+            SimpleTcpConnection connection = client.connection;
+            if (connection != null && connection.isOpen()) {
+                try {
+                    connection.close();
+                } catch (IOException closeEx) {
+                    LOG.warn(String.format("%s ignoring exception encountered closing the connection over JMX", getName()), closeEx);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.net.SocketAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Emits JDK Flight Recorder events for connects, accepts, reads, writes and resets, so the fixture's own I/O can be
+ * lined up with the application's on the same timeline.
+ *
+ * The JFR event classes are only loaded if the jdk.jfr module is present (Java 11+, or 8u262+), and can be disabled
+ * with the system property tcp-test-util.jfr.enabled=false.  When the events are not enabled in the recording - or
+ * there is no recording - begin() returns null after a single check, and commit() does nothing with a null event.
+ *
+ * Usage:
+ * <pre>
+ *     Object event = FlightRecorderEvents.begin(FlightRecorderEvents.Kind.WRITE);
+ *     ... perform the I/O ...
+ *     FlightRecorderEvents.commit(event, name, connectionId, remoteAddress, byteCount, null);
+ * </pre>
+ */
+final class FlightRecorderEvents {
+    public static final String ENABLED_PROPERTY = "tcp-test-util.jfr.enabled";
+
+    static final String RECORDER_CLASS = "com.pronoia.util.tcp.JfrRecorder";
+
+    enum Kind {
+        CONNECT,
+        ACCEPT,
+        READ,
+        WRITE,
+        RESET
+    }
+
+    static final Recorder RECORDER = loadRecorder();
+
+    private FlightRecorderEvents() {
+    }
+
+    /**
+     * Start timing an event.
+     *
+     * @return the event, or null if events of this kind are not being recorded
+     */
+    static Object begin(Kind kind) {
+        return RECORDER.begin(kind);
+    }
+
+    /**
+     * Finish an event started with begin().
+     *
+     * @param event         the event returned by begin() - nothing is recorded if it is null
+     * @param source        the name of the server or client
+     * @param connectionId  the id of the connection, or zero if there is no connection (e.g. a failed connect)
+     * @param remoteAddress the address of the peer, or null if it is not known
+     * @param byteCount     the number of bytes read or written, or zero
+     * @param cause         why a connect or accept failed or timed out, why a connection was reset, or why a read or
+     *                      write failed - null if it succeeded
+     */
+    static void commit(Object event, String source, long connectionId, SocketAddress remoteAddress, long byteCount, String cause) {
+        if (event != null) {
+            RECORDER.commit(event, source, connectionId, remoteAddress, byteCount, cause);
+        }
+    }
+
+    /**
+     * Record an event with no duration (e.g. a reset or a timeout).
+     */
+    static void instant(Kind kind, String source, long connectionId, SocketAddress remoteAddress, String cause) {
+        commit(begin(kind), source, connectionId, remoteAddress, 0, cause);
+    }
+
+    static boolean isAvailable() {
+        return RECORDER.getClass() != Recorder.class;
+    }
+
+    static Recorder loadRecorder() {
+        if (!Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"))) {
+            return new Recorder();
+        }
+
+        try {
+            Class.forName("jdk.jfr.Event", false, FlightRecorderEvents.class.getClassLoader());
+            return (Recorder) Class.forName(RECORDER_CLASS).getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException | LinkageError jfrNotAvailable) {
+            return new Recorder();
+        } catch (ReflectiveOperationException | RuntimeException loadEx) {
+            Logger log = LoggerFactory.getLogger(FlightRecorderEvents.class);
+            log.warn("Flight Recorder events are disabled - failed to load {}", RECORDER_CLASS, loadEx);
+            return new Recorder();
+        }
+    }
+
+    /**
+     * Records nothing - used when JFR is not available or disabled.
+     */
+    static class Recorder {
+        Object begin(Kind kind) {
+            return null;
+        }
+
+        void commit(Object event, String source, long connectionId, SocketAddress remoteAddress, long byteCount, String cause) {
+        }
+    }
+}
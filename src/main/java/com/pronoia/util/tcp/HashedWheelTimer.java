@@ -0,0 +1,268 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timing wheel used for all of the timeouts in the library (connect, accept, read deadline, idle, etc).
+ *
+ * Scheduling and cancelling a timeout are O(1) and never block - new and cancelled timeouts are handed to the worker
+ * thread through lock-free queues, and the worker moves them in/out of the wheel buckets.  Timeouts fire with a
+ * granularity of one tick.  A single instance (see {@link #shared()}) is used by every SimpleTcpServer and SimpleTcpClient
+ * in the JVM, so the number of connections does not affect the number of timer threads.
+ */
+class HashedWheelTimer {
+    static final long DEFAULT_TICK_MILLIS = 10;
+    static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static final HashedWheelTimer SHARED = new HashedWheelTimer("tcp-test-util-timer", DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    final String name;
+    final long tickNanos;
+    final Bucket[] wheel;
+    final int mask;
+
+    final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+    final AtomicBoolean started = new AtomicBoolean();
+
+    volatile Thread workerThread;
+    volatile long startTime;
+    long tick;
+    int scheduledCount;
+
+    HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException(String.format("Tick duration must be greater than zero [%d]", tickDuration));
+        }
+        if (wheelSize <= 0 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException(String.format("Wheel size must be a power of two [%d]", wheelSize));
+        }
+
+        this.name = name;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; ++i) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = wheelSize - 1;
+    }
+
+    /**
+     * @return the timer shared by every SimpleTcpServer and SimpleTcpClient in the JVM
+     */
+    static HashedWheelTimer shared() {
+        return SHARED;
+    }
+
+    /**
+     * Schedule a task to run once after the given delay.
+     *
+     * The task runs on the timer thread, so it must be short and must not block.
+     *
+     * @return a handle that can be used to cancel the task
+     */
+    Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        start();
+
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0)));
+        pendingTimeouts.add(timeout);
+        LockSupport.unpark(workerThread);
+
+        return timeout;
+    }
+
+    void start() {
+        if (started.compareAndSet(false, true)) {
+            startTime = System.nanoTime();
+            Thread worker = new Thread(name) {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            };
+            worker.setDaemon(true);
+            workerThread = worker;
+            worker.start();
+        }
+
+        while (workerThread == null) {
+            Thread.yield();
+        }
+    }
+
+    void runWorker() {
+        while (true) {
+            if (scheduledCount == 0 && pendingTimeouts.isEmpty()) {
+                // Nothing to do - sleep until a timeout is scheduled, then catch the wheel up to the current time
+                LockSupport.park(this);
+                tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+            }
+
+            long deadline = (tick + 1) * tickNanos;
+            long sleepNanos;
+            while ((sleepNanos = deadline - (System.nanoTime() - startTime)) > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+            }
+
+            removeCancelledTimeouts();
+            transferPendingTimeouts();
+            wheel[(int) (tick & mask)].expireTimeouts();
+            ++tick;
+        }
+    }
+
+    void transferPendingTimeouts() {
+        Timeout timeout;
+        while ((timeout = pendingTimeouts.poll()) != null) {
+            if (timeout.state.get() != Timeout.STATE_PENDING) {
+                continue;
+            }
+            long expiryTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (Math.max(expiryTick, tick) & mask)].add(timeout);
+        }
+    }
+
+    void removeCancelledTimeouts() {
+        Timeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * A handle for a scheduled task.
+     */
+    class Timeout {
+        static final int STATE_PENDING = 0;
+        static final int STATE_CANCELLED = 1;
+        static final int STATE_EXPIRED = 2;
+
+        final Runnable task;
+        final long deadline;
+        final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+
+        long remainingRounds;
+        Bucket bucket;
+        Timeout next;
+        Timeout prev;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task.
+         *
+         * @return true if the task was cancelled; false if it has already run (or was already cancelled)
+         */
+        boolean cancel() {
+            if (state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+                cancelledTimeouts.add(this);
+                return true;
+            }
+            return false;
+        }
+
+        boolean isCancelled() {
+            return state.get() == STATE_CANCELLED;
+        }
+
+        boolean isExpired() {
+            return state.get() == STATE_EXPIRED;
+        }
+
+        void expire() {
+            if (state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+                try {
+                    task.run();
+                } catch (Throwable taskEx) {
+                    log.warn(String.format("%s ignoring exception thrown by timer task %s", name, task), taskEx);
+                }
+            }
+        }
+    }
+
+    /**
+     * A doubly-linked list of the timeouts in one slot of the wheel - only accessed by the worker thread.
+     */
+    class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = timeout;
+                tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+            ++scheduledCount;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.next = null;
+            timeout.prev = null;
+            timeout.bucket = null;
+            --scheduledCount;
+        }
+
+        void expireTimeouts() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    --timeout.remainingRounds;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
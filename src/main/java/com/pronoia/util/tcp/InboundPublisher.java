@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes the data received on a connection as byte[] chunks, reading the connection only while the subscriber has
+ * outstanding demand.
+ *
+ * When the subscriber has requested nothing the connection is not read at all, so the peer is pushed back by TCP flow
+ * control once the receive buffer fills - unless the connection is drained in the background, in which case the drain
+ * keeps reading and the backpressure stops at the drain buffer.
+ *
+ * The data is a single stream, so only one subscriber is allowed.  Cancelling the subscription does not close the
+ * connection - it stops reading after any read that is already in progress.
+ */
+class InboundPublisher implements TcpFlow.Publisher<byte[]> {
+    final SimpleTcpConnection connection;
+    final int chunkSize;
+
+    final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * @param chunkSize the maximum size of each published chunk
+     */
+    InboundPublisher(SimpleTcpConnection connection, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException(String.format("Chunk size must be greater than zero [%d]", chunkSize));
+        }
+
+        this.connection = connection;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void subscribe(TcpFlow.Subscriber<? super byte[]> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber must not be null");
+        }
+
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new TcpFlow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException(String.format("%s inbound data for %s already has a subscriber",
+                connection.name, connection.getRemoteAddress())));
+            return;
+        }
+
+        InboundSubscription subscription = new InboundSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.start();
+    }
+
+    class InboundSubscription implements TcpFlow.Subscription, Runnable {
+        final TcpFlow.Subscriber<? super byte[]> subscriber;
+        final AtomicLong demand = new AtomicLong();
+
+        // The I/O worker running the read loop - null until the loop starts
+        volatile Thread readerThread;
+
+        volatile boolean cancelled;
+        volatile Throwable requestError;
+
+        InboundSubscription(TcpFlow.Subscriber<? super byte[]> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void start() {
+            IoWorkers.shared().execute(String.format("%s publisher %s", connection.name, connection.getRemoteAddress()), this);
+        }
+
+        void wakeReader() {
+            Thread reader = readerThread;
+            if (reader != null) {
+                LockSupport.unpark(reader);
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                // Reported by the reader thread, so the subscriber's signals stay serialized
+                requestError = new IllegalArgumentException(String.format("Requested %d - demand must be greater than zero", n));
+                cancelled = true;
+            } else {
+                long current;
+                long updated;
+                do {
+                    current = demand.get();
+                    updated = (current + n < 0) ? Long.MAX_VALUE : current + n;
+                } while (!demand.compareAndSet(current, updated));
+            }
+            wakeReader();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            wakeReader();
+        }
+
+        @Override
+        public void run() {
+            // Demand and cancellation are re-checked before parking, so a wake-up before this is set is not lost
+            readerThread = Thread.currentThread();
+            byte[] buffer = new byte[chunkSize];
+            try {
+                InputStream inputStream = connection.getInputStream();
+                while (!cancelled) {
+                    if (demand.get() == 0) {
+                        LockSupport.park(this);
+                        continue;
+                    }
+
+                    int readCount = inputStream.read(buffer);
+                    if (cancelled) {
+                        break;
+                    }
+                    if (readCount == -1) {
+                        subscriber.onComplete();
+                        return;
+                    }
+                    if (readCount > 0) {
+                        connection.touch();
+                        connection.record(EventJournal.EventType.READ, readCount);
+                        if (demand.get() != Long.MAX_VALUE) {
+                            demand.decrementAndGet();
+                        }
+                        subscriber.onNext(Arrays.copyOf(buffer, readCount));
+                    }
+                }
+            } catch (IOException readEx) {
+                if (!cancelled) {
+                    connection.record(EventJournal.EventType.ERROR, 0);
+                    subscriber.onError(readEx);
+                }
+                return;
+            }
+
+            Throwable error = requestError;
+            if (error != null) {
+                subscriber.onError(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the first match in data that arrives a chunk at a time, without rescanning everything received so far each
+ * time a chunk arrives.
+ *
+ * A search is stateful - it remembers where the last search left off, so it must only be used for one stream of data,
+ * and the data passed to each search must start with the data passed to the previous one.
+ */
+abstract class IncrementalSearch {
+    /**
+     * The furthest a pattern search reaches back into data that has already been searched.
+     */
+    static final int PATTERN_OVERLAP = 16 * 1024;
+
+    /**
+     * @param data   the data received so far
+     * @param length the number of bytes received so far
+     *
+     * @return the index after the end of the first match, or -1 if there is no match yet
+     */
+    abstract int search(byte[] data, int length);
+
+    static IncrementalSearch delimiter(byte[] delimiter) {
+        return new DelimiterSearch(delimiter);
+    }
+
+    static IncrementalSearch pattern(Pattern pattern) {
+        return new PatternSearch(pattern);
+    }
+
+    /**
+     * Boyer-Moore-Horspool search for a byte sequence.  The search resumes at the first alignment that has not been
+     * ruled out, so at most delimiter.length - 1 bytes of old data are rescanned when a chunk arrives.
+     */
+    static class DelimiterSearch extends IncrementalSearch {
+        final byte[] delimiter;
+        final int[] skip = new int[256];
+        int position;
+
+        DelimiterSearch(byte[] delimiter) {
+            if (delimiter == null || delimiter.length == 0) {
+                throw new IllegalArgumentException("Delimiter must not be empty");
+            }
+
+            this.delimiter = delimiter.clone();
+            Arrays.fill(skip, delimiter.length);
+            for (int i = 0; i < delimiter.length - 1; ++i) {
+                skip[delimiter[i] & 0xFF] = delimiter.length - 1 - i;
+            }
+        }
+
+        @Override
+        int search(byte[] data, int length) {
+            int last = delimiter.length - 1;
+            while (position + last < length) {
+                int i = last;
+                while (data[position + i] == delimiter[i]) {
+                    if (i == 0) {
+                        return position + delimiter.length;
+                    }
+                    --i;
+                }
+                position += skip[data[position + last] & 0xFF];
+            }
+
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return "delimiter " + Arrays.toString(delimiter);
+        }
+    }
+
+    /**
+     * Regular expression search over the bytes as ISO-8859-1 characters (so each byte is one character).  When the
+     * matcher did not need to look past the end of the data, nothing already searched can start a match and the next
+     * search starts at the new data - otherwise it reaches back at most PATTERN_OVERLAP bytes.
+     */
+    static class PatternSearch extends IncrementalSearch {
+        final Pattern pattern;
+        int position;
+
+        PatternSearch(Pattern pattern) {
+            if (pattern == null) {
+                throw new IllegalArgumentException("Pattern must not be null");
+            }
+
+            this.pattern = pattern;
+        }
+
+        @Override
+        int search(byte[] data, int length) {
+            if (position >= length) {
+                return -1;
+            }
+
+            Matcher matcher = pattern.matcher(new Latin1Sequence(data, length))
+                .region(position, length)
+                .useTransparentBounds(true)
+                .useAnchoringBounds(false);
+            if (matcher.find()) {
+                return matcher.end();
+            }
+
+            position = matcher.hitEnd() ? Math.max(position, length - PATTERN_OVERLAP) : length;
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return "pattern " + pattern;
+        }
+    }
+
+    /**
+     * A view of bytes as ISO-8859-1 characters, without decoding them.
+     */
+    static class Latin1Sequence implements CharSequence {
+        final byte[] data;
+        final int offset;
+        final int length;
+
+        Latin1Sequence(byte[] data, int length) {
+            this(data, 0, length);
+        }
+
+        Latin1Sequence(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (data[offset + index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new Latin1Sequence(data, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(data, offset, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
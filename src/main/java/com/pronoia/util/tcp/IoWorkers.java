@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The I/O worker threads that run the blocking per-connection loops in the background - the background drain, the
+ * receive ring, auto-drain, echo, the inbound publisher, the request pipeline reader, the write queue writer, the
+ * throughput probe streams and the paced latency probe sender - and the short blocking tasks that must not run on the acceptor or the shared timer (server
+ * TLS handshakes and reaping idle connections).
+ *
+ * The transports only offer blocking I/O, so this is not an event loop: a task hands off to an idle worker, or a new
+ * thread is started when every worker is busy, and each loop occupies its worker until the loop ends - so a connection
+ * with several loops running (e.g. auto-drain and a write queue) still holds a thread for each.  What the pool saves is
+ * thread creation: workers are reused when a loop ends, and idle workers exit after a minute, so a test that opens many
+ * short connections does not create a thread for each one.  While a worker runs a task, the worker thread is named for
+ * the task.  A single instance (see {@link #shared()}) is used by every SimpleTcpServer and SimpleTcpClient in the JVM.
+ */
+class IoWorkers {
+    static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static final IoWorkers SHARED = new IoWorkers("tcp-test-util-io");
+
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    final String name;
+    final AtomicInteger workerSequence = new AtomicInteger();
+    final ThreadPoolExecutor executor;
+
+    IoWorkers(String name) {
+        this.name = name;
+        this.executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), task -> {
+            Thread worker = new Thread(task, String.format("%s-%d", name, workerSequence.incrementAndGet()));
+            worker.setDaemon(true);
+            return worker;
+        });
+    }
+
+    /**
+     * @return the workers shared by every SimpleTcpServer and SimpleTcpClient in the JVM
+     */
+    static IoWorkers shared() {
+        return SHARED;
+    }
+
+    /**
+     * Run a task (typically a connection's blocking loop) on an idle worker, or on a new worker if they are all busy.
+     *
+     * @param taskName the name of the worker thread while it runs the task
+     */
+    void execute(final String taskName, final Runnable task) {
+        executor.execute(() -> {
+            Thread worker = Thread.currentThread();
+            String workerName = worker.getName();
+            worker.setName(taskName);
+            try {
+                task.run();
+            } catch (RuntimeException unexpectedEx) {
+                log.warn(String.format("%s ignoring unexpected exception", taskName), unexpectedEx);
+            } finally {
+                worker.setName(workerName);
+            }
+        });
+    }
+
+    /**
+     * @return the number of worker threads, busy or idle
+     */
+    int getWorkerCount() {
+        return executor.getPoolSize();
+    }
+
+    /**
+     * @return the number of workers running a task
+     */
+    int getActiveCount() {
+        return executor.getActiveCount();
+    }
+}
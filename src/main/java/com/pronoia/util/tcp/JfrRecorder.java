@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.net.SocketAddress;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Flight Recorder implementation - only loaded (reflectively, by FlightRecorderEvents) when jdk.jfr is present.
+ */
+class JfrRecorder extends FlightRecorderEvents.Recorder {
+    static final EventType CONNECT_TYPE = EventType.getEventType(ConnectEvent.class);
+    static final EventType ACCEPT_TYPE = EventType.getEventType(AcceptEvent.class);
+    static final EventType READ_TYPE = EventType.getEventType(ReadEvent.class);
+    static final EventType WRITE_TYPE = EventType.getEventType(WriteEvent.class);
+    static final EventType RESET_TYPE = EventType.getEventType(ResetEvent.class);
+
+    @Override
+    Object begin(FlightRecorderEvents.Kind kind) {
+        TcpEvent event;
+        switch (kind) {
+            case CONNECT:
+                event = CONNECT_TYPE.isEnabled() ? new ConnectEvent() : null;
+                break;
+            case ACCEPT:
+                event = ACCEPT_TYPE.isEnabled() ? new AcceptEvent() : null;
+                break;
+            case READ:
+                event = READ_TYPE.isEnabled() ? new ReadEvent() : null;
+                break;
+            case WRITE:
+                event = WRITE_TYPE.isEnabled() ? new WriteEvent() : null;
+                break;
+            default:
+                event = RESET_TYPE.isEnabled() ? new ResetEvent() : null;
+                break;
+        }
+
+        if (event != null) {
+            event.begin();
+        }
+        return event;
+    }
+
+    @Override
+    void commit(Object event, String source, long connectionId, SocketAddress remoteAddress, long byteCount, String cause) {
+        TcpEvent tcpEvent = (TcpEvent) event;
+        tcpEvent.end();
+        if (tcpEvent.shouldCommit()) {
+            tcpEvent.source = source;
+            tcpEvent.connectionId = connectionId;
+            tcpEvent.remoteAddress = (remoteAddress != null) ? remoteAddress.toString() : null;
+            tcpEvent.byteCount = byteCount;
+            tcpEvent.cause = cause;
+            tcpEvent.commit();
+        }
+    }
+
+    @Category("TCP Test Util")
+    abstract static class TcpEvent extends Event {
+        @Label("Source")
+        @Description("The name of the SimpleTcpServer or SimpleTcpClient")
+        String source;
+
+        @Label("Connection Id")
+        long connectionId;
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Bytes")
+        @DataAmount
+        long byteCount;
+
+        @Label("Cause")
+        @Description("Why the operation failed, timed out or reset the connection - empty if it succeeded")
+        String cause;
+    }
+
+    @Name("com.pronoia.util.tcp.Connect")
+    @Label("Connect")
+    @Description("A SimpleTcpClient connecting to a server, including any TLS handshake")
+    static class ConnectEvent extends TcpEvent {
+    }
+
+    @Name("com.pronoia.util.tcp.Accept")
+    @Label("Accept")
+    @Description("A SimpleTcpServer accepting a client connection, including the wait for the client and any TLS handshake")
+    static class AcceptEvent extends TcpEvent {
+    }
+
+    @Name("com.pronoia.util.tcp.Read")
+    @Label("Read")
+    @Description("Data read from a connection by a SimpleTcpServer or SimpleTcpClient")
+    static class ReadEvent extends TcpEvent {
+    }
+
+    @Name("com.pronoia.util.tcp.Write")
+    @Label("Write")
+    @Description("Data written to a connection by a SimpleTcpServer or SimpleTcpClient")
+    static class WriteEvent extends TcpEvent {
+    }
+
+    @Name("com.pronoia.util.tcp.Reset")
+    @Label("Reset")
+    @Description("A connection reset by a SimpleTcpServer or SimpleTcpClient")
+    static class ResetEvent extends TcpEvent {
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A log-linear histogram of latencies in nanoseconds, with a relative error of less than 1%.
+ *
+ * Every power-of-two range of values is split into 128 linear sub-buckets, so the counts fit in a single preallocated
+ * array that covers every positive long value and recording a value never allocates.  The histogram is not
+ * thread-safe - values should be recorded by a single thread, and read once recording has finished.
+ */
+public class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 7;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int BUCKET_COUNT = 64 - SUB_BUCKET_BITS;
+
+    final long[] counts = new long[(BUCKET_COUNT + 1) * SUB_BUCKET_COUNT];
+
+    long totalCount;
+    long totalNanos;
+    long minNanos = Long.MAX_VALUE;
+    long maxNanos;
+
+    /**
+     * Record a latency - negative values are recorded as zero.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        ++counts[indexOf(value)];
+        ++totalCount;
+        totalNanos += value;
+        if (value < minNanos) {
+            minNanos = value;
+        }
+        if (value > maxNanos) {
+            maxNanos = value;
+        }
+    }
+
+    /**
+     * Add the values recorded in another histogram - e.g. to combine histograms recorded by different threads.
+     */
+    public void add(LatencyHistogram other) {
+        for (int index = 0; index < counts.length; ++index) {
+            counts[index] += other.counts[index];
+        }
+        totalCount += other.totalCount;
+        totalNanos += other.totalNanos;
+        minNanos = Math.min(minNanos, other.minNanos);
+        maxNanos = Math.max(maxNanos, other.maxNanos);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        totalNanos = 0;
+        minNanos = Long.MAX_VALUE;
+        maxNanos = 0;
+    }
+
+    public long getCount() {
+        return totalCount;
+    }
+
+    public long getMinNanos() {
+        return (totalCount > 0) ? minNanos : 0;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public double getMeanNanos() {
+        return (totalCount > 0) ? (double) totalNanos / totalCount : 0;
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100 (e.g. 99.9)
+     *
+     * @return the highest value in the bucket holding the given percentile, capped at the maximum recorded value - or
+     *          zero if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(String.format("Illegal percentile [%s].  Percentile must be between 0 and 100", percentile));
+        }
+        if (totalCount == 0) {
+            return 0;
+        }
+
+        // Allow for the rounding error in e.g. 99.9 / 100 * 1000, which should be exactly 999
+        long targetCount = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount - 1e-6));
+        long runningCount = 0;
+        for (int index = 0; index < counts.length; ++index) {
+            runningCount += counts[index];
+            if (runningCount >= targetCount) {
+                return Math.min(highestValueAt(index), maxNanos);
+            }
+        }
+
+        return maxNanos;
+    }
+
+    static int indexOf(long value) {
+        int bucket = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (bucket << SUB_BUCKET_BITS) + (int) (value >>> bucket);
+    }
+
+    static long highestValueAt(int index) {
+        int bucket = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+        long subBucket = index - ((long) bucket << SUB_BUCKET_BITS);
+        return ((subBucket + 1) << bucket) - 1;
+    }
+
+    /**
+     * @return the count, min, p50, p99, p99.9 and max in microseconds
+     */
+    @Override
+    public String toString() {
+        return String.format("count=%d min=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+            totalCount, micros(getMinNanos()), micros(getValueAtPercentile(50)), micros(getValueAtPercentile(99)),
+            micros(getValueAtPercentile(99.9)), micros(maxNanos));
+    }
+
+    static double micros(long nanos) {
+        return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+    }
+}
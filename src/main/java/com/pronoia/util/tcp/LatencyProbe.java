@@ -0,0 +1,385 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the round-trip time of a connection by sending small frames carrying a sequence number and a
+ * System.nanoTime() timestamp, which the peer reflects back unchanged (e.g. a SimpleTcpServer with echo enabled).
+ *
+ * With a rate, frames are sent on a fixed schedule from a separate thread regardless of whether the previous frame has
+ * been reflected; without one, each frame is sent as soon as the previous one comes back.  The round-trip times are
+ * recorded in a LatencyHistogram, and nothing is allocated per frame.
+ *
+ * The probe reads the connection while it runs, so nothing else should read the connection at the same time.  If the
+ * reflected frames have not all arrived within the response timeout after the probe duration, the connection is reset -
+ * late frames would otherwise be read as data.
+ */
+public class LatencyProbe {
+    public static final int MIN_FRAME_SIZE = 16;
+
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    final SimpleTcpConnection connection;
+
+    int rate = 1000;
+    long durationNanos = TimeUnit.SECONDS.toNanos(1);
+    int frameSize = MIN_FRAME_SIZE;
+    long responseTimeoutNanos = TimeUnit.SECONDS.toNanos(5);
+
+    final AtomicBoolean running = new AtomicBoolean();
+
+    LatencyProbe(SimpleTcpConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Run the probe, blocking for the probe duration.
+     *
+     * @return the round-trip times
+     */
+    public Result run() {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException(String.format("%s latency probe is already running", connection.name));
+        }
+
+        final ProbeRun probeRun;
+        try {
+            probeRun = new ProbeRun(connection.getInputStream(), connection.getOutputStream());
+        } catch (IOException ioEx) {
+            running.set(false);
+            throw new IllegalStateException(String.format("%s latency probe failed to get the streams for %s", connection.name, connection.getRemoteAddress()), ioEx);
+        }
+
+        HashedWheelTimer.Timeout watchdog = HashedWheelTimer.shared().newTimeout(probeRun::timeout, durationNanos + responseTimeoutNanos, TimeUnit.NANOSECONDS);
+        try {
+            if (rate > 0) {
+                probeRun.runPaced();
+            } else {
+                probeRun.runPingPong();
+            }
+        } catch (IOException ioEx) {
+            connection.record(EventJournal.EventType.ERROR, 0);
+            if (probeRun.timedOut) {
+                throw new IllegalStateException(String.format("%s latency probe timed out with %d of %d frames reflected",
+                    connection.name, probeRun.receivedCount, probeRun.sentCount), ioEx);
+            }
+            throw new IllegalStateException(String.format("%s latency probe failed after %d of %d frames were reflected",
+                connection.name, probeRun.receivedCount, probeRun.sentCount), ioEx);
+        } finally {
+            watchdog.cancel();
+            running.set(false);
+        }
+
+        connection.touch();
+        connection.record(EventJournal.EventType.WRITE, probeRun.sentCount * frameSize);
+        connection.record(EventJournal.EventType.READ, probeRun.receivedCount * frameSize);
+
+        Result result = new Result(probeRun.histogram, probeRun.sentCount, probeRun.receivedCount, probeRun.outOfOrderCount, probeRun.elapsedNanos);
+        log.info("{} latency probe of {}: {}", connection.name, connection.getRemoteAddress(), result);
+        return result;
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    /**
+     * Set the number of frames sent per second.
+     *
+     * @param rate the frames per second - zero or less sends each frame as soon as the previous one is reflected
+     */
+    public void setRate(int rate) {
+        this.rate = rate;
+    }
+
+    public long getDuration(TimeUnit unit) {
+        return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void setDuration(long duration, TimeUnit unit) {
+        if (duration <= 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal probe duration [%d].  Duration must be greater than zero", connection.name, duration));
+        }
+
+        this.durationNanos = unit.toNanos(duration);
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * @param frameSize the size of each frame - at least 16 bytes for the sequence number and timestamp
+     */
+    public void setFrameSize(int frameSize) {
+        if (frameSize < MIN_FRAME_SIZE) {
+            throw new IllegalArgumentException(String.format("%s - illegal probe frame size [%d].  Frame size must be at least %d", connection.name, frameSize, MIN_FRAME_SIZE));
+        }
+
+        this.frameSize = frameSize;
+    }
+
+    public long getResponseTimeout(TimeUnit unit) {
+        return unit.convert(responseTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Set how long to wait for the outstanding frames after the probe duration has elapsed.
+     */
+    public void setResponseTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal probe response timeout [%d].  Timeout must be greater than zero", connection.name, timeout));
+        }
+
+        this.responseTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    // Builder-style setters
+    public LatencyProbe rate(int rate) {
+        this.setRate(rate);
+
+        return this;
+    }
+
+    public LatencyProbe duration(long duration, TimeUnit unit) {
+        this.setDuration(duration, unit);
+
+        return this;
+    }
+
+    public LatencyProbe frameSize(int frameSize) {
+        this.setFrameSize(frameSize);
+
+        return this;
+    }
+
+    public LatencyProbe responseTimeout(long timeout, TimeUnit unit) {
+        this.setResponseTimeout(timeout, unit);
+
+        return this;
+    }
+
+    static void putLong(byte[] buffer, int offset, long value) {
+        for (int i = 7; i >= 0; --i) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    static long getLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; ++i) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * The state of a single run of the probe.
+     */
+    class ProbeRun {
+        final InputStream inputStream;
+        final OutputStream outputStream;
+
+        final byte[] sendFrame = new byte[frameSize];
+        final byte[] receiveFrame = new byte[frameSize];
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        volatile long sentCount;
+        volatile boolean senderDone;
+        volatile IOException senderFailure;
+        volatile boolean readerParked;
+        volatile boolean timedOut;
+
+        long receivedCount;
+        long outOfOrderCount;
+        long elapsedNanos;
+
+        Thread readerThread;
+
+        ProbeRun(InputStream inputStream, OutputStream outputStream) {
+            this.inputStream = inputStream;
+            this.outputStream = outputStream;
+        }
+
+        void runPingPong() throws IOException {
+            long startNanos = System.nanoTime();
+            long endNanos = startNanos + durationNanos;
+            for (long now = startNanos; now - endNanos < 0; now = System.nanoTime()) {
+                sendFrame(sentCount, now);
+                sentCount = sentCount + 1;
+                receiveFrame();
+            }
+            elapsedNanos = System.nanoTime() - startNanos;
+        }
+
+        void runPaced() throws IOException {
+            readerThread = Thread.currentThread();
+            final long startNanos = System.nanoTime();
+            final long intervalNanos = Math.max(1, TimeUnit.SECONDS.toNanos(1) / rate);
+
+            IoWorkers.shared().execute(connection.name + "-probe-sender", () -> sendPaced(startNanos, intervalNanos));
+
+            while (true) {
+                if (receivedCount < sentCount) {
+                    receiveFrame();
+                } else if (senderDone) {
+                    if (receivedCount >= sentCount) {
+                        break;
+                    }
+                } else {
+                    readerParked = true;
+                    if (receivedCount == sentCount && !senderDone) {
+                        LockSupport.park(this);
+                    }
+                    readerParked = false;
+                }
+            }
+            elapsedNanos = System.nanoTime() - startNanos;
+
+            if (senderFailure != null) {
+                throw senderFailure;
+            }
+        }
+
+        void sendPaced(long startNanos, long intervalNanos) {
+            try {
+                long endNanos = startNanos + durationNanos;
+                for (long sequence = 0; ; ++sequence) {
+                    long scheduledNanos = startNanos + sequence * intervalNanos;
+                    if (scheduledNanos - endNanos >= 0) {
+                        break;
+                    }
+                    for (long now = System.nanoTime(); now - scheduledNanos < 0; now = System.nanoTime()) {
+                        LockSupport.parkNanos(scheduledNanos - now);
+                    }
+
+                    // Count the frame before it is sent, so the reader is already waiting when it is reflected
+                    sentCount = sequence + 1;
+                    if (readerParked) {
+                        LockSupport.unpark(readerThread);
+                    }
+                    sendFrame(sequence, System.nanoTime());
+                }
+            } catch (IOException sendEx) {
+                senderFailure = sendEx;
+            } finally {
+                senderDone = true;
+                LockSupport.unpark(readerThread);
+            }
+        }
+
+        void sendFrame(long sequence, long nanoTime) throws IOException {
+            putLong(sendFrame, 0, sequence);
+            putLong(sendFrame, 8, nanoTime);
+            outputStream.write(sendFrame);
+            outputStream.flush();
+        }
+
+        void receiveFrame() throws IOException {
+            int offset = 0;
+            while (offset < frameSize) {
+                int readCount = inputStream.read(receiveFrame, offset, frameSize - offset);
+                if (readCount < 0) {
+                    throw new EOFException(String.format("%s connection closed after %d of %d frames were reflected", connection.name, receivedCount, sentCount));
+                }
+                offset += readCount;
+            }
+            long receivedNanos = System.nanoTime();
+
+            if (getLong(receiveFrame, 0) != receivedCount) {
+                ++outOfOrderCount;
+            }
+            long rttNanos = receivedNanos - getLong(receiveFrame, 8);
+            histogram.record(rttNanos);
+            connection.recordLatency(rttNanos);
+            ++receivedCount;
+        }
+
+        void timeout() {
+            timedOut = true;
+            log.warn("{} latency probe timed out with {} of {} frames reflected - resetting {}", connection.name, receivedCount, sentCount, connection.getRemoteAddress());
+            try {
+                connection.reset("latency probe timed out");
+            } catch (IOException resetEx) {
+                log.debug("{} ignoring exception encountered resetting the connection after the latency probe timed out", connection.name, resetEx);
+            }
+        }
+    }
+
+    /**
+     * The outcome of a probe run.
+     */
+    public static class Result {
+        final LatencyHistogram histogram;
+        final long sentCount;
+        final long receivedCount;
+        final long outOfOrderCount;
+        final long elapsedNanos;
+
+        Result(LatencyHistogram histogram, long sentCount, long receivedCount, long outOfOrderCount, long elapsedNanos) {
+            this.histogram = histogram;
+            this.sentCount = sentCount;
+            this.receivedCount = receivedCount;
+            this.outOfOrderCount = outOfOrderCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return the round-trip times in nanoseconds
+         */
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+
+        public long getSentCount() {
+            return sentCount;
+        }
+
+        public long getReceivedCount() {
+            return receivedCount;
+        }
+
+        /**
+         * @return the number of frames reflected with an unexpected sequence number
+         */
+        public long getOutOfOrderCount() {
+            return outOfOrderCount;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sent=%d received=%d outOfOrder=%d %s", sentCount, receivedCount, outOfOrderCount, histogram);
+        }
+    }
+}
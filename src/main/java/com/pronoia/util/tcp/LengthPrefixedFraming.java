@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Frames each message with a 4-byte big-endian length prefix.
+ */
+class LengthPrefixedFraming implements MessageFraming {
+    static final LengthPrefixedFraming INSTANCE = new LengthPrefixedFraming();
+
+    static final int HEADER_LENGTH = 4;
+
+    @Override
+    public void writeFrame(OutputStream outputStream, byte[] message) throws IOException {
+        byte[] frame = new byte[HEADER_LENGTH + message.length];
+        frame[0] = (byte) (message.length >>> 24);
+        frame[1] = (byte) (message.length >>> 16);
+        frame[2] = (byte) (message.length >>> 8);
+        frame[3] = (byte) message.length;
+        System.arraycopy(message, 0, frame, HEADER_LENGTH, message.length);
+
+        outputStream.write(frame);
+    }
+
+    @Override
+    public byte[] readFrame(InputStream inputStream) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int headerCount = readFully(inputStream, header);
+        if (headerCount == 0) {
+            return null;
+        } else if (headerCount < HEADER_LENGTH) {
+            throw new EOFException(String.format("Stream ended after %d bytes of a %d byte frame header", headerCount, HEADER_LENGTH));
+        }
+
+        int length = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16) | ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+        if (length < 0) {
+            throw new IOException(String.format("Illegal frame length [%d]", length));
+        }
+
+        byte[] message = new byte[length];
+        int messageCount = readFully(inputStream, message);
+        if (messageCount < length) {
+            throw new EOFException(String.format("Stream ended after %d bytes of a %d byte frame", messageCount, length));
+        }
+
+        return message;
+    }
+
+    /**
+     * @return the number of bytes read - less than the length of the buffer only if the stream ended
+     */
+    static int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int readCount = inputStream.read(buffer, offset, buffer.length - offset);
+            if (readCount < 0) {
+                break;
+            }
+            offset += readCount;
+        }
+
+        return offset;
+    }
+
+    @Override
+    public String toString() {
+        return "LengthPrefixedFraming";
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.net.SocketAddress;
+
+/**
+ * The address of one end of an in-memory loopback connection - the name of the server, and a connection number for
+ * client ends.
+ */
+class LoopbackAddress extends SocketAddress {
+    private static final long serialVersionUID = 1L;
+
+    final String name;
+    final long connectionNumber;
+
+    /**
+     * @param name             the name the server is bound to
+     * @param connectionNumber the connection number for a client end, or zero for the server
+     */
+    LoopbackAddress(String name, long connectionNumber) {
+        this.name = name;
+        this.connectionNumber = connectionNumber;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getConnectionNumber() {
+        return connectionNumber;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof LoopbackAddress)) {
+            return false;
+        }
+
+        LoopbackAddress that = (LoopbackAddress) other;
+        return connectionNumber == that.connectionNumber && name.equals(that.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * name.hashCode() + Long.hashCode(connectionNumber);
+    }
+
+    @Override
+    public String toString() {
+        return (connectionNumber == 0) ? "loopback:" + name : "loopback:" + name + "#" + connectionNumber;
+    }
+}
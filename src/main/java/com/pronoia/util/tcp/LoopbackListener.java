@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The in-memory equivalent of a ServerSocket - SimpleTcpClients in the same JVM connect to it by name.
+ *
+ * Connections wait in the backlog until they are accepted, and a connect blocks while the backlog is full.
+ */
+class LoopbackListener implements Closeable {
+    static final int DEFAULT_BACKLOG = 50;
+
+    static final ConcurrentMap<String, LoopbackListener> LISTENERS = new ConcurrentHashMap<>();
+    static final AtomicLong CONNECTION_SEQUENCE = new AtomicLong();
+
+    final LoopbackAddress address;
+    final int backlog;
+
+    // Guarded by this
+    final Queue<LoopbackTransport> pendingConnections = new ArrayDeque<>();
+    boolean closed;
+
+    LoopbackListener(String name, int backlog) {
+        this.address = new LoopbackAddress(name, 0);
+        this.backlog = (backlog > 0) ? backlog : DEFAULT_BACKLOG;
+    }
+
+    /**
+     * Bind a listener to a name.
+     *
+     * @param backlog the maximum number of connections waiting to be accepted - the same default as ServerSocket is
+     *                used if this is zero or less
+     */
+    static LoopbackListener bind(String name, int backlog) throws BindException {
+        LoopbackListener listener = new LoopbackListener(name, backlog);
+        if (LISTENERS.putIfAbsent(name, listener) != null) {
+            throw new BindException(String.format("Loopback address %s is already in use", listener.address));
+        }
+
+        return listener;
+    }
+
+    /**
+     * Connect to the listener bound to a name.
+     *
+     * @param capacity       the capacity of the ring for each direction of the connection, in bytes
+     * @param connectTimeout the time to wait for space in the backlog in milliseconds - zero waits forever
+     *
+     * @return the client end of the connection
+     */
+    static LoopbackTransport connect(String name, int capacity, int connectTimeout) throws IOException {
+        LoopbackListener listener = LISTENERS.get(name);
+        if (listener == null) {
+            throw new ConnectException(String.format("Connection refused - nothing is listening on loopback:%s", name));
+        }
+
+        return listener.enqueue(capacity, connectTimeout);
+    }
+
+    synchronized LoopbackTransport enqueue(int capacity, int connectTimeout) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeout);
+        while (!closed && pendingConnections.size() >= backlog) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (connectTimeout > 0 && remainingMillis <= 0) {
+                throw new SocketTimeoutException("connect timed out");
+            }
+            try {
+                wait((connectTimeout > 0) ? remainingMillis : 0);
+            } catch (InterruptedException interruptedEx) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for space in the backlog");
+            }
+        }
+        if (closed) {
+            throw new ConnectException(String.format("Connection refused - %s is closed", address));
+        }
+
+        LoopbackTransport clientEnd = new LoopbackTransport(new LoopbackAddress(address.getName(), CONNECTION_SEQUENCE.incrementAndGet()), address, capacity);
+        pendingConnections.add(clientEnd.createPeer());
+        notifyAll();
+
+        return clientEnd;
+    }
+
+    /**
+     * Wait for a connection.
+     *
+     * @return the server end of the connection
+     */
+    synchronized LoopbackTransport accept() throws IOException {
+        while (!closed && pendingConnections.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException interruptedEx) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a connection");
+            }
+        }
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+
+        LoopbackTransport serverEnd = pendingConnections.poll();
+        notifyAll();
+
+        return serverEnd;
+    }
+
+    LoopbackAddress getAddress() {
+        return address;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Unbind the listener, resetting any connections that have not been accepted.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        LISTENERS.remove(address.getName(), this);
+
+        LoopbackTransport pendingConnection;
+        while ((pendingConnection = pendingConnections.poll()) != null) {
+            pendingConnection.reset();
+        }
+        notifyAll();
+    }
+}
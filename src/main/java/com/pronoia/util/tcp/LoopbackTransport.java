@@ -0,0 +1,250 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * One end of an in-memory connection between a SimpleTcpClient and a SimpleTcpServer in the same JVM - no sockets or
+ * file descriptors are used.
+ *
+ * Each direction is a lock-free ByteRing, so a blocked write on one end behaves like a full socket send buffer, and the
+ * close, half-close and reset semantics follow TCP: close sends the end of the stream, shutdownInput silently discards
+ * anything the peer sends, and reset makes the peer's next read fail with a connection reset.
+ */
+class LoopbackTransport implements Transport {
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    final LoopbackAddress localAddress;
+    final LoopbackAddress remoteAddress;
+    final ByteRing inbound;
+    final ByteRing outbound;
+
+    // The rings have a single producer and consumer - these serialize the threads using this end of the connection
+    final Object readLock = new Object();
+    final Object writeLock = new Object();
+
+    volatile boolean closed;
+    volatile boolean inputShutdown;
+    volatile boolean outputShutdown;
+
+    final InputStream inputStream = new LoopbackInputStream();
+    final OutputStream outputStream = new LoopbackOutputStream();
+
+    /**
+     * Create the client end of a connection.
+     *
+     * @param capacity the capacity of the ring for each direction, in bytes
+     */
+    LoopbackTransport(LoopbackAddress localAddress, LoopbackAddress remoteAddress, int capacity) {
+        this(localAddress, remoteAddress, new ByteRing(capacity), new ByteRing(capacity));
+    }
+
+    LoopbackTransport(LoopbackAddress localAddress, LoopbackAddress remoteAddress, ByteRing inbound, ByteRing outbound) {
+        this.localAddress = localAddress;
+        this.remoteAddress = remoteAddress;
+        this.inbound = inbound;
+        this.outbound = outbound;
+    }
+
+    /**
+     * @return the other end of the connection
+     */
+    LoopbackTransport createPeer() {
+        return new LoopbackTransport(remoteAddress, localAddress, outbound, inbound);
+    }
+
+    @Override
+    public Socket getSocket() {
+        return null;
+    }
+
+    @Override
+    public ByteChannel getChannel() {
+        return null;
+    }
+
+    @Override
+    public ReadableByteChannel getReadableChannel() {
+        return null;
+    }
+
+    @Override
+    public long transferFrom(FileChannel source, long position, long count) {
+        throw new UnsupportedOperationException("Loopback connections have no channel to transfer from a file");
+    }
+
+    @Override
+    public long transferTo(FileChannel target, long position, long maxBytes) {
+        throw new UnsupportedOperationException("Loopback connections have no channel to transfer to a file");
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return inputShutdown;
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return outputShutdown;
+    }
+
+    @Override
+    public boolean isEndOfStream() {
+        return inbound.writeClosed && inbound.available() == 0;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        checkOpen();
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        checkOpen();
+        return outputStream;
+    }
+
+    @Override
+    public int available() throws IOException {
+        checkOpen();
+        return inbound.available();
+    }
+
+    int read(byte[] data, int offset, int length) throws IOException {
+        checkOpen();
+        synchronized (readLock) {
+            int readCount = inbound.read(data, offset, length);
+            if (readCount == -1) {
+                // Closing this end wakes a blocked read - which should fail the way a closed socket does
+                checkOpen();
+            }
+            return readCount;
+        }
+    }
+
+    void write(byte[] data, int offset, int length) throws IOException {
+        checkOpen();
+        if (outputShutdown) {
+            throw new SocketException("Socket output is shutdown");
+        }
+        synchronized (writeLock) {
+            outbound.write(data, offset, length);
+        }
+    }
+
+    void checkOpen() throws SocketException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        checkOpen();
+        inputShutdown = true;
+        inbound.shutdownRead();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        checkOpen();
+        outputShutdown = true;
+        outbound.closeWrite();
+    }
+
+    @Override
+    public void reset() {
+        closed = true;
+        outbound.reset();
+        inbound.closeRead();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        outbound.closeWrite();
+        inbound.closeRead();
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(remoteAddress);
+    }
+
+    class LoopbackInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int readCount = LoopbackTransport.this.read(single, 0, 1);
+            return (readCount == -1) ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            return LoopbackTransport.this.read(data, offset, length);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return LoopbackTransport.this.available();
+        }
+    }
+
+    class LoopbackOutputStream extends OutputStream {
+        @Override
+        public void write(int data) throws IOException {
+            LoopbackTransport.this.write(new byte[] {(byte) data}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            LoopbackTransport.this.write(data, offset, length);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Splits a byte stream into messages, so a sender and a receiver can agree on where each message ends.
+ */
+public interface MessageFraming {
+    /**
+     * Write a single framed message.  The frame is written with a single write, so frames written by different
+     * threads do not interleave as long as the writes are serialized.
+     *
+     * @param outputStream the stream to write to
+     * @param message      the message payload
+     */
+    void writeFrame(OutputStream outputStream, byte[] message) throws IOException;
+
+    /**
+     * Read a single framed message, blocking until the entire frame has been received.
+     *
+     * @param inputStream the stream to read from
+     *
+     * @return the message payload, or null if the stream ended cleanly before the start of a frame
+     *
+     * @throws java.io.EOFException if the stream ended in the middle of a frame
+     */
+    byte[] readFrame(InputStream inputStream) throws IOException;
+
+    /**
+     * @return framing that prefixes each message with its length as a 4-byte big-endian integer
+     */
+    static MessageFraming lengthPrefixed() {
+        return LengthPrefixedFraming.INSTANCE;
+    }
+
+    /**
+     * @param delimiter the bytes that terminate each message - they must not appear in a message
+     *
+     * @return framing that terminates each message with the delimiter
+     */
+    static MessageFraming delimited(byte... delimiter) {
+        return new DelimitedFraming(delimiter);
+    }
+}
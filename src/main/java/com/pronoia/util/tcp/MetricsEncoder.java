@@ -0,0 +1,252 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.IOException;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes rows of metrics as CSV or JSON lines into reusable buffers, so writing a row does not allocate.
+ *
+ * A row is built by calling the value methods in the order of the columns, and is added to the output buffer by
+ * endRow() - the buffer is written to the channel when it fills, and by flush().
+ */
+abstract class MetricsEncoder {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    final String[] columns;
+
+    final StringBuilder line = new StringBuilder(1024);
+    final CharsetEncoder charsetEncoder = StandardCharsets.UTF_8.newEncoder();
+    final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    final WritableByteChannel channel;
+
+    char[] chars = new char[1024];
+    CharBuffer charBuffer = CharBuffer.wrap(chars);
+    int column;
+
+    MetricsEncoder(String[] columns, WritableByteChannel channel) {
+        this.columns = columns;
+        this.channel = channel;
+    }
+
+    static MetricsEncoder create(MetricsReporter.Format format, String[] columns, WritableByteChannel channel) {
+        return (format == MetricsReporter.Format.JSON_LINES) ? new JsonLinesEncoder(columns, channel) : new CsvEncoder(columns, channel);
+    }
+
+    /**
+     * Write anything that precedes the rows (e.g. a CSV header).
+     */
+    void header() throws IOException {
+    }
+
+    void beginRow() {
+        line.setLength(0);
+        column = 0;
+    }
+
+    abstract void value(long value);
+
+    abstract void value(String value);
+
+    /**
+     * Add a fixed-point value with three decimal places.
+     *
+     * @param thousandths the value multiplied by 1000
+     */
+    abstract void fixed(long thousandths);
+
+    void endRow() throws IOException {
+        line.append('\n');
+        encodeLine();
+    }
+
+    void appendFixed(long thousandths) {
+        if (thousandths < 0) {
+            line.append('-');
+            thousandths = -thousandths;
+        }
+        long fraction = thousandths % 1000;
+        line.append(thousandths / 1000).append('.');
+        if (fraction < 100) {
+            line.append('0');
+        }
+        if (fraction < 10) {
+            line.append('0');
+        }
+        line.append(fraction);
+    }
+
+    void encodeLine() throws IOException {
+        int length = line.length();
+        if (length > chars.length) {
+            chars = new char[Math.max(length, 2 * chars.length)];
+            charBuffer = CharBuffer.wrap(chars);
+        }
+        line.getChars(0, length, chars, 0);
+        ((Buffer) charBuffer).clear();
+        ((Buffer) charBuffer).limit(length);
+
+        charsetEncoder.reset();
+        CoderResult result;
+        while ((result = charsetEncoder.encode(charBuffer, bytes, true)).isOverflow()) {
+            flush();
+        }
+        while (charsetEncoder.flush(bytes).isOverflow()) {
+            flush();
+        }
+        if (result.isError()) {
+            result.throwException();
+        }
+    }
+
+    /**
+     * Write the buffered rows to the channel.
+     */
+    void flush() throws IOException {
+        ((Buffer) bytes).flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        ((Buffer) bytes).clear();
+    }
+
+    static class CsvEncoder extends MetricsEncoder {
+        CsvEncoder(String[] columns, WritableByteChannel channel) {
+            super(columns, channel);
+        }
+
+        @Override
+        void header() throws IOException {
+            beginRow();
+            for (String name : columns) {
+                value(name);
+            }
+            endRow();
+        }
+
+        void separator() {
+            if (column++ > 0) {
+                line.append(',');
+            }
+        }
+
+        @Override
+        void value(long value) {
+            separator();
+            line.append(value);
+        }
+
+        @Override
+        void value(String value) {
+            separator();
+            if (value == null) {
+                return;
+            }
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; ++i) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                line.append(value);
+                return;
+            }
+            line.append('"');
+            for (int i = 0; i < value.length(); ++i) {
+                char c = value.charAt(i);
+                if (c == '"') {
+                    line.append('"');
+                }
+                line.append(c);
+            }
+            line.append('"');
+        }
+
+        @Override
+        void fixed(long thousandths) {
+            separator();
+            appendFixed(thousandths);
+        }
+    }
+
+    static class JsonLinesEncoder extends MetricsEncoder {
+        JsonLinesEncoder(String[] columns, WritableByteChannel channel) {
+            super(columns, channel);
+        }
+
+        @Override
+        void beginRow() {
+            super.beginRow();
+            line.append('{');
+        }
+
+        @Override
+        void endRow() throws IOException {
+            line.append('}');
+            super.endRow();
+        }
+
+        void name() {
+            if (column > 0) {
+                line.append(',');
+            }
+            line.append('"').append(columns[column++]).append("\":");
+        }
+
+        @Override
+        void value(long value) {
+            name();
+            line.append(value);
+        }
+
+        @Override
+        void value(String value) {
+            name();
+            if (value == null) {
+                line.append("null");
+                return;
+            }
+            line.append('"');
+            for (int i = 0; i < value.length(); ++i) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    line.append('\\').append(c);
+                } else if (c < 0x20) {
+                    line.append("\\u00");
+                    line.append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+                } else {
+                    line.append(c);
+                }
+            }
+            line.append('"');
+        }
+
+        @Override
+        void fixed(long thousandths) {
+            name();
+            appendFixed(thousandths);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes periodic snapshots of the metrics of every running SimpleTcpServer and SimpleTcpClient to a CSV or JSON lines
+ * file, so benchmark runs leave a machine-readable artifact that can be charted and compared offline.
+ *
+ * Each period the reporter writes one row per running fixture with its connection counts, cumulative byte and
+ * read/write counts, the rates over the period, the queued write bytes, the error and timeout counts, and the
+ * percentiles of the request/response latencies recorded during the period (by request pipelines and latency probes).
+ * A final row per fixture is written when the reporter is stopped.
+ *
+ * The rows are written by a background thread with a preallocated encoder, so reporting does not allocate per row and
+ * never blocks the fixtures' I/O threads.  The latencies are drained from the fixtures as they are reported, so only one
+ * reporter should run at a time.
+ *
+ * Usage:
+ * <pre>
+ *     try (MetricsReporter reporter = new MetricsReporter(Paths.get("target/tcp-metrics.csv")).period(1, TimeUnit.SECONDS).start()) {
+ *         ... run the benchmark ...
+ *     }
+ * </pre>
+ */
+public class MetricsReporter implements Closeable {
+    public enum Format {
+        CSV,
+        JSON_LINES
+    }
+
+    static final String[] COLUMNS = {
+        "timestamp",
+        "elapsedSeconds",
+        "type",
+        "name",
+        "id",
+        "connections",
+        "totalConnections",
+        "bytesRead",
+        "bytesWritten",
+        "reads",
+        "writes",
+        "bytesReadPerSecond",
+        "bytesWrittenPerSecond",
+        "readsPerSecond",
+        "writesPerSecond",
+        "queuedWriteBytes",
+        "errors",
+        "timeouts",
+        "latencyCount",
+        "latencyP50Micros",
+        "latencyP90Micros",
+        "latencyP99Micros",
+        "latencyP999Micros",
+        "latencyMaxMicros"
+    };
+
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    final Path file;
+    Format format = Format.CSV;
+    long periodNanos = TimeUnit.SECONDS.toNanos(1);
+
+    // Used by the reporter thread only
+    final LatencyHistogram latency = new LatencyHistogram();
+    final Map<FixtureMonitor, Totals> previousTotals = new HashMap<>();
+    MetricsEncoder encoder;
+    FileChannel channel;
+    long startNanos;
+    long startMillis;
+    long lastReportNanos;
+
+    volatile Thread reporterThread;
+    volatile boolean stopped;
+    volatile long reportCount;
+    volatile IOException failure;
+
+    /**
+     * @param file the file to write - it is created if it does not exist, and truncated if it does
+     */
+    public MetricsReporter(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the file and start reporting.
+     *
+     * @return the current MetricsReporter
+     */
+    public synchronized MetricsReporter start() {
+        if (reporterThread != null) {
+            throw new IllegalStateException(String.format("Metrics reporter for %s is already started", file));
+        }
+
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            encoder = MetricsEncoder.create(format, COLUMNS, channel);
+            encoder.header();
+            encoder.flush();
+        } catch (IOException openEx) {
+            closeChannel();
+            throw new RuntimeException(String.format("Failed to open metrics file %s", file), openEx);
+        }
+
+        startNanos = System.nanoTime();
+        startMillis = System.currentTimeMillis();
+        lastReportNanos = startNanos;
+        stopped = false;
+
+        reporterThread = new Thread(this::run, "tcp-metrics-reporter");
+        reporterThread.setDaemon(true);
+        reporterThread.start();
+        log.info("Reporting TCP metrics to {} every {}-ms", file, TimeUnit.NANOSECONDS.toMillis(periodNanos));
+
+        return this;
+    }
+
+    /**
+     * Write a final snapshot, and close the file.
+     */
+    public synchronized void stop() {
+        Thread thread = reporterThread;
+        if (thread == null) {
+            return;
+        }
+
+        stopped = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+        }
+        reporterThread = null;
+        log.info("Wrote {} TCP metrics snapshots to {}", reportCount, file);
+    }
+
+    /**
+     * Stop the reporter.
+     */
+    @Override
+    public void close() {
+        stop();
+    }
+
+    public boolean isStarted() {
+        return reporterThread != null;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public void setFormat(Format format) {
+        if (reporterThread != null) {
+            throw new IllegalStateException(String.format("Cannot change the format of the metrics reporter for %s after it has been started", file));
+        }
+
+        this.format = format;
+    }
+
+    public long getPeriod(TimeUnit unit) {
+        return unit.convert(periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param period the interval between snapshots
+     * @param unit   the unit of the period
+     */
+    public void setPeriod(long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException(String.format("Metrics reporter for %s - illegal period [%d].  Period must be greater than zero", file, period));
+        }
+
+        this.periodNanos = unit.toNanos(period);
+    }
+
+    /**
+     * @return the number of snapshots written
+     */
+    public long getReportCount() {
+        return reportCount;
+    }
+
+    /**
+     * @return the exception that stopped the reporter, or null if it has not failed
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    // Builder-style setters
+    public MetricsReporter format(Format format) {
+        this.setFormat(format);
+
+        return this;
+    }
+
+    public MetricsReporter period(long period, TimeUnit unit) {
+        this.setPeriod(period, unit);
+
+        return this;
+    }
+
+    void run() {
+        try {
+            long nextReportNanos = startNanos + periodNanos;
+            while (!stopped) {
+                long waitNanos = nextReportNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    LockSupport.parkNanos(this, waitNanos);
+                    continue;
+                }
+                report();
+                // Skip any periods that were missed rather than writing a burst of snapshots
+                nextReportNanos += periodNanos;
+                long now = System.nanoTime();
+                if (nextReportNanos < now) {
+                    nextReportNanos = now + periodNanos;
+                }
+            }
+            report();
+        } catch (IOException writeEx) {
+            failure = writeEx;
+            log.warn(String.format("Stopped reporting TCP metrics after failing to write %s", file), writeEx);
+        } finally {
+            closeChannel();
+        }
+    }
+
+    /**
+     * Write a row for every running fixture.
+     */
+    void report() throws IOException {
+        long nowNanos = System.nanoTime();
+        double intervalSeconds = Math.max(1, nowNanos - lastReportNanos) / 1e9;
+        long timestamp = startMillis + TimeUnit.NANOSECONDS.toMillis(nowNanos - startNanos);
+
+        for (FixtureMonitor fixture : FixtureMonitor.running()) {
+            Totals previous = previousTotals.get(fixture);
+            if (previous == null) {
+                previous = new Totals();
+                previousTotals.put(fixture, previous);
+            }
+            previous.seen = true;
+
+            TcpStatistics statistics = fixture.statistics;
+            long bytesRead = statistics.getBytesRead();
+            long bytesWritten = statistics.getBytesWritten();
+            long reads = statistics.getReadCount();
+            long writes = statistics.getWriteCount();
+            latency.reset();
+            statistics.drainLatency(latency);
+
+            encoder.beginRow();
+            encoder.value(timestamp);
+            encoder.fixed((nowNanos - startNanos) / 1000000);
+            encoder.value(fixture.getType());
+            encoder.value(fixture.getName());
+            encoder.value(fixture.getFixtureId());
+            encoder.value(fixture.getConnectionCount());
+            encoder.value(fixture.getTotalConnectionCount());
+            encoder.value(bytesRead);
+            encoder.value(bytesWritten);
+            encoder.value(reads);
+            encoder.value(writes);
+            encoder.fixed(Math.round((bytesRead - previous.bytesRead) * 1000 / intervalSeconds));
+            encoder.fixed(Math.round((bytesWritten - previous.bytesWritten) * 1000 / intervalSeconds));
+            encoder.fixed(Math.round((reads - previous.reads) * 1000 / intervalSeconds));
+            encoder.fixed(Math.round((writes - previous.writes) * 1000 / intervalSeconds));
+            encoder.value(fixture.getQueuedWriteBytes());
+            encoder.value(statistics.getErrorCount());
+            encoder.value(statistics.getTimeoutCount());
+            encoder.value(latency.getCount());
+            encoder.fixed(latency.getValueAtPercentile(50));
+            encoder.fixed(latency.getValueAtPercentile(90));
+            encoder.fixed(latency.getValueAtPercentile(99));
+            encoder.fixed(latency.getValueAtPercentile(99.9));
+            encoder.fixed(latency.getMaxNanos());
+            encoder.endRow();
+
+            previous.bytesRead = bytesRead;
+            previous.bytesWritten = bytesWritten;
+            previous.reads = reads;
+            previous.writes = writes;
+        }
+        encoder.flush();
+
+        // Forget the fixtures that have stopped
+        for (Iterator<Totals> iterator = previousTotals.values().iterator(); iterator.hasNext(); ) {
+            Totals totals = iterator.next();
+            if (!totals.seen) {
+                iterator.remove();
+            }
+            totals.seen = false;
+        }
+
+        lastReportNanos = nowNanos;
+        ++reportCount;
+    }
+
+    void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException closeEx) {
+                log.debug("Ignoring exception encountered closing metrics file {}", file, closeEx);
+            }
+        }
+    }
+
+    /**
+     * The counters of a fixture at the previous snapshot.
+     */
+    static class Totals {
+        long bytesRead;
+        long bytesWritten;
+        long reads;
+        long writes;
+        boolean seen;
+    }
+}
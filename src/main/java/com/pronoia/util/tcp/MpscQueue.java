@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded, lock-free queue for many producers and a single consumer.
+ *
+ * A producer links its node with a single atomic swap of the tail, so producers never wait for each other or for the
+ * consumer.  Between the swap and the link the new node is not yet visible, so poll() can briefly return null while an
+ * offer is in progress - callers that park when the queue looks empty must be woken by the producer after offer()
+ * returns.
+ */
+class MpscQueue<E> {
+    final AtomicReference<Node<E>> tail;
+
+    // Only used by the consumer
+    Node<E> head;
+
+    MpscQueue() {
+        Node<E> stub = new Node<>(null);
+        head = stub;
+        tail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * Add an element - safe to call from any thread.
+     */
+    void offer(E value) {
+        Node<E> node = new Node<>(value);
+        Node<E> previous = tail.getAndSet(node);
+        previous.next = node;
+    }
+
+    /**
+     * Remove the oldest element - must only be called by the consumer thread.
+     *
+     * @return the element, or null if the queue is empty (or an offer has not completed)
+     */
+    E poll() {
+        Node<E> next = head.next;
+        if (next == null) {
+            return null;
+        }
+
+        E value = next.value;
+        next.value = null;
+        head = next;
+
+        return value;
+    }
+
+    /**
+     * @return the oldest element without removing it - must only be called by the consumer thread
+     */
+    E peek() {
+        Node<E> next = head.next;
+        return (next != null) ? next.value : null;
+    }
+
+    /**
+     * @return true if the queue is empty - must only be called by the consumer thread
+     */
+    boolean isEmpty() {
+        return head.next == null;
+    }
+
+    static final class Node<E> {
+        E value;
+        volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+}
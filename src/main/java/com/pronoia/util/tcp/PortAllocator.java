@@ -0,0 +1,229 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out TCP ports that are known before a server is started, without collisions between threads or between JVMs
+ * on the same host (e.g. parallel Surefire forks).
+ *
+ * A port is reserved by holding an exclusive lock on a per-port lock file in a shared directory - the lock is held
+ * until the reservation is closed (or the JVM exits), so no other allocator on the host will hand out the same port.
+ * Each candidate port is also checked by binding to it, so ports in use by other processes are skipped.
+ *
+ * The default allocator uses ports 10000-32767 (below the usual ephemeral ranges) and the lock directory
+ * ${java.io.tmpdir}/tcp-test-util-ports - these can be overridden with the system properties
+ * tcp-test-util.port.min, tcp-test-util.port.max and tcp-test-util.port.lock-directory.
+ */
+public class PortAllocator {
+    public static final String MIN_PORT_PROPERTY = "tcp-test-util.port.min";
+    public static final String MAX_PORT_PROPERTY = "tcp-test-util.port.max";
+    public static final String LOCK_DIRECTORY_PROPERTY = "tcp-test-util.port.lock-directory";
+
+    static final int DEFAULT_MIN_PORT = 10000;
+    static final int DEFAULT_MAX_PORT = 32767;
+
+    private static volatile PortAllocator defaultAllocator;
+
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    final int minPort;
+    final int maxPort;
+    final Path lockDirectory;
+
+    public PortAllocator(int minPort, int maxPort, Path lockDirectory) {
+        if (minPort < 1 || maxPort > 65535 || minPort > maxPort) {
+            throw new IllegalArgumentException(String.format("Illegal port range [%d - %d].  Ports must be between 1 and 65535", minPort, maxPort));
+        }
+
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+        this.lockDirectory = lockDirectory;
+    }
+
+    /**
+     * @return the allocator configured from the system properties
+     */
+    public static PortAllocator getDefault() {
+        if (defaultAllocator == null) {
+            synchronized (PortAllocator.class) {
+                if (defaultAllocator == null) {
+                    String lockDirectory = System.getProperty(LOCK_DIRECTORY_PROPERTY);
+                    defaultAllocator = new PortAllocator(
+                        Integer.getInteger(MIN_PORT_PROPERTY, DEFAULT_MIN_PORT),
+                        Integer.getInteger(MAX_PORT_PROPERTY, DEFAULT_MAX_PORT),
+                        (lockDirectory != null) ? Paths.get(lockDirectory) : Paths.get(System.getProperty("java.io.tmpdir"), "tcp-test-util-ports"));
+                }
+            }
+        }
+
+        return defaultAllocator;
+    }
+
+    /**
+     * Reserve a single port.
+     *
+     * @return the reservation - close it to release the port
+     */
+    public Reservation reserve() {
+        return reserve(1).get(0);
+    }
+
+    /**
+     * Reserve a batch of ports, e.g. for a multi-server test.
+     *
+     * @param count the number of ports to reserve
+     *
+     * @return the reservations - close them to release the ports
+     */
+    public List<Reservation> reserve(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException(String.format("Port count must be greater than zero [%d]", count));
+        }
+
+        try {
+            Files.createDirectories(lockDirectory);
+        } catch (IOException createEx) {
+            throw new RuntimeException(String.format("Failed to create port lock directory %s", lockDirectory), createEx);
+        }
+
+        List<Reservation> reservations = new ArrayList<>(count);
+        int rangeSize = maxPort - minPort + 1;
+        int offset = ThreadLocalRandom.current().nextInt(rangeSize);
+        for (int i = 0; i < rangeSize && reservations.size() < count; ++i) {
+            Reservation reservation = tryReserve(minPort + (offset + i) % rangeSize);
+            if (reservation != null) {
+                reservations.add(reservation);
+            }
+        }
+
+        if (reservations.size() < count) {
+            for (Reservation reservation : reservations) {
+                reservation.close();
+            }
+            throw new IllegalStateException(String.format("Unable to reserve %d ports in the range [%d - %d]", count, minPort, maxPort));
+        }
+
+        return reservations;
+    }
+
+    Reservation tryReserve(int port) {
+        FileChannel lockChannel = null;
+        try {
+            lockChannel = FileChannel.open(lockDirectory.resolve(port + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = lockChannel.tryLock();
+            if (lock != null && isBindable(port)) {
+                log.debug("Reserved port {}", port);
+                return new Reservation(port, lockChannel);
+            }
+        } catch (OverlappingFileLockException alreadyLockedInThisJvm) {
+            log.trace("Port {} is already reserved in this JVM", port);
+        } catch (IOException lockEx) {
+            log.debug(String.format("Ignoring exception encountered locking port %d", port), lockEx);
+        }
+
+        if (lockChannel != null) {
+            try {
+                lockChannel.close();
+            } catch (IOException closeEx) {
+                log.debug(String.format("Ignoring exception encountered releasing port %d", port), closeEx);
+            }
+        }
+
+        return null;
+    }
+
+    boolean isBindable(int port) {
+        try (ServerSocket probe = new ServerSocket()) {
+            probe.bind(new InetSocketAddress(port));
+            return true;
+        } catch (IOException bindEx) {
+            return false;
+        }
+    }
+
+    public int getMinPort() {
+        return minPort;
+    }
+
+    public int getMaxPort() {
+        return maxPort;
+    }
+
+    public Path getLockDirectory() {
+        return lockDirectory;
+    }
+
+    /**
+     * A reserved port - the port remains reserved until the reservation is closed or the JVM exits.
+     */
+    public class Reservation implements Closeable {
+        final int port;
+        final FileChannel lockChannel;
+
+        Reservation(int port, FileChannel lockChannel) {
+            this.port = port;
+            this.lockChannel = lockChannel;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public boolean isValid() {
+            return lockChannel.isOpen();
+        }
+
+        /**
+         * Release the port.
+         */
+        @Override
+        public void close() {
+            try {
+                lockChannel.close();
+                log.debug("Released port {}", port);
+            } catch (IOException closeEx) {
+                log.debug(String.format("Ignoring exception encountered releasing port %d", port), closeEx);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Reservation{port=" + port + '}';
+        }
+    }
+}
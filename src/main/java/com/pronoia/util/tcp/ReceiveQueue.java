@@ -0,0 +1,282 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.SocketTimeoutException;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded FIFO queue of the chunks of data read from a connection by an I/O worker.
+ *
+ * The worker reads into a scratch array - small reads are copied into an array of their own, and large reads hand the
+ * scratch array to the queue as-is, so a chunk never holds much more memory than its data.  Chunks are handed to
+ * readers without copying where possible (see {@link #drainTo(CompositeBuffer.Builder)}).  When the queued data reaches
+ * the maximum, the worker stops reading until a reader takes some.
+ */
+class ReceiveQueue implements Closeable {
+    static final int INITIAL_CHUNK_CAPACITY = 16;
+
+    final int maxQueuedBytes;
+
+    // Parallel rings of the queued chunks and their lengths - a power of two in size, grown when full
+    byte[][] chunks = new byte[INITIAL_CHUNK_CAPACITY][];
+    int[] chunkLengths = new int[INITIAL_CHUNK_CAPACITY];
+    int headChunk;
+    int chunkCount;
+    int headOffset;
+    int queuedBytes;
+
+    boolean endOfStream;
+    IOException failure;
+    boolean closed;
+
+    ReceiveQueue(int maxQueuedBytes) {
+        if (maxQueuedBytes <= 0) {
+            throw new IllegalArgumentException(String.format("Maximum queued bytes must be greater than zero [%d]", maxQueuedBytes));
+        }
+
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Read from the stream into the queue, blocking while the queue is full.
+     *
+     * @param scratch the worker's buffer for reading from the stream - replaced when it is handed to the queue
+     *
+     * @return the number of bytes added to the queue, or -1 at the end of the stream (or when the queue is closed)
+     */
+    int fill(InputStream inputStream, byte[][] scratch) throws IOException {
+        int space = awaitSpace();
+        if (space < 0) {
+            return -1;
+        }
+
+        byte[] buffer = scratch[0];
+        int readCount = inputStream.read(buffer, 0, Math.min(space, buffer.length));
+        if (readCount <= 0) {
+            return readCount;
+        }
+
+        byte[] chunk;
+        if (readCount < buffer.length / 2) {
+            chunk = Arrays.copyOf(buffer, readCount);
+        } else {
+            chunk = buffer;
+            scratch[0] = new byte[buffer.length];
+        }
+        add(chunk, readCount);
+
+        return readCount;
+    }
+
+    /**
+     * @return the free space in the queue, or -1 once the queue is closed
+     */
+    synchronized int awaitSpace() throws IOException {
+        while (queuedBytes >= maxQueuedBytes && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException interruptedEx) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for queue space", interruptedEx);
+            }
+        }
+
+        return closed ? -1 : maxQueuedBytes - queuedBytes;
+    }
+
+    synchronized void add(byte[] chunk, int length) {
+        if (!closed) {
+            if (chunkCount == chunks.length) {
+                growChunks();
+            }
+            int tail = (headChunk + chunkCount) & (chunks.length - 1);
+            chunks[tail] = chunk;
+            chunkLengths[tail] = length;
+            ++chunkCount;
+            queuedBytes += length;
+            notifyAll();
+        }
+    }
+
+    void growChunks() {
+        byte[][] largerChunks = new byte[chunks.length * 2][];
+        int[] largerLengths = new int[chunks.length * 2];
+        for (int i = 0; i < chunkCount; ++i) {
+            int index = (headChunk + i) & (chunks.length - 1);
+            largerChunks[i] = chunks[index];
+            largerLengths[i] = chunkLengths[index];
+        }
+        chunks = largerChunks;
+        chunkLengths = largerLengths;
+        headChunk = 0;
+    }
+
+    synchronized void endOfStream() {
+        endOfStream = true;
+        notifyAll();
+    }
+
+    synchronized void fail(IOException producerFailure) {
+        failure = producerFailure;
+        notifyAll();
+    }
+
+    synchronized boolean isEndOfStream() {
+        return endOfStream || failure != null;
+    }
+
+    synchronized int available() {
+        return queuedBytes;
+    }
+
+    /**
+     * Read up to length bytes, blocking until at least one byte is available or the read deadline passes.
+     *
+     * @param timeoutMillis the read deadline in milliseconds - zero waits forever
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    synchronized int read(byte[] data, int offset, int length, int timeoutMillis) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        HashedWheelTimer.Timeout readDeadline = null;
+        try {
+            while (queuedBytes == 0) {
+                if (closed || endOfStream) {
+                    return -1;
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (readDeadline == null && timeoutMillis > 0) {
+                    readDeadline = HashedWheelTimer.shared().newTimeout(this::wakeReaders, timeoutMillis, TimeUnit.MILLISECONDS);
+                } else if (readDeadline != null && readDeadline.isExpired()) {
+                    throw new SocketTimeoutException(String.format("Read timed out after %d-ms", timeoutMillis));
+                }
+                try {
+                    wait();
+                } catch (InterruptedException interruptedEx) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for data", interruptedEx);
+                }
+            }
+        } finally {
+            if (readDeadline != null) {
+                readDeadline.cancel();
+            }
+        }
+
+        int readCount = 0;
+        while (readCount < length && queuedBytes > 0) {
+            int chunkLength = chunkLengths[headChunk];
+            int count = Math.min(length - readCount, chunkLength - headOffset);
+            System.arraycopy(chunks[headChunk], headOffset, data, offset + readCount, count);
+            readCount += count;
+            consume(count, chunkLength);
+        }
+        notifyAll();
+
+        return readCount;
+    }
+
+    /**
+     * Move everything queued to the builder, without copying it.
+     *
+     * @return the number of bytes moved
+     */
+    synchronized int drainTo(CompositeBuffer.Builder builder) {
+        int answer = queuedBytes;
+        while (queuedBytes > 0) {
+            int chunkLength = chunkLengths[headChunk];
+            builder.add(chunks[headChunk], headOffset, chunkLength - headOffset);
+            consume(chunkLength - headOffset, chunkLength);
+        }
+        notifyAll();
+
+        return answer;
+    }
+
+    void consume(int count, int chunkLength) {
+        headOffset += count;
+        queuedBytes -= count;
+        if (headOffset == chunkLength) {
+            chunks[headChunk] = null;
+            headChunk = (headChunk + 1) & (chunks.length - 1);
+            --chunkCount;
+            headOffset = 0;
+        }
+    }
+
+    synchronized void wakeReaders() {
+        notifyAll();
+    }
+
+    /**
+     * @param timeoutMillis the read deadline applied to each blocking read - zero waits forever
+     */
+    InputStream getInputStream(int timeoutMillis) {
+        return new ReceiveQueueInputStream(timeoutMillis);
+    }
+
+    /**
+     * Release the queued data - the worker stops at its next read.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        Arrays.fill(chunks, null);
+        headChunk = 0;
+        chunkCount = 0;
+        headOffset = 0;
+        queuedBytes = 0;
+        notifyAll();
+    }
+
+    class ReceiveQueueInputStream extends InputStream {
+        final int timeoutMillis;
+        final byte[] single = new byte[1];
+
+        ReceiveQueueInputStream(int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int readCount = ReceiveQueue.this.read(single, 0, 1, timeoutMillis);
+            return (readCount == -1) ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            return ReceiveQueue.this.read(data, offset, length, timeoutMillis);
+        }
+
+        @Override
+        public int available() {
+            return ReceiveQueue.this.available();
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import java.net.SocketTimeoutException;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, off-heap byte ring buffer with a single producer (the connection's receive thread) and a single consumer
+ * (the test reading the connection).
+ *
+ * The data is held in a direct ByteBuffer allocated once with the ring, so the heap stays flat no matter how much
+ * traffic flows through it.  The producer only moves the write position, and the consumer only moves the read position,
+ * so neither side ever takes a lock - a side that finds the ring full (or empty) parks until the other side moves its
+ * position.  A full ring stops the producer reading the connection, so the peer is pushed back by TCP flow control
+ * rather than the ring growing.
+ *
+ * Each side copies through its own view of the buffer (a duplicate), so neither side allocates.
+ */
+class ReceiveRing implements Closeable {
+    final ByteBuffer buffer;
+    final int capacity;
+    final int mask;
+
+    // Used only by the producer
+    final ByteBuffer writeView;
+
+    // Used only by the consumer
+    final ByteBuffer readView;
+
+    // Moved only by the consumer
+    final AtomicLong readPosition = new AtomicLong();
+
+    // Moved only by the producer
+    final AtomicLong writePosition = new AtomicLong();
+
+    volatile Thread parkedReader;
+    volatile Thread parkedWriter;
+
+    // The peer closed the connection - the consumer sees the end of the stream once the ring is empty
+    volatile boolean endOfStream;
+
+    // The producer failed - the consumer sees the failure once the ring is empty
+    volatile IOException failure;
+
+    // The ring has been released - reads return the end of the stream, and the producer stops
+    volatile boolean closed;
+
+    /**
+     * @param capacity the capacity of the ring in bytes - rounded up to a power of two
+     */
+    ReceiveRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("Ring capacity must be greater than zero [%d]", capacity));
+        }
+
+        this.capacity = (capacity == 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        buffer = ByteBuffer.allocateDirect(this.capacity);
+        writeView = buffer.duplicate();
+        readView = buffer.duplicate();
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes that can be read without blocking
+     */
+    int available() {
+        return closed ? 0 : (int) (writePosition.get() - readPosition.get());
+    }
+
+    boolean isEndOfStream() {
+        return endOfStream || failure != null;
+    }
+
+    /**
+     * Read up to length bytes, blocking until at least one byte is available or the read deadline passes.
+     *
+     * @param timeoutMillis the read deadline in milliseconds - zero waits forever
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    int read(byte[] data, int offset, int length, int timeoutMillis) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        long deadline = (timeoutMillis > 0) ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+        while (true) {
+            if (closed) {
+                return -1;
+            }
+
+            long read = readPosition.get();
+            int available = (int) (writePosition.get() - read);
+            if (available > 0) {
+                int readCount = Math.min(length, available);
+                int index = (int) (read & mask);
+                int firstCount = Math.min(readCount, capacity - index);
+                ((Buffer) readView).limit(index + firstCount).position(index);
+                readView.get(data, offset, firstCount);
+                if (firstCount < readCount) {
+                    ((Buffer) readView).limit(readCount - firstCount).position(0);
+                    readView.get(data, offset + firstCount, readCount - firstCount);
+                }
+
+                // A volatile write, so a producer that parks after this can not miss the space that was freed
+                readPosition.set(read + readCount);
+                LockSupport.unpark(parkedWriter);
+                return readCount;
+            }
+
+            if (isEndOfStream()) {
+                if (writePosition.get() != read) {
+                    continue;
+                }
+                IOException producerFailure = failure;
+                if (producerFailure != null) {
+                    throw producerFailure;
+                }
+                return -1;
+            }
+
+            long remainingNanos = 0;
+            if (deadline != 0) {
+                remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    throw new SocketTimeoutException(String.format("Read timed out after %d-ms", timeoutMillis));
+                }
+            }
+
+            parkedReader = Thread.currentThread();
+            if (writePosition.get() == read && !isEndOfStream() && !closed) {
+                if (deadline != 0) {
+                    LockSupport.parkNanos(this, remainingNanos);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            parkedReader = null;
+            checkInterrupted();
+        }
+    }
+
+    /**
+     * Read from the stream into the ring, blocking while the ring is full.
+     *
+     * @param scratch the producer's buffer for reading from the stream
+     *
+     * @return the number of bytes added to the ring, or -1 at the end of the stream (or when the ring is closed)
+     */
+    int fill(InputStream inputStream, byte[] scratch) throws IOException {
+        int free = awaitFree();
+        if (free < 0) {
+            return -1;
+        }
+
+        int readCount = inputStream.read(scratch, 0, Math.min(free, scratch.length));
+        if (readCount <= 0) {
+            return readCount;
+        }
+
+        long write = writePosition.get();
+        int index = (int) (write & mask);
+        int firstCount = Math.min(readCount, capacity - index);
+        ((Buffer) writeView).limit(index + firstCount).position(index);
+        writeView.put(scratch, 0, firstCount);
+        if (firstCount < readCount) {
+            ((Buffer) writeView).limit(readCount - firstCount).position(0);
+            writeView.put(scratch, firstCount, readCount - firstCount);
+        }
+        publish(write + readCount);
+        return readCount;
+    }
+
+    /**
+     * Read from the channel straight into the ring (no heap copy), blocking while the ring is full.
+     *
+     * @return the number of bytes added to the ring, or -1 at the end of the stream (or when the ring is closed)
+     */
+    int fill(ReadableByteChannel channel) throws IOException {
+        int free = awaitFree();
+        if (free < 0) {
+            return -1;
+        }
+
+        long write = writePosition.get();
+        int index = (int) (write & mask);
+        ((Buffer) writeView).limit(index + Math.min(free, capacity - index)).position(index);
+        int readCount = channel.read(writeView);
+        if (readCount > 0) {
+            publish(write + readCount);
+        }
+        return readCount;
+    }
+
+    /**
+     * @return the number of free bytes in the ring, or -1 if the ring has been closed
+     */
+    int awaitFree() throws IOException {
+        while (true) {
+            if (closed) {
+                return -1;
+            }
+
+            long write = writePosition.get();
+            int free = capacity - (int) (write - readPosition.get());
+            if (free > 0) {
+                return free;
+            }
+
+            parkedWriter = Thread.currentThread();
+            if (readPosition.get() + capacity == write && !closed) {
+                LockSupport.park(this);
+            }
+            parkedWriter = null;
+            checkInterrupted();
+        }
+    }
+
+    void publish(long write) {
+        // A volatile write, so a consumer that parks after this can not miss the data
+        writePosition.set(write);
+        LockSupport.unpark(parkedReader);
+    }
+
+    void checkInterrupted() throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on the receive ring");
+        }
+    }
+
+    /**
+     * Signal the end of the stream - the consumer can still read the data already in the ring.
+     */
+    void endOfStream() {
+        endOfStream = true;
+        LockSupport.unpark(parkedReader);
+    }
+
+    /**
+     * Signal that the producer failed - the consumer can still read the data already in the ring, and then fails.
+     */
+    void fail(IOException producerFailure) {
+        failure = producerFailure;
+        LockSupport.unpark(parkedReader);
+    }
+
+    /**
+     * Release the ring - any data still in it is discarded.  The direct buffer is freed when it is garbage collected.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(parkedReader);
+        LockSupport.unpark(parkedWriter);
+    }
+
+    InputStream getInputStream(int timeoutMillis) {
+        return new ReceiveRingInputStream(timeoutMillis);
+    }
+
+    class ReceiveRingInputStream extends InputStream {
+        final int timeoutMillis;
+        final byte[] single = new byte[1];
+
+        ReceiveRingInputStream(int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int readCount = ReceiveRing.this.read(single, 0, 1, timeoutMillis);
+            return (readCount == -1) ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            return ReceiveRing.this.read(data, offset, length, timeoutMillis);
+        }
+
+        @Override
+        public int available() {
+            return ReceiveRing.this.available();
+        }
+    }
+}
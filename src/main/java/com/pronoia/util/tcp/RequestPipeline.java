@@ -0,0 +1,325 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends framed requests over a connection without waiting for the previous response, keeping up to a fixed number of
+ * requests outstanding.
+ *
+ * Responses are matched to requests in the order the requests were sent, or - when a correlation id extractor is
+ * given - by the id the extractor finds in both the request and the response, so the server may respond out of order.
+ * Each request completes its own future with the response and the latency measured from just before the request was
+ * written to just after the response was read.
+ *
+ * Once created, the pipeline reads every response on the connection until the connection is closed, so the connection
+ * should not be read any other way.  A response that cannot be matched to a request, or the connection closing with
+ * requests outstanding, fails the pipeline - every outstanding and later request completes exceptionally.
+ */
+public class RequestPipeline {
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    final SimpleTcpConnection connection;
+    final MessageFraming framing;
+    final int maxOutstanding;
+    final Function<byte[], ?> correlationIdExtractor;
+
+    final Semaphore permits;
+    final Object writeLock = new Object();
+    final Queue<Request> inOrder = new ConcurrentLinkedQueue<>();
+    final Map<Object, Request> byCorrelationId = new ConcurrentHashMap<>();
+
+    final AtomicLong sentCount = new AtomicLong();
+    final AtomicLong completedCount = new AtomicLong();
+
+    volatile Throwable failure;
+
+    /**
+     * @param correlationIdExtractor finds the correlation id in a request or response payload - null to match responses
+     *                               to requests in order
+     */
+    RequestPipeline(SimpleTcpConnection connection, MessageFraming framing, int maxOutstanding, Function<byte[], ?> correlationIdExtractor) {
+        if (framing == null) {
+            throw new NullPointerException("Message framing must not be null");
+        }
+        if (maxOutstanding <= 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal maximum outstanding requests [%d].  Maximum must be greater than zero", connection.name, maxOutstanding));
+        }
+
+        this.connection = connection;
+        this.framing = framing;
+        this.maxOutstanding = maxOutstanding;
+        this.correlationIdExtractor = correlationIdExtractor;
+        this.permits = new Semaphore(maxOutstanding);
+
+        IoWorkers.shared().execute(connection.name + "-pipeline-reader", this::readResponses);
+    }
+
+    /**
+     * Send a request, blocking while the maximum number of requests are already outstanding.
+     *
+     * @param request the request payload
+     *
+     * @return a future that completes with the response
+     */
+    public CompletableFuture<Response> send(byte[] request) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        Throwable currentFailure = failure;
+        if (currentFailure != null) {
+            future.completeExceptionally(new IllegalStateException(String.format("%s request pipeline has failed", connection.name), currentFailure));
+            return future;
+        }
+
+        Object correlationId = (correlationIdExtractor != null) ? correlationIdExtractor.apply(request) : null;
+        if (correlationIdExtractor != null && correlationId == null) {
+            future.completeExceptionally(new IllegalArgumentException(String.format("%s - no correlation id found in the request", connection.name)));
+            return future;
+        }
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(interruptedEx);
+            return future;
+        }
+
+        Request pending = new Request(request, correlationId, future);
+        synchronized (writeLock) {
+            if (correlationId == null) {
+                inOrder.add(pending);
+            } else if (byCorrelationId.putIfAbsent(correlationId, pending) != null) {
+                permits.release();
+                future.completeExceptionally(new IllegalArgumentException(String.format("%s - a request with correlation id %s is already outstanding", connection.name, correlationId)));
+                return future;
+            }
+
+            try {
+                OutputStream outputStream = connection.getOutputStream();
+                connection.touch();
+                pending.sentNanos = System.nanoTime();
+                framing.writeFrame(outputStream, request);
+                outputStream.flush();
+                connection.record(EventJournal.EventType.WRITE, request.length);
+                sentCount.incrementAndGet();
+            } catch (IOException ioEx) {
+                connection.record(EventJournal.EventType.ERROR, 0);
+                fail(ioEx);
+            }
+        }
+
+        // The pipeline may have failed after the request was registered but before it was written
+        currentFailure = failure;
+        if (currentFailure != null) {
+            future.completeExceptionally(currentFailure);
+        }
+
+        return future;
+    }
+
+    /**
+     * Wait for every outstanding request to complete.
+     *
+     * @return true if there were no outstanding requests before the timeout elapsed
+     */
+    public boolean awaitOutstanding(long timeout, TimeUnit unit) throws InterruptedException {
+        if (permits.tryAcquire(maxOutstanding, timeout, unit)) {
+            permits.release(maxOutstanding);
+            return true;
+        }
+
+        return false;
+    }
+
+    public int getMaxOutstanding() {
+        return maxOutstanding;
+    }
+
+    /**
+     * @return the number of requests that have been sent (or are being sent) and not completed
+     */
+    public int getOutstanding() {
+        return Math.max(0, maxOutstanding - permits.availablePermits());
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * @return the reason the pipeline failed, or null if it has not failed
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    void readResponses() {
+        try {
+            InputStream inputStream = connection.getInputStream();
+            while (failure == null) {
+                byte[] response = framing.readFrame(inputStream);
+                long receivedNanos = System.nanoTime();
+                if (response == null) {
+                    if (getOutstanding() > 0) {
+                        fail(new EOFException(String.format("%s connection closed with %d requests outstanding", connection.name, getOutstanding())));
+                    }
+                    break;
+                }
+                connection.touch();
+                connection.record(EventJournal.EventType.READ, response.length);
+
+                Request request = match(response);
+                if (request == null) {
+                    fail(new IllegalStateException(String.format("%s received a response that does not match an outstanding request", connection.name)));
+                    break;
+                }
+
+                long latencyNanos = receivedNanos - request.sentNanos;
+                connection.recordLatency(latencyNanos);
+                completedCount.incrementAndGet();
+                permits.release();
+                request.future.complete(new Response(request.payload, response, request.correlationId, latencyNanos));
+            }
+        } catch (IOException | RuntimeException readEx) {
+            if (getOutstanding() > 0) {
+                connection.record(EventJournal.EventType.ERROR, 0);
+                fail(readEx);
+            } else {
+                log.debug("{} request pipeline reader stopped", connection.name, readEx);
+            }
+        }
+    }
+
+    Request match(byte[] response) {
+        if (correlationIdExtractor == null) {
+            return inOrder.poll();
+        }
+
+        Object correlationId = correlationIdExtractor.apply(response);
+        return (correlationId != null) ? byCorrelationId.remove(correlationId) : null;
+    }
+
+    void fail(Throwable cause) {
+        if (failure != null) {
+            return;
+        }
+        failure = cause;
+        log.warn("{} request pipeline failed with {} requests outstanding", connection.name, getOutstanding(), cause);
+
+        for (Request request = inOrder.poll(); request != null; request = inOrder.poll()) {
+            request.future.completeExceptionally(cause);
+        }
+        for (Request request : byCorrelationId.values()) {
+            request.future.completeExceptionally(cause);
+        }
+        byCorrelationId.clear();
+
+        // Wake any senders (and waiters) blocked on the outstanding limit
+        permits.release(maxOutstanding);
+    }
+
+    static class Request {
+        final byte[] payload;
+        final Object correlationId;
+        final CompletableFuture<Response> future;
+
+        volatile long sentNanos;
+
+        Request(byte[] payload, Object correlationId, CompletableFuture<Response> future) {
+            this.payload = payload;
+            this.correlationId = correlationId;
+            this.future = future;
+        }
+    }
+
+    /**
+     * A response, with the request it was matched to.
+     */
+    public static class Response {
+        final byte[] request;
+        final byte[] payload;
+        final Object correlationId;
+        final long latencyNanos;
+
+        Response(byte[] request, byte[] payload, Object correlationId, long latencyNanos) {
+            this.request = request;
+            this.payload = payload;
+            this.correlationId = correlationId;
+            this.latencyNanos = latencyNanos;
+        }
+
+        public byte[] getRequest() {
+            return request;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        /**
+         * @return the correlation id, or null if responses are matched in order
+         */
+        public Object getCorrelationId() {
+            return correlationId;
+        }
+
+        /**
+         * @return the time from just before the request was written to just after the response was read
+         */
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        public long getLatency(TimeUnit unit) {
+            return unit.convert(latencyNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return "Response{"
+                + "correlationId=" + correlationId
+                + ", length=" + payload.length
+                + ", latencyNanos=" + latencyNanos
+                + '}';
+        }
+    }
+}
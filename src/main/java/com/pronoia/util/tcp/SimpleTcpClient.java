@@ -25,10 +25,22 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
 
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import javax.management.ObjectName;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +49,7 @@ public class SimpleTcpClient {
     Logger log = LoggerFactory.getLogger(this.getClass());
 
     Socket socket;
+    SimpleTcpConnection connection;
 
     String name = this.getClass().getSimpleName();
     String host;
@@ -45,6 +58,29 @@ public class SimpleTcpClient {
     int connectTimeout = 15000;
     int receiveTimeout = 15000;
     int readTimeout = 1000;
+    int idleTimeout;
+
+    boolean backgroundDrain;
+    int drainMemoryThreshold = 4 * 1024 * 1024;
+
+    int receiveRingCapacity;
+    int autoDrainLimit;
+
+    boolean queueWrites;
+    int writeHighWatermark = 64 * 1024;
+    int writeLowWatermark = 32 * 1024;
+    int writeTimeout = 15000;
+    WritabilityListener writabilityListener;
+
+    TlsConfiguration tlsConfiguration;
+
+    Path unixSocketPath;
+    String loopbackName;
+
+    boolean jmxEnabled = FixtureMonitor.isEnabledByDefault();
+    final AtomicLong connectCount = new AtomicLong();
+    final TcpStatistics statistics = new TcpStatistics();
+    final FixtureMonitor monitor = new FixtureMonitor.ClientMonitor(this);
 
     public SimpleTcpClient() {
     }
@@ -65,18 +101,50 @@ public class SimpleTcpClient {
     }
 
     public SimpleTcpClient start() {
-        if (socket == null) {
+        if (connection == null) {
             connect();
         } else {
-            log.warn("{} ignoring start attempt on a started client: {} -> {}", name, socket.getLocalSocketAddress().toString(), socket.getRemoteSocketAddress().toString());
+            log.warn("{} ignoring start attempt on a started client: {} -> {}", name, localAddress(), remoteAddress());
         }
 
         return this;
     }
 
     public void connect() {
-        if (socket != null) {
-            throw new IllegalStateException(String.format("Cannot connect when already connected: %s -> %s", socket.getLocalSocketAddress().toString(), socket.getRemoteSocketAddress().toString()));
+        if (connection != null) {
+            throw new IllegalStateException(String.format("Cannot connect when already connected: %s -> %s", localAddress(), remoteAddress()));
+        }
+
+        Object connectEvent = FlightRecorderEvents.begin(FlightRecorderEvents.Kind.CONNECT);
+        try {
+            doConnect();
+        } catch (RuntimeException connectEx) {
+            String cause = connectFailureCause(connectEx);
+            statistics.record("timeout".equals(cause) ? EventJournal.EventType.CONNECT_TIMEOUT : EventJournal.EventType.ERROR, 0, false);
+            FlightRecorderEvents.commit(connectEvent, name, 0, null, 0, cause);
+            throw connectEx;
+        }
+        connection.commitEvent(connectEvent, 0, null);
+        connectCount.incrementAndGet();
+        monitor.register(jmxEnabled);
+    }
+
+    /**
+     * @return "timeout" if the connect timed out, otherwise a description of the exception that caused the failure
+     */
+    static String connectFailureCause(RuntimeException connectEx) {
+        Throwable cause = (connectEx.getCause() != null) ? connectEx.getCause() : connectEx;
+        return (cause instanceof SocketTimeoutException) ? "timeout" : cause.toString();
+    }
+
+    void doConnect() {
+        if (loopbackName != null) {
+            connectLoopback();
+            return;
+        }
+        if (unixSocketPath != null) {
+            connectUnixDomainSocket();
+            return;
         }
 
         InetSocketAddress address;
@@ -86,20 +154,168 @@ public class SimpleTcpClient {
             address = new InetSocketAddress(port);
         }
 
+        // Opened as a channel so file transfers can use the SocketChannel directly
+        final Socket tmpSocket;
         try {
-            Socket tmpSocket = new Socket();
-            tmpSocket.connect(address, connectTimeout);
+            tmpSocket = SocketChannel.open().socket();
+        } catch (IOException openEx) {
+            throw new RuntimeException(String.format("%s failed to open socket channel", name), openEx);
+        }
+
+        // The connect timeout is driven by the shared timer, which closes the socket if the connect has not completed
+        HashedWheelTimer.Timeout connectDeadline = null;
+        if (connectTimeout > 0) {
+            connectDeadline = HashedWheelTimer.shared().newTimeout(() -> {
+                try {
+                    tmpSocket.close();
+                } catch (IOException closeEx) {
+                    log.debug("{} ignoring exception encountered closing socket after connect timeout", name, closeEx);
+                }
+            }, connectTimeout, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            tmpSocket.connect(address);
+            if (connectDeadline != null && !connectDeadline.cancel()) {
+                throw new SocketTimeoutException("connect timed out");
+            }
             socket = tmpSocket;
+            openConnection(new ChannelTransport(socket.getChannel(), socket), address);
         } catch (SocketTimeoutException timeoutEx) {
-            throw new RuntimeException(String.format("SocketTimeoutException encountered after %d-ms when attempting to connecting to address %s", connectTimeout, address.toString()));
+            closeQuietly(tmpSocket);
+            EventJournal.shared().record(name, 0, EventJournal.EventType.CONNECT_TIMEOUT, 0);
+            throw new RuntimeException(String.format("SocketTimeoutException encountered after %d-ms when attempting to connecting to address %s", connectTimeout, address.toString()), timeoutEx);
         } catch (IOException e) {
-            throw new RuntimeException("Unexpected Exception encountered connecting to address: " + address);
+            closeQuietly(tmpSocket);
+            if (connectDeadline != null && !connectDeadline.cancel() && connectDeadline.isExpired()) {
+                EventJournal.shared().record(name, 0, EventJournal.EventType.CONNECT_TIMEOUT, 0);
+                SocketTimeoutException timeoutEx = new SocketTimeoutException("connect timed out");
+                timeoutEx.initCause(e);
+                throw new RuntimeException(String.format("SocketTimeoutException encountered after %d-ms when attempting to connecting to address %s", connectTimeout, address.toString()), timeoutEx);
+            }
+            releaseConnection();
+            throw new RuntimeException("Unexpected Exception encountered connecting to address: " + address, e);
+        }
+
+    }
+
+    void closeQuietly(Socket failedSocket) {
+        try {
+            failedSocket.close();
+        } catch (IOException closeEx) {
+            log.debug("{} ignoring exception encountered closing socket after failed connect", name, closeEx);
+        }
+    }
+
+    void connectLoopback() {
+        try {
+            openConnection(LoopbackListener.connect(loopbackName, LoopbackTransport.DEFAULT_CAPACITY, connectTimeout), null);
+        } catch (SocketTimeoutException timeoutEx) {
+            EventJournal.shared().record(name, 0, EventJournal.EventType.CONNECT_TIMEOUT, 0);
+            throw new RuntimeException(String.format("SocketTimeoutException encountered after %d-ms when attempting to connecting to loopback:%s", connectTimeout, loopbackName), timeoutEx);
+        } catch (IOException connectEx) {
+            releaseConnection();
+            throw new RuntimeException(String.format("%s failed to connect to loopback:%s", name, loopbackName), connectEx);
+        }
+    }
+
+    /**
+     * Create the connection for a connected transport, completing the TLS handshake if TLS is configured.
+     *
+     * @param address the address of the server for TLS session resumption, or null if the server has no network address
+     */
+    void openConnection(Transport transport, InetSocketAddress address) throws IOException {
+        connection = new SimpleTcpConnection(name, transport, receiveTimeout);
+        connection.record(EventJournal.EventType.CONNECTED, 0);
+        if (tlsConfiguration != null) {
+            startTls(address);
+        }
+        // Connect failures (including TLS handshake failures) are counted once, by connect()
+        connection.statistics = statistics;
+        if (backgroundDrain) {
+            connection.startDrain(drainMemoryThreshold);
+        } else if (autoDrainLimit > 0) {
+            connection.startAutoDrain(autoDrainLimit);
+        } else if (receiveRingCapacity > 0) {
+            connection.startReceiveRing(receiveRingCapacity);
+        }
+        if (queueWrites) {
+            connection.startWriteQueue(writeHighWatermark, writeLowWatermark, writeTimeout, writabilityListener);
+        }
+        if (idleTimeout > 0) {
+            final SimpleTcpConnection monitoredConnection = connection;
+            connection.startIdleMonitor(idleTimeout, () -> reapConnection(monitoredConnection));
+        }
+    }
+
+    void connectUnixDomainSocket() {
+        final SocketChannel channel;
+        try {
+            channel = UnixDomainSockets.openSocketChannel();
+        } catch (IOException openEx) {
+            throw new RuntimeException(String.format("%s failed to open Unix domain socket channel", name), openEx);
         }
 
+        // The connect timeout is driven by the shared timer, which closes the channel if the connect has not completed
+        HashedWheelTimer.Timeout connectDeadline = null;
+        if (connectTimeout > 0) {
+            connectDeadline = HashedWheelTimer.shared().newTimeout(() -> {
+                try {
+                    channel.close();
+                } catch (IOException closeEx) {
+                    log.debug("{} ignoring exception encountered closing channel after connect timeout", name, closeEx);
+                }
+            }, connectTimeout, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            channel.connect(UnixDomainSockets.address(unixSocketPath));
+            if (connectDeadline != null && !connectDeadline.cancel()) {
+                throw new SocketTimeoutException("connect timed out");
+            }
+            openConnection(new ChannelTransport(channel), null);
+        } catch (IOException connectEx) {
+            try {
+                channel.close();
+            } catch (IOException closeEx) {
+                log.debug("{} ignoring exception encountered closing channel after connect failure", name, closeEx);
+            }
+            if (connectDeadline != null && !connectDeadline.cancel() && connectDeadline.isExpired()) {
+                EventJournal.shared().record(name, 0, EventJournal.EventType.CONNECT_TIMEOUT, 0);
+                SocketTimeoutException timeoutEx = new SocketTimeoutException("connect timed out");
+                timeoutEx.initCause(connectEx);
+                throw new RuntimeException(String.format("SocketTimeoutException encountered after %d-ms when attempting to connecting to Unix domain socket %s", connectTimeout, unixSocketPath), timeoutEx);
+            }
+            releaseConnection();
+            throw new RuntimeException(String.format("%s failed to connect to Unix domain socket %s", name, unixSocketPath), connectEx);
+        }
+    }
+
+    /**
+     * @param address the address of the server for session resumption, or null if the server has no network address
+     */
+    void startTls(InetSocketAddress address) {
+        try {
+            SSLEngine engine = (address != null)
+                ? tlsConfiguration.createClientEngine(address.getHostString(), address.getPort())
+                : tlsConfiguration.createClientEngine(null, -1);
+            connection.startTls(engine, receiveTimeout);
+        } catch (IOException handshakeEx) {
+            String remoteSocketAddress = (address != null) ? address.toString() : remoteAddress();
+            connection.record(EventJournal.EventType.ERROR, 0);
+            try {
+                connection.getTransport().close();
+            } catch (IOException closeEx) {
+                log.debug("{} ignoring exception encountered closing socket after TLS handshake failure", name, closeEx);
+            } finally {
+                releaseConnection();
+            }
+            throw new RuntimeException(String.format("%s TLS handshake with address %s failed", name, remoteSocketAddress), handshakeEx);
+        }
     }
 
     public void stop() {
-        if (socket == null) {
+        if (connection == null) {
             log.warn("{} ignoring stop attempt on a stopped client", name);
         } else {
             close();
@@ -108,100 +324,210 @@ public class SimpleTcpClient {
     }
 
     public void close() {
-        if (socket == null) {
+        if (connection == null) {
             throw new IllegalStateException(String.format("%s cannot close when client has not been started", name));
         }
 
-        SocketAddress localSocketAddress = socket.getLocalSocketAddress();
-        SocketAddress remoteSocketAddress = socket.getRemoteSocketAddress();
+        String localSocketAddress = localAddress();
+        String remoteSocketAddress = remoteAddress();
         try {
-            socket.close();
+            connection.close();
         } catch (IOException e) {
-            log.warn("{} ignoring exception encounter when attempting to close connection: {} -> {}", name, localSocketAddress.toString(), remoteSocketAddress.toString());
+            log.warn("{} ignoring exception encounter when attempting to close connection: {} -> {}", name, localSocketAddress, remoteSocketAddress);
         } finally {
-            socket = null;
+            releaseConnection();
         }
     }
 
     public void reset() {
-        if (socket == null) {
+        if (connection == null) {
             throw new IllegalStateException(String.format("%s cannot reset when client has not been started", name));
         }
 
-        final int soLingerReset = 0;
-
-        SocketAddress localSocketAddress = socket.getLocalSocketAddress();
-        SocketAddress remoteSocketAddress = socket.getRemoteSocketAddress();
+        String localSocketAddress = localAddress();
+        String remoteSocketAddress = remoteAddress();
 
         try {
-            socket.setSoLinger(true, soLingerReset);
-        } catch (SocketException socketEx) {
-            log.warn(String.format("%s ignoring SocketException encounter when attempting to close connection: %s -> %s",
-                name, localSocketAddress.toString(), remoteSocketAddress.toString()), socketEx);
-        }
-        try {
-            socket.close();
+            connection.reset();
         } catch (IOException ioEx) {
-            log.warn(String.format("%s ignoring IOException encounter when attempting to close connection: %s -> %s",
-                name, localSocketAddress.toString(), remoteSocketAddress.toString()), ioEx);
+            log.warn(String.format("%s ignoring IOException encounter when attempting to reset connection: %s -> %s",
+                name, localSocketAddress, remoteSocketAddress), ioEx);
         } finally {
-            socket = null;
+            releaseConnection();
+        }
+    }
+
+    void reapConnection(SimpleTcpConnection idleConnection) {
+        Transport idleTransport = idleConnection.getTransport();
+        log.info("{} closing idle or dead connection: {} -> {}", name, idleTransport.getLocalAddress(), idleTransport.getRemoteAddress());
+        try {
+            idleConnection.reap();
+        } catch (IOException closeEx) {
+            log.warn(String.format("%s ignoring exception encountered closing idle connection: %s -> %s",
+                name, idleTransport.getLocalAddress(), idleTransport.getRemoteAddress()), closeEx);
+        }
+    }
+
+    void releaseConnection() {
+        if (connection != null) {
+            connection.releaseResources();
+            connection = null;
         }
+        socket = null;
+        monitor.unregister();
     }
 
     public boolean isStarted() {
-        return socket != null;
+        return connection != null;
     }
 
     public boolean isConnected() {
-        return isStarted() && socket.isConnected() && !socket.isClosed();
+        return isStarted() && !connection.getTransport().isClosed();
     }
 
     public boolean isClosed() {
-        return isStarted() && socket.isConnected() && socket.isClosed();
+        return isStarted() && connection.getTransport().isClosed();
+    }
+
+    String localAddress() {
+        return String.valueOf(connection.getTransport().getLocalAddress());
+    }
+
+    String remoteAddress() {
+        return String.valueOf(connection.getRemoteAddress());
+    }
+
+    /**
+     * @return the TLS session for the connection, or null if TLS is not enabled
+     */
+    public SSLSession getSslSession() {
+        if (connection == null) {
+            throw new IllegalStateException(String.format("%s cannot get the TLS session when client has not been started", name));
+        }
+
+        return connection.getSslSession();
+    }
+
+    /**
+     * @return false if writes are queued and the queue is above the write high watermark (or has failed)
+     */
+    public boolean isWritable() {
+        if (connection == null) {
+            throw new IllegalStateException(String.format("%s cannot check writability when client has not been started", name));
+        }
+
+        return connection.isWritable();
+    }
+
+    /**
+     * @return the number of queued bytes that have not been written to the server yet
+     */
+    public long getQueuedWriteBytes() {
+        WriteQueue queue = (connection != null) ? connection.writeQueue : null;
+        return (queue != null) ? queue.getQueuedBytes() : 0;
+    }
+
+    /**
+     * Publish the data received from the server, reading the connection only while the subscriber has outstanding
+     * demand - so a subscriber that stops requesting pushes back on the server through TCP flow control.
+     *
+     * Only one subscriber is allowed.  Background drain keeps reading the connection regardless of demand, so it
+     * should be disabled for end-to-end backpressure.
+     *
+     * @return the publisher of the data received from the server, in chunks of up to 8K
+     */
+    public TcpFlow.Publisher<byte[]> getInboundPublisher() {
+        if (connection == null) {
+            throw new IllegalStateException(String.format("%s cannot publish inbound data when client has not been started", name));
+        }
+
+        return connection.getInboundPublisher();
+    }
+
+    /**
+     * Create a probe that measures the round-trip time to the server - the server must reflect the probe frames (e.g. a
+     * SimpleTcpServer with echo enabled).
+     *
+     * @return the probe, configured to send 1000 16-byte frames per second for one second
+     */
+    public LatencyProbe probe() {
+        if (connection == null) {
+            throw new IllegalStateException(String.format("%s cannot probe latency when client has not been started", name));
+        }
+        if (backgroundDrain || autoDrainLimit > 0 || receiveRingCapacity > 0) {
+            throw new IllegalStateException(String.format("%s cannot probe latency when background drain, auto-drain or the receive ring is enabled", name));
+        }
+
+        return new LatencyProbe(connection);
+    }
+
+    /**
+     * Pipeline framed requests to the server, matching responses to requests in the order the requests were sent.
+     *
+     * @param framing        the framing used for both requests and responses
+     * @param maxOutstanding the maximum number of requests awaiting a response
+     *
+     * @return the pipeline - it reads every response, so the client should not be read any other way
+     */
+    public RequestPipeline pipeline(MessageFraming framing, int maxOutstanding) {
+        return pipeline(framing, maxOutstanding, null);
+    }
+
+    /**
+     * Pipeline framed requests to the server, matching responses to requests by a correlation id found in both, so the
+     * server may respond out of order.
+     *
+     * @param framing                the framing used for both requests and responses
+     * @param maxOutstanding         the maximum number of requests awaiting a response
+     * @param correlationIdExtractor finds the correlation id in a request or response payload - the ids are compared
+     *                               with equals(), so use a String or boxed number rather than a byte[]
+     *
+     * @return the pipeline - it reads every response, so the client should not be read any other way
+     */
+    public RequestPipeline pipeline(MessageFraming framing, int maxOutstanding, Function<byte[], ?> correlationIdExtractor) {
+        if (connection == null) {
+            throw new IllegalStateException(String.format("%s cannot pipeline requests when client has not been started", name));
+        }
+        if (backgroundDrain || autoDrainLimit > 0 || receiveRingCapacity > 0) {
+            throw new IllegalStateException(String.format("%s cannot pipeline requests when background drain, auto-drain or the receive ring is enabled", name));
+        }
+
+        return connection.startRequestPipeline(framing, maxOutstanding, correlationIdExtractor);
     }
 
     public InputStream getInputStream() {
-        if (socket == null) {
+        if (connection == null) {
             throw new IllegalStateException(String.format("%s cannot get socket input stream when client has not been started", name));
         }
 
         try {
-            return socket.getInputStream();
+            return connection.getInputStream();
         } catch (IOException ioEx) {
             throw new IllegalStateException(String.format("%s failed to get InputStream from client socket %s -> %s",
-                name, socket.getLocalSocketAddress().toString(), socket.getRemoteSocketAddress().toString()), ioEx);
+                name, localAddress(), remoteAddress()), ioEx);
         }
     }
 
     public OutputStream getOutputStream() {
-        if (socket == null) {
+        if (connection == null) {
             throw new IllegalStateException(String.format("%s cannot get socket input stream when client has not been started", name));
         }
 
         try {
-            return socket.getOutputStream();
+            return connection.getOutputStream();
         } catch (IOException ioEx) {
             throw new IllegalStateException(String.format("%s failed to get OutputStream from client socket %s -> %s",
-                name, socket.getLocalSocketAddress().toString(), socket.getRemoteSocketAddress().toString()), ioEx);
+                name, localAddress(), remoteAddress()), ioEx);
         }
     }
 
     public int available() {
         int answer = 0;
-        if (socket != null) {
-            InputStream inputStream = null;
+        if (connection != null) {
             try {
-                inputStream = socket.getInputStream();
-            } catch (IOException getStreamEx) {
-                log.warn("{} ignoring exception encountered when retrieving the input stream to determine data availability", getStreamEx);
-            }
-            if (inputStream != null) {
-                try {
-                    answer = inputStream.available();
-                } catch (IOException availableEx) {
-                    log.warn("{} ignoring exception encountered when determining if data is available from the input stream", availableEx);
-                }
+                answer = connection.available();
+            } catch (IOException availableEx) {
+                log.warn("{} ignoring exception encountered when determining if data is available from the input stream", name, availableEx);
             }
         }
 
@@ -209,12 +535,26 @@ public class SimpleTcpClient {
     }
 
     public byte[] read() {
-        if (socket == null) {
+        if (connection == null) {
             throw new IllegalStateException(String.format("%s cannot read before client has been started", name));
         }
 
+        if (connection.receiveQueue != null) {
+            return readComposite().toByteArray();
+        }
+        if (connection.receiveRing != null) {
+            try {
+                return connection.readReceiveRing();
+            } catch (IOException ioEx) {
+                throw new RuntimeException(String.format("%s failed to read from the receive ring: %s -> %s", name, localAddress(), remoteAddress()), ioEx);
+            }
+        }
+
         InputStream inputStream = getInputStream();
+        connection.touch();
 
+        Object readEvent = connection.beginEvent(FlightRecorderEvents.Kind.READ);
+        String failureCause = null;
         ByteArrayOutputStream data = new ByteArrayOutputStream(1024);
         try {
             while (inputStream.available() > 0) {
@@ -224,31 +564,196 @@ public class SimpleTcpClient {
                 data.write(buffer, 0, readCount);
             }
         } catch (IOException e) {
+            connection.record(EventJournal.EventType.ERROR, 0);
+            failureCause = e.toString();
             // TODO: Deal with this
             e.printStackTrace();
         }
+        connection.record(EventJournal.EventType.READ, data.size());
+        connection.commitEvent(readEvent, data.size(), failureCause);
         return data.toByteArray();
     }
 
+    /**
+     * Read until the delimiter arrives from the server - e.g. an MLLP trailer or "\r\n\r\n".
+     *
+     * The search is incremental - it uses a Boyer-Moore-Horspool skip table, and only rescans the last
+     * delimiter.length - 1 bytes already received as each chunk arrives.  Data received after the delimiter is left for
+     * the next read (an InputStream obtained before this call will not see it), and on failure nothing is consumed.
+     *
+     * @param delimiter the bytes to read until
+     * @param timeout   the deadline for the delimiter in milliseconds - zero waits forever
+     *
+     * @return the data up to and including the delimiter
+     */
+    public byte[] readUntil(byte[] delimiter, int timeout) {
+        return readUntil(IncrementalSearch.delimiter(delimiter), timeout);
+    }
+
+    /**
+     * Read until data matching the pattern arrives from the server.
+     *
+     * The pattern is matched against the bytes as ISO-8859-1 characters, so each byte is one character.  The search is
+     * incremental - when a chunk arrives, the data already received is only rescanned where a match could still begin,
+     * and never more than the last 16K of it.  Data received after the match is left for the next read (an InputStream
+     * obtained before this call will not see it), and on failure nothing is consumed.
+     *
+     * @param pattern the pattern to read until
+     * @param timeout the deadline for the match in milliseconds - zero waits forever
+     *
+     * @return the data up to and including the first match
+     */
+    public byte[] readUntil(Pattern pattern, int timeout) {
+        return readUntil(IncrementalSearch.pattern(pattern), timeout);
+    }
+
+    byte[] readUntil(IncrementalSearch search, int timeout) {
+        if (connection == null) {
+            throw new IllegalStateException(String.format("%s cannot read before client has been started", name));
+        }
+
+        try {
+            return connection.readUntil(search, timeout);
+        } catch (IOException ioEx) {
+            throw new RuntimeException(String.format("%s failed to read until %s: %s -> %s", name, search, localAddress(), remoteAddress()), ioEx);
+        }
+    }
+
+    /**
+     * Run a scripted conversation with the server on the shared conversation loop.
+     *
+     * The conversation reads and writes the connection until it finishes, so the connection should not be read or
+     * written any other way in the meantime.
+     *
+     * @return the running session
+     */
+    public Conversation.Session converse(Conversation conversation) {
+        if (connection == null) {
+            throw new IllegalStateException(String.format("%s cannot start a conversation when client has not been started", name));
+        }
+
+        return conversation.run(connection);
+    }
+
+    /**
+     * Read the data currently available from the server without concatenating it.
+     *
+     * The result is a read-only view over the chunks the data was read into, so inspecting or forwarding it costs no
+     * copies - use this rather than read() when the data is only examined or written somewhere else.
+     *
+     * @return the data that was available
+     */
+    public CompositeBuffer readComposite() {
+        if (connection == null) {
+            throw new IllegalStateException(String.format("%s cannot read before client has been started", name));
+        }
+
+        try {
+            return connection.readComposite();
+        } catch (IOException ioEx) {
+            throw new RuntimeException(String.format("%s failed to read: %s -> %s", name, localAddress(), remoteAddress()), ioEx);
+        }
+    }
+
+    /**
+     * Read the data currently available from the server into a file - straight from the socket channel with FileChannel.transferFrom
+     * unless the connection uses TLS, loopback or background reads, so the data does not pass through the Java heap.
+     *
+     * The file is created if it does not exist, and truncated if it does.
+     *
+     * @param file     the file to write the received data to
+     * @param maxBytes the maximum number of bytes to read
+     *
+     * @return the number of bytes written to the file
+     */
+    public long readTo(Path file, long maxBytes) {
+        if (connection == null) {
+            throw new IllegalStateException(String.format("%s cannot read before client has been started", name));
+        }
+
+        connection.touch();
+        Object readEvent = connection.beginEvent(FlightRecorderEvents.Kind.READ);
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long readCount = ChannelTransfer.transferFrom(connection, fileChannel, maxBytes);
+            connection.record(EventJournal.EventType.READ, readCount);
+            connection.commitEvent(readEvent, readCount, null);
+            return readCount;
+        } catch (IOException ioEx) {
+            connection.commitEvent(readEvent, 0, ioEx.toString());
+            throw new RuntimeException(String.format("%s failed to read data into file %s", name, file), ioEx);
+        }
+    }
+
     public SimpleTcpClient write(byte[] data) {
-        if (socket == null) {
+        if (connection == null) {
             throw new IllegalStateException(String.format("%s cannot write before client has been started", name));
         }
 
         OutputStream outputStream = getOutputStream();
+        connection.touch();
 
+        Object writeEvent = connection.beginEvent(FlightRecorderEvents.Kind.WRITE);
         try {
             outputStream.write(data);
-        } catch (IOException e) {
-            // TODO: Deal with this
-            e.printStackTrace();
+            connection.record(EventJournal.EventType.WRITE, data.length);
+            connection.commitEvent(writeEvent, data.length, null);
+        } catch (IOException ioEx) {
+            connection.record(EventJournal.EventType.ERROR, 0);
+            connection.commitEvent(writeEvent, 0, ioEx.toString());
+            throw new RuntimeException(String.format("%s failed to write %d bytes: %s -> %s",
+                name, data.length, localAddress(), remoteAddress()), ioEx);
+        }
+
+        return this;
+    }
+
+    /**
+     * Write the entire contents of a file to the server - straight to the socket channel with FileChannel.transferTo
+     * unless the connection uses TLS, loopback or queued writes, so the data does not pass through the Java heap.
+     *
+     * @param file the file to send
+     *
+     * @return the current SimpleTcpClient
+     */
+    public SimpleTcpClient write(Path file) {
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return this.write(fileChannel, 0, fileChannel.size());
+        } catch (IOException ioEx) {
+            throw new RuntimeException(String.format("%s failed to open file %s", name, file), ioEx);
+        }
+    }
+
+    /**
+     * Write a region of a file to the server - straight to the socket channel with FileChannel.transferTo
+     * unless the connection uses TLS, loopback or queued writes, so the data does not pass through the Java heap.
+     *
+     * @param fileChannel the source of the data
+     * @param position    the position in the file to start from
+     * @param count       the number of bytes to send
+     *
+     * @return the current SimpleTcpClient
+     */
+    public SimpleTcpClient write(FileChannel fileChannel, long position, long count) {
+        if (connection == null) {
+            throw new IllegalStateException(String.format("%s cannot write before client has been started", name));
+        }
+
+        connection.touch();
+        Object writeEvent = connection.beginEvent(FlightRecorderEvents.Kind.WRITE);
+        try {
+            long writeCount = ChannelTransfer.transferTo(fileChannel, position, count, connection);
+            connection.record(EventJournal.EventType.WRITE, writeCount);
+            connection.commitEvent(writeEvent, writeCount, null);
+        } catch (IOException ioEx) {
+            connection.commitEvent(writeEvent, 0, ioEx.toString());
+            throw new RuntimeException(String.format("%s failed to write %d bytes from position %d of the file", name, count, position), ioEx);
         }
 
         return this;
     }
 
     public SimpleTcpClient flush() {
-        if (socket == null) {
+        if (connection == null) {
             throw new IllegalStateException(String.format("%s cannot flush output stream before client has been started", name));
         }
 
@@ -256,14 +761,55 @@ public class SimpleTcpClient {
 
         try {
             outputStream.flush();
-        } catch (IOException e) {
-            // TODO: Deal with this
-            e.printStackTrace();
+        } catch (IOException ioEx) {
+            connection.record(EventJournal.EventType.ERROR, 0);
+            throw new RuntimeException(String.format("%s failed to flush: %s -> %s", name, localAddress(), remoteAddress()), ioEx);
         }
 
         return this;
     }
 
+    /**
+     * Half-close the connection by sending a FIN - the server sees the end of the stream, but can still send data to
+     * the client.
+     *
+     * @return the current SimpleTcpClient
+     */
+    public SimpleTcpClient shutdownOutput() {
+        if (connection == null) {
+            throw new IllegalStateException(String.format("%s cannot shutdown output before client has been started", name));
+        }
+
+        try {
+            connection.shutdownOutput();
+        } catch (IOException ioEx) {
+            throw new RuntimeException(String.format("%s failed to shutdown output: %s -> %s",
+                name, localAddress(), remoteAddress()), ioEx);
+        }
+
+        return this;
+    }
+
+    /**
+     * Half-close the connection by shutting down the input - any further data sent by the server is discarded, but the
+     * client can still send data to the server.
+     *
+     * @return the current SimpleTcpClient
+     */
+    public SimpleTcpClient shutdownInput() {
+        if (connection == null) {
+            throw new IllegalStateException(String.format("%s cannot shutdown input before client has been started", name));
+        }
+
+        try {
+            connection.shutdownInput();
+        } catch (IOException ioEx) {
+            throw new RuntimeException(String.format("%s failed to shutdown input: %s -> %s",
+                name, localAddress(), remoteAddress()), ioEx);
+        }
+
+        return this;
+    }
 
     // Getters & Setters
 
@@ -280,7 +826,7 @@ public class SimpleTcpClient {
     }
 
     public void setHost(String host) {
-        if (socket != null) {
+        if (connection != null) {
             throw new IllegalStateException(String.format("%s [%s:%d] cannot set port while client is running", name, host, port));
         }
 
@@ -292,7 +838,7 @@ public class SimpleTcpClient {
     }
 
     public void setPort(int port) {
-        if (socket != null) {
+        if (connection != null) {
             throw new IllegalStateException(String.format("%s [%s:%d] cannot set port while client is running", name, host, port));
         }
 
@@ -304,27 +850,27 @@ public class SimpleTcpClient {
     }
 
     public InetAddress getInetAddress() {
-        if (socket == null) {
+        if (connection == null) {
             throw new IllegalStateException(String.format("%s cannot get INET address before client is connected", name));
         }
 
-        return socket.getInetAddress();
+        return (socket != null) ? socket.getInetAddress() : null;
     }
 
     public SocketAddress getLocalSocketAddress() {
-        if (socket == null) {
+        if (connection == null) {
             throw new IllegalStateException(String.format("%s cannot get local socket address before client is connected", name));
         }
 
-        return socket.getLocalSocketAddress();
+        return connection.getTransport().getLocalAddress();
     }
 
     public SocketAddress getRemoteSocketAddress() {
-        if (socket == null) {
+        if (connection == null) {
             throw new IllegalStateException(String.format("%s cannot get remote socket address before client is connected", name));
         }
 
-        return socket.getRemoteSocketAddress();
+        return connection.getRemoteAddress();
     }
 
     public int getConnectTimeout() {
@@ -363,6 +909,267 @@ public class SimpleTcpClient {
         this.readTimeout = (int) TimeUnit.MILLISECONDS.convert(timeout, unit);
     }
 
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set the idle timeout for the connection.
+     *
+     * When set before the client connects, the connection is closed once it has been idle (no data read or written)
+     * for longer than the idle timeout, or once it is dead (closed, or closed by the server and fully read when draining
+     * in the background).  A value of zero disables the idle timeout.
+     *
+     * @param timeout the idle timeout in milliseconds
+     */
+    public void setIdleTimeout(int timeout) {
+        this.idleTimeout = timeout;
+    }
+
+    public void setIdleTimeout(int timeout, TimeUnit unit) {
+        this.idleTimeout = (int) TimeUnit.MILLISECONDS.convert(timeout, unit);
+    }
+
+    public boolean isBackgroundDrain() {
+        return backgroundDrain;
+    }
+
+    /**
+     * Enable/disable background draining of the connection.
+     *
+     * When enabled, the connection is read continuously by a background thread once the client connects, so the server
+     * never stalls on a full receive buffer.  Received data is held in memory up to the drain memory threshold and
+     * spilled to a memory-mapped temporary file beyond that; it is read back through the normal read methods and the
+     * InputStream returned by getInputStream().
+     *
+     * @param backgroundDrain if true, drain the connection in the background
+     */
+    public void setBackgroundDrain(boolean backgroundDrain) {
+        if (connection != null) {
+            throw new IllegalStateException(String.format("%s [%s:%d] cannot change background drain while client is running", name, host, port));
+        }
+
+        this.backgroundDrain = backgroundDrain;
+    }
+
+    public int getAutoDrainLimit() {
+        return autoDrainLimit;
+    }
+
+    /**
+     * Enable/disable auto-drain.
+     *
+     * When enabled, the connection is read continuously by a shared I/O worker once the client connects, into a bounded
+     * queue, and read(), available() and the InputStream returned by getInputStream() are served from the queue - so a
+     * server writing more than the kernel buffers hold does not stall while the test is busy writing to it.  When the
+     * queue holds the limit, the worker stops reading and the server is pushed back by TCP flow control until the test
+     * reads.  Background drain takes precedence over auto-drain.
+     *
+     * @param limit the maximum number of bytes to queue, or zero to disable auto-drain
+     */
+    public void setAutoDrainLimit(int limit) {
+        if (connection != null) {
+            throw new IllegalStateException(String.format("%s [%s:%d] cannot change auto-drain while client is running", name, host, port));
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal auto-drain limit [%d].  Limit must not be negative", name, limit));
+        }
+
+        this.autoDrainLimit = limit;
+    }
+
+    public int getReceiveRingCapacity() {
+        return receiveRingCapacity;
+    }
+
+    /**
+     * Enable/disable the off-heap receive ring.
+     *
+     * When enabled, the connection is read continuously by a background thread once the client connects, into a ring
+     * buffer allocated outside the Java heap, and read(), available() and the InputStream returned by getInputStream()
+     * are served from the ring - so the heap stays flat no matter how much data the server sends.  The ring never
+     * grows: when it is full the background thread stops reading, and the server is pushed back by TCP flow control
+     * until the test reads.  Background drain takes precedence over the receive ring.
+     *
+     * @param capacity the capacity of the ring in bytes (rounded up to a power of two), or zero to disable the ring
+     */
+    public void setReceiveRingCapacity(int capacity) {
+        if (connection != null) {
+            throw new IllegalStateException(String.format("%s [%s:%d] cannot change the receive ring while client is running", name, host, port));
+        }
+        if (capacity < 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal receive ring capacity [%d].  Capacity must not be negative", name, capacity));
+        }
+
+        this.receiveRingCapacity = capacity;
+    }
+
+    public int getDrainMemoryThreshold() {
+        return drainMemoryThreshold;
+    }
+
+    public void setDrainMemoryThreshold(int drainMemoryThreshold) {
+        if (drainMemoryThreshold <= 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal drain memory threshold [%d].  Threshold must be greater than zero", name, drainMemoryThreshold));
+        }
+
+        this.drainMemoryThreshold = drainMemoryThreshold;
+    }
+
+    public boolean isQueueWrites() {
+        return queueWrites;
+    }
+
+    /**
+     * Enable/disable queued writes.
+     *
+     * When enabled, data written to the server is queued and written by a background thread, so a server that stops
+     * reading cannot block the writing thread indefinitely.  Writes do not block until the queued data rises above the
+     * write high watermark; they then wait (for no longer than the write timeout) for the queue to drain to the low
+     * watermark.  flush() waits until the queued data has been written.  If the server accepts no data for the write
+     * timeout the connection is closed, and later writes fail.
+     *
+     * @param queueWrites if true, queue writes
+     */
+    public void setQueueWrites(boolean queueWrites) {
+        if (connection != null) {
+            throw new IllegalStateException(String.format("%s [%s:%d] cannot change queued writes while client is running", name, host, port));
+        }
+
+        this.queueWrites = queueWrites;
+    }
+
+    public int getWriteHighWatermark() {
+        return writeHighWatermark;
+    }
+
+    public int getWriteLowWatermark() {
+        return writeLowWatermark;
+    }
+
+    /**
+     * Set the write queue watermarks.
+     *
+     * @param lowWatermark  the number of queued bytes at which the connection becomes writable again
+     * @param highWatermark the number of queued bytes above which the connection is unwritable
+     */
+    public void setWriteWatermarks(int lowWatermark, int highWatermark) {
+        if (lowWatermark < 0 || highWatermark <= 0 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException(String.format("%s - illegal write watermarks [low=%d, high=%d].  The high watermark must be greater than zero, and the low watermark between zero and the high watermark",
+                name, lowWatermark, highWatermark));
+        }
+
+        this.writeLowWatermark = lowWatermark;
+        this.writeHighWatermark = highWatermark;
+    }
+
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    public void setWriteTimeout(int writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    public void setWriteTimeout(int timeout, TimeUnit unit) {
+        this.writeTimeout = (int) TimeUnit.MILLISECONDS.convert(timeout, unit);
+    }
+
+    public WritabilityListener getWritabilityListener() {
+        return writabilityListener;
+    }
+
+    /**
+     * @param writabilityListener notified when a connection's write queue crosses the watermarks, or null
+     */
+    public void setWritabilityListener(WritabilityListener writabilityListener) {
+        this.writabilityListener = writabilityListener;
+    }
+
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * Enable/disable registering the client with the platform MBean server while it is running (see
+     * SimpleTcpFixtureMXBean).  Defaults to true unless the system property tcp-test-util.jmx.enabled is false.
+     *
+     * @param jmxEnabled if true, register the client when it connects
+     */
+    public void setJmxEnabled(boolean jmxEnabled) {
+        if (connection != null) {
+            throw new IllegalStateException(String.format("%s [%s:%d] cannot change JMX registration while client is running", name, host, port));
+        }
+
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    /**
+     * @return the name the client is registered under with the platform MBean server, or null if it is not registered
+     */
+    public ObjectName getObjectName() {
+        return monitor.getObjectName();
+    }
+
+    /**
+     * @return the number of times the client has connected since it was created
+     */
+    public long getConnectCount() {
+        return connectCount.get();
+    }
+
+    public TlsConfiguration getTlsConfiguration() {
+        return tlsConfiguration;
+    }
+
+    /**
+     * Enable TLS - the handshake is completed when the client connects.
+     *
+     * @param tlsConfiguration the TLS settings, or null to disable TLS
+     */
+    public void setTlsConfiguration(TlsConfiguration tlsConfiguration) {
+        if (connection != null) {
+            throw new IllegalStateException(String.format("%s [%s:%d] cannot change TLS configuration while client is running", name, host, port));
+        }
+
+        this.tlsConfiguration = tlsConfiguration;
+    }
+
+    public Path getUnixSocketPath() {
+        return unixSocketPath;
+    }
+
+    /**
+     * Connect to a Unix domain socket instead of a TCP host and port - requires Java 16 or later.
+     *
+     * @param unixSocketPath the path of the server's socket file, or null to connect over TCP
+     */
+    public void setUnixSocketPath(Path unixSocketPath) {
+        if (connection != null) {
+            throw new IllegalStateException(String.format("%s [%s] cannot set Unix domain socket path while client is running", name, unixSocketPath));
+        }
+
+        this.unixSocketPath = unixSocketPath;
+    }
+
+    public String getLoopbackName() {
+        return loopbackName;
+    }
+
+    /**
+     * Connect to a SimpleTcpServer in the same JVM through in-memory ring buffers instead of a TCP socket.
+     *
+     * @param loopbackName the loopback name of the server (see SimpleTcpServer.setLoopbackName), or null to connect
+     *                     over TCP
+     */
+    public void setLoopbackName(String loopbackName) {
+        if (connection != null) {
+            throw new IllegalStateException(String.format("%s [%s] cannot set loopback name while client is running", name, loopbackName));
+        }
+
+        this.loopbackName = loopbackName;
+    }
+
     // Builder-style setters
     public SimpleTcpClient name(String name) {
         this.setName(name);
@@ -417,4 +1224,94 @@ public class SimpleTcpClient {
 
         return this;
     }
+
+    public SimpleTcpClient idleTimeout(int timeout) {
+        this.setIdleTimeout(timeout);
+
+        return this;
+    }
+
+    public SimpleTcpClient idleTimeout(int timeout, TimeUnit unit) {
+        this.setIdleTimeout(timeout, unit);
+
+        return this;
+    }
+
+    public SimpleTcpClient backgroundDrain(boolean backgroundDrain) {
+        this.setBackgroundDrain(backgroundDrain);
+
+        return this;
+    }
+
+    public SimpleTcpClient autoDrain(int limit) {
+        this.setAutoDrainLimit(limit);
+
+        return this;
+    }
+
+    public SimpleTcpClient receiveRing(int capacity) {
+        this.setReceiveRingCapacity(capacity);
+
+        return this;
+    }
+
+    public SimpleTcpClient drainMemoryThreshold(int drainMemoryThreshold) {
+        this.setDrainMemoryThreshold(drainMemoryThreshold);
+
+        return this;
+    }
+
+    public SimpleTcpClient queueWrites(boolean queueWrites) {
+        this.setQueueWrites(queueWrites);
+
+        return this;
+    }
+
+    public SimpleTcpClient writeWatermarks(int lowWatermark, int highWatermark) {
+        this.setWriteWatermarks(lowWatermark, highWatermark);
+
+        return this;
+    }
+
+    public SimpleTcpClient writeTimeout(int timeout) {
+        this.setWriteTimeout(timeout);
+
+        return this;
+    }
+
+    public SimpleTcpClient writeTimeout(int timeout, TimeUnit unit) {
+        this.setWriteTimeout(timeout, unit);
+
+        return this;
+    }
+
+    public SimpleTcpClient writabilityListener(WritabilityListener writabilityListener) {
+        this.setWritabilityListener(writabilityListener);
+
+        return this;
+    }
+
+    public SimpleTcpClient jmxEnabled(boolean jmxEnabled) {
+        this.setJmxEnabled(jmxEnabled);
+
+        return this;
+    }
+
+    public SimpleTcpClient tls(TlsConfiguration tlsConfiguration) {
+        this.setTlsConfiguration(tlsConfiguration);
+
+        return this;
+    }
+
+    public SimpleTcpClient unixSocketPath(Path unixSocketPath) {
+        this.setUnixSocketPath(unixSocketPath);
+
+        return this;
+    }
+
+    public SimpleTcpClient loopbackName(String loopbackName) {
+        this.setLoopbackName(loopbackName);
+
+        return this;
+    }
 }
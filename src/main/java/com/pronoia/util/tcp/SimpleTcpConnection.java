@@ -0,0 +1,998 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+
+import java.nio.channels.ReadableByteChannel;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The state for a single connection - shared by SimpleTcpServer (one per accepted client) and SimpleTcpClient.
+ */
+class SimpleTcpConnection {
+    static final int DRAIN_READ_SIZE = 8192;
+    static final int PUBLISH_CHUNK_SIZE = 8192;
+    static final int RECEIVE_READ_SIZE = 16384;
+    static final int AUTO_DRAIN_READ_SIZE = 16384;
+    static final int UNTIL_READ_SIZE = 8192;
+    static final long UNTIL_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    static final AtomicLong ID_SEQUENCE = new AtomicLong();
+
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    final long id = ID_SEQUENCE.incrementAndGet();
+    final String name;
+    final Transport transport;
+    final int receiveTimeout;
+
+    volatile TlsTransport tls;
+    volatile SpillBuffer drainBuffer;
+    volatile ReceiveRing receiveRing;
+    volatile ReceiveQueue receiveQueue;
+    volatile WriteQueue writeQueue;
+    InboundPublisher inboundPublisher;
+    RequestPipeline requestPipeline;
+    boolean echoing;
+
+    TcpStatistics statistics;
+
+    // Data read past the end of a readUntil() match - returned before anything else is read from the connection.
+    // Pushed back on the caller's thread but read later by others (e.g. a conversation loop), so guarded by unreadLock
+    final Object unreadLock = new Object();
+    byte[] unread;
+    int unreadOffset;
+
+    volatile long lastActivity = System.nanoTime();
+    volatile boolean reaped;
+    volatile HashedWheelTimer.Timeout idleCheck;
+
+    /**
+     * @param transport      the underlying byte stream
+     * @param receiveTimeout the read deadline (in milliseconds) for blocking reads from a drained connection - zero
+     *                       waits forever
+     */
+    SimpleTcpConnection(String name, Transport transport, int receiveTimeout) {
+        this.name = name;
+        this.transport = transport;
+        this.receiveTimeout = receiveTimeout;
+    }
+
+    Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return the TCP socket, or null if the connection is not over TCP
+     */
+    Socket getSocket() {
+        return transport.getSocket();
+    }
+
+    SocketAddress getRemoteAddress() {
+        return transport.getRemoteAddress();
+    }
+
+    boolean isOpen() {
+        return transport.isOpen();
+    }
+
+    /**
+     * @return true if the connection is read in the background, so reads are served from what has already been received
+     *     rather than from the transport - by the background drain (spill buffer), the receive ring or auto-drain
+     *     (receive queue)
+     */
+    boolean isDraining() {
+        return drainBuffer != null || receiveRing != null || receiveQueue != null;
+    }
+
+    boolean isTls() {
+        return tls != null;
+    }
+
+    /**
+     * @return the TLS session, or null if the connection is not using TLS
+     */
+    SSLSession getSslSession() {
+        TlsTransport tlsTransport = tls;
+        return (tlsTransport != null) ? tlsTransport.getSession() : null;
+    }
+
+    /**
+     * Run TLS over the connection, blocking until the handshake is complete.  This must be called before any data is
+     * read or written, and before the connection is drained.
+     *
+     * The handshake deadline is driven by the shared timer, which closes the connection if the handshake has not
+     * completed.
+     *
+     * @param engine           the engine for this side of the connection
+     * @param handshakeTimeout the handshake deadline in milliseconds - zero waits forever
+     */
+    void startTls(SSLEngine engine, int handshakeTimeout) throws IOException {
+        TlsTransport tlsTransport = new TlsTransport(engine, transport.getInputStream(), transport.getOutputStream());
+
+        HashedWheelTimer.Timeout handshakeDeadline = null;
+        if (handshakeTimeout > 0) {
+            handshakeDeadline = HashedWheelTimer.shared().newTimeout(() -> {
+                try {
+                    transport.close();
+                } catch (IOException closeEx) {
+                    log.debug("{} ignoring exception encountered closing connection after TLS handshake timeout", name, closeEx);
+                }
+            }, handshakeTimeout, TimeUnit.MILLISECONDS);
+        }
+
+        long startNanos = System.nanoTime();
+        try {
+            tlsTransport.handshake();
+        } catch (IOException handshakeEx) {
+            if (handshakeDeadline != null && handshakeDeadline.isExpired()) {
+                throw new SocketTimeoutException(String.format("TLS handshake timed out after %d-ms", handshakeTimeout));
+            }
+            throw handshakeEx;
+        } finally {
+            if (handshakeDeadline != null) {
+                handshakeDeadline.cancel();
+            }
+        }
+        record(EventJournal.EventType.HANDSHAKE, 0);
+        log.debug("{} completed {} handshake with {} in {}-us", name, tlsTransport.getSession().getProtocol(), transport.getRemoteAddress(),
+            TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+
+        tls = tlsTransport;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    /**
+     * Record an event for the connection in the shared event journal, and count it in the statistics of the server or
+     * client that owns the connection.
+     *
+     * @param type      the type of the event
+     * @param byteCount the number of bytes read or written, or zero
+     */
+    void record(EventJournal.EventType type, long byteCount) {
+        EventJournal.shared().record(name, id, type, byteCount);
+        TcpStatistics connectionStatistics = statistics;
+        if (connectionStatistics != null) {
+            connectionStatistics.record(type, byteCount, isDraining());
+        }
+    }
+
+    /**
+     * Record a request/response latency in the statistics of the server or client that owns the connection.
+     */
+    void recordLatency(long nanos) {
+        TcpStatistics connectionStatistics = statistics;
+        if (connectionStatistics != null) {
+            connectionStatistics.recordLatency(nanos);
+        }
+    }
+
+    /**
+     * Start timing a Flight Recorder event for the connection.
+     *
+     * @return the event, or null if events of this kind are not being recorded
+     */
+    Object beginEvent(FlightRecorderEvents.Kind kind) {
+        return FlightRecorderEvents.begin(kind);
+    }
+
+    /**
+     * Finish a Flight Recorder event started with beginEvent().
+     *
+     * @param event     the event returned by beginEvent() - nothing is recorded if it is null
+     * @param byteCount the number of bytes read or written, or zero
+     * @param cause     why the operation failed - null if it succeeded
+     */
+    void commitEvent(Object event, long byteCount, String cause) {
+        if (event != null) {
+            FlightRecorderEvents.commit(event, name, id, transport.getRemoteAddress(), byteCount, cause);
+        }
+    }
+
+    /**
+     * Record activity on the connection, resetting the idle timer.
+     */
+    void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Monitor the connection with the shared timer, and call the reaper once it is dead (closed, or drained to the end
+     * of the stream) or has been idle for longer than the idle timeout.
+     *
+     * The reaper runs on an I/O worker, since closing the connection can wait on the peer.
+     *
+     * @param idleTimeout the idle timeout in milliseconds
+     * @param reaper      called once when the connection should be reaped
+     */
+    void startIdleMonitor(long idleTimeout, Runnable reaper) {
+        scheduleIdleCheck(TimeUnit.MILLISECONDS.toNanos(idleTimeout), TimeUnit.MILLISECONDS.toNanos(idleTimeout), reaper);
+    }
+
+    void scheduleIdleCheck(final long delayNanos, final long idleTimeoutNanos, final Runnable reaper) {
+        idleCheck = HashedWheelTimer.shared().newTimeout(() -> {
+            if (reaped) {
+                return;
+            }
+
+            long idleNanos = System.nanoTime() - lastActivity;
+            if (isDead() || idleNanos >= idleTimeoutNanos) {
+                reaped = true;
+                record(EventJournal.EventType.IDLE_REAPED, 0);
+                // Closing the connection can wait on the peer, which must not stall the shared timer
+                IoWorkers.shared().execute(String.format("%s reaping %s", name, transport.getRemoteAddress()), reaper);
+            } else {
+                scheduleIdleCheck(idleTimeoutNanos - idleNanos, idleTimeoutNanos, reaper);
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return true if the connection has been closed, or the peer has closed it and all of the drained data has been read
+     */
+    boolean isDead() {
+        if (!isOpen()) {
+            return true;
+        }
+
+        SpillBuffer buffer = drainBuffer;
+        if (buffer != null) {
+            return buffer.isEndOfStream() && buffer.available() == 0;
+        }
+
+        ReceiveRing ring = receiveRing;
+        if (ring != null) {
+            return ring.isEndOfStream() && ring.available() == 0;
+        }
+
+        ReceiveQueue queue = receiveQueue;
+        return queue != null && queue.isEndOfStream() && queue.available() == 0;
+    }
+
+    /**
+     * @return true if nothing more can be read - the connection is dead, its input has been shutdown, or the peer has
+     *     closed its end and everything it sent has been read.  Checked without blocking, after available() returned
+     *     zero.
+     */
+    boolean isEndOfStream() {
+        if (isDead() || transport.isInputShutdown()) {
+            return true;
+        }
+
+        // Background reads see the transport's end of the stream before the data they received has been read
+        return !isDraining() && transport.isEndOfStream();
+    }
+
+    /**
+     * Half-close the connection - send a FIN to the peer while continuing to read from it.
+     */
+    void shutdownOutput() throws IOException {
+        touch();
+        flushWriteQueue();
+        record(EventJournal.EventType.SHUTDOWN_OUTPUT, 0);
+        TlsTransport tlsTransport = tls;
+        if (tlsTransport != null) {
+            tlsTransport.shutdownOutput();
+        }
+        transport.shutdownOutput();
+    }
+
+    /**
+     * Half-close the connection - stop reading from the peer while continuing to write to it.
+     */
+    void shutdownInput() throws IOException {
+        touch();
+        record(EventJournal.EventType.SHUTDOWN_INPUT, 0);
+        transport.shutdownInput();
+    }
+
+    /**
+     * Start reading the connection continuously in the background, so the peer is never blocked by a full receive
+     * buffer.  Data is held in memory up to the memory threshold, and spilled to a temporary file after that.
+     *
+     * @param memoryThreshold the number of bytes to hold in memory before spilling to disk
+     */
+    synchronized void startDrain(int memoryThreshold) throws IOException {
+        if (drainBuffer != null) {
+            return;
+        }
+
+        final InputStream transportInputStream = getTransportInputStream();
+        final SpillBuffer buffer = new SpillBuffer(memoryThreshold);
+
+        drainBuffer = buffer;
+        IoWorkers.shared().execute(String.format("%s drainer %s", name, transport.getRemoteAddress()), () -> drain(transportInputStream, buffer));
+    }
+
+    /**
+     * Start reading the connection continuously into an off-heap ring buffer, so reads are served from memory that is
+     * allocated once - the heap stays flat no matter how much data is received.  When the ring is full the receive
+     * thread stops reading, so the peer is pushed back by TCP flow control.
+     *
+     * @param capacity the capacity of the ring in bytes - rounded up to a power of two
+     */
+    synchronized void startReceiveRing(int capacity) throws IOException {
+        if (receiveRing != null) {
+            return;
+        }
+
+        final ReceiveRing ring = new ReceiveRing(capacity);
+        final ReadableByteChannel channel = (tls == null) ? transport.getReadableChannel() : null;
+        final InputStream transportInputStream = (channel == null) ? getTransportInputStream() : null;
+
+        receiveRing = ring;
+        IoWorkers.shared().execute(String.format("%s receiver %s", name, transport.getRemoteAddress()), () -> receive(channel, transportInputStream, ring));
+    }
+
+    /**
+     * Start reading the connection continuously into a bounded queue, so a peer writing more than the kernel buffers
+     * hold is not blocked by a test that is busy writing to it.  When the queue is full the I/O worker stops reading,
+     * so the peer is pushed back by TCP flow control.
+     *
+     * @param maxQueuedBytes the maximum number of bytes to queue
+     */
+    synchronized void startAutoDrain(int maxQueuedBytes) throws IOException {
+        if (receiveQueue != null) {
+            return;
+        }
+
+        final InputStream transportInputStream = getTransportInputStream();
+        final ReceiveQueue queue = new ReceiveQueue(maxQueuedBytes);
+
+        receiveQueue = queue;
+        IoWorkers.shared().execute(String.format("%s auto-drain %s", name, transport.getRemoteAddress()), () -> autoDrain(transportInputStream, queue));
+    }
+
+    /**
+     * Reflect everything received on the connection back to the peer from a background thread, until the peer closes
+     * its end of the connection.
+     */
+    synchronized void startEcho() throws IOException {
+        if (echoing) {
+            return;
+        }
+
+        final InputStream transportInputStream = getTransportInputStream();
+
+        echoing = true;
+        IoWorkers.shared().execute(String.format("%s echo %s", name, transport.getRemoteAddress()), () -> echo(transportInputStream));
+    }
+
+    /**
+     * Queue writes to the connection, and write them to the peer from a background thread.  This must be called after
+     * any TLS handshake, and before any data is written.
+     *
+     * @param highWatermark the number of queued bytes above which the connection is unwritable
+     * @param lowWatermark  the number of queued bytes at which the connection becomes writable again
+     * @param writeTimeout  the write deadline in milliseconds - zero waits forever
+     * @param listener      notified when the writability changes, or null
+     */
+    synchronized void startWriteQueue(int highWatermark, int lowWatermark, int writeTimeout, WritabilityListener listener) throws IOException {
+        if (writeQueue != null) {
+            return;
+        }
+
+        writeQueue = new WriteQueue(name, getTransportOutputStream(), transport, highWatermark, lowWatermark, writeTimeout, listener);
+    }
+
+    /**
+     * @return true unless the write queue is above its high watermark or has failed
+     */
+    boolean isWritable() {
+        WriteQueue queue = writeQueue;
+        return queue == null || queue.isWritable();
+    }
+
+    /**
+     * @return the publisher of the data received on the connection - created the first time it is needed
+     */
+    synchronized InboundPublisher getInboundPublisher() {
+        if (inboundPublisher == null) {
+            inboundPublisher = new InboundPublisher(this, PUBLISH_CHUNK_SIZE);
+        }
+
+        return inboundPublisher;
+    }
+
+    /**
+     * Start pipelining requests over the connection - the pipeline reads every response, so there can only be one.
+     */
+    synchronized RequestPipeline startRequestPipeline(MessageFraming framing, int maxOutstanding, Function<byte[], ?> correlationIdExtractor) {
+        if (requestPipeline != null) {
+            throw new IllegalStateException(String.format("%s already has a request pipeline for %s", name, getRemoteAddress()));
+        }
+
+        requestPipeline = new RequestPipeline(this, framing, maxOutstanding, correlationIdExtractor);
+        return requestPipeline;
+    }
+
+    InputStream getInputStream() throws IOException {
+        SpillBuffer buffer = drainBuffer;
+        ReceiveRing ring = receiveRing;
+        ReceiveQueue queue = receiveQueue;
+        InputStream inputStream;
+        if (buffer != null) {
+            inputStream = buffer.getInputStream(receiveTimeout);
+        } else if (ring != null) {
+            inputStream = ring.getInputStream(receiveTimeout);
+        } else if (queue != null) {
+            inputStream = queue.getInputStream(receiveTimeout);
+        } else {
+            inputStream = getTransportInputStream();
+        }
+
+        return hasUnread() ? new UnreadInputStream(inputStream) : inputStream;
+    }
+
+    /**
+     * @return the stream of data received from the peer - decrypted when the connection is using TLS
+     */
+    InputStream getTransportInputStream() throws IOException {
+        TlsTransport tlsTransport = tls;
+        return (tlsTransport != null) ? tlsTransport.getInputStream() : transport.getInputStream();
+    }
+
+    OutputStream getOutputStream() throws IOException {
+        WriteQueue queue = writeQueue;
+        if (queue != null) {
+            return queue.getOutputStream();
+        }
+
+        return getTransportOutputStream();
+    }
+
+    /**
+     * @return the stream of data sent to the peer - encrypted when the connection is using TLS
+     */
+    OutputStream getTransportOutputStream() throws IOException {
+        TlsTransport tlsTransport = tls;
+        return (tlsTransport != null) ? tlsTransport.getOutputStream() : transport.getOutputStream();
+    }
+
+    int available() throws IOException {
+        int unreadCount = getUnreadCount();
+
+        SpillBuffer buffer = drainBuffer;
+        if (buffer != null) {
+            return unreadCount + buffer.available();
+        }
+        ReceiveRing ring = receiveRing;
+        if (ring != null) {
+            return unreadCount + ring.available();
+        }
+        ReceiveQueue queue = receiveQueue;
+        if (queue != null) {
+            return unreadCount + queue.available();
+        }
+
+        return unreadCount + getTransportInputStream().available();
+    }
+
+    /**
+     * @return true if file transfers can read straight from the transport's channel - it has one, is not using TLS,
+     *     is not being read in the background and has no pushed back data; otherwise reads go through the connection
+     *     input stream
+     */
+    boolean isChannelReadable() {
+        return !isDraining() && tls == null && transport.getChannel() != null && !hasUnread();
+    }
+
+    /**
+     * @return true if file transfers can write straight to the transport's channel - it has one, is not using TLS and
+     *     writes are not queued; otherwise writes go through the connection output stream
+     */
+    boolean isChannelWritable() {
+        return writeQueue == null && tls == null && transport.getChannel() != null;
+    }
+
+    /**
+     * Close the connection and release any buffered data.
+     */
+    void close() throws IOException {
+        try {
+            flushWriteQueue();
+        } catch (IOException flushEx) {
+            log.warn(String.format("%s discarding queued data that could not be written to %s before the close", name, transport.getRemoteAddress()), flushEx);
+        }
+        record(EventJournal.EventType.CLOSED, 0);
+        TlsTransport tlsTransport = tls;
+        if (tlsTransport != null && !transport.isClosed() && !transport.isOutputShutdown()) {
+            tlsTransport.close();
+        }
+        try {
+            transport.close();
+        } finally {
+            releaseResources();
+        }
+    }
+
+    /**
+     * Close an idle or dead connection.  A peer that is idle or gone will not read anything still queued for it, so
+     * rather than waiting for the write queue to drain the connection is reset if any queued data has not been written.
+     */
+    void reap() throws IOException {
+        WriteQueue queue = writeQueue;
+        if (queue != null && queue.getQueuedBytes() > 0) {
+            reset(String.format("reaped with %d queued bytes unwritten", queue.getQueuedBytes()));
+        } else {
+            close();
+        }
+    }
+
+    /**
+     * Wait until the queued writes have been written to the peer, so a FIN or close_notify is not sent ahead of them.
+     */
+    void flushWriteQueue() throws IOException {
+        WriteQueue queue = writeQueue;
+        if (queue != null && transport.isOpen()) {
+            queue.flush();
+        }
+    }
+
+    void cancelIdleMonitor() {
+        reaped = true;
+        HashedWheelTimer.Timeout timeout = idleCheck;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Reset the connection (SO_LINGER=0 followed by close for TCP) and release any buffered data.
+     */
+    void reset() throws IOException {
+        reset("reset requested");
+    }
+
+    /**
+     * Reset the connection (SO_LINGER=0 followed by close for TCP) and release any buffered data.
+     *
+     * @param cause why the connection is being reset
+     */
+    void reset(String cause) throws IOException {
+        record(EventJournal.EventType.RESET, 0);
+        commitEvent(beginEvent(FlightRecorderEvents.Kind.RESET), 0, cause);
+        try {
+            transport.reset();
+        } finally {
+            releaseResources();
+        }
+    }
+
+    /**
+     * Stop monitoring the connection and release any buffered data.
+     */
+    void releaseResources() {
+        cancelIdleMonitor();
+
+        WriteQueue queue = writeQueue;
+        if (queue != null) {
+            queue.close();
+        }
+
+        SpillBuffer buffer = drainBuffer;
+        if (buffer != null) {
+            try {
+                buffer.close();
+            } catch (IOException closeEx) {
+                log.warn(String.format("%s ignoring exception encountered releasing the drain buffer for %s", name, transport.getRemoteAddress()), closeEx);
+            }
+        }
+
+        ReceiveRing ring = receiveRing;
+        if (ring != null) {
+            ring.close();
+        }
+
+        ReceiveQueue receivedQueue = receiveQueue;
+        if (receivedQueue != null) {
+            receivedQueue.close();
+        }
+    }
+
+    /**
+     * Take everything currently held in the receive ring, without waiting for more.
+     *
+     * @return the received data, in an array of exactly its size
+     */
+    byte[] readReceiveRing() throws IOException {
+        touch();
+        Object event = beginEvent(FlightRecorderEvents.Kind.READ);
+        InputStream inputStream = getInputStream();
+        byte[] data = new byte[available()];
+        int offset = 0;
+        while (offset < data.length) {
+            int readCount = inputStream.read(data, offset, data.length - offset);
+            if (readCount == -1) {
+                data = Arrays.copyOf(data, offset);
+                break;
+            }
+            offset += readCount;
+        }
+        record(EventJournal.EventType.READ, data.length);
+        commitEvent(event, data.length, null);
+        return data;
+    }
+
+    /**
+     * Read the data currently available without concatenating it - each chunk is read into an array of its own, which
+     * is handed to the result as-is.  When the connection is auto-drained, the queued chunks are handed over.
+     */
+    CompositeBuffer readComposite() throws IOException {
+        touch();
+        Object event = beginEvent(FlightRecorderEvents.Kind.READ);
+        CompositeBuffer.Builder builder = new CompositeBuffer.Builder();
+        ReceiveQueue queue = receiveQueue;
+        if (queue != null) {
+            // The queued chunks are handed over as they are
+            synchronized (unreadLock) {
+                if (unread != null) {
+                    builder.add(unread, unreadOffset, unread.length - unreadOffset);
+                    unread = null;
+                }
+            }
+            queue.drainTo(builder);
+            record(EventJournal.EventType.READ, builder.size());
+            commitEvent(event, builder.size(), null);
+            return builder.build();
+        }
+        try {
+            InputStream inputStream = getInputStream();
+            int available;
+            while ((available = inputStream.available()) > 0) {
+                byte[] chunk = new byte[available];
+                int readCount = inputStream.read(chunk);
+                if (readCount == -1) {
+                    break;
+                }
+                builder.add(chunk, readCount);
+            }
+        } catch (IOException ioEx) {
+            record(EventJournal.EventType.ERROR, 0);
+            commitEvent(event, builder.size(), ioEx.toString());
+            throw ioEx;
+        }
+        record(EventJournal.EventType.READ, builder.size());
+        commitEvent(event, builder.size(), null);
+        return builder.build();
+    }
+
+    /**
+     * Read until the search finds a match, waiting no longer than the timeout.  Only the data up to the end of the match
+     * is consumed - anything read past it is returned by the next read.  On failure nothing is consumed.
+     *
+     * @param timeoutMillis the deadline for the match in milliseconds - zero waits forever
+     *
+     * @return the data up to and including the match
+     *
+     * @throws SocketTimeoutException if there is no match before the deadline
+     * @throws EOFException           if the stream ends without a match
+     */
+    byte[] readUntil(IncrementalSearch search, int timeoutMillis) throws IOException {
+        touch();
+        Object event = beginEvent(FlightRecorderEvents.Kind.READ);
+        long deadline = (timeoutMillis > 0) ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+
+        byte[] data = new byte[UNTIL_READ_SIZE];
+        int length = 0;
+        try {
+            while (true) {
+                int end = search.search(data, length);
+                if (end >= 0) {
+                    pushBack(data, end, length - end);
+                    record(EventJournal.EventType.READ, end);
+                    commitEvent(event, end, null);
+                    return Arrays.copyOf(data, end);
+                }
+
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+                int readCount = read(data, length, data.length - length, deadline);
+                if (readCount == -1) {
+                    throw new EOFException(String.format("Stream ended after %d bytes without a match for %s", length, search));
+                } else if (readCount == 0) {
+                    throw new SocketTimeoutException(String.format("No match for %s after %d-ms - %d bytes received", search, timeoutMillis, length));
+                }
+                length += readCount;
+            }
+        } catch (IOException ioEx) {
+            pushBack(data, 0, length);
+            if (!(ioEx instanceof SocketTimeoutException)) {
+                record(EventJournal.EventType.ERROR, 0);
+            }
+            commitEvent(event, 0, ioEx.toString());
+            throw ioEx;
+        }
+    }
+
+    /**
+     * Read up to length bytes, waiting no later than the deadline for the first one.  Reads from drained connections and
+     * plain TCP sockets block until the deadline; reads from other transports poll, since they have no read deadline.
+     *
+     * @param deadline the System.nanoTime() deadline, or zero to wait forever
+     *
+     * @return the number of bytes read, -1 at the end of the stream, or zero if the deadline passed
+     */
+    int read(byte[] data, int offset, int length, long deadline) throws IOException {
+        InputStream inputStream = getInputStream();
+        while (true) {
+            int available = inputStream.available();
+            if (available > 0) {
+                return inputStream.read(data, offset, Math.min(length, available));
+            }
+
+            int remainingMillis = 0;
+            if (deadline != 0) {
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    return 0;
+                }
+                remainingMillis = (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos));
+            }
+
+            try {
+                SpillBuffer buffer = drainBuffer;
+                if (buffer != null) {
+                    return buffer.read(data, offset, length, remainingMillis);
+                }
+                ReceiveRing ring = receiveRing;
+                if (ring != null) {
+                    return ring.read(data, offset, length, remainingMillis);
+                }
+                ReceiveQueue queue = receiveQueue;
+                if (queue != null) {
+                    return queue.read(data, offset, length, remainingMillis);
+                }
+                Socket socket = transport.getSocket();
+                if (socket != null && tls == null) {
+                    // Restore whatever SO_TIMEOUT the test set on the socket once the read is done
+                    int previousTimeout = socket.getSoTimeout();
+                    socket.setSoTimeout(remainingMillis);
+                    try {
+                        return inputStream.read(data, offset, length);
+                    } finally {
+                        socket.setSoTimeout(previousTimeout);
+                    }
+                }
+            } catch (SocketTimeoutException timeoutEx) {
+                return 0;
+            }
+
+            if (transport.isClosed() || transport.isInputShutdown()) {
+                return -1;
+            }
+            LockSupport.parkNanos(this, UNTIL_POLL_NANOS);
+        }
+    }
+
+    /**
+     * Return data to the connection, ahead of anything still unread.
+     */
+    void pushBack(byte[] data, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+
+        synchronized (unreadLock) {
+            int pendingCount = (unread != null) ? unread.length - unreadOffset : 0;
+            byte[] answer = Arrays.copyOfRange(data, offset, offset + length + pendingCount);
+            if (pendingCount > 0) {
+                System.arraycopy(unread, unreadOffset, answer, length, pendingCount);
+            }
+            unread = answer;
+            unreadOffset = 0;
+        }
+    }
+
+    boolean hasUnread() {
+        synchronized (unreadLock) {
+            return unread != null;
+        }
+    }
+
+    /**
+     * @return the number of pushed back bytes not yet read
+     */
+    int getUnreadCount() {
+        synchronized (unreadLock) {
+            return (unread != null) ? unread.length - unreadOffset : 0;
+        }
+    }
+
+    /**
+     * Read pushed back data.
+     *
+     * @return the number of bytes read, or -1 if nothing has been pushed back
+     */
+    int readUnread(byte[] data, int offset, int length) {
+        synchronized (unreadLock) {
+            if (unread == null) {
+                return -1;
+            }
+
+            int readCount = Math.min(length, unread.length - unreadOffset);
+            System.arraycopy(unread, unreadOffset, data, offset, readCount);
+            unreadOffset += readCount;
+            if (unreadOffset == unread.length) {
+                unread = null;
+            }
+            return readCount;
+        }
+    }
+
+    void receive(ReadableByteChannel channel, InputStream transportInputStream, ReceiveRing ring) {
+        byte[] scratch = (channel == null) ? new byte[RECEIVE_READ_SIZE] : null;
+        try {
+            while (true) {
+                Object event = beginEvent(FlightRecorderEvents.Kind.READ);
+                int readCount = (channel != null) ? ring.fill(channel) : ring.fill(transportInputStream, scratch);
+                if (readCount == -1) {
+                    break;
+                }
+                touch();
+                record(EventJournal.EventType.RECEIVED, readCount);
+                commitEvent(event, readCount, null);
+            }
+            ring.endOfStream();
+        } catch (IOException ioEx) {
+            if (!transport.isClosed()) {
+                record(EventJournal.EventType.ERROR, 0);
+                commitEvent(beginEvent(FlightRecorderEvents.Kind.READ), 0, ioEx.toString());
+                log.warn(String.format("%s stopped receiving from %s after an unexpected exception", name, transport.getRemoteAddress()), ioEx);
+            }
+            ring.fail(ioEx);
+        }
+    }
+
+    void autoDrain(InputStream transportInputStream, ReceiveQueue queue) {
+        byte[][] scratch = new byte[][] {new byte[AUTO_DRAIN_READ_SIZE]};
+        try {
+            while (true) {
+                Object event = beginEvent(FlightRecorderEvents.Kind.READ);
+                int readCount = queue.fill(transportInputStream, scratch);
+                if (readCount == -1) {
+                    break;
+                }
+                touch();
+                record(EventJournal.EventType.RECEIVED, readCount);
+                commitEvent(event, readCount, null);
+            }
+            queue.endOfStream();
+        } catch (IOException ioEx) {
+            if (!transport.isClosed()) {
+                record(EventJournal.EventType.ERROR, 0);
+                commitEvent(beginEvent(FlightRecorderEvents.Kind.READ), 0, ioEx.toString());
+                log.warn(String.format("%s stopped auto-draining %s after an unexpected exception", name, transport.getRemoteAddress()), ioEx);
+            }
+            queue.fail(ioEx);
+        }
+    }
+
+    void drain(InputStream transportInputStream, SpillBuffer buffer) {
+        byte[] readBuffer = new byte[DRAIN_READ_SIZE];
+        try {
+            while (true) {
+                Object event = beginEvent(FlightRecorderEvents.Kind.READ);
+                int readCount = transportInputStream.read(readBuffer);
+                if (readCount == -1) {
+                    break;
+                }
+                buffer.write(readBuffer, 0, readCount);
+                touch();
+                record(EventJournal.EventType.RECEIVED, readCount);
+                commitEvent(event, readCount, null);
+            }
+        } catch (IOException ioEx) {
+            if (!transport.isClosed()) {
+                record(EventJournal.EventType.ERROR, 0);
+                commitEvent(beginEvent(FlightRecorderEvents.Kind.READ), 0, ioEx.toString());
+                log.warn(String.format("%s stopped draining %s after an unexpected exception", name, transport.getRemoteAddress()), ioEx);
+            }
+        } finally {
+            buffer.endOfStream();
+        }
+    }
+
+    void echo(InputStream transportInputStream) {
+        byte[] readBuffer = new byte[DRAIN_READ_SIZE];
+        try {
+            OutputStream outputStream = getOutputStream();
+            while (true) {
+                Object readEvent = beginEvent(FlightRecorderEvents.Kind.READ);
+                int readCount = transportInputStream.read(readBuffer);
+                if (readCount == -1) {
+                    break;
+                }
+                touch();
+                record(EventJournal.EventType.RECEIVED, readCount);
+                commitEvent(readEvent, readCount, null);
+
+                Object writeEvent = beginEvent(FlightRecorderEvents.Kind.WRITE);
+                outputStream.write(readBuffer, 0, readCount);
+                outputStream.flush();
+                record(EventJournal.EventType.WRITE, readCount);
+                commitEvent(writeEvent, readCount, null);
+            }
+        } catch (IOException ioEx) {
+            if (!transport.isClosed()) {
+                record(EventJournal.EventType.ERROR, 0);
+                commitEvent(beginEvent(FlightRecorderEvents.Kind.READ), 0, ioEx.toString());
+                log.warn(String.format("%s stopped echoing %s after an unexpected exception", name, transport.getRemoteAddress()), ioEx);
+            }
+        }
+    }
+
+    /**
+     * Returns the data pushed back by readUntil() before reading from the connection.
+     */
+    class UnreadInputStream extends InputStream {
+        final InputStream inputStream;
+
+        UnreadInputStream(InputStream inputStream) {
+            this.inputStream = inputStream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            if (readUnread(single, 0, 1) == -1) {
+                return inputStream.read();
+            }
+
+            return single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+
+            int readCount = readUnread(data, offset, length);
+            return (readCount == -1) ? inputStream.read(data, offset, length) : readCount;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return getUnreadCount() + inputStream.available();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+/**
+ * The JMX view of a SimpleTcpServer or SimpleTcpClient, registered under the domain com.pronoia.util.tcp while the
+ * fixture is started (see setJmxEnabled).
+ *
+ * The attributes are read from lock-free counters and snapshots, so monitoring never stalls the fixture's I/O.  Data
+ * is counted as it is read or written through the fixture (or by the background drain or echo) - data read or written
+ * directly through the fixture's streams is not counted.
+ */
+public interface SimpleTcpFixtureMXBean {
+    /**
+     * @return the name of the fixture
+     */
+    String getName();
+
+    /**
+     * @return SimpleTcpServer or SimpleTcpClient
+     */
+    String getType();
+
+    boolean isStarted();
+
+    /**
+     * @return the address the server is listening on, or the local address of the client connection
+     */
+    String getLocalAddress();
+
+    /**
+     * @return the number of open connections
+     */
+    int getConnectionCount();
+
+    /**
+     * @return the number of connections accepted by the server, or opened by the client, since it was created
+     */
+    long getTotalConnectionCount();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    /**
+     * @return the number of reads that returned data
+     */
+    long getReadCount();
+
+    long getWriteCount();
+
+    double getBytesReadPerSecond();
+
+    double getBytesWrittenPerSecond();
+
+    double getReadsPerSecond();
+
+    double getWritesPerSecond();
+
+    /**
+     * @return the number of bytes queued for the connections that have not been written yet
+     */
+    long getQueuedWriteBytes();
+
+    /**
+     * @return the number of I/O and TLS handshake failures, and (for a client) failed connects
+     */
+    long getErrorCount();
+
+    /**
+     * @return the number of accept or connect timeouts
+     */
+    long getTimeoutCount();
+
+    /**
+     * Reset (SO_LINGER=0 followed by close for TCP) the open connections.
+     */
+    void resetConnections();
+
+    /**
+     * Close the open connections.
+     */
+    void closeConnections();
+}
@@ -28,9 +28,30 @@ import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.management.ObjectName;
+
+import javax.net.ssl.SSLSession;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,10 +68,56 @@ public class SimpleTcpServer {
     int acceptTimeout = 60000;
     int receiveTimeout = 15000;
     int readTimeout = 1000;
+    int idleTimeout;
+
+    boolean backgroundDrain;
+    int drainMemoryThreshold = 4 * 1024 * 1024;
+
+    int receiveRingCapacity;
+    int autoDrainLimit;
+
+    Conversation conversation;
+    final Queue<Conversation.Session> conversationSessions = new ConcurrentLinkedQueue<>();
+
+    boolean echo;
+
+    boolean continuousAccept;
+
+    boolean queueWrites;
+    int writeHighWatermark = 64 * 1024;
+    int writeLowWatermark = 32 * 1024;
+    int writeTimeout = 15000;
+    WritabilityListener writabilityListener;
+
+    TlsConfiguration tlsConfiguration;
+
+    Path unixSocketPath;
+    String loopbackName;
+
+    PortAllocator.Reservation portReservation;
 
     private ServerSocket serverSocket;
+    private ServerSocketChannel unixServerChannel;
+    private LoopbackListener loopbackListener;
+
+    final ConnectionPublisher connectionPublisher = new ConnectionPublisher();
+    final AtomicLong acceptedCount = new AtomicLong();
 
-    private List<Socket> connections = new CopyOnWriteArrayList<>();
+    boolean jmxEnabled = FixtureMonitor.isEnabledByDefault();
+    final TcpStatistics statistics = new TcpStatistics();
+    final FixtureMonitor monitor = new FixtureMonitor.ServerMonitor(this);
+
+    // A deque rather than a copy-on-write list, so a burst of accepts does not copy the list for every connection
+    private final Deque<SimpleTcpConnection> connections = new ConcurrentLinkedDeque<>();
+
+    // Guarded by acceptLock
+    private final Object acceptLock = new Object();
+    private final Queue<AcceptRequest> acceptRequests = new ArrayDeque<>();
+    private final Queue<SimpleTcpConnection> parkedConnections = new ArrayDeque<>();
+    private ConnectionAcceptorThread acceptorThread;
+
+    // Accepted transports whose TLS handshake is still running on an I/O worker
+    private final Set<Transport> handshakingTransports = ConcurrentHashMap.newKeySet();
 
     public SimpleTcpServer() {
         this(0);
@@ -75,10 +142,15 @@ public class SimpleTcpServer {
      * @return the current SimpleTcpServer
      */
     public SimpleTcpServer start() {
-        if (serverSocket == null) {
+        if (!isStarted() && loopbackName != null) {
+            startLoopback();
+        } else if (!isStarted() && unixSocketPath != null) {
+            startUnixDomainSocket();
+        } else if (!isStarted()) {
             log.trace("{} starting", this.name);
             try {
-                serverSocket = new ServerSocket();
+                // Opened as a channel so accepted connections have a SocketChannel that file transfers can use directly
+                serverSocket = ServerSocketChannel.open().socket();
             } catch (IOException createEx) {
                 throw new RuntimeException(String.format("%s failed to create unbound ServerSocket", name), createEx);
             }
@@ -97,40 +169,118 @@ public class SimpleTcpServer {
                     address = new InetSocketAddress(host, port);
                 }
                 serverSocket.bind(address, backlog);
-                log.info("{} [{}] started", this.name, serverSocket.getLocalSocketAddress().toString());
+                EventJournal.shared().record(name, 0, EventJournal.EventType.STARTED, 0);
+                log.info("{} [{}] started", this.name, localAddress());
             } catch (IOException bindEx) {
                 throw new RuntimeException(String.format("%s failed to bind ServerSocket to port %d with a backlog of %d", name, port, backlog), bindEx);
             }
         } else {
-            log.warn("{} [{}] ignoring attempt to start - server is already running", this.name, serverSocket.getLocalSocketAddress().toString());
+            log.warn("{} [{}] ignoring attempt to start - server is already running", this.name, localAddress());
+        }
+
+        if (continuousAccept) {
+            synchronized (acceptLock) {
+                startAcceptor();
+            }
         }
+        monitor.register(jmxEnabled);
 
         return this;
     }
 
+    void startLoopback() {
+        log.trace("{} starting", this.name);
+        try {
+            loopbackListener = LoopbackListener.bind(loopbackName, backlog);
+            EventJournal.shared().record(name, 0, EventJournal.EventType.STARTED, 0);
+            log.info("{} [{}] started", this.name, localAddress());
+        } catch (IOException bindEx) {
+            throw new RuntimeException(String.format("%s failed to bind in-memory loopback server %s", name, loopbackName), bindEx);
+        }
+    }
+
+    void startUnixDomainSocket() {
+        log.trace("{} starting", this.name);
+        try {
+            // Remove the socket file left behind by a previous run
+            Files.deleteIfExists(unixSocketPath);
+        } catch (IOException deleteEx) {
+            throw new RuntimeException(String.format("%s failed to delete stale Unix domain socket %s", name, unixSocketPath), deleteEx);
+        }
+
+        try {
+            unixServerChannel = UnixDomainSockets.openServerSocketChannel();
+            unixServerChannel.bind(UnixDomainSockets.address(unixSocketPath), backlog);
+            EventJournal.shared().record(name, 0, EventJournal.EventType.STARTED, 0);
+            log.info("{} [{}] started", this.name, localAddress());
+        } catch (IOException bindEx) {
+            closeUnixServerChannel();
+            throw new RuntimeException(String.format("%s failed to bind Unix domain socket %s with a backlog of %d", name, unixSocketPath, backlog), bindEx);
+        }
+    }
+
     /**
      * Stop the TCP Server
      */
     public void stop() {
-        if (serverSocket != null) {
-            String localSocketAddress = serverSocket.getLocalSocketAddress().toString();
+        if (isStarted()) {
+            String localSocketAddress = localAddress();
             log.trace("{} [{}] stopping", this.name, localSocketAddress);
 
-            if (connections.size() > 0) {
+            if (!connections.isEmpty()) {
                 this.closeConnections();
             }
 
-            try {
-                serverSocket.close();
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                    EventJournal.shared().record(name, 0, EventJournal.EventType.STOPPED, 0);
+                    log.info("{} [{}] stopped", this.name, localSocketAddress);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            } else {
+                if (loopbackListener != null) {
+                    loopbackListener.close();
+                } else {
+                    closeUnixServerChannel();
+                }
+                EventJournal.shared().record(name, 0, EventJournal.EventType.STOPPED, 0);
                 log.info("{} [{}] stopped", this.name, localSocketAddress);
-            } catch (IOException e) {
-                e.printStackTrace();
+            }
+
+            stopAcceptor();
+            monitor.unregister();
+            connectionPublisher.complete();
+            serverSocket = null;
+            unixServerChannel = null;
+            loopbackListener = null;
+
+            if (portReservation != null) {
+                portReservation.close();
+                portReservation = null;
             }
         } else {
             log.warn("{} Ignoring attempt to stop - server is not running", this.name);
         }
     }
 
+    void closeUnixServerChannel() {
+        try {
+            if (unixServerChannel != null) {
+                unixServerChannel.close();
+            }
+        } catch (IOException closeEx) {
+            log.warn(String.format("%s ignoring exception encountered closing Unix domain socket %s", name, unixSocketPath), closeEx);
+        } finally {
+            try {
+                Files.deleteIfExists(unixSocketPath);
+            } catch (IOException deleteEx) {
+                log.debug("{} ignoring exception encountered deleting Unix domain socket {}", name, unixSocketPath, deleteEx);
+            }
+        }
+    }
+
     public void acceptConnection() {
         this.acceptConnection(false);
     }
@@ -138,38 +288,94 @@ public class SimpleTcpServer {
     /**
      * Accept a TCP Connection from a client.
      *
-     * @param waitForConnection if true, the call will block until a connection is established
+     * The connection is accepted by a single acceptor thread per server, and the accept timeout is driven by the shared
+     * timer - if no client connects before it expires the request is abandoned, and the next client to connect is held
+     * (as if it were still in the backlog) until acceptConnection is called again.
+     *
+     * @param waitForConnection if true, the call will block until a connection is established or the accept timeout expires
      */
     public void acceptConnection(boolean waitForConnection) {
-        Thread bindThread = new ConnectionAcceptorThread();
+        if (!isStarted()) {
+            throw new IllegalStateException(String.format("%s cannot accept a client connection before server has been started", name));
+        }
+
+        AcceptRequest request = new AcceptRequest();
+
+        SimpleTcpConnection parkedConnection;
+        synchronized (acceptLock) {
+            parkedConnection = parkedConnections.poll();
+            if (parkedConnection != null) {
+                request.complete();
+                addConnection(parkedConnection);
+            } else {
+                if (acceptTimeout > 0) {
+                    request.deadline = HashedWheelTimer.shared().newTimeout(request::expire, acceptTimeout, TimeUnit.MILLISECONDS);
+                }
+                acceptRequests.add(request);
+
+                startAcceptor();
+                acceptLock.notifyAll();
+            }
+        }
+
+        if (parkedConnection != null) {
+            publishConnection(parkedConnection);
+            return;
+        }
 
         if (waitForConnection) {
-            bindThread.run();
-        } else {
-            bindThread.start();
+            request.await();
+        }
+    }
+
+    /**
+     * Start the acceptor thread if it is not already running - must be called while holding the acceptLock.
+     */
+    void startAcceptor() {
+        if (acceptorThread == null) {
+            acceptorThread = new ConnectionAcceptorThread(serverSocket, unixServerChannel, loopbackListener);
+            acceptorThread.start();
+        }
+    }
+
+    /**
+     * Return the server to a clean state without unbinding it - close all client connections, abandon any pending calls
+     * to acceptConnection and close any client connections held for the next acceptConnection.
+     *
+     * Used to reuse a running server between tests instead of stopping and re-binding it.
+     */
+    public void recycle() {
+        if (!isStarted()) {
+            throw new IllegalStateException(String.format("%s cannot recycle before server has been started", name));
+        }
+
+        abandonPendingAccepts();
+        if (!connections.isEmpty()) {
+            closeConnections();
         }
+        log.debug("{} [{}] recycled", name, localAddress());
     }
 
     /**
      * Close the TCP Connection with the client
      */
     public void closeConnections() {
-        String serverSocketAddress = serverSocket.getLocalSocketAddress().toString();
+        String serverSocketAddress = localAddress();
 
-        for (Socket clientSocket : connections) {
-            String clientSocketAddress = clientSocket.getRemoteSocketAddress().toString();
+        SimpleTcpConnection connection;
+        while ((connection = connections.pollFirst()) != null) {
+            String clientSocketAddress = String.valueOf(connection.getRemoteAddress());
             log.trace("{} [{}] closing client connection {}", this.name, serverSocketAddress, clientSocketAddress);
-            if (clientSocket.isConnected() && !clientSocket.isClosed()) {
+            if (connection.isOpen()) {
                 try {
-                    clientSocket.close();
+                    connection.close();
                     log.info("{} [{}] client connection {} closed", this.name, serverSocketAddress, clientSocketAddress);
                 } catch (IOException ex) {
-                    log.warn(String.format("{} [{}] ignoring exception encountered closing the client connection", this.name, serverSocketAddress, clientSocketAddress), ex);
+                    log.warn(String.format("%s [%s] ignoring exception encountered closing the client connection %s", this.name, serverSocketAddress, clientSocketAddress), ex);
                 }
             }
+            connection.releaseResources();
         }
-
-        connections.clear();
     }
 
     public int getSoLinger() throws Exception {
@@ -180,113 +386,207 @@ public class SimpleTcpServer {
      * Reset the TCP Connection with the client
      */
     public void resetConnections() {
-        String serverSocketAddress = serverSocket.getLocalSocketAddress().toString();
+        String serverSocketAddress = localAddress();
 
-        for (Socket clientSocket : connections) {
-            String clientSocketAddress = clientSocket.getRemoteSocketAddress().toString();
+        SimpleTcpConnection connection;
+        while ((connection = connections.pollFirst()) != null) {
+            String clientSocketAddress = String.valueOf(connection.getRemoteAddress());
 
             log.trace("{} [{}] resetting client connection {}",
                 name, serverSocketAddress, clientSocketAddress);
-            if (clientSocket.isConnected() && !clientSocket.isClosed()) {
-                final int soLingerReset = 0;
-                try {
-                    clientSocket.setSoLinger(true, soLingerReset);
-                } catch (SocketException socketEx) {
-                    log.warn(String.format("%s [%s] ignoring exception encountered setting SO_LINGER to %d on the socket %s to force a reset",
-                        name, serverSocketAddress, soLingerReset, clientSocketAddress), socketEx);
-                }
-
+            if (connection.isOpen()) {
                 try {
-                    clientSocket.close();
+                    connection.reset();
                     log.info("{} [{}] client connection {} reset", this.name, serverSocketAddress, clientSocketAddress);
                 } catch (IOException ex) {
-                    log.warn(String.format("{} [{}] ignoring exception encountered resetting the client connection",
+                    log.warn(String.format("%s [%s] ignoring exception encountered resetting the client connection %s",
                         name, serverSocketAddress, clientSocketAddress), ex);
                 }
             }
+            connection.releaseResources();
         }
-
-        connections.clear();
     }
 
     public boolean isStarted() {
-        return serverSocket != null;
+        return serverSocket != null || unixServerChannel != null || loopbackListener != null;
+    }
+
+    /**
+     * @return the address the server is listening on, for log messages
+     */
+    String localAddress() {
+        if (serverSocket != null) {
+            return String.valueOf(serverSocket.getLocalSocketAddress());
+        }
+        if (loopbackListener != null) {
+            return String.valueOf(loopbackListener.getAddress());
+        }
+
+        return String.valueOf(unixSocketPath);
+    }
+
+    /**
+     * @return false if writes to the client connection are queued and the queue is above the write high watermark (or
+     *     has failed)
+     */
+    public boolean isWritable() {
+        return getConnection().isWritable();
+    }
+
+    /**
+     * @return the number of bytes queued for the client connection that have not been written yet
+     */
+    public long getQueuedWriteBytes() {
+        WriteQueue queue = getConnection().writeQueue;
+        return (queue != null) ? queue.getQueuedBytes() : 0;
+    }
+
+    /**
+     * Publish the data received from the client connection, reading the connection only while the subscriber has
+     * outstanding demand - so a subscriber that stops requesting pushes back on the client through TCP flow control.
+     *
+     * Only one subscriber is allowed.  Background drain keeps reading the connection regardless of demand, so it
+     * should be disabled for end-to-end backpressure.
+     *
+     * @return the publisher of the data received from the client connection, in chunks of up to 8K
+     */
+    public TcpFlow.Publisher<byte[]> getInboundPublisher() {
+        return getConnection().getInboundPublisher();
+    }
+
+    /**
+     * @return a publisher of the inbound data publisher for each client connection accepted after subscribing -
+     *     completed when the server is stopped
+     */
+    public TcpFlow.Publisher<TcpFlow.Publisher<byte[]>> getConnectionPublisher() {
+        return connectionPublisher;
     }
 
     public boolean isClientConnected() {
-        for (Socket clientSocket : connections) {
-            if (clientSocket.isConnected() && !clientSocket.isClosed()) {
+        for (SimpleTcpConnection connection : connections) {
+            if (connection.isOpen()) {
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * @return the socket for the client connection, or null if the server is not listening on a TCP port
+     */
     public Socket getClientConnection() {
-        if (serverSocket == null) {
-            throw new IllegalStateException(String.format("%s cannot get client connection before server has been started", name));
-        }
+        return getConnection().getSocket();
+    }
 
-        return connections.get(0);
+    /**
+     * @return the TLS session for the client connection, or null if TLS is not enabled
+     */
+    public SSLSession getSslSession() {
+        return getConnection().getSslSession();
     }
 
     public List<Socket> getClientConnections() {
-        if (serverSocket == null) {
+        if (!isStarted()) {
             throw new IllegalStateException(String.format("%s cannot get list of client connections before server has been started", name));
         }
 
+        List<Socket> answer = new ArrayList<>();
+        for (SimpleTcpConnection connection : connections) {
+            answer.add(connection.getSocket());
+        }
+
+        return answer;
+    }
+
+    /**
+     * @return an unstarted client configured to connect to the server's TCP port, loopback name or Unix domain socket,
+     *     with the server's TLS configuration
+     */
+    SimpleTcpClient newClient(String clientName) {
+        SimpleTcpClient client = new SimpleTcpClient(clientName);
+        if (loopbackName != null) {
+            client.setLoopbackName(loopbackName);
+        } else if (unixSocketPath != null) {
+            client.setUnixSocketPath(unixSocketPath);
+        } else {
+            client.setHost("localhost");
+            client.setPort(getPort());
+        }
+        client.setTlsConfiguration(tlsConfiguration);
+
+        return client;
+    }
+
+    /**
+     * @return the client connections, in the order they were accepted
+     */
+    Deque<SimpleTcpConnection> getConnections() {
         return connections;
     }
 
-    public InputStream getInputStream() {
-        Socket clientSocket = this.getClientConnection();
+    /**
+     * Close a single client connection, leaving any others open.
+     */
+    void closeConnection(SimpleTcpConnection connection) {
+        String serverSocketAddress = localAddress();
+        String clientSocketAddress = String.valueOf(connection.getRemoteAddress());
 
-        if (clientSocket != null) {
+        if (connection.isOpen()) {
             try {
-                return clientSocket.getInputStream();
-            } catch (IOException ioEx) {
-                throw new RuntimeException(String.format("%s [%s] failed to get InputStream from client socket %s",
-                    name, serverSocket.getLocalSocketAddress().toString(), clientSocket.getRemoteSocketAddress().toString()), ioEx);
+                connection.close();
+                log.debug("{} [{}] client connection {} closed", this.name, serverSocketAddress, clientSocketAddress);
+            } catch (IOException closeEx) {
+                log.warn(String.format("%s [%s] ignoring exception encountered closing the client connection %s", this.name, serverSocketAddress, clientSocketAddress), closeEx);
             }
-        } else {
-            throw new IllegalStateException(String.format("%s [%s] cannot get input stream before client connection is established",
-                name, serverSocket.getLocalSocketAddress().toString()));
+        }
+        connection.releaseResources();
+        connections.remove(connection);
+    }
+
+    SimpleTcpConnection getConnection() {
+        if (!isStarted()) {
+            throw new IllegalStateException(String.format("%s cannot get client connection before server has been started", name));
+        }
+
+        SimpleTcpConnection connection = connections.peekFirst();
+        if (connection == null) {
+            throw new ArrayIndexOutOfBoundsException(String.format("%s has no client connection", name));
+        }
+
+        return connection;
+    }
+
+    public InputStream getInputStream() {
+        SimpleTcpConnection connection = this.getConnection();
+
+        try {
+            return connection.getInputStream();
+        } catch (IOException ioEx) {
+            throw new RuntimeException(String.format("%s [%s] failed to get InputStream from client connection %s",
+                name, localAddress(), connection.getRemoteAddress()), ioEx);
         }
     }
 
     public OutputStream getOutputStream() {
-        Socket clientSocket = this.getClientConnection();
+        SimpleTcpConnection connection = this.getConnection();
 
-        if (clientSocket != null) {
-            try {
-                return clientSocket.getOutputStream();
-            } catch (IOException ioEx) {
-                throw new RuntimeException(String.format("%s [%s] failed to get OutputStream from client socket %s",
-                    name, serverSocket.getLocalSocketAddress().toString(), clientSocket.getRemoteSocketAddress().toString()), ioEx);
-            }
-        } else {
-            throw new IllegalStateException(String.format("%s [%s] cannot get output stream before client connection is established",
-                name, serverSocket.getLocalSocketAddress().toString()));
+        try {
+            return connection.getOutputStream();
+        } catch (IOException ioEx) {
+            throw new RuntimeException(String.format("%s [%s] failed to get OutputStream from client connection %s",
+                name, localAddress(), connection.getRemoteAddress()), ioEx);
         }
     }
 
     public int available() {
         int answer = 0;
-        Socket connection = getClientConnection();
+        SimpleTcpConnection connection = getConnection();
 
         if (connection != null) {
-            InputStream inputStream = null;
             try {
-                inputStream = connection.getInputStream();
-            } catch (IOException getStreamEx) {
-                log.warn("Ignoring exception encountered when retrieving the input stream to determine data availability", getStreamEx);
-            }
-            if (inputStream != null) {
-                try {
-                    answer = inputStream.available();
-                } catch (IOException availableEx) {
-                    log.warn("Ignoring exception encountered when determining if data is available from the input stream", availableEx);
-                }
+                answer = connection.available();
+            } catch (IOException availableEx) {
+                log.warn("Ignoring exception encountered when determining if data is available from the input stream", availableEx);
             }
         }
 
@@ -295,21 +595,146 @@ public class SimpleTcpServer {
 
     // TODO:  Figure out how to do this with a Generic method
     public byte[] read() {
+        SimpleTcpConnection connection = getConnection();
+        if (connection.receiveQueue != null) {
+            return readComposite().toByteArray();
+        }
+        if (connection.receiveRing != null) {
+            try {
+                return connection.readReceiveRing();
+            } catch (IOException ioEx) {
+                throw new RuntimeException(String.format("%s [%s] failed to read from the receive ring for client connection %s",
+                    name, localAddress(), connection.getRemoteAddress()), ioEx);
+            }
+        }
+
         return doRead().toByteArray();
     }
 
+    /**
+     * Read until the delimiter arrives from the client - e.g. an MLLP trailer or "\r\n\r\n".
+     *
+     * The search is incremental - it uses a Boyer-Moore-Horspool skip table, and only rescans the last
+     * delimiter.length - 1 bytes already received as each chunk arrives.  Data received after the delimiter is left for
+     * the next read (an InputStream obtained before this call will not see it), and on failure nothing is consumed.
+     *
+     * @param delimiter the bytes to read until
+     * @param timeout   the deadline for the delimiter in milliseconds - zero waits forever
+     *
+     * @return the data up to and including the delimiter
+     */
+    public byte[] readUntil(byte[] delimiter, int timeout) {
+        return readUntil(IncrementalSearch.delimiter(delimiter), timeout);
+    }
+
+    /**
+     * Read until data matching the pattern arrives from the client.
+     *
+     * The pattern is matched against the bytes as ISO-8859-1 characters, so each byte is one character.  The search is
+     * incremental - when a chunk arrives, the data already received is only rescanned where a match could still begin,
+     * and never more than the last 16K of it.  Data received after the match is left for the next read (an InputStream
+     * obtained before this call will not see it), and on failure nothing is consumed.
+     *
+     * @param pattern the pattern to read until
+     * @param timeout the deadline for the match in milliseconds - zero waits forever
+     *
+     * @return the data up to and including the first match
+     */
+    public byte[] readUntil(Pattern pattern, int timeout) {
+        return readUntil(IncrementalSearch.pattern(pattern), timeout);
+    }
+
+    byte[] readUntil(IncrementalSearch search, int timeout) {
+        SimpleTcpConnection connection = getConnection();
+        try {
+            return connection.readUntil(search, timeout);
+        } catch (IOException ioEx) {
+            throw new RuntimeException(String.format("%s [%s] failed to read until %s from client connection %s",
+                name, localAddress(), search, connection.getRemoteAddress()), ioEx);
+        }
+    }
+
+    /**
+     * Run a scripted conversation with the client on the shared conversation loop.
+     *
+     * The conversation reads and writes the client connection until it finishes, so the connection should not be read
+     * or written any other way in the meantime.
+     *
+     * @return the running session
+     */
+    public Conversation.Session converse(Conversation conversation) {
+        return conversation.run(getConnection());
+    }
+
+    /**
+     * Read the data currently available from the client without concatenating it.
+     *
+     * The result is a read-only view over the chunks the data was read into, so inspecting or forwarding it costs no
+     * copies - use this rather than read() when the data is only examined or written somewhere else.
+     *
+     * @return the data that was available
+     */
+    public CompositeBuffer readComposite() {
+        SimpleTcpConnection connection = getConnection();
+        try {
+            return connection.readComposite();
+        } catch (IOException ioEx) {
+            throw new RuntimeException(String.format("%s [%s] failed to read from client connection %s",
+                name, localAddress(), connection.getRemoteAddress()), ioEx);
+        }
+    }
+
     public String readString() {
+        SimpleTcpConnection connection = getConnection();
+        if (connection.receiveRing != null || connection.receiveQueue != null) {
+            return new String(read());
+        }
+
         return doRead().toString();
     }
 
+    /**
+     * Read the data currently available from the client into a file - straight from the socket channel with FileChannel.transferFrom
+     * unless the connection uses TLS, loopback or background reads, so the data does not pass through the Java heap.
+     *
+     * The file is created if it does not exist, and truncated if it does.
+     *
+     * @param file     the file to write the received data to
+     * @param maxBytes the maximum number of bytes to read
+     *
+     * @return the number of bytes written to the file
+     */
+    public long readTo(Path file, long maxBytes) {
+        SimpleTcpConnection connection = getConnection();
+        connection.touch();
+
+        Object readEvent = connection.beginEvent(FlightRecorderEvents.Kind.READ);
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long readCount = ChannelTransfer.transferFrom(connection, fileChannel, maxBytes);
+            connection.record(EventJournal.EventType.READ, readCount);
+            connection.commitEvent(readEvent, readCount, null);
+            return readCount;
+        } catch (IOException ioEx) {
+            connection.commitEvent(readEvent, 0, ioEx.toString());
+            throw new RuntimeException(String.format("%s [%s] failed to read data into file %s", name, localAddress(), file), ioEx);
+        }
+    }
+
     public SimpleTcpServer write(byte[] data) {
         OutputStream outputStream = getOutputStream();
+        SimpleTcpConnection connection = getConnection();
+        connection.touch();
 
+        Object writeEvent = connection.beginEvent(FlightRecorderEvents.Kind.WRITE);
         try {
             outputStream.write(data);
-        } catch (IOException e) {
-            // TODO: Deal with this
-            e.printStackTrace();
+            connection.record(EventJournal.EventType.WRITE, data.length);
+            connection.commitEvent(writeEvent, data.length, null);
+        } catch (IOException ioEx) {
+            connection.record(EventJournal.EventType.ERROR, 0);
+            connection.commitEvent(writeEvent, 0, ioEx.toString());
+            throw new RuntimeException(String.format("%s [%s] failed to write %d bytes to client connection %s",
+                name, localAddress(), data.length, connection.getRemoteAddress()), ioEx);
         }
 
         return this;
@@ -321,14 +746,100 @@ public class SimpleTcpServer {
         return this;
     }
 
+    /**
+     * Write the entire contents of a file to the client - straight to the socket channel with FileChannel.transferTo
+     * unless the connection uses TLS, loopback or queued writes, so the data does not pass through the Java heap.
+     *
+     * @param file the file to send
+     *
+     * @return the current SimpleTcpServer
+     */
+    public SimpleTcpServer write(Path file) {
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return this.write(fileChannel, 0, fileChannel.size());
+        } catch (IOException ioEx) {
+            throw new RuntimeException(String.format("%s [%s] failed to open file %s", name, localAddress(), file), ioEx);
+        }
+    }
+
+    /**
+     * Write a region of a file to the client - straight to the socket channel with FileChannel.transferTo
+     * unless the connection uses TLS, loopback or queued writes, so the data does not pass through the Java heap.
+     *
+     * @param fileChannel the source of the data
+     * @param position    the position in the file to start from
+     * @param count       the number of bytes to send
+     *
+     * @return the current SimpleTcpServer
+     */
+    public SimpleTcpServer write(FileChannel fileChannel, long position, long count) {
+        SimpleTcpConnection connection = getConnection();
+        connection.touch();
+
+        Object writeEvent = connection.beginEvent(FlightRecorderEvents.Kind.WRITE);
+        try {
+            long writeCount = ChannelTransfer.transferTo(fileChannel, position, count, connection);
+            connection.record(EventJournal.EventType.WRITE, writeCount);
+            connection.commitEvent(writeEvent, writeCount, null);
+        } catch (IOException ioEx) {
+            connection.commitEvent(writeEvent, 0, ioEx.toString());
+            throw new RuntimeException(String.format("%s [%s] failed to write %d bytes from position %d of the file",
+                name, localAddress(), count, position), ioEx);
+        }
+
+        return this;
+    }
+
     public SimpleTcpServer flush() {
         OutputStream outputStream = getOutputStream();
 
         try {
             outputStream.flush();
-        } catch (IOException e) {
-            // TODO: Deal with this
-            e.printStackTrace();
+        } catch (IOException ioEx) {
+            SimpleTcpConnection connection = getConnection();
+            connection.record(EventJournal.EventType.ERROR, 0);
+            throw new RuntimeException(String.format("%s [%s] failed to flush client connection %s",
+                name, localAddress(), connection.getRemoteAddress()), ioEx);
+        }
+
+        return this;
+    }
+
+    /**
+     * Half-close the client connection by sending a FIN - the client sees the end of the stream, but can still send
+     * data to the server.
+     *
+     * @return the current SimpleTcpServer
+     */
+    public SimpleTcpServer shutdownOutput() {
+        SimpleTcpConnection connection = getConnection();
+
+        try {
+            connection.shutdownOutput();
+            log.info("{} [{}] client connection {} output shutdown", name, localAddress(), connection.getRemoteAddress());
+        } catch (IOException ioEx) {
+            throw new RuntimeException(String.format("%s [%s] failed to shutdown output for client connection %s",
+                name, localAddress(), connection.getRemoteAddress()), ioEx);
+        }
+
+        return this;
+    }
+
+    /**
+     * Half-close the client connection by shutting down the input - any further data sent by the client is discarded,
+     * but the server can still send data to the client.
+     *
+     * @return the current SimpleTcpServer
+     */
+    public SimpleTcpServer shutdownInput() {
+        SimpleTcpConnection connection = getConnection();
+
+        try {
+            connection.shutdownInput();
+            log.info("{} [{}] client connection {} input shutdown", name, localAddress(), connection.getRemoteAddress());
+        } catch (IOException ioEx) {
+            throw new RuntimeException(String.format("%s [%s] failed to shutdown input for client connection %s",
+                name, localAddress(), connection.getRemoteAddress()), ioEx);
         }
 
         return this;
@@ -336,7 +847,11 @@ public class SimpleTcpServer {
 
     protected ByteArrayOutputStream doRead() {
         InputStream inputStream = getInputStream();
+        SimpleTcpConnection connection = getConnection();
+        connection.touch();
 
+        Object readEvent = connection.beginEvent(FlightRecorderEvents.Kind.READ);
+        String failureCause = null;
         ByteArrayOutputStream data = new ByteArrayOutputStream(1024);
         try {
             while (inputStream.available() > 0) {
@@ -346,9 +861,13 @@ public class SimpleTcpServer {
                 data.write(buffer, 0, readCount);
             }
         } catch (IOException e) {
+            connection.record(EventJournal.EventType.ERROR, 0);
+            failureCause = e.toString();
             // TODO: Deal with this
             e.printStackTrace();
         }
+        connection.record(EventJournal.EventType.READ, data.size());
+        connection.commitEvent(readEvent, data.size(), failureCause);
         return data;
     }
 
@@ -367,8 +886,8 @@ public class SimpleTcpServer {
     }
 
     public void setHost(String host) {
-        if (serverSocket != null) {
-            throw new IllegalAccessError(String.format("%s [%s] cannot set host after server has been started", name, serverSocket.getLocalSocketAddress().toString()));
+        if (isStarted()) {
+            throw new IllegalAccessError(String.format("%s [%s] cannot set host after server has been started", name, localAddress()));
         }
         this.host = host;
     }
@@ -384,9 +903,9 @@ public class SimpleTcpServer {
     public void setPort(int port) {
         final int maxPortValue = 65535;
 
-        if (serverSocket != null) {
+        if (isStarted()) {
             throw new IllegalAccessError(String.format("%s [%s] cannot set port after server has been started",
-                name, serverSocket.getLocalSocketAddress().toString()));
+                name, localAddress()));
         }
 
         if (port > maxPortValue) {
@@ -396,21 +915,70 @@ public class SimpleTcpServer {
         this.port = port;
     }
 
-    public InetAddress getInetAddress() {
-        if (serverSocket == null) {
-            throw new IllegalStateException(String.format("%s cannot get InetAddress before server has been started", name));
-        }
-        return serverSocket.getInetAddress();
+    public PortAllocator.Reservation getPortReservation() {
+        return portReservation;
     }
 
-    public SocketAddress getSocketAddress() {
-        if (serverSocket == null) {
-            throw new IllegalStateException(String.format("%s cannot get SocketAddress before server has been started", name));
-        }
-        return serverSocket.getLocalSocketAddress();
+    /**
+     * Use a port reserved with a PortAllocator - e.g. one port from a batch reserved for a multi-server test.
+     *
+     * The reservation is released when the server is stopped.
+     *
+     * @param portReservation the port reservation
+     */
+    public void setPortReservation(PortAllocator.Reservation portReservation) {
+        this.setPort(portReservation.getPort());
+        this.portReservation = portReservation;
     }
 
-
+    /**
+     * Reserve a port from the default PortAllocator, so the port is known before the server is started and will not
+     * collide with servers in other threads or JVMs on the same host.
+     *
+     * The reservation is released when the server is stopped.
+     *
+     * @return the current SimpleTcpServer
+     */
+    public SimpleTcpServer reservePort() {
+        if (isStarted()) {
+            throw new IllegalAccessError(String.format("%s [%s] cannot reserve a port after server has been started",
+                name, localAddress()));
+        }
+
+        this.setPortReservation(PortAllocator.getDefault().reserve());
+
+        return this;
+    }
+
+    /**
+     * @return the address the server is listening on, or null if the server is not listening on a TCP port
+     */
+    public InetAddress getInetAddress() {
+        if (!isStarted()) {
+            throw new IllegalStateException(String.format("%s cannot get InetAddress before server has been started", name));
+        }
+        return (serverSocket != null) ? serverSocket.getInetAddress() : null;
+    }
+
+    public SocketAddress getSocketAddress() {
+        if (!isStarted()) {
+            throw new IllegalStateException(String.format("%s cannot get SocketAddress before server has been started", name));
+        }
+        if (serverSocket != null) {
+            return serverSocket.getLocalSocketAddress();
+        }
+        if (loopbackListener != null) {
+            return loopbackListener.getAddress();
+        }
+
+        try {
+            return unixServerChannel.getLocalAddress();
+        } catch (IOException addressEx) {
+            throw new RuntimeException(String.format("%s failed to get the address of Unix domain socket %s", name, unixSocketPath), addressEx);
+        }
+    }
+
+
     public int getBindTimeout() {
         return bindTimeout;
     }
@@ -459,14 +1027,322 @@ public class SimpleTcpServer {
         this.readTimeout = (int) TimeUnit.MILLISECONDS.convert(timeout, unit);
     }
 
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set the idle timeout for client connections.
+     *
+     * Client connections accepted after this call are closed and removed from the server once they have been idle
+     * (no data read or written) for longer than the idle timeout, or once they are dead (closed, or closed by the client
+     * and fully read when draining in the background).  A value of zero disables the idle timeout.
+     *
+     * @param idleTimeout the idle timeout in milliseconds
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void setIdleTimeout(int timeout, TimeUnit unit) {
+        this.idleTimeout = (int) TimeUnit.MILLISECONDS.convert(timeout, unit);
+    }
+
     public int getBacklog() {
         return backlog;
     }
 
+    /**
+     * Set the length of the queue of connections the OS has established but the server has not yet accepted.  Clients
+     * that connect while the queue is full are refused (or their SYNs are dropped), so a server that must absorb a
+     * burst of connections needs a large backlog - the OS may cap it (e.g. net.core.somaxconn on Linux).
+     *
+     * @param backlog the maximum number of pending connections
+     */
     public void setBacklog(int backlog) {
         this.backlog = backlog;
     }
 
+    public boolean isContinuousAccept() {
+        return continuousAccept;
+    }
+
+    /**
+     * Enable/disable continuous accepting of client connections.
+     *
+     * When enabled, the acceptor thread is started with the server and accepts every client connection as soon as it
+     * arrives, without waiting for calls to acceptConnection - so bursts of connections are taken out of the backlog as
+     * fast as a single thread can accept them.
+     *
+     * @param continuousAccept if true, accept every client connection without waiting for acceptConnection
+     */
+    public void setContinuousAccept(boolean continuousAccept) {
+        if (isStarted()) {
+            throw new IllegalAccessError(String.format("%s [%s] cannot change continuous accept after server has been started", name, localAddress()));
+        }
+        this.continuousAccept = continuousAccept;
+    }
+
+    /**
+     * @return the number of client connections accepted since the server was created
+     */
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * Enable/disable registering the server with the platform MBean server while it is running (see
+     * SimpleTcpFixtureMXBean).  Defaults to true unless the system property tcp-test-util.jmx.enabled is false.
+     *
+     * @param jmxEnabled if true, register the server when it is started
+     */
+    public void setJmxEnabled(boolean jmxEnabled) {
+        if (isStarted()) {
+            throw new IllegalAccessError(String.format("%s [%s] cannot change JMX registration after server has been started", name, localAddress()));
+        }
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    /**
+     * @return the name the server is registered under with the platform MBean server, or null if it is not registered
+     */
+    public ObjectName getObjectName() {
+        return monitor.getObjectName();
+    }
+
+    public boolean isBackgroundDrain() {
+        return backgroundDrain;
+    }
+
+    /**
+     * Enable/disable background draining of accepted client connections.
+     *
+     * When enabled, each client connection accepted after this call is read continuously by a background thread, so
+     * the client never stalls on a full receive buffer.  Received data is held in memory up to the drain memory
+     * threshold and spilled to a memory-mapped temporary file beyond that; it is read back through the normal read
+     * methods and the InputStream returned by getInputStream().
+     *
+     * @param backgroundDrain if true, drain accepted client connections in the background
+     */
+    public void setBackgroundDrain(boolean backgroundDrain) {
+        this.backgroundDrain = backgroundDrain;
+    }
+
+    public int getDrainMemoryThreshold() {
+        return drainMemoryThreshold;
+    }
+
+    public void setDrainMemoryThreshold(int drainMemoryThreshold) {
+        if (drainMemoryThreshold <= 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal drain memory threshold [%d].  Threshold must be greater than zero", name, drainMemoryThreshold));
+        }
+
+        this.drainMemoryThreshold = drainMemoryThreshold;
+    }
+
+    public int getAutoDrainLimit() {
+        return autoDrainLimit;
+    }
+
+    /**
+     * Enable/disable auto-drain of accepted client connections.
+     *
+     * When enabled, each client connection accepted after this call is read continuously by a shared I/O worker into a
+     * bounded queue, and the read methods and the InputStream returned by getInputStream() are served from the queue -
+     * so a client writing more than the kernel buffers hold does not stall while the test is busy writing to it, and
+     * the socket buffers stay empty.  When the queue holds the limit, the worker stops reading and the client is pushed
+     * back by TCP flow control until the test reads.  Echo and background drain take precedence over auto-drain.
+     *
+     * @param limit the maximum number of bytes to queue for each connection, or zero to disable auto-drain
+     */
+    public void setAutoDrainLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal auto-drain limit [%d].  Limit must not be negative", name, limit));
+        }
+
+        this.autoDrainLimit = limit;
+    }
+
+    public int getReceiveRingCapacity() {
+        return receiveRingCapacity;
+    }
+
+    /**
+     * Enable/disable the off-heap receive ring for accepted client connections.
+     *
+     * When enabled, each client connection accepted after this call is read continuously by a background thread into
+     * a ring buffer allocated outside the Java heap, and read(), readString(), available() and the InputStream returned
+     * by getInputStream() are served from the ring - so the heap stays flat no matter how much data the client sends.
+     * The ring never grows: when it is full the background thread stops reading, and the client is pushed back by TCP
+     * flow control until the test reads.  Echo and background drain take precedence over the receive ring.
+     *
+     * @param capacity the capacity of the ring in bytes (rounded up to a power of two), or zero to disable the ring
+     */
+    public void setReceiveRingCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal receive ring capacity [%d].  Capacity must not be negative", name, capacity));
+        }
+
+        this.receiveRingCapacity = capacity;
+    }
+
+    public Conversation getConversation() {
+        return conversation;
+    }
+
+    /**
+     * Set the conversation to run on each client connection accepted after this call - e.g. to script thousands of
+     * clients at once.  Echo takes precedence over the conversation.
+     *
+     * @param conversation the conversation, or null to leave accepted client connections to the test
+     */
+    public void setConversation(Conversation conversation) {
+        this.conversation = conversation;
+    }
+
+    /**
+     * @return the conversation sessions started on accepted client connections, in the order they were started
+     */
+    public List<Conversation.Session> getConversationSessions() {
+        return new ArrayList<>(conversationSessions);
+    }
+
+    public boolean isEcho() {
+        return echo;
+    }
+
+    /**
+     * Enable/disable echoing of accepted client connections.
+     *
+     * When enabled, everything received on each client connection accepted after this call is written straight back to
+     * the client by a background thread (e.g. for a LatencyProbe).  An echoing connection is not drained, and should not
+     * be read or written through the server.
+     *
+     * @param echo if true, echo accepted client connections
+     */
+    public void setEcho(boolean echo) {
+        this.echo = echo;
+    }
+
+    public boolean isQueueWrites() {
+        return queueWrites;
+    }
+
+    /**
+     * Enable/disable queued writes for accepted client connections.
+     *
+     * When enabled, data written to the client is queued and written by a background thread, so a client that stops
+     * reading cannot block the writing thread indefinitely.  Writes do not block until the queued data rises above the
+     * write high watermark; they then wait (for no longer than the write timeout) for the queue to drain to the low
+     * watermark.  flush() waits until the queued data has been written.  If the client accepts no data for the write
+     * timeout the connection is closed, and later writes fail.
+     *
+     * @param queueWrites if true, queue writes for accepted client connections
+     */
+    public void setQueueWrites(boolean queueWrites) {
+        this.queueWrites = queueWrites;
+    }
+
+    public int getWriteHighWatermark() {
+        return writeHighWatermark;
+    }
+
+    public int getWriteLowWatermark() {
+        return writeLowWatermark;
+    }
+
+    /**
+     * Set the write queue watermarks.
+     *
+     * @param lowWatermark  the number of queued bytes at which the connection becomes writable again
+     * @param highWatermark the number of queued bytes above which the connection is unwritable
+     */
+    public void setWriteWatermarks(int lowWatermark, int highWatermark) {
+        if (lowWatermark < 0 || highWatermark <= 0 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException(String.format("%s - illegal write watermarks [low=%d, high=%d].  The high watermark must be greater than zero, and the low watermark between zero and the high watermark",
+                name, lowWatermark, highWatermark));
+        }
+
+        this.writeLowWatermark = lowWatermark;
+        this.writeHighWatermark = highWatermark;
+    }
+
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    public void setWriteTimeout(int writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    public void setWriteTimeout(int timeout, TimeUnit unit) {
+        this.writeTimeout = (int) TimeUnit.MILLISECONDS.convert(timeout, unit);
+    }
+
+    public WritabilityListener getWritabilityListener() {
+        return writabilityListener;
+    }
+
+    /**
+     * @param writabilityListener notified when a connection's write queue crosses the watermarks, or null
+     */
+    public void setWritabilityListener(WritabilityListener writabilityListener) {
+        this.writabilityListener = writabilityListener;
+    }
+
+    public TlsConfiguration getTlsConfiguration() {
+        return tlsConfiguration;
+    }
+
+    /**
+     * Enable TLS for client connections - the handshake is completed on an I/O worker after the connection is accepted,
+     * so a client that stalls the handshake does not hold up other clients.
+     *
+     * @param tlsConfiguration the TLS settings, or null to disable TLS
+     */
+    public void setTlsConfiguration(TlsConfiguration tlsConfiguration) {
+        this.tlsConfiguration = tlsConfiguration;
+    }
+
+    public Path getUnixSocketPath() {
+        return unixSocketPath;
+    }
+
+    /**
+     * Listen on a Unix domain socket instead of a TCP port - requires Java 16 or later.  Any existing file at the path
+     * is deleted when the server is started, and the socket file is deleted when the server is stopped.
+     *
+     * @param unixSocketPath the path of the socket file, or null to listen on a TCP port
+     */
+    public void setUnixSocketPath(Path unixSocketPath) {
+        if (isStarted()) {
+            throw new IllegalAccessError(String.format("%s [%s] cannot set Unix domain socket path after server has been started", name, localAddress()));
+        }
+        this.unixSocketPath = unixSocketPath;
+    }
+
+    public String getLoopbackName() {
+        return loopbackName;
+    }
+
+    /**
+     * Listen for in-memory connections from SimpleTcpClients in the same JVM instead of on a TCP port.  Data is passed
+     * through lock-free ring buffers, so no sockets or file descriptors are used.
+     *
+     * @param loopbackName the name clients connect to (see SimpleTcpClient.setLoopbackName), or null to listen on a TCP
+     *                     port
+     */
+    public void setLoopbackName(String loopbackName) {
+        if (isStarted()) {
+            throw new IllegalAccessError(String.format("%s [%s] cannot set loopback name after server has been started", name, localAddress()));
+        }
+        this.loopbackName = loopbackName;
+    }
+
     // Builder-style setters
     public SimpleTcpServer name(String name) {
         this.setName(name);
@@ -480,6 +1356,12 @@ public class SimpleTcpServer {
         return this;
     }
 
+    public SimpleTcpServer portReservation(PortAllocator.Reservation portReservation) {
+        this.setPortReservation(portReservation);
+
+        return this;
+    }
+
     public SimpleTcpServer bindTimeout(int timeout) {
         this.setBindTimeout(timeout);
 
@@ -528,30 +1410,464 @@ public class SimpleTcpServer {
         return this;
     }
 
+    public SimpleTcpServer idleTimeout(int timeout) {
+        this.setIdleTimeout(timeout);
+
+        return this;
+    }
+
+    public SimpleTcpServer idleTimeout(int timeout, TimeUnit unit) {
+        this.setIdleTimeout(timeout, unit);
+
+        return this;
+    }
+
     public SimpleTcpServer backlog(int backlog) {
         this.setBacklog(backlog);
 
         return this;
     }
 
+    public SimpleTcpServer continuousAccept(boolean continuousAccept) {
+        this.setContinuousAccept(continuousAccept);
+
+        return this;
+    }
+
+    public SimpleTcpServer jmxEnabled(boolean jmxEnabled) {
+        this.setJmxEnabled(jmxEnabled);
+
+        return this;
+    }
+
+    public SimpleTcpServer conversation(Conversation conversation) {
+        this.setConversation(conversation);
+
+        return this;
+    }
+
+    public SimpleTcpServer echo(boolean echo) {
+        this.setEcho(echo);
+
+        return this;
+    }
+
+    public SimpleTcpServer backgroundDrain(boolean backgroundDrain) {
+        this.setBackgroundDrain(backgroundDrain);
+
+        return this;
+    }
+
+    public SimpleTcpServer autoDrain(int limit) {
+        this.setAutoDrainLimit(limit);
+
+        return this;
+    }
+
+    public SimpleTcpServer receiveRing(int capacity) {
+        this.setReceiveRingCapacity(capacity);
+
+        return this;
+    }
+
+    public SimpleTcpServer drainMemoryThreshold(int drainMemoryThreshold) {
+        this.setDrainMemoryThreshold(drainMemoryThreshold);
+
+        return this;
+    }
+
+    public SimpleTcpServer queueWrites(boolean queueWrites) {
+        this.setQueueWrites(queueWrites);
+
+        return this;
+    }
+
+    public SimpleTcpServer writeWatermarks(int lowWatermark, int highWatermark) {
+        this.setWriteWatermarks(lowWatermark, highWatermark);
+
+        return this;
+    }
+
+    public SimpleTcpServer writeTimeout(int timeout) {
+        this.setWriteTimeout(timeout);
+
+        return this;
+    }
+
+    public SimpleTcpServer writeTimeout(int timeout, TimeUnit unit) {
+        this.setWriteTimeout(timeout, unit);
+
+        return this;
+    }
+
+    public SimpleTcpServer writabilityListener(WritabilityListener writabilityListener) {
+        this.setWritabilityListener(writabilityListener);
+
+        return this;
+    }
+
+    public SimpleTcpServer tls(TlsConfiguration tlsConfiguration) {
+        this.setTlsConfiguration(tlsConfiguration);
+
+        return this;
+    }
+
+    public SimpleTcpServer unixSocketPath(Path unixSocketPath) {
+        this.setUnixSocketPath(unixSocketPath);
+
+        return this;
+    }
+
+    public SimpleTcpServer loopbackName(String loopbackName) {
+        this.setLoopbackName(loopbackName);
+
+        return this;
+    }
+
+    /**
+     * Create the connection for an accepted client socket, completing the TLS handshake if TLS is configured.
+     *
+     * @return the connection, or null if the TLS handshake failed
+     */
+    SimpleTcpConnection openConnection(Transport clientTransport) {
+        SimpleTcpConnection connection = new SimpleTcpConnection(name, clientTransport, receiveTimeout);
+        connection.statistics = statistics;
+
+        if (tlsConfiguration != null) {
+            try {
+                connection.startTls(tlsConfiguration.createServerEngine(), receiveTimeout);
+            } catch (IOException handshakeEx) {
+                connection.record(EventJournal.EventType.ERROR, 0);
+                log.warn(String.format("%s closing client connection %s after TLS handshake failure", name, clientTransport.getRemoteAddress()), handshakeEx);
+                try {
+                    connection.reset("TLS handshake failed: " + handshakeEx);
+                } catch (IOException closeEx) {
+                    log.debug("{} ignoring exception encountered closing client connection after TLS handshake failure", name, closeEx);
+                }
+                return null;
+            }
+        }
+
+        return connection;
+    }
+
+    /**
+     * Start the background loops for an accepted connection and add it to the server's connections - called while
+     * holding the acceptLock, so nothing here may call out to code outside the server.  publishConnection must be
+     * called once the acceptLock has been released.
+     */
+    void addConnection(final SimpleTcpConnection connection) {
+        String serverSocketAddress = localAddress();
+
+        if (echo) {
+            try {
+                connection.startEcho();
+            } catch (IOException echoEx) {
+                log.warn(String.format("%s [%s] ignoring exception encountered starting echo for client connection %s",
+                    name, serverSocketAddress, connection.getRemoteAddress()), echoEx);
+            }
+        } else if (backgroundDrain) {
+            try {
+                connection.startDrain(drainMemoryThreshold);
+            } catch (IOException drainEx) {
+                log.warn(String.format("%s [%s] ignoring exception encountered starting background drain for client connection %s",
+                    name, serverSocketAddress, connection.getRemoteAddress()), drainEx);
+            }
+        } else if (autoDrainLimit > 0) {
+            try {
+                connection.startAutoDrain(autoDrainLimit);
+            } catch (IOException autoDrainEx) {
+                log.warn(String.format("%s [%s] ignoring exception encountered starting auto-drain for client connection %s",
+                    name, serverSocketAddress, connection.getRemoteAddress()), autoDrainEx);
+            }
+        } else if (receiveRingCapacity > 0) {
+            try {
+                connection.startReceiveRing(receiveRingCapacity);
+            } catch (IOException receiveEx) {
+                log.warn(String.format("%s [%s] ignoring exception encountered starting the receive ring for client connection %s",
+                    name, serverSocketAddress, connection.getRemoteAddress()), receiveEx);
+            }
+        }
+        if (queueWrites) {
+            try {
+                connection.startWriteQueue(writeHighWatermark, writeLowWatermark, writeTimeout, writabilityListener);
+            } catch (IOException queueEx) {
+                log.warn(String.format("%s [%s] ignoring exception encountered starting the write queue for client connection %s",
+                    name, serverSocketAddress, connection.getRemoteAddress()), queueEx);
+            }
+        }
+        if (idleTimeout > 0) {
+            connection.startIdleMonitor(idleTimeout, () -> reapConnection(connection));
+        }
+        connections.add(connection);
+        acceptedCount.incrementAndGet();
+        connection.record(EventJournal.EventType.ACCEPTED, 0);
+        log.debug("{} [{}] accepted client connection {}", name, serverSocketAddress, connection.getRemoteAddress());
+    }
+
+    /**
+     * Hand a connection added by addConnection to the connection subscribers and start the conversation - called
+     * after the acceptLock has been released, because subscribers are called synchronously.
+     */
+    void publishConnection(final SimpleTcpConnection connection) {
+        connectionPublisher.publish(connection.getInboundPublisher());
+        Conversation script = conversation;
+        if (script != null && !echo) {
+            conversationSessions.add(script.run(connection));
+        }
+    }
+
+    void reapConnection(SimpleTcpConnection connection) {
+        String serverSocketAddress = localAddress();
+        String clientSocketAddress = String.valueOf(connection.getRemoteAddress());
+
+        log.info("{} [{}] reaping idle or dead client connection {}", name, serverSocketAddress, clientSocketAddress);
+        try {
+            connection.reap();
+        } catch (IOException closeEx) {
+            log.warn(String.format("%s [%s] ignoring exception encountered closing idle client connection %s", name, serverSocketAddress, clientSocketAddress), closeEx);
+        }
+        connections.remove(connection);
+    }
+
+    void stopAcceptor() {
+        synchronized (acceptLock) {
+            abandonPendingAccepts();
+            acceptorThread = null;
+            acceptLock.notifyAll();
+        }
+
+        for (Transport handshakingTransport : handshakingTransports) {
+            try {
+                handshakingTransport.reset();
+            } catch (IOException resetEx) {
+                log.debug("{} ignoring exception encountered aborting TLS handshake while stopping", name, resetEx);
+            }
+        }
+    }
+
+    void abandonPendingAccepts() {
+        synchronized (acceptLock) {
+            AcceptRequest request;
+            while ((request = acceptRequests.poll()) != null) {
+                request.cancel();
+            }
+
+            SimpleTcpConnection parkedConnection;
+            while ((parkedConnection = parkedConnections.poll()) != null) {
+                try {
+                    parkedConnection.close();
+                } catch (IOException closeEx) {
+                    log.debug("{} ignoring exception encountered closing unclaimed client connection", name, closeEx);
+                }
+            }
+        }
+    }
+
+    /**
+     * A pending call to acceptConnection - completed by the acceptor thread, or expired by the shared timer.
+     */
+    class AcceptRequest {
+        static final int STATE_PENDING = 0;
+        static final int STATE_ACCEPTED = 1;
+        static final int STATE_EXPIRED = 2;
+
+        final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+        HashedWheelTimer.Timeout deadline;
+
+        boolean isPending() {
+            return state.get() == STATE_PENDING;
+        }
+
+        boolean complete() {
+            if (state.compareAndSet(STATE_PENDING, STATE_ACCEPTED)) {
+                if (deadline != null) {
+                    deadline.cancel();
+                }
+                synchronized (this) {
+                    notifyAll();
+                }
+                return true;
+            }
+            return false;
+        }
+
+        void expire() {
+            if (state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+                EventJournal.shared().record(name, 0, EventJournal.EventType.ACCEPT_TIMEOUT, 0);
+                statistics.record(EventJournal.EventType.ACCEPT_TIMEOUT, 0, false);
+                FlightRecorderEvents.instant(FlightRecorderEvents.Kind.ACCEPT, name, 0, null, "timeout");
+                log.warn("{} no client connection accepted within {}-ms", name, acceptTimeout);
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        void cancel() {
+            if (state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+                if (deadline != null) {
+                    deadline.cancel();
+                }
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized void await() {
+            while (isPending()) {
+                try {
+                    wait();
+                } catch (InterruptedException interruptedEx) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
     class ConnectionAcceptorThread extends Thread {
+        final ServerSocket serverSocket;
+        final ServerSocketChannel serverChannel;
+        final LoopbackListener loopbackListener;
+
+        /**
+         * Exactly one of the listeners is not null.
+         *
+         * @param serverSocket     the TCP server socket
+         * @param serverChannel    the Unix domain server channel
+         * @param loopbackListener the in-memory listener
+         */
+        ConnectionAcceptorThread(ServerSocket serverSocket, ServerSocketChannel serverChannel, LoopbackListener loopbackListener) {
+            super(String.format("%s acceptor", name));
+            setDaemon(true);
+            this.serverSocket = serverSocket;
+            this.serverChannel = serverChannel;
+            this.loopbackListener = loopbackListener;
+        }
+
+        boolean isListenerClosed() {
+            if (serverSocket != null) {
+                return serverSocket.isClosed();
+            }
+            if (loopbackListener != null) {
+                return loopbackListener.isClosed();
+            }
+
+            return !serverChannel.isOpen();
+        }
+
+        Transport accept() throws IOException {
+            if (serverSocket != null) {
+                SocketChannel clientChannel = serverSocket.getChannel().accept();
+                return new ChannelTransport(clientChannel, clientChannel.socket());
+            }
+            if (loopbackListener != null) {
+                return loopbackListener.accept();
+            }
+
+            return new ChannelTransport(serverChannel.accept());
+        }
+
         @Override
         public void run() {
-            String serverSocketAddress = serverSocket.getLocalSocketAddress().toString();
-            try {
-                serverSocket.setSoTimeout(acceptTimeout);
-            } catch (SocketException socketEx) {
-                throw new RuntimeException(String.format("%s failed to set accept timeout to %d on unbound ServerSocket", name, acceptTimeout), socketEx);
+            String serverSocketAddress = localAddress();
+            if (serverSocket != null) {
+                try {
+                    // Accept timeouts are handled by the shared timer, so the accept itself waits indefinitely
+                    serverSocket.setSoTimeout(0);
+                } catch (SocketException socketEx) {
+                    log.warn(String.format("%s [%s] failed to clear the accept timeout on the ServerSocket", name, serverSocketAddress), socketEx);
+                }
             }
 
-            log.trace("{} [{}] ready to accept client connection", name, serverSocketAddress);
-            try {
-                Socket clientSocket = serverSocket.accept();
-                connections.add(clientSocket);
-                log.info("{} [{}] accepted client connection {}", name, serverSocketAddress, clientSocket.getRemoteSocketAddress());
-            } catch (IOException ioEx) {
-                log.warn(String.format("%s [%s] ignoring exception encountered attempting to accept a client connection", name, serverSocketAddress), ioEx);
+            while (!isListenerClosed()) {
+                synchronized (acceptLock) {
+                    while (acceptorThread == this && !continuousAccept && !hasPendingAcceptRequest()) {
+                        try {
+                            acceptLock.wait();
+                        } catch (InterruptedException interruptedEx) {
+                            return;
+                        }
+                    }
+                    if (acceptorThread != this) {
+                        return;
+                    }
+                }
+
+                log.trace("{} [{}] ready to accept client connection", name, serverSocketAddress);
+                // The accept event includes the wait for the client, so it shows when the server was ready to accept
+                Object acceptEvent = FlightRecorderEvents.begin(FlightRecorderEvents.Kind.ACCEPT);
+                Transport clientTransport;
+                try {
+                    clientTransport = accept();
+                } catch (IOException ioEx) {
+                    if (!isListenerClosed()) {
+                        FlightRecorderEvents.commit(acceptEvent, name, 0, null, 0, ioEx.toString());
+                        log.warn(String.format("%s [%s] ignoring exception encountered attempting to accept a client connection", name, serverSocketAddress), ioEx);
+                    }
+                    continue;
+                }
+
+                if (tlsConfiguration != null) {
+                    // The handshake waits on the client, so it runs on a worker and the acceptor moves on to the next client
+                    handshakingTransports.add(clientTransport);
+                    IoWorkers.shared().execute(String.format("%s TLS handshake %s", name, clientTransport.getRemoteAddress()), () -> {
+                        try {
+                            completeAccept(clientTransport, acceptEvent);
+                        } finally {
+                            handshakingTransports.remove(clientTransport);
+                        }
+                    });
+                } else {
+                    completeAccept(clientTransport, acceptEvent);
+                }
+            }
+        }
+
+        /**
+         * Open the connection for an accepted transport and hand it to a pending accept request, or park it.
+         */
+        void completeAccept(Transport clientTransport, Object acceptEvent) {
+            SimpleTcpConnection connection = openConnection(clientTransport);
+            if (connection == null) {
+                FlightRecorderEvents.commit(acceptEvent, name, 0, clientTransport.getRemoteAddress(), 0, "TLS handshake failed");
+                return;
+            }
+            connection.commitEvent(acceptEvent, 0, null);
+
+            boolean added = false;
+            synchronized (acceptLock) {
+                AcceptRequest request;
+                while ((request = acceptRequests.poll()) != null && !request.complete()) {
+                    // Skip requests that expired while waiting
+                }
+                if ((request != null || continuousAccept) && acceptorThread == this) {
+                    addConnection(connection);
+                    added = true;
+                } else if (acceptorThread == this) {
+                    log.debug("{} [{}] holding client connection {} until the next call to acceptConnection", name, localAddress(), clientTransport.getRemoteAddress());
+                    parkedConnections.add(connection);
+                } else {
+                    try {
+                        connection.close();
+                    } catch (IOException closeEx) {
+                        log.debug("{} ignoring exception encountered closing client connection accepted while stopping", name, closeEx);
+                    }
+                }
+            }
+            if (added) {
+                publishConnection(connection);
+            }
+        }
+
+        boolean hasPendingAcceptRequest() {
+            AcceptRequest request;
+            while ((request = acceptRequests.peek()) != null && !request.isPending()) {
+                acceptRequests.poll();
             }
+            return request != null;
         }
     }
 }
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import org.junit.jupiter.api.extension.AfterAllCallback;
+import org.junit.jupiter.api.extension.AfterEachCallback;
+import org.junit.jupiter.api.extension.BeforeAllCallback;
+import org.junit.jupiter.api.extension.BeforeEachCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+
+/**
+ * A JUnit 5 extension that manages a set of named SimpleTcpServers.
+ *
+ * When registered on a static field the servers are started once per test class and recycled between test methods:
+ * <pre>
+ *     &#64;RegisterExtension
+ *     static SimpleTcpServerExtension servers = new SimpleTcpServerExtension().server("mllp").server("http");
+ * </pre>
+ * When registered on an instance field the servers are started and stopped around each test, unless they are shared -
+ * see {@link SimpleTcpServerFixtures}.
+ */
+public class SimpleTcpServerExtension implements BeforeAllCallback, AfterAllCallback, BeforeEachCallback, AfterEachCallback {
+    final SimpleTcpServerFixtures fixtures = new SimpleTcpServerFixtures();
+
+    boolean startedForClass;
+    boolean startedForTest;
+
+    public SimpleTcpServerExtension server(String name) {
+        fixtures.server(name);
+
+        return this;
+    }
+
+    public SimpleTcpServerExtension server(SimpleTcpServer server) {
+        fixtures.server(server);
+
+        return this;
+    }
+
+    public SimpleTcpServerExtension shared(boolean shared) {
+        fixtures.shared(shared);
+
+        return this;
+    }
+
+    public SimpleTcpServer get(String name) {
+        return fixtures.get(name);
+    }
+
+    public SimpleTcpServerFixtures getFixtures() {
+        return fixtures;
+    }
+
+    @Override
+    public void beforeAll(ExtensionContext context) {
+        fixtures.start();
+        startedForClass = true;
+    }
+
+    @Override
+    public void afterAll(ExtensionContext context) {
+        if (startedForClass) {
+            startedForClass = false;
+            fixtures.stop();
+        }
+    }
+
+    @Override
+    public void beforeEach(ExtensionContext context) {
+        if (!fixtures.isStarted()) {
+            fixtures.start();
+            startedForTest = true;
+        }
+    }
+
+    @Override
+    public void afterEach(ExtensionContext context) {
+        if (startedForTest) {
+            startedForTest = false;
+            fixtures.stop();
+        } else {
+            fixtures.recycle();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A named set of SimpleTcpServers that are started in parallel and recycled between tests instead of being re-bound.
+ *
+ * This holds the lifecycle logic shared by SimpleTcpServerRule (JUnit 4) and SimpleTcpServerExtension (JUnit 5).
+ *
+ * Shared fixtures are registered JVM-wide by server name - the first test class to start a shared server owns its
+ * configuration, later classes reuse the running instance, and shared servers are stopped when the JVM exits.
+ */
+public class SimpleTcpServerFixtures {
+    static final ConcurrentMap<String, SimpleTcpServer> SHARED_SERVERS = new ConcurrentHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("tcp-test-util-shared-server-shutdown") {
+            @Override
+            public void run() {
+                for (SimpleTcpServer server : SHARED_SERVERS.values()) {
+                    if (server.isStarted()) {
+                        server.stop();
+                    }
+                }
+            }
+        });
+    }
+
+    final Map<String, SimpleTcpServer> servers = new LinkedHashMap<>();
+    boolean shared;
+    boolean started;
+
+    /**
+     * Add a server with the default configuration.
+     *
+     * @param name the name of the server
+     *
+     * @return the current SimpleTcpServerFixtures
+     */
+    public SimpleTcpServerFixtures server(String name) {
+        return server(new SimpleTcpServer(name));
+    }
+
+    /**
+     * Add a configured (but not started) server.
+     *
+     * @param server the server
+     *
+     * @return the current SimpleTcpServerFixtures
+     */
+    public SimpleTcpServerFixtures server(SimpleTcpServer server) {
+        if (started) {
+            throw new IllegalStateException(String.format("Cannot add server %s after the fixtures have been started", server.getName()));
+        }
+        if (servers.containsKey(server.getName())) {
+            throw new IllegalArgumentException(String.format("Duplicate server name %s", server.getName()));
+        }
+
+        servers.put(server.getName(), server);
+
+        return this;
+    }
+
+    /**
+     * Share the servers with every other test class in the JVM, rather than stopping them when the tests are done.
+     *
+     * @param shared if true, share the servers across test classes
+     *
+     * @return the current SimpleTcpServerFixtures
+     */
+    public SimpleTcpServerFixtures shared(boolean shared) {
+        this.shared = shared;
+
+        return this;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Get a server by name.
+     *
+     * @param name the name of the server
+     *
+     * @return the server
+     */
+    public SimpleTcpServer get(String name) {
+        SimpleTcpServer server = servers.get(name);
+        if (server == null) {
+            throw new IllegalArgumentException(String.format("Unknown server %s - known servers are %s", name, servers.keySet()));
+        }
+
+        return server;
+    }
+
+    public Map<String, SimpleTcpServer> getServers() {
+        return Collections.unmodifiableMap(servers);
+    }
+
+    /**
+     * Start all of the servers in parallel.  Servers that are already running (e.g. shared servers started by another
+     * test class) are reused as they are.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+
+        if (shared) {
+            for (Map.Entry<String, SimpleTcpServer> entry : servers.entrySet()) {
+                SimpleTcpServer registered = SHARED_SERVERS.putIfAbsent(entry.getKey(), entry.getValue());
+                if (registered != null) {
+                    entry.setValue(registered);
+                }
+            }
+        }
+
+        List<SimpleTcpServer> toStart = new ArrayList<>();
+        for (SimpleTcpServer server : servers.values()) {
+            synchronized (server) {
+                if (!server.isStarted()) {
+                    toStart.add(server);
+                }
+            }
+        }
+
+        if (toStart.size() == 1) {
+            startServer(toStart.get(0));
+        } else if (toStart.size() > 1) {
+            startInParallel(toStart);
+        }
+
+        started = true;
+    }
+
+    /**
+     * Return all of the servers to a clean state - connections are closed, but the servers remain bound.
+     */
+    public synchronized void recycle() {
+        for (SimpleTcpServer server : servers.values()) {
+            if (server.isStarted()) {
+                server.recycle();
+            }
+        }
+    }
+
+    /**
+     * Stop all of the servers - shared servers are recycled rather than stopped.
+     */
+    public synchronized void stop() {
+        if (!started) {
+            return;
+        }
+
+        if (shared) {
+            recycle();
+        } else {
+            for (SimpleTcpServer server : servers.values()) {
+                if (server.isStarted()) {
+                    server.stop();
+                }
+            }
+        }
+
+        started = false;
+    }
+
+    void startServer(SimpleTcpServer server) {
+        synchronized (server) {
+            if (!server.isStarted()) {
+                server.start();
+            }
+        }
+    }
+
+    void startInParallel(List<SimpleTcpServer> toStart) {
+        ExecutorService executor = Executors.newFixedThreadPool(toStart.size());
+        try {
+            List<Future<?>> futures = new ArrayList<>(toStart.size());
+            for (final SimpleTcpServer server : toStart) {
+                futures.add(executor.submit(() -> startServer(server)));
+            }
+
+            RuntimeException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException executionEx) {
+                    if (failure == null) {
+                        Throwable cause = executionEx.getCause();
+                        failure = (cause instanceof RuntimeException) ? (RuntimeException) cause : new RuntimeException("Failed to start server", cause);
+                    }
+                } catch (InterruptedException interruptedEx) {
+                    Thread.currentThread().interrupt();
+                    failure = new RuntimeException("Interrupted starting servers", interruptedEx);
+                    break;
+                }
+            }
+
+            if (failure != null) {
+                for (SimpleTcpServer server : toStart) {
+                    if (server.isStarted()) {
+                        server.stop();
+                    }
+                    SHARED_SERVERS.remove(server.getName(), server);
+                }
+                throw failure;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+/**
+ * A JUnit 4 rule that manages a set of named SimpleTcpServers.
+ *
+ * To start the servers once per test class and recycle them between test methods, register the same instance as both
+ * a class rule and a method rule:
+ * <pre>
+ *     &#64;ClassRule
+ *     public static SimpleTcpServerRule servers = new SimpleTcpServerRule().server("mllp").server("http");
+ *
+ *     &#64;Rule
+ *     public SimpleTcpServerRule perTest = servers;
+ * </pre>
+ * When only used as a method rule the servers are started and stopped around each test, unless they are shared - see
+ * {@link SimpleTcpServerFixtures}.
+ */
+public class SimpleTcpServerRule implements TestRule {
+    final SimpleTcpServerFixtures fixtures = new SimpleTcpServerFixtures();
+
+    public SimpleTcpServerRule server(String name) {
+        fixtures.server(name);
+
+        return this;
+    }
+
+    public SimpleTcpServerRule server(SimpleTcpServer server) {
+        fixtures.server(server);
+
+        return this;
+    }
+
+    public SimpleTcpServerRule shared(boolean shared) {
+        fixtures.shared(shared);
+
+        return this;
+    }
+
+    public SimpleTcpServer get(String name) {
+        return fixtures.get(name);
+    }
+
+    public SimpleTcpServerFixtures getFixtures() {
+        return fixtures;
+    }
+
+    @Override
+    public Statement apply(final Statement base, final Description description) {
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                if (description.isSuite()) {
+                    fixtures.start();
+                    try {
+                        base.evaluate();
+                    } finally {
+                        fixtures.stop();
+                    }
+                } else if (fixtures.isStarted()) {
+                    try {
+                        base.evaluate();
+                    } finally {
+                        fixtures.recycle();
+                    }
+                } else {
+                    fixtures.start();
+                    try {
+                        base.evaluate();
+                    } finally {
+                        fixtures.stop();
+                    }
+                }
+            }
+        };
+    }
+}
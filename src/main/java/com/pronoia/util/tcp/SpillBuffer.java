@@ -0,0 +1,279 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.SocketTimeoutException;
+
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A FIFO byte buffer that holds up to a fixed number of bytes in memory, and spills anything beyond that to a
+ * memory-mapped temporary file.
+ *
+ * One thread writes (the connection drainer) and any number of threads read.  Data is always read back in the order
+ * it was written - once the buffer starts spilling, new data goes to the file until the file has been read back
+ * completely, at which point the file space is reused.
+ */
+class SpillBuffer implements Closeable {
+    static final int MAPPED_REGION_SIZE = 16 * 1024 * 1024;
+
+    final byte[] memory;
+    int memoryHead;
+    int memoryCount;
+
+    Path spillFile;
+    FileChannel spillChannel;
+    MappedByteBuffer writeRegion;
+    long writeRegionIndex = -1;
+    MappedByteBuffer readRegion;
+    long readRegionIndex = -1;
+    long spillWritePosition;
+    long spillReadPosition;
+
+    long spilledTotal;
+    boolean endOfStream;
+    boolean closed;
+
+    SpillBuffer(int memoryThreshold) {
+        if (memoryThreshold <= 0) {
+            throw new IllegalArgumentException(String.format("Memory threshold must be greater than zero [%d]", memoryThreshold));
+        }
+        this.memory = new byte[memoryThreshold];
+    }
+
+    /**
+     * Append data to the buffer, waking any blocked readers.
+     */
+    synchronized void write(byte[] data, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Cannot write to a closed buffer");
+        }
+
+        if (spillWritePosition == spillReadPosition) {
+            int memoryLength = Math.min(length, memory.length - memoryCount);
+            int tail = (memoryHead + memoryCount) % memory.length;
+            int firstPart = Math.min(memoryLength, memory.length - tail);
+            System.arraycopy(data, offset, memory, tail, firstPart);
+            System.arraycopy(data, offset + firstPart, memory, 0, memoryLength - firstPart);
+            memoryCount += memoryLength;
+            offset += memoryLength;
+            length -= memoryLength;
+        }
+
+        if (length > 0) {
+            spill(data, offset, length);
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Mark the end of the stream - readers will receive -1 once the buffered data has been consumed.
+     */
+    synchronized void endOfStream() {
+        endOfStream = true;
+        notifyAll();
+    }
+
+    synchronized boolean isEndOfStream() {
+        return endOfStream;
+    }
+
+    synchronized int available() {
+        return (int) Math.min(Integer.MAX_VALUE, memoryCount + spillWritePosition - spillReadPosition);
+    }
+
+    /**
+     * @return the total number of bytes that have been written to the spill file
+     */
+    synchronized long getSpilledTotal() {
+        return spilledTotal;
+    }
+
+    /**
+     * Read data from the buffer, blocking until at least one byte is available.
+     *
+     * @return the number of bytes read, or -1 if the end of the stream has been reached
+     */
+    synchronized int read(byte[] data, int offset, int length) throws IOException {
+        return read(data, offset, length, 0);
+    }
+
+    /**
+     * Read data from the buffer, blocking until at least one byte is available or the read deadline passes.
+     *
+     * The deadline is scheduled on the shared timer, which wakes the reader when it expires.
+     *
+     * @param timeoutMillis the read deadline in milliseconds - zero waits forever
+     *
+     * @return the number of bytes read, or -1 if the end of the stream has been reached
+     */
+    synchronized int read(byte[] data, int offset, int length, int timeoutMillis) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        HashedWheelTimer.Timeout readDeadline = null;
+        try {
+            while (memoryCount == 0 && spillWritePosition == spillReadPosition) {
+                if (closed || endOfStream) {
+                    return -1;
+                }
+                if (readDeadline == null && timeoutMillis > 0) {
+                    readDeadline = HashedWheelTimer.shared().newTimeout(this::wakeReaders, timeoutMillis, TimeUnit.MILLISECONDS);
+                } else if (readDeadline != null && readDeadline.isExpired()) {
+                    throw new SocketTimeoutException(String.format("Read timed out after %d-ms", timeoutMillis));
+                }
+                try {
+                    wait();
+                } catch (InterruptedException interruptedEx) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for data", interruptedEx);
+                }
+            }
+        } finally {
+            if (readDeadline != null) {
+                readDeadline.cancel();
+            }
+        }
+
+        if (memoryCount > 0) {
+            int readCount = Math.min(length, memoryCount);
+            int firstPart = Math.min(readCount, memory.length - memoryHead);
+            System.arraycopy(memory, memoryHead, data, offset, firstPart);
+            System.arraycopy(memory, 0, data, offset + firstPart, readCount - firstPart);
+            memoryHead = (memoryHead + readCount) % memory.length;
+            memoryCount -= readCount;
+            return readCount;
+        }
+
+        return unspill(data, offset, length);
+    }
+
+    synchronized void wakeReaders() {
+        notifyAll();
+    }
+
+    /**
+     * @param timeoutMillis the read deadline applied to each blocking read - zero waits forever
+     */
+    InputStream getInputStream(int timeoutMillis) {
+        return new SpillBufferInputStream(timeoutMillis);
+    }
+
+    /**
+     * Release the memory and delete the spill file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            memoryCount = 0;
+            writeRegion = null;
+            readRegion = null;
+            spillReadPosition = spillWritePosition;
+            notifyAll();
+            if (spillChannel != null) {
+                try {
+                    spillChannel.close();
+                } finally {
+                    Files.deleteIfExists(spillFile);
+                }
+            }
+        }
+    }
+
+    void spill(byte[] data, int offset, int length) throws IOException {
+        if (spillChannel == null) {
+            spillFile = Files.createTempFile("tcp-test-util-", ".spill");
+            spillChannel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        while (length > 0) {
+            long regionIndex = spillWritePosition / MAPPED_REGION_SIZE;
+            if (regionIndex != writeRegionIndex) {
+                writeRegion = spillChannel.map(FileChannel.MapMode.READ_WRITE, regionIndex * MAPPED_REGION_SIZE, MAPPED_REGION_SIZE);
+                writeRegionIndex = regionIndex;
+            }
+            int regionOffset = (int) (spillWritePosition % MAPPED_REGION_SIZE);
+            int count = Math.min(length, MAPPED_REGION_SIZE - regionOffset);
+            ((Buffer) writeRegion).position(regionOffset);
+            writeRegion.put(data, offset, count);
+            spillWritePosition += count;
+            spilledTotal += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    int unspill(byte[] data, int offset, int length) throws IOException {
+        long regionIndex = spillReadPosition / MAPPED_REGION_SIZE;
+        if (regionIndex != readRegionIndex) {
+            readRegion = spillChannel.map(FileChannel.MapMode.READ_WRITE, regionIndex * MAPPED_REGION_SIZE, MAPPED_REGION_SIZE);
+            readRegionIndex = regionIndex;
+        }
+        int regionOffset = (int) (spillReadPosition % MAPPED_REGION_SIZE);
+        int count = (int) Math.min(Math.min(length, MAPPED_REGION_SIZE - regionOffset), spillWritePosition - spillReadPosition);
+        ((Buffer) readRegion).position(regionOffset);
+        readRegion.get(data, offset, count);
+        spillReadPosition += count;
+
+        if (spillReadPosition == spillWritePosition) {
+            // Everything spilled has been read back - start over at the beginning of the file
+            spillReadPosition = 0;
+            spillWritePosition = 0;
+        }
+
+        return count;
+    }
+
+    class SpillBufferInputStream extends InputStream {
+        final int timeoutMillis;
+
+        SpillBufferInputStream(int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int readCount = SpillBuffer.this.read(single, 0, 1, timeoutMillis);
+            return (readCount == -1) ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            return SpillBuffer.this.read(data, offset, length, timeoutMillis);
+        }
+
+        @Override
+        public int available() {
+            return SpillBuffer.this.available();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The I/O counters for a SimpleTcpServer or SimpleTcpClient, fed from the events its connections record.
+ *
+ * The counters are LongAdders, so the I/O threads never contend on them, and reading them (e.g. from JMX) never blocks
+ * the I/O threads.  Rates are calculated over the most recent window of at least a second - the first read after the
+ * window closes starts a new one.
+ *
+ * Request/response latencies (from request pipelines and latency probes) are recorded in a histogram that is drained
+ * by the metrics reporter - its lock is only held while a value is recorded or the histogram is copied.
+ */
+class TcpStatistics {
+    static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    final LongAdder bytesRead = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+    final LongAdder readCount = new LongAdder();
+    final LongAdder writeCount = new LongAdder();
+    final LongAdder errorCount = new LongAdder();
+    final LongAdder timeoutCount = new LongAdder();
+
+    // Guarded by itself
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    final AtomicReference<Rates> rates = new AtomicReference<>(new Rates(snapshot(), 0, 0, 0, 0));
+
+    /**
+     * Count an event recorded for a connection.
+     *
+     * @param type      the type of the event
+     * @param byteCount the number of bytes read or written, or zero
+     * @param draining  true if the connection is drained in the background - the data is counted as it is received
+     *                  from the peer, rather than when it is read from the drain buffer
+     */
+    void record(EventJournal.EventType type, long byteCount, boolean draining) {
+        switch (type) {
+            case READ:
+                if (!draining) {
+                    readCount.increment();
+                    bytesRead.add(byteCount);
+                }
+                break;
+            case RECEIVED:
+                readCount.increment();
+                bytesRead.add(byteCount);
+                break;
+            case WRITE:
+                writeCount.increment();
+                bytesWritten.add(byteCount);
+                break;
+            case ERROR:
+                errorCount.increment();
+                break;
+            case ACCEPT_TIMEOUT:
+            case CONNECT_TIMEOUT:
+                timeoutCount.increment();
+                break;
+            default:
+                break;
+        }
+    }
+
+    long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    long getReadCount() {
+        return readCount.sum();
+    }
+
+    long getWriteCount() {
+        return writeCount.sum();
+    }
+
+    long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    void recordLatency(long nanos) {
+        synchronized (latency) {
+            latency.record(nanos);
+        }
+    }
+
+    /**
+     * Move the latencies recorded since the last call into a histogram.
+     *
+     * @param histogram the histogram to add the latencies to
+     */
+    void drainLatency(LatencyHistogram histogram) {
+        synchronized (latency) {
+            histogram.add(latency);
+            latency.reset();
+        }
+    }
+
+    Snapshot snapshot() {
+        return new Snapshot(System.nanoTime(), bytesRead.sum(), bytesWritten.sum(), readCount.sum(), writeCount.sum());
+    }
+
+    /**
+     * @return the rates over the most recent complete window
+     */
+    Rates getRates() {
+        Rates current = rates.get();
+        Snapshot now = snapshot();
+        long elapsedNanos = now.nanos - current.end.nanos;
+        if (elapsedNanos < RATE_WINDOW_NANOS) {
+            return current;
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        Rates next = new Rates(now,
+            (now.bytesRead - current.end.bytesRead) / seconds,
+            (now.bytesWritten - current.end.bytesWritten) / seconds,
+            (now.readCount - current.end.readCount) / seconds,
+            (now.writeCount - current.end.writeCount) / seconds);
+
+        // If another reader closed the window first, its rates are just as current
+        return rates.compareAndSet(current, next) ? next : rates.get();
+    }
+
+    /**
+     * The counter values at a point in time.
+     */
+    static final class Snapshot {
+        final long nanos;
+        final long bytesRead;
+        final long bytesWritten;
+        final long readCount;
+        final long writeCount;
+
+        Snapshot(long nanos, long bytesRead, long bytesWritten, long readCount, long writeCount) {
+            this.nanos = nanos;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.readCount = readCount;
+            this.writeCount = writeCount;
+        }
+    }
+
+    /**
+     * The per-second rates over the window ending with the snapshot.
+     */
+    static final class Rates {
+        final Snapshot end;
+        final double bytesReadPerSecond;
+        final double bytesWrittenPerSecond;
+        final double readsPerSecond;
+        final double writesPerSecond;
+
+        Rates(Snapshot end, double bytesReadPerSecond, double bytesWrittenPerSecond, double readsPerSecond, double writesPerSecond) {
+            this.end = end;
+            this.bytesReadPerSecond = bytesReadPerSecond;
+            this.bytesWrittenPerSecond = bytesWrittenPerSecond;
+            this.readsPerSecond = readsPerSecond;
+            this.writesPerSecond = writesPerSecond;
+        }
+    }
+}
@@ -0,0 +1,651 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures sustained throughput between SimpleTcpClients and a SimpleTcpServer, in the style of iperf.
+ *
+ * Each stream is a client connection to the server.  Data is sent from the client to the server, from the server to
+ * the client, or in both directions at once, for a fixed duration or until a fixed number of bytes has been sent on each
+ * stream.  Throughput is measured where the data is received and reported per interval and in total, along with the
+ * fairness of the streams and the CPU time used by the sending and receiving threads.
+ *
+ * Every sender writes the same preallocated buffer over and over, and every receiver reads into a single preallocated
+ * buffer, so nothing is allocated while the data is moving.
+ *
+ * The server must not echo or drain its connections in the background.  The probe connects its own clients - by
+ * default to the server's TCP port, loopback name or Unix domain socket, with the server's TLS configuration - and
+ * stops them (and closes the server's side of their connections) when it is done.
+ */
+public class ThroughputProbe {
+    public enum Direction {
+        CLIENT_TO_SERVER,
+        SERVER_TO_CLIENT,
+        BIDIRECTIONAL
+    }
+
+    static final double BYTES_PER_MEGABYTE = 1000000.0;
+
+    static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    final SimpleTcpServer server;
+
+    Supplier<SimpleTcpClient> clientFactory;
+    int streams = 1;
+    Direction direction = Direction.CLIENT_TO_SERVER;
+    long durationNanos = TimeUnit.SECONDS.toNanos(10);
+    long bytesPerStream;
+    int bufferSize = 128 * 1024;
+    long reportIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+
+    public ThroughputProbe(SimpleTcpServer server) {
+        this.server = server;
+        this.clientFactory = this::createClient;
+    }
+
+    /**
+     * Connect the streams, move data for the configured duration or byte count, then disconnect.
+     *
+     * @return the measured throughput
+     */
+    public Result run() {
+        if (!server.isStarted()) {
+            throw new IllegalStateException(String.format("%s cannot measure throughput before server has been started", server.getName()));
+        }
+        if (server.isEcho() || server.isBackgroundDrain() || server.getAutoDrainLimit() > 0) {
+            throw new IllegalStateException(String.format("%s cannot measure throughput when the server echoes or drains its connections", server.getName()));
+        }
+        if (server.getReceiveRingCapacity() > 0) {
+            throw new IllegalStateException(String.format("%s cannot measure throughput when the server reads its connections into a receive ring", server.getName()));
+        }
+        if (server.getConversation() != null) {
+            throw new IllegalStateException(String.format("%s cannot measure throughput when the server runs a conversation on its connections", server.getName()));
+        }
+
+        List<Stream> streamList = new ArrayList<>(streams);
+        try {
+            for (int i = 0; i < streams; ++i) {
+                streamList.add(connect(i));
+            }
+            return measure(streamList);
+        } finally {
+            for (Stream stream : streamList) {
+                stream.disconnect();
+            }
+        }
+    }
+
+    Stream connect(int index) {
+        int connectionCount = server.getConnections().size();
+        server.acceptConnection();
+
+        SimpleTcpClient client = clientFactory.get();
+        client.start();
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(server.getAcceptTimeout());
+        while (server.getConnections().size() <= connectionCount) {
+            if (server.getAcceptTimeout() > 0 && System.nanoTime() - deadline > 0) {
+                client.stop();
+                throw new IllegalStateException(String.format("%s did not accept throughput stream %d", server.getName(), index));
+            }
+            pause(1);
+        }
+
+        // Streams are connected one at a time, so the newest connection is this stream's
+        return new Stream(index, client, server.getConnections().peekLast());
+    }
+
+    Result measure(List<Stream> streamList) {
+        List<Worker> workers = new ArrayList<>();
+        for (Stream stream : streamList) {
+            if (direction != Direction.SERVER_TO_CLIENT) {
+                workers.add(new Sender(stream, stream.client.connection));
+                workers.add(new Receiver(stream, stream.serverConnection, stream.clientToServerBytes));
+            }
+            if (direction != Direction.CLIENT_TO_SERVER) {
+                workers.add(new Sender(stream, stream.serverConnection));
+                workers.add(new Receiver(stream, stream.client.connection, stream.serverToClientBytes));
+            }
+        }
+
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + durationNanos;
+        for (Worker worker : workers) {
+            worker.start(endNanos);
+        }
+
+        List<Interval> intervals = new ArrayList<>();
+        long[] previousBytes = new long[streamList.size()];
+        long intervalStartNanos = startNanos;
+        while (!isDone(workers)) {
+            long nextReportNanos = intervalStartNanos + reportIntervalNanos;
+            for (long now = System.nanoTime(); now - nextReportNanos < 0 && !isDone(workers); now = System.nanoTime()) {
+                pause(Math.min(10, TimeUnit.NANOSECONDS.toMillis(nextReportNanos - now) + 1));
+            }
+
+            long now = System.nanoTime();
+            long[] intervalBytes = new long[streamList.size()];
+            for (Stream stream : streamList) {
+                long receivedBytes = stream.getReceivedBytes();
+                intervalBytes[stream.index] = receivedBytes - previousBytes[stream.index];
+                previousBytes[stream.index] = receivedBytes;
+            }
+            Interval interval = new Interval(intervalStartNanos - startNanos, now - startNanos, intervalBytes);
+            intervals.add(interval);
+            log.info("{} throughput {}", server.getName(), interval);
+            intervalStartNanos = now;
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        long cpuNanos = 0;
+        for (Worker worker : workers) {
+            worker.join();
+            if (worker.failure != null) {
+                throw new IllegalStateException(String.format("%s throughput stream %d failed", server.getName(), worker.stream.index), worker.failure);
+            }
+            cpuNanos = (worker.cpuNanos < 0 || cpuNanos < 0) ? -1 : cpuNanos + worker.cpuNanos;
+        }
+
+        List<StreamResult> streamResults = new ArrayList<>(streamList.size());
+        for (Stream stream : streamList) {
+            streamResults.add(new StreamResult(stream.index, stream.clientToServerBytes.get(), stream.serverToClientBytes.get(), elapsedNanos));
+        }
+
+        Result result = new Result(elapsedNanos, intervals, streamResults, cpuNanos);
+        log.info("{} throughput total {}", server.getName(), result);
+        return result;
+    }
+
+    void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(String.format("%s interrupted measuring throughput", server.getName()), interruptedEx);
+        }
+    }
+
+    static boolean isDone(List<Worker> workers) {
+        for (Worker worker : workers) {
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    SimpleTcpClient createClient() {
+        return server.newClient(server.getName() + "-throughput-client");
+    }
+
+    public Supplier<SimpleTcpClient> getClientFactory() {
+        return clientFactory;
+    }
+
+    /**
+     * @param clientFactory supplies a configured (but not started) client for each stream
+     */
+    public void setClientFactory(Supplier<SimpleTcpClient> clientFactory) {
+        this.clientFactory = (clientFactory != null) ? clientFactory : this::createClient;
+    }
+
+    public int getStreams() {
+        return streams;
+    }
+
+    public void setStreams(int streams) {
+        if (streams <= 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal stream count [%d].  Count must be greater than zero", server.getName(), streams));
+        }
+
+        this.streams = streams;
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+
+    public void setDirection(Direction direction) {
+        this.direction = direction;
+    }
+
+    public long getDuration(TimeUnit unit) {
+        return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void setDuration(long duration, TimeUnit unit) {
+        if (duration <= 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal throughput duration [%d].  Duration must be greater than zero", server.getName(), duration));
+        }
+
+        this.durationNanos = unit.toNanos(duration);
+    }
+
+    public long getBytesPerStream() {
+        return bytesPerStream;
+    }
+
+    /**
+     * Stop each sender after it has sent the given number of bytes, even if the duration has not elapsed.
+     *
+     * @param bytesPerStream the number of bytes to send in each direction of each stream - zero for no limit
+     */
+    public void setBytesPerStream(long bytesPerStream) {
+        if (bytesPerStream < 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal bytes per stream [%d].  Count must not be negative", server.getName(), bytesPerStream));
+        }
+
+        this.bytesPerStream = bytesPerStream;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal buffer size [%d].  Size must be greater than zero", server.getName(), bufferSize));
+        }
+
+        this.bufferSize = bufferSize;
+    }
+
+    public long getReportInterval(TimeUnit unit) {
+        return unit.convert(reportIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void setReportInterval(long interval, TimeUnit unit) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException(String.format("%s - illegal report interval [%d].  Interval must be greater than zero", server.getName(), interval));
+        }
+
+        this.reportIntervalNanos = unit.toNanos(interval);
+    }
+
+    // Builder-style setters
+    public ThroughputProbe clientFactory(Supplier<SimpleTcpClient> clientFactory) {
+        this.setClientFactory(clientFactory);
+
+        return this;
+    }
+
+    public ThroughputProbe streams(int streams) {
+        this.setStreams(streams);
+
+        return this;
+    }
+
+    public ThroughputProbe direction(Direction direction) {
+        this.setDirection(direction);
+
+        return this;
+    }
+
+    public ThroughputProbe duration(long duration, TimeUnit unit) {
+        this.setDuration(duration, unit);
+
+        return this;
+    }
+
+    public ThroughputProbe bytesPerStream(long bytesPerStream) {
+        this.setBytesPerStream(bytesPerStream);
+
+        return this;
+    }
+
+    public ThroughputProbe bufferSize(int bufferSize) {
+        this.setBufferSize(bufferSize);
+
+        return this;
+    }
+
+    public ThroughputProbe reportInterval(long interval, TimeUnit unit) {
+        this.setReportInterval(interval, unit);
+
+        return this;
+    }
+
+    static double megabytesPerSecond(long bytes, long nanos) {
+        return (nanos > 0) ? bytes / BYTES_PER_MEGABYTE / (nanos / (double) TimeUnit.SECONDS.toNanos(1)) : 0;
+    }
+
+    /**
+     * A client connection and the server's side of it.
+     */
+    class Stream {
+        final int index;
+        final SimpleTcpClient client;
+        final SimpleTcpConnection serverConnection;
+
+        final AtomicLong clientToServerBytes = new AtomicLong();
+        final AtomicLong serverToClientBytes = new AtomicLong();
+
+        Stream(int index, SimpleTcpClient client, SimpleTcpConnection serverConnection) {
+            this.index = index;
+            this.client = client;
+            this.serverConnection = serverConnection;
+        }
+
+        long getReceivedBytes() {
+            return clientToServerBytes.get() + serverToClientBytes.get();
+        }
+
+        void disconnect() {
+            if (client.isStarted()) {
+                client.stop();
+            }
+            server.closeConnection(serverConnection);
+        }
+    }
+
+    /**
+     * Moves the data for one direction of one stream, on an I/O worker.
+     */
+    abstract class Worker implements Runnable {
+        final Stream stream;
+        final SimpleTcpConnection connection;
+        final String taskName;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        long endNanos;
+        volatile long cpuNanos = -1;
+        volatile Throwable failure;
+
+        Worker(Stream stream, SimpleTcpConnection connection, String role) {
+            this.stream = stream;
+            this.connection = connection;
+            this.taskName = String.format("%s throughput %s %d", connection.name, role, stream.index);
+        }
+
+        void start(long endNanos) {
+            this.endNanos = endNanos;
+            IoWorkers.shared().execute(taskName, this);
+        }
+
+        boolean isAlive() {
+            return done.getCount() > 0;
+        }
+
+        void join() {
+            try {
+                done.await();
+            } catch (InterruptedException interruptedEx) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(String.format("%s interrupted waiting for throughput stream %d", server.getName(), stream.index), interruptedEx);
+            }
+        }
+
+        @Override
+        public void run() {
+            // Workers are reused, so only the CPU time used since the transfer started is counted
+            boolean cpuTimeSupported = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported();
+            long startCpuNanos = cpuTimeSupported ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : -1;
+            try {
+                transfer();
+            } catch (IOException | RuntimeException transferEx) {
+                connection.record(EventJournal.EventType.ERROR, 0);
+                failure = transferEx;
+            } finally {
+                if (cpuTimeSupported) {
+                    cpuNanos = THREAD_MX_BEAN.getCurrentThreadCpuTime() - startCpuNanos;
+                }
+                done.countDown();
+            }
+        }
+
+        abstract void transfer() throws IOException;
+    }
+
+    class Sender extends Worker {
+        Sender(Stream stream, SimpleTcpConnection connection) {
+            super(stream, connection, "sender");
+        }
+
+        @Override
+        void transfer() throws IOException {
+            byte[] buffer = new byte[bufferSize];
+            for (int i = 0; i < buffer.length; ++i) {
+                buffer[i] = (byte) i;
+            }
+
+            OutputStream outputStream = connection.getOutputStream();
+            long limit = (bytesPerStream > 0) ? bytesPerStream : Long.MAX_VALUE;
+            long sent = 0;
+            while (sent < limit && System.nanoTime() - endNanos < 0) {
+                int count = (int) Math.min(buffer.length, limit - sent);
+                outputStream.write(buffer, 0, count);
+                sent += count;
+            }
+            outputStream.flush();
+            connection.touch();
+            connection.record(EventJournal.EventType.WRITE, sent);
+            connection.shutdownOutput();
+        }
+    }
+
+    class Receiver extends Worker {
+        final AtomicLong receivedBytes;
+
+        Receiver(Stream stream, SimpleTcpConnection connection, AtomicLong receivedBytes) {
+            super(stream, connection, "receiver");
+            this.receivedBytes = receivedBytes;
+        }
+
+        @Override
+        void transfer() throws IOException {
+            byte[] buffer = new byte[bufferSize];
+
+            InputStream inputStream = connection.getInputStream();
+            int readCount;
+            while ((readCount = inputStream.read(buffer)) != -1) {
+                receivedBytes.lazySet(receivedBytes.get() + readCount);
+            }
+            connection.touch();
+            connection.record(EventJournal.EventType.READ, receivedBytes.get());
+        }
+    }
+
+    /**
+     * The data received on each stream during one report interval.
+     */
+    public static class Interval {
+        final long startNanos;
+        final long endNanos;
+        final long[] streamBytes;
+
+        Interval(long startNanos, long endNanos, long[] streamBytes) {
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+            this.streamBytes = streamBytes;
+        }
+
+        /**
+         * @return the start of the interval, relative to the start of the run
+         */
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        /**
+         * @return the end of the interval, relative to the start of the run
+         */
+        public long getEndNanos() {
+            return endNanos;
+        }
+
+        public long getBytes() {
+            long total = 0;
+            for (long bytes : streamBytes) {
+                total += bytes;
+            }
+            return total;
+        }
+
+        public long getStreamBytes(int stream) {
+            return streamBytes[stream];
+        }
+
+        public double getMegabytesPerSecond() {
+            return megabytesPerSecond(getBytes(), endNanos - startNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.2f-%.2fs %.1f MB/s %s", startNanos / 1e9, endNanos / 1e9, getMegabytesPerSecond(), Arrays.toString(streamBytes));
+        }
+    }
+
+    /**
+     * The data received on one stream over the whole run.
+     */
+    public static class StreamResult {
+        final int index;
+        final long clientToServerBytes;
+        final long serverToClientBytes;
+        final long elapsedNanos;
+
+        StreamResult(int index, long clientToServerBytes, long serverToClientBytes, long elapsedNanos) {
+            this.index = index;
+            this.clientToServerBytes = clientToServerBytes;
+            this.serverToClientBytes = serverToClientBytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public long getClientToServerBytes() {
+            return clientToServerBytes;
+        }
+
+        public long getServerToClientBytes() {
+            return serverToClientBytes;
+        }
+
+        public long getBytes() {
+            return clientToServerBytes + serverToClientBytes;
+        }
+
+        public double getMegabytesPerSecond() {
+            return megabytesPerSecond(getBytes(), elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("stream %d: %d bytes %.1f MB/s", index, getBytes(), getMegabytesPerSecond());
+        }
+    }
+
+    /**
+     * The outcome of a throughput run.
+     */
+    public static class Result {
+        final long elapsedNanos;
+        final List<Interval> intervals;
+        final List<StreamResult> streams;
+        final long cpuNanos;
+
+        Result(long elapsedNanos, List<Interval> intervals, List<StreamResult> streams, long cpuNanos) {
+            this.elapsedNanos = elapsedNanos;
+            this.intervals = Collections.unmodifiableList(intervals);
+            this.streams = Collections.unmodifiableList(streams);
+            this.cpuNanos = cpuNanos;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public List<Interval> getIntervals() {
+            return intervals;
+        }
+
+        public List<StreamResult> getStreams() {
+            return streams;
+        }
+
+        public long getBytes() {
+            long total = 0;
+            for (StreamResult stream : streams) {
+                total += stream.getBytes();
+            }
+            return total;
+        }
+
+        public double getMegabytesPerSecond() {
+            return megabytesPerSecond(getBytes(), elapsedNanos);
+        }
+
+        /**
+         * @return Jain's fairness index of the bytes received on each stream - 1.0 when every stream received the same
+         *          amount, down to 1/n when a single stream received everything
+         */
+        public double getFairness() {
+            double sum = 0;
+            double sumOfSquares = 0;
+            for (StreamResult stream : streams) {
+                sum += stream.getBytes();
+                sumOfSquares += (double) stream.getBytes() * stream.getBytes();
+            }
+            return (sumOfSquares > 0) ? (sum * sum) / (streams.size() * sumOfSquares) : 1.0;
+        }
+
+        /**
+         * @return the CPU time used by the sending and receiving threads, or -1 if thread CPU time is not supported
+         */
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        /**
+         * @return the CPU time used by the sending and receiving threads, per megabyte received - or -1 if thread CPU
+         *          time is not supported
+         */
+        public double getCpuNanosPerMegabyte() {
+            long bytes = getBytes();
+            return (cpuNanos < 0 || bytes == 0) ? -1 : cpuNanos / (bytes / BYTES_PER_MEGABYTE);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes in %.2fs %.1f MB/s fairness=%.3f cpu=%.2fs %s",
+                getBytes(), elapsedNanos / 1e9, getMegabytesPerSecond(), getFairness(), cpuNanos / 1e9, streams);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * The TLS settings for a SimpleTcpServer or SimpleTcpClient.
+ *
+ * The SSLContext is built from the KeyStore and TrustStore supplied by the test (or supplied directly), and is created
+ * once and reused for every connection - so a client reconnecting to the same host and port resumes the cached TLS
+ * session instead of performing a full handshake, unless session resumption is disabled.
+ */
+public class TlsConfiguration {
+    SSLContext sslContext;
+    String protocol = "TLS";
+
+    KeyStore keyStore;
+    char[] keyPassword;
+    KeyStore trustStore;
+
+    String[] enabledProtocols;
+    String[] enabledCipherSuites;
+    boolean needClientAuth;
+    boolean sessionResumption = true;
+
+    /**
+     * Load a KeyStore (or TrustStore) from a file.
+     *
+     * @param file     the keystore file
+     * @param type     the keystore type (e.g. JKS or PKCS12)
+     * @param password the keystore password
+     *
+     * @return the loaded KeyStore
+     */
+    public static KeyStore loadKeyStore(Path file, String type, char[] password) {
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            return loadKeyStore(inputStream, type, password);
+        } catch (IOException ioEx) {
+            throw new RuntimeException(String.format("Failed to read %s keystore %s", type, file), ioEx);
+        }
+    }
+
+    /**
+     * Load a KeyStore (or TrustStore) from a stream - e.g. a classpath resource.
+     *
+     * @param inputStream the keystore data
+     * @param type        the keystore type (e.g. JKS or PKCS12)
+     * @param password    the keystore password
+     *
+     * @return the loaded KeyStore
+     */
+    public static KeyStore loadKeyStore(InputStream inputStream, String type, char[] password) {
+        try {
+            KeyStore keyStore = KeyStore.getInstance(type);
+            keyStore.load(inputStream, password);
+            return keyStore;
+        } catch (IOException | GeneralSecurityException loadEx) {
+            throw new RuntimeException(String.format("Failed to load %s keystore", type), loadEx);
+        }
+    }
+
+    /**
+     * Get the SSLContext, creating it from the configured KeyStore and TrustStore the first time it is needed.
+     *
+     * When no KeyStore is configured no key material is presented, and when no TrustStore is configured the default
+     * JVM trust store is used.
+     *
+     * @return the SSLContext
+     */
+    public synchronized SSLContext getSslContext() {
+        if (sslContext == null) {
+            try {
+                KeyManagerFactory keyManagerFactory = null;
+                if (keyStore != null) {
+                    keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                    keyManagerFactory.init(keyStore, keyPassword);
+                }
+
+                TrustManagerFactory trustManagerFactory = null;
+                if (trustStore != null) {
+                    trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                    trustManagerFactory.init(trustStore);
+                }
+
+                SSLContext answer = SSLContext.getInstance(protocol);
+                answer.init(
+                    (keyManagerFactory != null) ? keyManagerFactory.getKeyManagers() : null,
+                    (trustManagerFactory != null) ? trustManagerFactory.getTrustManagers() : null,
+                    null);
+                sslContext = answer;
+            } catch (GeneralSecurityException initEx) {
+                throw new RuntimeException(String.format("Failed to create %s SSLContext", protocol), initEx);
+            }
+        }
+
+        return sslContext;
+    }
+
+    /**
+     * Create an engine for the server side of an accepted connection.
+     */
+    SSLEngine createServerEngine() {
+        SSLEngine engine = getSslContext().createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setNeedClientAuth(needClientAuth);
+        configure(engine);
+
+        return engine;
+    }
+
+    /**
+     * Create an engine for the client side of a connection.
+     *
+     * The peer host and port are the key for the client session cache - they are only supplied to the engine when
+     * session resumption is enabled.
+     */
+    SSLEngine createClientEngine(String peerHost, int peerPort) {
+        SSLEngine engine = sessionResumption ? getSslContext().createSSLEngine(peerHost, peerPort) : getSslContext().createSSLEngine();
+        engine.setUseClientMode(true);
+        configure(engine);
+
+        return engine;
+    }
+
+    void configure(SSLEngine engine) {
+        if (enabledProtocols != null) {
+            engine.setEnabledProtocols(enabledProtocols);
+        }
+        if (enabledCipherSuites != null) {
+            engine.setEnabledCipherSuites(enabledCipherSuites);
+        }
+    }
+
+    // Getters & Setters
+
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    public KeyStore getKeyStore() {
+        return keyStore;
+    }
+
+    public void setKeyStore(KeyStore keyStore, char[] keyPassword) {
+        this.keyStore = keyStore;
+        this.keyPassword = keyPassword;
+    }
+
+    public KeyStore getTrustStore() {
+        return trustStore;
+    }
+
+    public void setTrustStore(KeyStore trustStore) {
+        this.trustStore = trustStore;
+    }
+
+    public String[] getEnabledProtocols() {
+        return enabledProtocols;
+    }
+
+    public void setEnabledProtocols(String... enabledProtocols) {
+        this.enabledProtocols = enabledProtocols;
+    }
+
+    public String[] getEnabledCipherSuites() {
+        return enabledCipherSuites;
+    }
+
+    public void setEnabledCipherSuites(String... enabledCipherSuites) {
+        this.enabledCipherSuites = enabledCipherSuites;
+    }
+
+    public boolean isNeedClientAuth() {
+        return needClientAuth;
+    }
+
+    public void setNeedClientAuth(boolean needClientAuth) {
+        this.needClientAuth = needClientAuth;
+    }
+
+    public boolean isSessionResumption() {
+        return sessionResumption;
+    }
+
+    /**
+     * Enable or disable client session resumption.  When disabled every connection performs a full handshake.
+     *
+     * @param sessionResumption if true, resume cached sessions when reconnecting to the same host and port
+     */
+    public void setSessionResumption(boolean sessionResumption) {
+        this.sessionResumption = sessionResumption;
+    }
+
+    // Builder-style setters
+
+    public TlsConfiguration sslContext(SSLContext sslContext) {
+        this.setSslContext(sslContext);
+
+        return this;
+    }
+
+    public TlsConfiguration protocol(String protocol) {
+        this.setProtocol(protocol);
+
+        return this;
+    }
+
+    public TlsConfiguration keyStore(KeyStore keyStore, char[] keyPassword) {
+        this.setKeyStore(keyStore, keyPassword);
+
+        return this;
+    }
+
+    public TlsConfiguration trustStore(KeyStore trustStore) {
+        this.setTrustStore(trustStore);
+
+        return this;
+    }
+
+    public TlsConfiguration enabledProtocols(String... enabledProtocols) {
+        this.setEnabledProtocols(enabledProtocols);
+
+        return this;
+    }
+
+    public TlsConfiguration enabledCipherSuites(String... enabledCipherSuites) {
+        this.setEnabledCipherSuites(enabledCipherSuites);
+
+        return this;
+    }
+
+    public TlsConfiguration needClientAuth(boolean needClientAuth) {
+        this.setNeedClientAuth(needClientAuth);
+
+        return this;
+    }
+
+    public TlsConfiguration sessionResumption(boolean sessionResumption) {
+        this.setSessionResumption(sessionResumption);
+
+        return this;
+    }
+}
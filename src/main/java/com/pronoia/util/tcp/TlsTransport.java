@@ -0,0 +1,392 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.SocketException;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Runs TLS over the blocking streams of a connected socket using an SSLEngine.
+ *
+ * The engine only transforms buffers, so the same engine setup works here and with any NIO transport.  Reads and
+ * writes are independent - one thread can block reading while another writes - and data is exchanged with the socket
+ * one TLS record at a time.
+ */
+class TlsTransport {
+    static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    final SSLEngine engine;
+    final InputStream socketInputStream;
+    final OutputStream socketOutputStream;
+
+    final Object readLock = new Object();
+    final Object writeLock = new Object();
+
+    // Guarded by readLock - both are kept in read mode (flipped)
+    ByteBuffer networkIn;
+    ByteBuffer applicationIn;
+    boolean endOfStream;
+
+    // Guarded by writeLock
+    ByteBuffer networkOut;
+    ByteArrayOutputStream handshakeFlight;
+
+    final InputStream inputStream = new TlsInputStream();
+    final OutputStream outputStream = new TlsOutputStream();
+
+    TlsTransport(SSLEngine engine, InputStream socketInputStream, OutputStream socketOutputStream) {
+        this.engine = engine;
+        this.socketInputStream = socketInputStream;
+        this.socketOutputStream = socketOutputStream;
+
+        SSLSession session = engine.getSession();
+        networkIn = (ByteBuffer) ((Buffer) ByteBuffer.allocate(session.getPacketBufferSize())).flip();
+        applicationIn = (ByteBuffer) ((Buffer) ByteBuffer.allocate(session.getApplicationBufferSize())).flip();
+        networkOut = ByteBuffer.allocate(session.getPacketBufferSize());
+    }
+
+    /**
+     * Perform the initial handshake, blocking until it is complete.
+     *
+     * The records making up each flight of handshake messages are sent together, rather than one packet per record -
+     * otherwise Nagle's algorithm and delayed ACKs stall the handshake.
+     */
+    void handshake() throws IOException {
+        synchronized (writeLock) {
+            handshakeFlight = new ByteArrayOutputStream(engine.getSession().getPacketBufferSize());
+        }
+        try {
+            doHandshake();
+        } finally {
+            synchronized (writeLock) {
+                handshakeFlight = null;
+            }
+        }
+    }
+
+    void doHandshake() throws IOException {
+        engine.beginHandshake();
+
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != SSLEngineResult.HandshakeStatus.FINISHED && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_WRAP:
+                    status = wrap(EMPTY);
+                    break;
+                case NEED_UNWRAP:
+                    sendHandshakeFlight();
+                    synchronized (readLock) {
+                        status = unwrap(true);
+                    }
+                    if (endOfStream) {
+                        throw new SSLException("Connection closed during the TLS handshake");
+                    }
+                    break;
+                case NEED_TASK:
+                    status = runDelegatedTasks();
+                    break;
+                default:
+                    throw new SSLException("Unexpected handshake status " + status);
+            }
+        }
+        sendHandshakeFlight();
+    }
+
+    void sendHandshakeFlight() throws IOException {
+        synchronized (writeLock) {
+            if (handshakeFlight.size() > 0) {
+                handshakeFlight.writeTo(socketOutputStream);
+                socketOutputStream.flush();
+                handshakeFlight.reset();
+            }
+        }
+    }
+
+    SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * @return the number of decrypted bytes that can be read without blocking - complete records already received by
+     *     the socket are decrypted to determine this
+     */
+    int available() throws IOException {
+        synchronized (readLock) {
+            while (!applicationIn.hasRemaining() && !endOfStream) {
+                int before = networkIn.remaining();
+                if (before == 0 && socketInputStream.available() == 0) {
+                    break;
+                }
+                handleHandshakeStatus(unwrap(false));
+                if (networkIn.remaining() == before && socketInputStream.available() == 0) {
+                    // Only part of a record has arrived
+                    break;
+                }
+            }
+            return applicationIn.remaining();
+        }
+    }
+
+    int read(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        synchronized (readLock) {
+            while (!applicationIn.hasRemaining()) {
+                if (endOfStream) {
+                    return -1;
+                }
+                handleHandshakeStatus(unwrap(true));
+            }
+
+            int readCount = Math.min(length, applicationIn.remaining());
+            applicationIn.get(data, offset, readCount);
+            return readCount;
+        }
+    }
+
+    void write(byte[] data, int offset, int length) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(data, offset, length);
+        do {
+            SSLEngineResult.HandshakeStatus status = wrap(source);
+            if (status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP && source.hasRemaining()) {
+                // The peer started a new handshake - the reply has to be read before more data can be sent
+                synchronized (readLock) {
+                    handleHandshakeStatus(unwrap(true));
+                }
+            } else {
+                handleHandshakeStatus(status);
+            }
+        } while (source.hasRemaining());
+    }
+
+    /**
+     * Send a close_notify to the peer.  The peer sees the end of the stream, but data can still be read from it.
+     */
+    void shutdownOutput() throws IOException {
+        engine.closeOutbound();
+        wrap(EMPTY);
+    }
+
+    /**
+     * Send a close_notify to the peer, ignoring any failure - the socket is about to be closed.
+     */
+    void close() {
+        try {
+            shutdownOutput();
+        } catch (IOException ignored) {
+            // The socket is being closed anyway
+        }
+    }
+
+    /**
+     * Encrypt data from the source and send it to the socket.
+     */
+    SSLEngineResult.HandshakeStatus wrap(ByteBuffer source) throws IOException {
+        synchronized (writeLock) {
+            while (true) {
+                ((Buffer) networkOut).clear();
+                SSLEngineResult result = engine.wrap(source, networkOut);
+                switch (result.getStatus()) {
+                    case OK:
+                    case CLOSED:
+                        if (result.bytesProduced() > 0 && handshakeFlight != null) {
+                            handshakeFlight.write(networkOut.array(), 0, networkOut.position());
+                        } else if (result.bytesProduced() > 0) {
+                            socketOutputStream.write(networkOut.array(), 0, networkOut.position());
+                            socketOutputStream.flush();
+                        } else if (result.getStatus() == SSLEngineResult.Status.CLOSED && source.hasRemaining()) {
+                            throw new SocketException("TLS connection has been closed");
+                        }
+                        return result.getHandshakeStatus();
+                    case BUFFER_OVERFLOW:
+                        networkOut = ByteBuffer.allocate(Math.max(networkOut.capacity() * 2, engine.getSession().getPacketBufferSize()));
+                        break;
+                    default:
+                        throw new SSLException("Unexpected wrap status " + result.getStatus());
+                }
+            }
+        }
+    }
+
+    /**
+     * Decrypt the next record into the application buffer - must be called while holding the read lock.
+     *
+     * @param blocking if true, block reading from the socket until a complete record has been received - otherwise
+     *                 only the data the socket already has is used
+     */
+    SSLEngineResult.HandshakeStatus unwrap(boolean blocking) throws IOException {
+        if (!networkIn.hasRemaining() && readFromSocket(blocking) <= 0) {
+            return engine.getHandshakeStatus();
+        }
+
+        while (true) {
+            applicationIn.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(networkIn, applicationIn);
+            } finally {
+                ((Buffer) applicationIn).flip();
+            }
+
+            switch (result.getStatus()) {
+                case OK:
+                    return result.getHandshakeStatus();
+                case CLOSED:
+                    endOfStream = true;
+                    return result.getHandshakeStatus();
+                case BUFFER_UNDERFLOW:
+                    if (readFromSocket(blocking) <= 0) {
+                        return engine.getHandshakeStatus();
+                    }
+                    break;
+                case BUFFER_OVERFLOW:
+                    ByteBuffer larger = ByteBuffer.allocate(applicationIn.remaining() + engine.getSession().getApplicationBufferSize());
+                    applicationIn = (ByteBuffer) ((Buffer) larger.put(applicationIn)).flip();
+                    break;
+                default:
+                    throw new SSLException("Unexpected unwrap status " + result.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Read from the socket into the network buffer.
+     *
+     * @param blocking if true, block until at least one byte is read - otherwise only read what the socket already has
+     *
+     * @return the number of bytes read, or -1 if the socket has reached the end of the stream
+     */
+    int readFromSocket(boolean blocking) throws IOException {
+        if (!blocking && socketInputStream.available() == 0) {
+            return 0;
+        }
+
+        if (networkIn.capacity() - networkIn.remaining() == 0) {
+            // A record larger than the current buffer
+            ByteBuffer larger = ByteBuffer.allocate(networkIn.capacity() + engine.getSession().getPacketBufferSize());
+            networkIn = (ByteBuffer) ((Buffer) larger.put(networkIn)).flip();
+        }
+
+        networkIn.compact();
+        try {
+            int maxCount = blocking ? networkIn.remaining() : Math.min(networkIn.remaining(), socketInputStream.available());
+            int readCount = socketInputStream.read(networkIn.array(), networkIn.arrayOffset() + networkIn.position(), maxCount);
+            if (readCount == -1) {
+                endOfStream = true;
+                try {
+                    engine.closeInbound();
+                } catch (SSLException truncationEx) {
+                    // The peer closed the socket without sending a close_notify
+                }
+                return -1;
+            }
+            ((Buffer) networkIn).position(networkIn.position() + readCount);
+            return readCount;
+        } finally {
+            ((Buffer) networkIn).flip();
+        }
+    }
+
+    void handleHandshakeStatus(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+                case NEED_TASK:
+                    status = runDelegatedTasks();
+                    break;
+                case NEED_WRAP:
+                    if (engine.isOutboundDone()) {
+                        return;
+                    }
+                    status = wrap(EMPTY);
+                    break;
+                default:
+                    // Anything that needs unwrapping will be handled by the next read
+                    return;
+            }
+        }
+    }
+
+    SSLEngineResult.HandshakeStatus runDelegatedTasks() throws SSLException {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException taskEx) {
+                throw new SSLException("TLS handshake task failed", taskEx);
+            }
+        }
+        return engine.getHandshakeStatus();
+    }
+
+    class TlsInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int readCount = TlsTransport.this.read(single, 0, 1);
+            return (readCount == -1) ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            return TlsTransport.this.read(data, offset, length);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return TlsTransport.this.available();
+        }
+    }
+
+    class TlsOutputStream extends OutputStream {
+        @Override
+        public void write(int data) throws IOException {
+            TlsTransport.this.write(new byte[] {(byte) data}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            TlsTransport.this.write(data, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            socketOutputStream.flush();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.Socket;
+import java.net.SocketAddress;
+
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The byte stream underneath a SimpleTcpConnection - a TCP or Unix domain socket channel, or an in-memory loopback.
+ */
+interface Transport extends Closeable {
+    /**
+     * @return the TCP socket, or null if the transport is not a TCP socket
+     */
+    Socket getSocket();
+
+    /**
+     * @return the socket channel underneath the transport, or null if the transport does not have one - the channel
+     *     may be non-blocking, so file transfers go through transferFrom and transferTo
+     */
+    ByteChannel getChannel();
+
+    /**
+     * @return a blocking channel that reads straight from the socket channel into the caller's buffer, or null if the
+     *     transport does not have a socket channel
+     */
+    ReadableByteChannel getReadableChannel();
+
+    /**
+     * Write count bytes from the file, starting at position, straight from the file to the channel - blocking until
+     * they have been written.  Only supported when getChannel() is not null.
+     *
+     * @return the number of bytes written - less than count if the end of the file was reached
+     */
+    long transferFrom(FileChannel source, long position, long count) throws IOException;
+
+    /**
+     * Write the data that is available without blocking, up to maxBytes, straight from the channel to the file at
+     * position.  Only supported when getChannel() is not null.
+     *
+     * @return the number of bytes written to the file
+     */
+    long transferTo(FileChannel target, long position, long maxBytes) throws IOException;
+
+    SocketAddress getLocalAddress();
+
+    SocketAddress getRemoteAddress();
+
+    boolean isOpen();
+
+    boolean isClosed();
+
+    boolean isInputShutdown();
+
+    boolean isOutputShutdown();
+
+    /**
+     * @return true if the peer has closed its end and everything it sent has been read - as seen by the last read or
+     *     call to available(), so a FIN is noticed without blocking
+     */
+    boolean isEndOfStream();
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    int available() throws IOException;
+
+    void shutdownInput() throws IOException;
+
+    void shutdownOutput() throws IOException;
+
+    /**
+     * Abort the connection - for TCP sockets this sends a RST instead of a FIN.
+     */
+    void reset() throws IOException;
+}
@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.IOException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Access to Unix domain socket channels (JDK 16+) while still compiling for, and running on, Java 8.
+ *
+ * The JDK 16 API (UnixDomainSocketAddress, StandardProtocolFamily.UNIX and the ProtocolFamily channel factories) is
+ * looked up reflectively the first time it is needed.
+ */
+final class UnixDomainSockets {
+    static final String UNSUPPORTED_MESSAGE = "Unix domain sockets require Java 16 or later - running on Java %s";
+
+    private static volatile Api api;
+
+    private UnixDomainSockets() {
+    }
+
+    /**
+     * @return true if the running JVM supports Unix domain socket channels
+     */
+    static boolean isSupported() {
+        return getApi() != null;
+    }
+
+    static SocketAddress address(Path path) {
+        return (SocketAddress) invoke(requireApi().addressFactory, null, path);
+    }
+
+    static ServerSocketChannel openServerSocketChannel() throws IOException {
+        return (ServerSocketChannel) invokeWithIOException(requireApi().serverChannelFactory, null, requireApi().unixFamily);
+    }
+
+    static SocketChannel openSocketChannel() throws IOException {
+        return (SocketChannel) invokeWithIOException(requireApi().channelFactory, null, requireApi().unixFamily);
+    }
+
+    static Api requireApi() {
+        Api answer = getApi();
+        if (answer == null) {
+            throw new UnsupportedOperationException(String.format(UNSUPPORTED_MESSAGE, System.getProperty("java.version")));
+        }
+        return answer;
+    }
+
+    static Api getApi() {
+        if (api == null) {
+            synchronized (UnixDomainSockets.class) {
+                if (api == null) {
+                    api = Api.lookup();
+                }
+            }
+        }
+        return api.supported ? api : null;
+    }
+
+    static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException accessEx) {
+            throw new IllegalStateException(String.format("Failed to invoke %s", method), accessEx);
+        } catch (InvocationTargetException invocationEx) {
+            Throwable cause = invocationEx.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(String.format("Failed to invoke %s", method), cause);
+        }
+    }
+
+    static Object invokeWithIOException(Method method, Object target, Object... args) throws IOException {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException accessEx) {
+            throw new IllegalStateException(String.format("Failed to invoke %s", method), accessEx);
+        } catch (InvocationTargetException invocationEx) {
+            Throwable cause = invocationEx.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(String.format("Failed to invoke %s", method), cause);
+        }
+    }
+
+    static class Api {
+        final boolean supported;
+        final ProtocolFamily unixFamily;
+        final Method addressFactory;
+        final Method serverChannelFactory;
+        final Method channelFactory;
+
+        Api(boolean supported, ProtocolFamily unixFamily, Method addressFactory, Method serverChannelFactory, Method channelFactory) {
+            this.supported = supported;
+            this.unixFamily = unixFamily;
+            this.addressFactory = addressFactory;
+            this.serverChannelFactory = serverChannelFactory;
+            this.channelFactory = channelFactory;
+        }
+
+        static Api lookup() {
+            try {
+                return new Api(true,
+                    StandardProtocolFamily.valueOf("UNIX"),
+                    Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class),
+                    ServerSocketChannel.class.getMethod("open", ProtocolFamily.class),
+                    SocketChannel.class.getMethod("open", ProtocolFamily.class));
+            } catch (IllegalArgumentException | ReflectiveOperationException notSupportedEx) {
+                return new Api(false, null, null, null, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+/**
+ * Notified when a connection's write queue crosses its watermarks.
+ *
+ * Called on the thread that caused the change - the writing thread when the queue rises above the high watermark, and
+ * the connection's writer thread when it falls to the low watermark - so implementations must not block.
+ */
+public interface WritabilityListener {
+    /**
+     * @param writable false when the queued data has risen above the high watermark, true when it has fallen back to
+     *                 the low watermark
+     */
+    void writabilityChanged(boolean writable);
+}
@@ -0,0 +1,406 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An outbound queue for a connection, written to the peer by a writer loop on an I/O worker (see {@link IoWorkers}) so a
+ * slow peer never blocks the writing thread indefinitely.
+ *
+ * Any number of threads can write to the queue at the same time - each write is queued as a complete message on a
+ * lock-free MpscQueue, so messages from different threads are never interleaved and producers never contend on a lock.
+ * The single writer thread drains whatever has been queued and gathers small messages into one batch per write to the
+ * transport.
+ *
+ * Writes are queued without blocking until the queued data rises above the high watermark.  The queue is then
+ * unwritable - further writes wait until the writer thread has drained the queue to the low watermark, for no longer
+ * than the write timeout.  The write timeout is also a deadline for the writer thread: if the peer accepts no data for
+ * that long the transport is closed, and the failure is reported to every later write and flush.
+ */
+class WriteQueue {
+    static final int WRITE_SLICE_SIZE = 16 * 1024;
+    static final int BATCH_SIZE = 64 * 1024;
+
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    final String name;
+    final OutputStream target;
+    final Transport transport;
+    final int highWatermark;
+    final int lowWatermark;
+    final int writeTimeout;
+    final WritabilityListener listener;
+
+    final MpscQueue<byte[]> messages = new MpscQueue<>();
+    final AtomicLong queuedBytes = new AtomicLong();
+
+    volatile boolean writable = true;
+    volatile boolean closed;
+    volatile IOException failure;
+
+    // Threads waiting on the lock for the queue to drain - the writer only takes the lock when there are any
+    final Object lock = new Object();
+    volatile int waiters;
+
+    volatile boolean writerParked;
+
+    final AtomicLong blockedNanos = new AtomicLong();
+    volatile long unwritableCount;
+    volatile long batchCount;
+
+    // The I/O worker running the writer loop - null until the loop starts
+    volatile Thread writerThread;
+    final OutputStream outputStream = new WriteQueueOutputStream();
+
+    /**
+     * @param target       the stream the queued data is written to
+     * @param transport    the transport under the target stream - closed if the write timeout expires
+     * @param writeTimeout the write deadline in milliseconds - zero waits forever
+     * @param listener     notified when the writability changes, or null
+     */
+    WriteQueue(String name, OutputStream target, Transport transport, int highWatermark, int lowWatermark, int writeTimeout, WritabilityListener listener) {
+        if (lowWatermark < 0 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException(String.format("Illegal write watermarks [low=%d, high=%d].  The low watermark must be between zero and the high watermark",
+                lowWatermark, highWatermark));
+        }
+
+        this.name = name;
+        this.target = target;
+        this.transport = transport;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.writeTimeout = writeTimeout;
+        this.listener = listener;
+
+        IoWorkers.shared().execute(String.format("%s writer %s", name, transport.getRemoteAddress()), this::writeQueuedData);
+    }
+
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    boolean isWritable() {
+        return writable && failure == null;
+    }
+
+    long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return the total time writing threads have spent waiting for the queue to fall to the low watermark
+     */
+    long getBlockedNanos() {
+        return blockedNanos.get();
+    }
+
+    /**
+     * @return the number of times the queue has risen above the high watermark
+     */
+    long getUnwritableCount() {
+        return unwritableCount;
+    }
+
+    /**
+     * @return the number of writes to the transport - less than the number of messages when messages are batched
+     */
+    long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Queue a complete message, waiting (for no longer than the write timeout) while the queue is unwritable.
+     */
+    void write(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+
+        checkFailure();
+        if (!writable) {
+            long startNanos = System.nanoTime();
+            try {
+                await(() -> writable, "wait for the write queue to drain to the low watermark");
+            } finally {
+                blockedNanos.addAndGet(System.nanoTime() - startNanos);
+            }
+        }
+
+        enqueue(data, offset, length);
+    }
+
+    /**
+     * Queue a complete message without waiting.
+     *
+     * @return true if the message was queued, false (with nothing queued) if the queue is unwritable
+     */
+    boolean offer(byte[] data, int offset, int length) throws IOException {
+        checkFailure();
+        if (!writable) {
+            return false;
+        }
+
+        if (length > 0) {
+            enqueue(data, offset, length);
+        }
+        return true;
+    }
+
+    void enqueue(byte[] data, int offset, int length) {
+        byte[] message = new byte[length];
+        System.arraycopy(data, offset, message, 0, length);
+        messages.offer(message);
+        long queued = queuedBytes.addAndGet(length);
+        if (writerParked) {
+            LockSupport.unpark(writerThread);
+        }
+
+        if (queued > highWatermark && writable) {
+            boolean becameUnwritable = false;
+            synchronized (lock) {
+                if (writable && queuedBytes.get() > highWatermark) {
+                    writable = false;
+                    unwritableCount++;
+                    becameUnwritable = true;
+                }
+            }
+            if (becameUnwritable) {
+                fireWritabilityChanged(false);
+                // The writer may have drained the queue before the flag was cleared
+                checkWritable();
+            }
+        }
+    }
+
+    /**
+     * Make the queue writable again if it has drained to the low watermark.
+     */
+    void checkWritable() {
+        if (!writable && queuedBytes.get() <= lowWatermark) {
+            boolean becameWritable = false;
+            synchronized (lock) {
+                if (!writable && queuedBytes.get() <= lowWatermark) {
+                    writable = true;
+                    becameWritable = true;
+                    lock.notifyAll();
+                }
+            }
+            if (becameWritable) {
+                fireWritabilityChanged(true);
+            }
+        }
+    }
+
+    /**
+     * Wait (for no longer than the write timeout) until all of the queued data has been written to the peer.
+     */
+    void flush() throws IOException {
+        if (queuedBytes.get() > 0) {
+            await(() -> queuedBytes.get() == 0, "flush the write queue");
+        }
+        checkFailure();
+        target.flush();
+    }
+
+    /**
+     * Wait for the condition, failing if the writer fails or the write timeout expires.
+     */
+    void await(Condition condition, String description) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(writeTimeout);
+        synchronized (lock) {
+            waiters++;
+            try {
+                while (!condition.isSatisfied()) {
+                    checkFailure();
+                    long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (writeTimeout > 0 && remainingMillis <= 0) {
+                        throw new SocketTimeoutException(String.format("Timed out after %d-ms waiting to %s - %d bytes queued", writeTimeout, description, queuedBytes.get()));
+                    }
+                    try {
+                        lock.wait((writeTimeout > 0) ? remainingMillis : 0);
+                    } catch (InterruptedException interruptedEx) {
+                        Thread.currentThread().interrupt();
+                        throw new SocketException(String.format("Interrupted while waiting to %s", description));
+                    }
+                }
+            } finally {
+                waiters--;
+            }
+        }
+        checkFailure();
+    }
+
+    void checkFailure() throws IOException {
+        IOException writerFailure = failure;
+        if (writerFailure != null) {
+            throw new SocketException(String.format("Write queue failed: %s", writerFailure.getMessage()));
+        }
+        if (closed) {
+            throw new SocketException("Write queue is closed");
+        }
+    }
+
+    /**
+     * Stop the writer loop, discarding any data that has not been written.
+     */
+    void close() {
+        closed = true;
+        Thread writer = writerThread;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+        wakeWaiters();
+    }
+
+    void wakeWaiters() {
+        if (waiters > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    void writeQueuedData() {
+        // Only unparked once writerParked is set, which happens after this
+        writerThread = Thread.currentThread();
+        byte[] batch = new byte[BATCH_SIZE];
+        while (!closed) {
+            byte[] message = messages.peek();
+            if (message == null) {
+                writerParked = true;
+                if (messages.isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+                writerParked = false;
+                continue;
+            }
+
+            try {
+                long writtenBytes;
+                if (message.length >= BATCH_SIZE) {
+                    // Too big to batch - write it directly
+                    messages.poll();
+                    writeSlices(message, message.length);
+                    writtenBytes = message.length;
+                } else {
+                    int batchLength = 0;
+                    while ((message = messages.peek()) != null && batchLength + message.length <= BATCH_SIZE) {
+                        messages.poll();
+                        System.arraycopy(message, 0, batch, batchLength, message.length);
+                        batchLength += message.length;
+                    }
+                    writeSlices(batch, batchLength);
+                    writtenBytes = batchLength;
+                }
+                target.flush();
+                batchCount++;
+
+                queuedBytes.addAndGet(-writtenBytes);
+                checkWritable();
+                wakeWaiters();
+            } catch (IOException writeEx) {
+                if (!closed) {
+                    failure = writeEx;
+                    log.warn(String.format("%s writer for %s failed", name, transport.getRemoteAddress()), writeEx);
+                }
+                break;
+            }
+        }
+
+        // Discard anything left - producers check for the failure or close before queuing more
+        while (messages.poll() != null) {
+            // discard
+        }
+        queuedBytes.set(0);
+        wakeWaiters();
+    }
+
+    /**
+     * Write the data in slices, so the write deadline measures how long the peer has accepted no data rather than the
+     * time taken by the whole write.
+     */
+    void writeSlices(byte[] data, int length) throws IOException {
+        for (int offset = 0; offset < length; offset += WRITE_SLICE_SIZE) {
+            HashedWheelTimer.Timeout writeDeadline = null;
+            if (writeTimeout > 0) {
+                writeDeadline = HashedWheelTimer.shared().newTimeout(() -> {
+                    try {
+                        transport.close();
+                    } catch (IOException closeEx) {
+                        log.debug("{} ignoring exception encountered closing connection after write timeout", name, closeEx);
+                    }
+                }, writeTimeout, TimeUnit.MILLISECONDS);
+            }
+
+            try {
+                target.write(data, offset, Math.min(WRITE_SLICE_SIZE, length - offset));
+            } catch (IOException writeEx) {
+                if (writeDeadline != null && writeDeadline.isExpired()) {
+                    throw new SocketTimeoutException(String.format("Peer accepted no data for %d-ms", writeTimeout));
+                }
+                throw writeEx;
+            } finally {
+                if (writeDeadline != null) {
+                    writeDeadline.cancel();
+                }
+            }
+        }
+    }
+
+    void fireWritabilityChanged(boolean nowWritable) {
+        if (listener != null) {
+            try {
+                listener.writabilityChanged(nowWritable);
+            } catch (RuntimeException listenerEx) {
+                log.warn(String.format("%s ignoring exception thrown by writability listener", name), listenerEx);
+            }
+        }
+    }
+
+    interface Condition {
+        boolean isSatisfied();
+    }
+
+    class WriteQueueOutputStream extends OutputStream {
+        @Override
+        public void write(int data) throws IOException {
+            WriteQueue.this.write(new byte[] {(byte) data}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            WriteQueue.this.write(data, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            WriteQueue.this.flush();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.net.SocketException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ByteRingTest {
+    @Test
+    public void testCapacityRounding() throws Exception {
+        assertEquals(1, new ByteRing(1).capacity());
+        assertEquals(8, new ByteRing(5).capacity());
+        assertEquals(8, new ByteRing(8).capacity());
+    }
+
+    @Test
+    public void testWrapAround() throws Exception {
+        ByteRing ring = new ByteRing(8);
+        byte[] received = new byte[8];
+
+        for (int i = 0; i < 10; ++i) {
+            byte[] data = new byte[] {(byte) i, (byte) (i + 1), (byte) (i + 2), (byte) (i + 3), (byte) (i + 4)};
+            ring.write(data, 0, data.length);
+            assertEquals(data.length, ring.available());
+            assertEquals(data.length, ring.read(received, 0, received.length));
+            for (int j = 0; j < data.length; ++j) {
+                assertEquals(data[j], received[j]);
+            }
+        }
+    }
+
+    @Test
+    public void testEndOfStreamAfterData() throws Exception {
+        ByteRing ring = new ByteRing(8);
+        ring.write(new byte[] {1, 2, 3}, 0, 3);
+        ring.closeWrite();
+
+        byte[] received = new byte[8];
+        assertEquals(3, ring.read(received, 0, received.length));
+        assertEquals(-1, ring.read(received, 0, received.length));
+    }
+
+    @Test
+    public void testResetDiscardsData() throws Exception {
+        ByteRing ring = new ByteRing(8);
+        ring.write(new byte[] {1, 2, 3}, 0, 3);
+        ring.reset();
+
+        try {
+            ring.read(new byte[8], 0, 8);
+            fail("Read should fail after a reset");
+        } catch (SocketException expectedEx) {
+            assertEquals("Connection reset", expectedEx.getMessage());
+        }
+    }
+
+    @Test
+    public void testWriteAfterCloseRead() throws Exception {
+        ByteRing ring = new ByteRing(8);
+        ring.closeRead();
+
+        try {
+            ring.write(new byte[] {1}, 0, 1);
+            fail("Write should fail once the reader has gone");
+        } catch (SocketException expectedEx) {
+            assertEquals("Broken pipe", expectedEx.getMessage());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrentProducerConsumer() throws Exception {
+        final ByteRing ring = new ByteRing(64);
+        final byte[] data = new byte[1024 * 1024];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) (i * 31);
+        }
+
+        Thread producer = new Thread(() -> {
+            try {
+                int offset = 0;
+                while (offset < data.length) {
+                    // Odd-sized writes, so the writes straddle the end of the ring
+                    int writeCount = Math.min(37, data.length - offset);
+                    ring.write(data, offset, writeCount);
+                    offset += writeCount;
+                }
+                ring.closeWrite();
+            } catch (Exception writeEx) {
+                ring.reset();
+            }
+        });
+        producer.start();
+
+        byte[] received = new byte[data.length];
+        int offset = 0;
+        int readCount;
+        while ((readCount = ring.read(received, offset, Math.min(53, received.length - offset))) > 0) {
+            offset += readCount;
+        }
+        producer.join();
+
+        assertEquals(data.length, offset);
+        assertArrayEquals(data, received);
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.ByteArrayOutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompositeBufferTest {
+    static final byte[] DATA = "0123456789ABCDEFGHIJ".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The test data in chunks of 3, 7 and 10 bytes - the first chunk array has unused space at the end.
+     */
+    CompositeBuffer createBuffer() {
+        CompositeBuffer.Builder builder = new CompositeBuffer.Builder();
+        builder.add(Arrays.copyOfRange(DATA, 0, 5), 3);
+        builder.add(Arrays.copyOfRange(DATA, 3, 10), 7);
+        builder.add(new byte[0], 0);
+        builder.add(Arrays.copyOfRange(DATA, 10, 20), 10);
+        return builder.build();
+    }
+
+    @Test
+    public void testIndexedAccess() throws Exception {
+        CompositeBuffer buffer = createBuffer();
+
+        assertEquals(DATA.length, buffer.size());
+        assertEquals(3, buffer.getChunkCount());
+        for (int i = 0; i < DATA.length; ++i) {
+            assertEquals("Unexpected byte at index " + i, DATA[i], buffer.get(i));
+        }
+        assertArrayEquals(DATA, buffer.toByteArray());
+
+        try {
+            buffer.get(DATA.length);
+            fail("Index beyond the end of the buffer should be rejected");
+        } catch (IndexOutOfBoundsException expectedEx) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSlice() throws Exception {
+        CompositeBuffer buffer = createBuffer();
+
+        CompositeBuffer slice = buffer.slice(2, 15);
+        assertEquals(13, slice.size());
+        assertEquals(3, slice.getChunkCount());
+        assertEquals("23456789ABCDE", slice.toString(StandardCharsets.US_ASCII));
+        assertEquals('2', slice.get(0));
+        assertEquals('E', slice.get(12));
+
+        CompositeBuffer nested = slice.slice(2, 5);
+        assertEquals(1, nested.getChunkCount());
+        assertEquals("456", nested.toString(StandardCharsets.US_ASCII));
+
+        assertTrue(buffer.slice(4, 4).isEmpty());
+        assertSame(buffer, buffer.slice(0, DATA.length));
+    }
+
+    @Test
+    public void testChunksAreReadOnly() throws Exception {
+        for (ByteBuffer chunk : createBuffer().slice(1, 20).getChunks()) {
+            assertTrue(chunk.isReadOnly());
+        }
+        assertEquals(2, createBuffer().slice(1, 20).getChunks().get(0).remaining());
+    }
+
+    @Test
+    public void testWriteTo() throws Exception {
+        CompositeBuffer buffer = createBuffer();
+
+        ByteArrayOutputStream streamTarget = new ByteArrayOutputStream();
+        assertEquals(DATA.length, buffer.writeTo(streamTarget));
+        assertArrayEquals(DATA, streamTarget.toByteArray());
+
+        ByteArrayOutputStream channelTarget = new ByteArrayOutputStream();
+        assertEquals(8, buffer.slice(1, 9).writeTo(Channels.newChannel(channelTarget)));
+        assertEquals("12345678", new String(channelTarget.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test(timeout = 10000)
+    public void testReadComposite() throws Exception {
+        SimpleTcpServer tcpServer = new SimpleTcpServer("composite-server").loopbackName("composite-buffer-test").start();
+        SimpleTcpClient tcpClient = null;
+        try {
+            tcpServer.acceptConnection();
+            tcpClient = new SimpleTcpClient("composite-client").loopbackName("composite-buffer-test").start();
+            for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+                Thread.sleep(10);
+            }
+
+            tcpClient.write(DATA).flush();
+            while (tcpServer.available() < DATA.length) {
+                Thread.sleep(10);
+            }
+
+            CompositeBuffer received = tcpServer.readComposite();
+            assertArrayEquals(DATA, received.toByteArray());
+            assertTrue(tcpServer.readComposite().isEmpty());
+
+            received.writeTo(tcpServer.getOutputStream());
+            tcpServer.getOutputStream().flush();
+            while (tcpClient.available() < DATA.length) {
+                Thread.sleep(10);
+            }
+            assertArrayEquals(DATA, tcpClient.readComposite().toByteArray());
+        } finally {
+            if (tcpClient != null) {
+                tcpClient.stop();
+            }
+            tcpServer.stop();
+        }
+    }
+}
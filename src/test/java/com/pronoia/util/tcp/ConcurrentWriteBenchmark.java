@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the throughput of many threads writing small messages to one connection through the write queue with the
+ * same threads writing directly under an external lock.
+ *
+ * Not run by default (the class name does not match the Surefire includes) - run it explicitly with
+ * <pre>
+ *     mvn test -Dtest=ConcurrentWriteBenchmark -Dwrite.benchmark.messages=1000000
+ * </pre>
+ */
+public class ConcurrentWriteBenchmark {
+    static final int MESSAGE_SIZE = 64;
+    static final int[] PRODUCER_COUNTS = {1, 2, 4, 8};
+
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    int messages = Integer.getInteger("write.benchmark.messages", 400000);
+
+    @Test
+    public void testProducerScaling() throws Exception {
+        for (int producerCount : PRODUCER_COUNTS) {
+            double locked = measure(producerCount, false);
+            double queued = measure(producerCount, true);
+            log.info("{} producers: locked direct writes {} msgs/s, queued writes {} msgs/s",
+                producerCount, String.format("%,.0f", locked), String.format("%,.0f", queued));
+        }
+    }
+
+    /**
+     * @return the number of messages per second written by all of the producers together
+     */
+    double measure(int producerCount, boolean queueWrites) throws Exception {
+        SimpleTcpServer tcpServer = new SimpleTcpServer("write-benchmark-server").start();
+        tcpServer.acceptConnection();
+        final SimpleTcpClient tcpClient = new SimpleTcpClient("write-benchmark-client").port(tcpServer.getPort()).queueWrites(queueWrites).start();
+        try {
+            while (!tcpServer.isClientConnected()) {
+                Thread.yield();
+            }
+
+            final long totalBytes = (long) messages * MESSAGE_SIZE;
+            final InputStream inputStream = tcpServer.getInputStream();
+            Thread reader = new Thread(() -> {
+                byte[] buffer = new byte[64 * 1024];
+                long received = 0;
+                try {
+                    int readCount;
+                    while (received < totalBytes && (readCount = inputStream.read(buffer)) != -1) {
+                        received += readCount;
+                    }
+                } catch (Exception readEx) {
+                    log.warn("Benchmark reader failed", readEx);
+                }
+            }, "write-benchmark-reader");
+            reader.start();
+
+            final int perProducer = messages / producerCount;
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] producers = new Thread[producerCount];
+            for (int p = 0; p < producerCount; ++p) {
+                producers[p] = new Thread(() -> {
+                    byte[] message = new byte[MESSAGE_SIZE];
+                    try {
+                        start.await();
+                    } catch (InterruptedException interruptedEx) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; ++i) {
+                        if (queueWrites) {
+                            tcpClient.write(message);
+                        } else {
+                            synchronized (tcpClient) {
+                                tcpClient.write(message);
+                            }
+                        }
+                    }
+                });
+                producers[p].start();
+            }
+
+            long startNanos = System.nanoTime();
+            start.countDown();
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            tcpClient.flush();
+            reader.join(TimeUnit.SECONDS.toMillis(30));
+            long elapsedNanos = System.nanoTime() - startNanos;
+
+            return (double) perProducer * producerCount * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        } finally {
+            tcpClient.stop();
+            tcpServer.stop();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures how fast a continuously accepting SimpleTcpServer absorbs a storm of connects over TCP on 127.0.0.1.
+ *
+ * Not run by default (the class name does not match the Surefire includes) - run it explicitly with
+ * <pre>
+ *     mvn test -Dtest=ConnectionStormBenchmark -Dstorm.threads=16 -Dstorm.seconds=10 -Dstorm.backlog=4096
+ * </pre>
+ */
+public class ConnectionStormBenchmark {
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    int threads = Integer.getInteger("storm.threads", 8);
+    int seconds = Integer.getInteger("storm.seconds", 5);
+    int backlog = Integer.getInteger("storm.backlog", 4096);
+
+    @Test
+    public void testConnectionStorm() throws Exception {
+        SimpleTcpServer tcpServer = new SimpleTcpServer("storm-benchmark-server").continuousAccept(true).backlog(backlog).start();
+        try {
+            ConnectionStorm.Result result = new ConnectionStorm(tcpServer)
+                .clientFactory(() -> new SimpleTcpClient("storm-benchmark-client").host("127.0.0.1").port(tcpServer.getPort()))
+                .threads(threads)
+                .duration(seconds, TimeUnit.SECONDS)
+                .run();
+
+            log.info("{} threads, backlog {}: {}", threads, backlog, result);
+            assertTrue(result.getConnectedCount() > 0);
+        } finally {
+            tcpServer.stop();
+        }
+    }
+}
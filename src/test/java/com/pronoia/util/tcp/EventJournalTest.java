@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventJournalTest {
+    @Test
+    public void testCapacityIsRoundedUpToPowerOfTwo() throws Exception {
+        assertEquals(0, new EventJournal(0).getCapacity());
+        assertEquals(1, new EventJournal(1).getCapacity());
+        assertEquals(8, new EventJournal(5).getCapacity());
+        assertEquals(16, new EventJournal(16).getCapacity());
+    }
+
+    @Test
+    public void testRecordAndSnapshot() throws Exception {
+        EventJournal journal = new EventJournal(16);
+
+        journal.record("test-server", 1, EventJournal.EventType.ACCEPTED, 0);
+        journal.record("test-server", 1, EventJournal.EventType.READ, 42);
+
+        List<EventJournal.Event> events = journal.snapshot();
+
+        assertEquals(2, events.size());
+        assertEquals(EventJournal.EventType.ACCEPTED, events.get(0).getType());
+        assertEquals("test-server", events.get(1).getSource());
+        assertEquals(1, events.get(1).getConnectionId());
+        assertEquals(EventJournal.EventType.READ, events.get(1).getType());
+        assertEquals(42, events.get(1).getByteCount());
+        assertTrue(events.get(0).getTimestamp() <= events.get(1).getTimestamp());
+    }
+
+    @Test
+    public void testOldestEventsAreOverwritten() throws Exception {
+        EventJournal journal = new EventJournal(8);
+
+        for (int i = 0; i < 20; ++i) {
+            journal.record("test-client", i, EventJournal.EventType.WRITE, i);
+        }
+
+        List<EventJournal.Event> events = journal.snapshot();
+
+        assertEquals(8, events.size());
+        assertEquals(12, events.get(0).getSequence());
+        assertEquals(19, events.get(7).getByteCount());
+        assertEquals(2, journal.snapshotSince(18).size());
+    }
+
+    @Test
+    public void testDisabledJournal() throws Exception {
+        EventJournal journal = new EventJournal(0);
+
+        journal.record("test-server", 1, EventJournal.EventType.ACCEPTED, 0);
+
+        assertFalse(journal.isEnabled());
+        assertEquals(0, journal.getSequence());
+        assertTrue(journal.snapshot().isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrentWriters() throws Exception {
+        final EventJournal journal = new EventJournal(1024);
+        final int writerCount = 4;
+        final int eventsPerWriter = 10000;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < writerCount; ++i) {
+            final long connectionId = i + 1;
+            Thread writer = new Thread(() -> {
+                try {
+                    startLatch.await();
+                } catch (InterruptedException interruptedEx) {
+                    return;
+                }
+                for (int j = 0; j < eventsPerWriter; ++j) {
+                    journal.record("writer", connectionId, EventJournal.EventType.WRITE, connectionId * 1000000 + j);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+
+        startLatch.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        List<EventJournal.Event> events = journal.snapshot();
+
+        assertEquals(writerCount * eventsPerWriter, journal.getSequence());
+        assertEquals(1024, events.size());
+        for (EventJournal.Event event : events) {
+            assertEquals("Torn event " + event, event.getConnectionId(), event.getByteCount() / 1000000);
+        }
+    }
+
+    @Test
+    public void testServerAndClientEventsAreRecorded() throws Exception {
+        EventJournal journal = EventJournal.shared();
+        long startSequence = journal.getSequence();
+
+        SimpleTcpServer server = new SimpleTcpServer("journal-server").start();
+        try {
+            server.acceptConnection();
+            SimpleTcpClient client = new SimpleTcpClient("journal-client").port(server.getPort()).start();
+            Thread.sleep(100);
+
+            client.write("Hello".getBytes());
+            Thread.sleep(100);
+            assertEquals("Hello", server.readString());
+
+            client.close();
+        } finally {
+            server.stop();
+        }
+
+        List<EventJournal.EventType> serverEvents = new ArrayList<>();
+        List<EventJournal.EventType> clientEvents = new ArrayList<>();
+        for (EventJournal.Event event : journal.snapshotSince(startSequence)) {
+            if ("journal-server".equals(event.getSource())) {
+                serverEvents.add(event.getType());
+            } else if ("journal-client".equals(event.getSource())) {
+                clientEvents.add(event.getType());
+            }
+        }
+
+        assertTrue("Missing server events " + serverEvents, serverEvents.contains(EventJournal.EventType.STARTED));
+        assertTrue("Missing server events " + serverEvents, serverEvents.contains(EventJournal.EventType.ACCEPTED));
+        assertTrue("Missing server events " + serverEvents, serverEvents.contains(EventJournal.EventType.READ));
+        assertTrue("Missing server events " + serverEvents, serverEvents.contains(EventJournal.EventType.STOPPED));
+        assertEquals(EventJournal.EventType.CONNECTED, clientEvents.get(0));
+        assertEquals(EventJournal.EventType.WRITE, clientEvents.get(1));
+        assertEquals(EventJournal.EventType.CLOSED, clientEvents.get(2));
+
+        String dump = journal.dump();
+        assertTrue(dump, dump.contains("journal-client"));
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HashedWheelTimerTest {
+    HashedWheelTimer timer = new HashedWheelTimer("test-timer", 5, TimeUnit.MILLISECONDS, 8);
+
+    @Test(timeout = 10000)
+    public void testTimeoutFiresAfterDelay() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        long start = System.nanoTime();
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(latch::countDown, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue("Timeout should have fired", latch.await(5, TimeUnit.SECONDS));
+        assertTrue("Timeout fired too early", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 95);
+        assertTrue(timeout.isExpired());
+        assertFalse("Cancelling an expired timeout should fail", timeout.cancel());
+    }
+
+    @Test(timeout = 10000)
+    public void testTimeoutSpanningSeveralRounds() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        // 8 slots * 5-ms ticks = 40-ms per round
+        long start = System.nanoTime();
+        timer.newTimeout(latch::countDown, 150, TimeUnit.MILLISECONDS);
+
+        assertTrue("Timeout should have fired", latch.await(5, TimeUnit.SECONDS));
+        assertTrue("Timeout fired too early", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 145);
+    }
+
+    @Test(timeout = 10000)
+    public void testCancelledTimeoutDoesNotFire() throws Exception {
+        final AtomicInteger fired = new AtomicInteger();
+
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(fired::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue("Cancel should succeed before the timeout fires", timeout.cancel());
+        assertTrue(timeout.isCancelled());
+
+        Thread.sleep(200);
+
+        assertEquals(0, fired.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testManyTimeouts() throws Exception {
+        final int count = 10000;
+        final CountDownLatch latch = new CountDownLatch(count / 2);
+        final AtomicInteger fired = new AtomicInteger();
+
+        HashedWheelTimer.Timeout[] timeouts = new HashedWheelTimer.Timeout[count];
+        for (int i = 0; i < count; ++i) {
+            timeouts[i] = timer.newTimeout(() -> {
+                fired.incrementAndGet();
+                latch.countDown();
+            }, 500 + (i % 100), TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; i < count; i += 2) {
+            timeouts[i].cancel();
+        }
+
+        assertTrue("Timeouts should have fired", latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+
+        assertEquals(count / 2, fired.get());
+    }
+
+    @Test
+    public void testSharedInstance() throws Exception {
+        assertSame(HashedWheelTimer.shared(), HashedWheelTimer.shared());
+    }
+}
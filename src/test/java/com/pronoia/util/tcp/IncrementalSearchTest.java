@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class IncrementalSearchTest {
+    static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Feed the data to the search a chunk at a time, as it would arrive from a connection.
+     */
+    static int searchInChunks(IncrementalSearch search, byte[] data, int chunkSize) {
+        for (int length = Math.min(chunkSize, data.length); ; length = Math.min(length + chunkSize, data.length)) {
+            int end = search.search(data, length);
+            if (end >= 0 || length == data.length) {
+                return end;
+            }
+        }
+    }
+
+    static int naiveEnd(byte[] data, byte[] delimiter) {
+        outer:
+        for (int i = 0; i + delimiter.length <= data.length; ++i) {
+            for (int j = 0; j < delimiter.length; ++j) {
+                if (data[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i + delimiter.length;
+        }
+        return -1;
+    }
+
+    @Test
+    public void testDelimiterAcrossChunks() throws Exception {
+        byte[] data = bytes("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\ntrailing");
+
+        for (int chunkSize = 1; chunkSize <= data.length; ++chunkSize) {
+            assertEquals("Chunk size " + chunkSize, data.length - "trailing".length(),
+                searchInChunks(IncrementalSearch.delimiter(bytes("\r\n\r\n")), data, chunkSize));
+        }
+    }
+
+    @Test
+    public void testDelimiterMatchesNaiveSearch() throws Exception {
+        Random random = new Random(0);
+        for (int i = 0; i < 2000; ++i) {
+            // A small alphabet, so partial matches are common
+            byte[] data = new byte[random.nextInt(200)];
+            for (int j = 0; j < data.length; ++j) {
+                data[j] = (byte) ('a' + random.nextInt(3));
+            }
+            byte[] delimiter = new byte[1 + random.nextInt(5)];
+            for (int j = 0; j < delimiter.length; ++j) {
+                delimiter[j] = (byte) ('a' + random.nextInt(3));
+            }
+
+            assertEquals(naiveEnd(data, delimiter), searchInChunks(IncrementalSearch.delimiter(delimiter), data, 1 + random.nextInt(16)));
+        }
+    }
+
+    @Test
+    public void testMllpTrailer() throws Exception {
+        byte[] data = bytes("\u000bMSH|^~\\&|TEST\r\u001c\r\u000bMSH|");
+
+        assertEquals(17, searchInChunks(IncrementalSearch.delimiter(new byte[] {0x1c, 0x0d}), data, 3));
+    }
+
+    @Test
+    public void testNoMatch() throws Exception {
+        assertEquals(-1, searchInChunks(IncrementalSearch.delimiter(bytes("END")), bytes("no terminator here - EN"), 4));
+        assertEquals(-1, searchInChunks(IncrementalSearch.pattern(Pattern.compile("END\\d")), bytes("no terminator here - END"), 4));
+    }
+
+    @Test
+    public void testPatternAcrossChunks() throws Exception {
+        byte[] data = bytes("status=pending status=done code=42; more");
+
+        for (int chunkSize = 1; chunkSize <= data.length; ++chunkSize) {
+            assertEquals("Chunk size " + chunkSize, data.length - " more".length(),
+                searchInChunks(IncrementalSearch.pattern(Pattern.compile("done code=\\d+;")), data, chunkSize));
+        }
+    }
+
+    @Test
+    public void testPatternMatchesBytesAsLatin1() throws Exception {
+        byte[] data = new byte[] {'a', (byte) 0xff, (byte) 0x80, 'b'};
+
+        assertEquals(3, IncrementalSearch.pattern(Pattern.compile("\u00ff\u0080")).search(data, data.length));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyDelimiter() throws Exception {
+        IncrementalSearch.delimiter(new byte[0]);
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testEmpty() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMinNanos());
+        assertEquals(0, histogram.getMaxNanos());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; ++i) {
+            histogram.record(i);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getMinNanos());
+        assertEquals(100, histogram.getMaxNanos());
+        assertEquals(50, histogram.getValueAtPercentile(50));
+        assertEquals(99, histogram.getValueAtPercentile(99));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+        assertEquals(50.5, histogram.getMeanNanos(), 0.001);
+    }
+
+    @Test
+    public void testRelativeError() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1000; value <= 10000000000L; value = value * 3 / 2) {
+            histogram.reset();
+            histogram.record(value);
+            histogram.record(Long.MAX_VALUE);
+
+            long reported = histogram.getValueAtPercentile(50);
+            assertTrue(String.format("%d reported as %d", value, reported), reported >= value);
+            assertTrue(String.format("%d reported as %d", value, reported), reported - value <= value / 100);
+        }
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 990; ++i) {
+            histogram.record(20000);
+        }
+        for (int i = 0; i < 9; ++i) {
+            histogram.record(500000);
+        }
+        histogram.record(9000000);
+
+        assertEquals(20000, histogram.getValueAtPercentile(50), 200);
+        assertEquals(20000, histogram.getValueAtPercentile(99), 200);
+        assertEquals(500000, histogram.getValueAtPercentile(99.9), 5000);
+        assertEquals(9000000, histogram.getValueAtPercentile(100));
+        assertEquals(9000000, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void testNegativeValuesRecordedAsZero() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMaxNanos());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalPercentile() throws Exception {
+        new LatencyHistogram().getValueAtPercentile(101);
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class MessageFramingTest {
+    @Test
+    public void testLengthPrefixedRoundTrip() throws Exception {
+        MessageFraming framing = MessageFraming.lengthPrefixed();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        framing.writeFrame(stream, "first".getBytes());
+        framing.writeFrame(stream, new byte[0]);
+        framing.writeFrame(stream, new byte[70000]);
+
+        ByteArrayInputStream input = new ByteArrayInputStream(stream.toByteArray());
+        assertArrayEquals("first".getBytes(), framing.readFrame(input));
+        assertArrayEquals(new byte[0], framing.readFrame(input));
+        assertArrayEquals(new byte[70000], framing.readFrame(input));
+        assertNull(framing.readFrame(input));
+    }
+
+    @Test
+    public void testLengthPrefixedTruncatedFrame() throws Exception {
+        MessageFraming framing = MessageFraming.lengthPrefixed();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        framing.writeFrame(stream, "truncated".getBytes());
+
+        byte[] data = stream.toByteArray();
+        try {
+            framing.readFrame(new ByteArrayInputStream(data, 0, data.length - 1));
+            fail("Should have thrown an EOFException");
+        } catch (EOFException expectedEx) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDelimitedRoundTrip() throws Exception {
+        MessageFraming framing = MessageFraming.delimited((byte) '\r', (byte) '\n');
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        framing.writeFrame(stream, "first\r".getBytes());
+        framing.writeFrame(stream, "second".getBytes());
+
+        ByteArrayInputStream input = new ByteArrayInputStream(stream.toByteArray());
+        assertArrayEquals("first\r".getBytes(), framing.readFrame(input));
+        assertArrayEquals("second".getBytes(), framing.readFrame(input));
+        assertNull(framing.readFrame(input));
+    }
+
+    @Test
+    public void testDelimiterWithRepeatedPrefix() throws Exception {
+        MessageFraming framing = MessageFraming.delimited("aab".getBytes());
+
+        ByteArrayInputStream input = new ByteArrayInputStream("xaaabyaab".getBytes());
+        assertArrayEquals("xa".getBytes(), framing.readFrame(input));
+        assertArrayEquals("y".getBytes(), framing.readFrame(input));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testDelimitedUnterminatedFrame() throws Exception {
+        MessageFraming.delimited((byte) '\n').readFrame(new ByteArrayInputStream("partial".getBytes()));
+    }
+}
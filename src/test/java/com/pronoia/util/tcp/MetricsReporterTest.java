@@ -0,0 +1,184 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetricsReporterTest {
+    static final String TEST_REQUEST = "TEST REQUEST";
+
+    Path metricsFile;
+    MetricsReporter reporter;
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    @Before
+    public void setUp() throws Exception {
+        metricsFile = Files.createTempFile("tcp-metrics", ".out");
+        tcpServer = new SimpleTcpServer("metrics-server").loopbackName("metrics-test").echo(true).start();
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("metrics-client").loopbackName("metrics-test").start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (reporter != null) {
+            reporter.stop();
+        }
+        if (tcpClient != null && tcpClient.isStarted()) {
+            tcpClient.stop();
+        }
+        if (tcpServer.isStarted()) {
+            tcpServer.stop();
+        }
+        Files.deleteIfExists(metricsFile);
+    }
+
+    /**
+     * @return the CSV rows for the named fixture
+     */
+    List<String[]> csvRows(String name) throws Exception {
+        List<String[]> answer = new ArrayList<>();
+        for (String line : Files.readAllLines(metricsFile, StandardCharsets.UTF_8)) {
+            String[] fields = line.split(",");
+            if (fields[3].equals(name)) {
+                answer.add(fields);
+            }
+        }
+        return answer;
+    }
+
+    static int column(String name) {
+        return Arrays.asList(MetricsReporter.COLUMNS).indexOf(name);
+    }
+
+    @Test(timeout = 10000)
+    public void testCsvReport() throws Exception {
+        reporter = new MetricsReporter(metricsFile).period(50, TimeUnit.MILLISECONDS).start();
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush();
+        LatencyProbe.Result result = tcpClient.probe().rate(1000).duration(200, TimeUnit.MILLISECONDS).run();
+        reporter.stop();
+
+        assertNull(reporter.getFailure());
+        assertTrue("Expected several snapshots, got " + reporter.getReportCount(), reporter.getReportCount() > 2);
+        assertEquals(String.join(",", MetricsReporter.COLUMNS), Files.readAllLines(metricsFile, StandardCharsets.UTF_8).get(0));
+
+        List<String[]> clientRows = csvRows("metrics-client");
+        assertEquals(reporter.getReportCount(), clientRows.size());
+        String[] lastRow = clientRows.get(clientRows.size() - 1);
+        assertEquals(MetricsReporter.COLUMNS.length, lastRow.length);
+        assertEquals("SimpleTcpClient", lastRow[column("type")]);
+        assertEquals("1", lastRow[column("connections")]);
+        assertEquals(TEST_REQUEST.length() + result.getSentCount() * LatencyProbe.MIN_FRAME_SIZE, Long.parseLong(lastRow[column("bytesWritten")]));
+
+        long latencyCount = 0;
+        for (String[] row : clientRows) {
+            latencyCount += Long.parseLong(row[column("latencyCount")]);
+            assertTrue(Double.parseDouble(row[column("latencyP50Micros")]) <= Double.parseDouble(row[column("latencyMaxMicros")]));
+        }
+        assertEquals(result.getReceivedCount(), latencyCount);
+
+        List<String[]> serverRows = csvRows("metrics-server");
+        assertEquals(reporter.getReportCount(), serverRows.size());
+        assertEquals(lastRow[column("bytesWritten")], serverRows.get(serverRows.size() - 1)[column("bytesRead")]);
+    }
+
+    @Test(timeout = 10000)
+    public void testJsonLinesReport() throws Exception {
+        reporter = new MetricsReporter(metricsFile).format(MetricsReporter.Format.JSON_LINES).period(1, TimeUnit.HOURS).start();
+        tcpClient.write(TEST_REQUEST.getBytes()).flush();
+        reporter.stop();
+
+        assertEquals(1, reporter.getReportCount());
+        int clientRows = 0;
+        for (String line : Files.readAllLines(metricsFile, StandardCharsets.UTF_8)) {
+            assertTrue(line, line.startsWith("{\"timestamp\":") && line.endsWith("}"));
+            if (line.contains("\"name\":\"metrics-client\"")) {
+                ++clientRows;
+                assertTrue(line, line.contains("\"bytesWritten\":" + TEST_REQUEST.length() + ","));
+            }
+        }
+        assertEquals(1, clientRows);
+    }
+
+    @Test
+    public void testEncoderEscaping() throws Exception {
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        MetricsEncoder csvEncoder = MetricsEncoder.create(MetricsReporter.Format.CSV, new String[] {"name", "value"}, Channels.newChannel(csv));
+        csvEncoder.beginRow();
+        csvEncoder.value("a \"quoted\", name");
+        csvEncoder.fixed(-1005);
+        csvEncoder.endRow();
+        csvEncoder.flush();
+        assertEquals("\"a \"\"quoted\"\", name\",-1.005\n", new String(csv.toByteArray(), StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        MetricsEncoder jsonEncoder = MetricsEncoder.create(MetricsReporter.Format.JSON_LINES, new String[] {"name", "value"}, Channels.newChannel(json));
+        jsonEncoder.beginRow();
+        jsonEncoder.value("tab\t \"\u00e9\"");
+        jsonEncoder.fixed(42);
+        jsonEncoder.endRow();
+        jsonEncoder.flush();
+        assertEquals("{\"name\":\"tab\\u0009 \\\"\u00e9\\\"\",\"value\":0.042}\n", new String(json.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLargeRowsAreFlushed() throws Exception {
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        MetricsEncoder encoder = MetricsEncoder.create(MetricsReporter.Format.CSV, new String[] {"name"}, Channels.newChannel(csv));
+        char[] name = new char[3 * MetricsEncoder.BUFFER_SIZE];
+        Arrays.fill(name, 'x');
+        encoder.beginRow();
+        encoder.value(new String(name));
+        encoder.endRow();
+        encoder.flush();
+
+        assertEquals(name.length + 1, csv.size());
+    }
+
+    @Test
+    public void testStartTwice() throws Exception {
+        reporter = new MetricsReporter(metricsFile).start();
+        try {
+            reporter.start();
+            fail("Starting a running reporter should fail");
+        } catch (IllegalStateException expectedEx) {
+            assertTrue(reporter.isStarted());
+        }
+        reporter.stop();
+        assertFalse(reporter.isStarted());
+    }
+}
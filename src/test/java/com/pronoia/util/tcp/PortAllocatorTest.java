@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.net.ServerSocket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class PortAllocatorTest {
+    static final int TEST_MIN_PORT = 20000;
+    static final int TEST_MAX_PORT = 20099;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testReserveBatch() throws Exception {
+        PortAllocator allocator = new PortAllocator(TEST_MIN_PORT, TEST_MAX_PORT, temporaryFolder.getRoot().toPath());
+
+        List<PortAllocator.Reservation> reservations = allocator.reserve(10);
+
+        Set<Integer> ports = new HashSet<>();
+        for (PortAllocator.Reservation reservation : reservations) {
+            assertTrue(reservation.isValid());
+            assertTrue(reservation.getPort() >= TEST_MIN_PORT && reservation.getPort() <= TEST_MAX_PORT);
+            ports.add(reservation.getPort());
+        }
+        assertEquals("Reserved ports should be unique", 10, ports.size());
+
+        for (PortAllocator.Reservation reservation : reservations) {
+            reservation.close();
+            assertFalse(reservation.isValid());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentReservationsDoNotCollide() throws Exception {
+        final PortAllocator allocator = new PortAllocator(TEST_MIN_PORT, TEST_MAX_PORT, temporaryFolder.getRoot().toPath());
+        final List<PortAllocator.Reservation> reservations = Collections.synchronizedList(new ArrayList<PortAllocator.Reservation>());
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            futures.add(executor.submit(() -> reservations.addAll(allocator.reserve(5))));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+
+        Set<Integer> ports = new HashSet<>();
+        for (PortAllocator.Reservation reservation : reservations) {
+            ports.add(reservation.getPort());
+            reservation.close();
+        }
+        assertEquals("Reserved ports should be unique across threads", 40, ports.size());
+    }
+
+    @Test
+    public void testPortInUseIsSkipped() throws Exception {
+        try (ServerSocket inUse = new ServerSocket(TEST_MIN_PORT)) {
+            assertEquals(TEST_MIN_PORT, inUse.getLocalPort());
+            PortAllocator allocator = new PortAllocator(TEST_MIN_PORT, TEST_MIN_PORT + 1, temporaryFolder.getRoot().toPath());
+
+            PortAllocator.Reservation reservation = allocator.reserve();
+
+            assertEquals(TEST_MIN_PORT + 1, reservation.getPort());
+            reservation.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRangeExhausted() throws Exception {
+        PortAllocator allocator = new PortAllocator(TEST_MIN_PORT, TEST_MIN_PORT + 1, temporaryFolder.getRoot().toPath());
+
+        allocator.reserve(3);
+    }
+
+    @Test
+    public void testServerReservePort() throws Exception {
+        SimpleTcpServer tcpServer = new SimpleTcpServer("test-server").reservePort();
+        int port = tcpServer.getPort();
+
+        assertNotEquals(0, port);
+        assertNotNull(tcpServer.getPortReservation());
+
+        tcpServer.start();
+        assertEquals(port, tcpServer.getPort());
+
+        PortAllocator.Reservation reservation = tcpServer.getPortReservation();
+        tcpServer.stop();
+        assertFalse("Reservation should be released when the server stops", reservation.isValid());
+    }
+}
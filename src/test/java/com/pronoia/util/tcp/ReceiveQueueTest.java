@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ReceiveQueueTest {
+    @Test
+    public void testChunksWrapAndGrow() throws Exception {
+        ReceiveQueue queue = new ReceiveQueue(1024 * 1024);
+        byte[] received = new byte[3];
+
+        // Keep a few chunks queued while cycling through the ring, then queue more than it holds
+        int next = 0;
+        int expected = 0;
+        for (int i = 0; i < 4; ++i) {
+            queue.add(new byte[] {(byte) next, (byte) (next + 1), (byte) (next + 2)}, 3);
+            next += 3;
+        }
+        for (int i = 0; i < 40; ++i) {
+            queue.add(new byte[] {(byte) next, (byte) (next + 1), (byte) (next + 2)}, 3);
+            next += 3;
+            assertEquals(3, queue.read(received, 0, received.length, 0));
+            assertArrayEquals(new byte[] {(byte) expected, (byte) (expected + 1), (byte) (expected + 2)}, received);
+            expected += 3;
+        }
+        for (int i = 0; i < 40; ++i) {
+            queue.add(new byte[] {(byte) next, (byte) (next + 1), (byte) (next + 2)}, 3);
+            next += 3;
+        }
+
+        assertEquals(next - expected, queue.available());
+        CompositeBuffer.Builder builder = new CompositeBuffer.Builder();
+        assertEquals(next - expected, queue.drainTo(builder));
+        CompositeBuffer drained = builder.build();
+        for (int i = 0; i < drained.size(); ++i) {
+            assertEquals((byte) (expected + i), drained.get(i));
+        }
+        assertEquals(0, queue.available());
+    }
+
+    @Test
+    public void testReadSpansChunks() throws Exception {
+        ReceiveQueue queue = new ReceiveQueue(1024);
+        queue.add(new byte[] {1, 2, 3, 0}, 3);
+        queue.add(new byte[] {4, 5}, 2);
+
+        byte[] received = new byte[4];
+        assertEquals(4, queue.read(received, 0, received.length, 0));
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, received);
+        assertEquals(1, queue.read(received, 0, received.length, 0));
+        assertEquals(5, received[0]);
+    }
+
+    @Test
+    public void testEndOfStreamAfterData() throws Exception {
+        ReceiveQueue queue = new ReceiveQueue(1024);
+        queue.add(new byte[] {1, 2, 3}, 3);
+        queue.endOfStream();
+
+        byte[] received = new byte[8];
+        assertEquals(3, queue.read(received, 0, received.length, 0));
+        assertEquals(-1, queue.read(received, 0, received.length, 0));
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.ByteArrayOutputStream;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleTcpAutoDrainTest {
+    static final int TEST_PAYLOAD_SIZE = 8 * 1024 * 1024;
+    static final int TEST_LIMIT = 16 * 1024 * 1024;
+
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    @After
+    public void tearDown() throws Exception {
+        if (tcpClient != null && tcpClient.isStarted()) {
+            tcpClient.stop();
+        }
+        if (tcpServer != null && tcpServer.isStarted()) {
+            tcpServer.stop();
+        }
+    }
+
+    void connect(int serverLimit, int clientLimit) throws Exception {
+        tcpServer = new SimpleTcpServer("auto-drain-server").autoDrain(serverLimit).start();
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("auto-drain-client").port(tcpServer.getPort()).autoDrain(clientLimit).start();
+
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue("Server should have accepted the connection", tcpServer.isClientConnected());
+    }
+
+    static byte[] payload(long seed) {
+        byte[] payload = new byte[TEST_PAYLOAD_SIZE];
+        new Random(seed).nextBytes(payload);
+        return payload;
+    }
+
+    @Test(timeout = 30000)
+    public void testLargeWritesInBothDirectionsFromOneThread() throws Exception {
+        connect(TEST_LIMIT, TEST_LIMIT);
+        byte[] request = payload(0);
+        byte[] response = payload(1);
+
+        // Without auto-drain, the first write would block once the kernel buffers fill
+        tcpServer.write(response).flush();
+        tcpClient.write(request).flush();
+
+        waitForAvailable(tcpServer.getConnection(), TEST_PAYLOAD_SIZE);
+        waitForAvailable(tcpClient.connection, TEST_PAYLOAD_SIZE);
+        assertArrayEquals("Actual request does not match expected", request, tcpServer.read());
+        assertArrayEquals("Actual response does not match expected", response, tcpClient.read());
+    }
+
+    @Test(timeout = 30000)
+    public void testQueueIsBounded() throws Exception {
+        final int limit = 64 * 1024;
+        connect(limit, TEST_LIMIT);
+        final byte[] request = payload(0);
+
+        Thread writer = new Thread("auto-drain-test-writer") {
+            @Override
+            public void run() {
+                tcpClient.write(request).flush();
+            }
+        };
+        writer.start();
+
+        waitForAvailable(tcpServer.getConnection(), limit);
+        Thread.sleep(100);
+        assertEquals("The queue should stop at the limit", limit, tcpServer.available());
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream(TEST_PAYLOAD_SIZE);
+        while (received.size() < TEST_PAYLOAD_SIZE) {
+            CompositeBuffer chunks = tcpServer.readComposite();
+            assertTrue(chunks.size() <= limit);
+            chunks.writeTo(received);
+            if (chunks.isEmpty()) {
+                Thread.sleep(1);
+            }
+        }
+        writer.join();
+
+        assertArrayEquals("Actual request does not match expected", request, received.toByteArray());
+    }
+
+    @Test(timeout = 10000)
+    public void testReadUntilAndEndOfStream() throws Exception {
+        connect(TEST_LIMIT, TEST_LIMIT);
+
+        tcpClient.write("HELO test\r\nQUIT\r\n".getBytes()).shutdownOutput();
+
+        assertEquals("HELO test\r\n", new String(tcpServer.readUntil("\r\n".getBytes(), 5000)));
+        assertEquals("QUIT\r\n", new String(tcpServer.readUntil("\r\n".getBytes(), 5000)));
+        assertEquals(-1, tcpServer.getInputStream().read());
+        assertEquals("Received bytes should be counted once", 17, tcpServer.monitor.getBytesRead());
+    }
+
+    private void waitForAvailable(SimpleTcpConnection connection, int expected) throws Exception {
+        while (connection.available() < expected) {
+            Thread.sleep(10);
+        }
+    }
+}
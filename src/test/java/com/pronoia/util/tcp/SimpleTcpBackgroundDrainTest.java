@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.ByteArrayOutputStream;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleTcpBackgroundDrainTest {
+    static final int TEST_MEMORY_THRESHOLD = 64 * 1024;
+    static final int TEST_PAYLOAD_SIZE = 8 * 1024 * 1024;
+
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    byte[] payload;
+
+    @Before
+    public void setUp() throws Exception {
+        payload = new byte[TEST_PAYLOAD_SIZE];
+        new Random(0).nextBytes(payload);
+
+        tcpServer = new SimpleTcpServer("test-server").backgroundDrain(true).drainMemoryThreshold(TEST_MEMORY_THRESHOLD).start();
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("test-client").port(tcpServer.getPort())
+            .backgroundDrain(true).drainMemoryThreshold(TEST_MEMORY_THRESHOLD).start();
+
+        Thread.sleep(100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tcpClient.stop();
+        tcpServer.stop();
+    }
+
+    @Test(timeout = 30000)
+    public void testServerDrainSpillsAndReadsBack() throws Exception {
+        // Without draining, a write this large would block once the kernel buffers fill
+        tcpClient.write(payload).flush();
+
+        waitForAvailable(tcpServer.getConnection(), TEST_PAYLOAD_SIZE);
+
+        assertTrue("Data beyond the memory threshold should have been spilled", tcpServer.getConnection().drainBuffer.getSpilledTotal() > 0);
+        assertArrayEquals("Actual payload does not match expected", payload, tcpServer.read());
+        assertEquals(0, tcpServer.available());
+    }
+
+    @Test(timeout = 30000)
+    public void testClientDrainReadsThroughInputStream() throws Exception {
+        tcpServer.write(payload).flush();
+
+        waitForAvailable(tcpClient.connection, TEST_PAYLOAD_SIZE);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream(TEST_PAYLOAD_SIZE);
+        byte[] buffer = new byte[10000];
+        while (received.size() < TEST_PAYLOAD_SIZE) {
+            int readCount = tcpClient.getInputStream().read(buffer);
+            received.write(buffer, 0, readCount);
+        }
+
+        assertArrayEquals("Actual payload does not match expected", payload, received.toByteArray());
+    }
+
+    @Test(timeout = 30000)
+    public void testDrainReusesSpillFileAfterReadBack() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            tcpClient.write(payload).flush();
+            waitForAvailable(tcpServer.getConnection(), TEST_PAYLOAD_SIZE);
+            assertArrayEquals("Actual payload does not match expected on pass " + i, payload, tcpServer.read());
+        }
+    }
+
+    private void waitForAvailable(SimpleTcpConnection connection, int expected) throws Exception {
+        while (connection.available() < expected) {
+            Thread.sleep(10);
+        }
+    }
+}
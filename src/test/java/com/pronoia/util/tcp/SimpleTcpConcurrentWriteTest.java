@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleTcpConcurrentWriteTest {
+    static final int PRODUCER_COUNT = 8;
+    static final int MESSAGES_PER_PRODUCER = 2000;
+
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    @Before
+    public void setUp() throws Exception {
+        tcpServer = new SimpleTcpServer("concurrent-server").backgroundDrain(true).start();
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("concurrent-client").port(tcpServer.getPort()).queueWrites(true).start();
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tcpClient.stop();
+        tcpServer.stop();
+    }
+
+    /**
+     * A message is [length][producer][sequence][payload], with every payload byte derived from the producer and
+     * sequence - so a message that is interleaved with another is detected.
+     */
+    static byte[] message(int producer, int sequence) {
+        int payloadLength = 1 + (sequence * 7 + producer) % 200;
+        ByteBuffer buffer = ByteBuffer.allocate(12 + payloadLength);
+        buffer.putInt(8 + payloadLength).putInt(producer).putInt(sequence);
+        for (int i = 0; i < payloadLength; ++i) {
+            buffer.put((byte) (producer * 31 + sequence + i));
+        }
+        return buffer.array();
+    }
+
+    @Test(timeout = 30000)
+    public void testMessageIntegrity() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] producers = new Thread[PRODUCER_COUNT];
+        for (int p = 0; p < PRODUCER_COUNT; ++p) {
+            final int producer = p;
+            producers[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException interruptedEx) {
+                    return;
+                }
+                for (int sequence = 0; sequence < MESSAGES_PER_PRODUCER; ++sequence) {
+                    tcpClient.write(message(producer, sequence));
+                }
+            });
+            producers[p].start();
+        }
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        tcpClient.flush();
+
+        DataInputStream inputStream = new DataInputStream(tcpServer.getInputStream());
+        int[] nextSequence = new int[PRODUCER_COUNT];
+        for (int i = 0; i < PRODUCER_COUNT * MESSAGES_PER_PRODUCER; ++i) {
+            int length = inputStream.readInt();
+            int producer = inputStream.readInt();
+            int sequence = inputStream.readInt();
+            assertEquals("Messages from each producer should arrive in order", nextSequence[producer], sequence);
+            nextSequence[producer]++;
+
+            byte[] expected = message(producer, sequence);
+            assertEquals(expected.length - 4, length);
+            for (int j = 12; j < expected.length; ++j) {
+                assertEquals("Message payload should not be interleaved", expected[j], inputStream.readByte());
+            }
+        }
+
+        long batchCount = tcpClient.connection.writeQueue.getBatchCount();
+        assertTrue("Small messages should be batched - " + batchCount + " writes", batchCount < PRODUCER_COUNT * MESSAGES_PER_PRODUCER);
+    }
+}
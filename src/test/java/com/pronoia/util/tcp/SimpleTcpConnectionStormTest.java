@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleTcpConnectionStormTest {
+    SimpleTcpServer tcpServer;
+
+    @After
+    public void tearDown() throws Exception {
+        if (tcpServer != null) {
+            tcpServer.stop();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testContinuousAccept() throws Exception {
+        tcpServer = new SimpleTcpServer("storm-server").continuousAccept(true).backlog(16).start();
+
+        SimpleTcpClient first = new SimpleTcpClient("storm-client", "localhost", tcpServer.getPort()).start();
+        SimpleTcpClient second = new SimpleTcpClient("storm-client", "localhost", tcpServer.getPort()).start();
+        try {
+            for (int i = 0; i < 500 && tcpServer.getAcceptedCount() < 2; ++i) {
+                Thread.sleep(10);
+            }
+            assertEquals("Both clients should be accepted without calling acceptConnection", 2, tcpServer.getAcceptedCount());
+            assertEquals(2, tcpServer.getClientConnections().size());
+        } finally {
+            first.stop();
+            second.stop();
+        }
+    }
+
+    @Test(expected = IllegalAccessError.class)
+    public void testContinuousAcceptCannotChangeAfterStart() throws Exception {
+        tcpServer = new SimpleTcpServer("storm-server").start();
+
+        tcpServer.setContinuousAccept(true);
+    }
+
+    @Test(timeout = 30000)
+    public void testStorm() throws Exception {
+        tcpServer = new SimpleTcpServer("storm-server").continuousAccept(true).backlog(1024).start();
+
+        ConnectionStorm.Result result = new ConnectionStorm(tcpServer)
+            .threads(4)
+            .connectionsPerThread(250)
+            .duration(20, TimeUnit.SECONDS)
+            .run();
+
+        assertEquals(1000, result.getConnectedCount());
+        assertEquals(1000, result.getAcceptedCount());
+        assertEquals(0, result.getRefusedCount() + result.getTimedOutCount() + result.getFailedCount());
+        assertEquals(1000, result.getConnectLatency().getCount());
+        assertTrue(result.getAcceptsPerSecond() > 0);
+        assertTrue("Server side of the connections should be closed", tcpServer.getConnections().isEmpty());
+    }
+
+    @Test(timeout = 30000)
+    public void testRefusedConnectsAreCounted() throws Exception {
+        tcpServer = new SimpleTcpServer("storm-server").continuousAccept(true).start();
+
+        try (PortAllocator.Reservation unusedPort = PortAllocator.getDefault().reserve()) {
+            ConnectionStorm.Result result = new ConnectionStorm(tcpServer)
+                .clientFactory(() -> new SimpleTcpClient("storm-client", "localhost", unusedPort.getPort()))
+                .threads(2)
+                .connectionsPerThread(10)
+                .run();
+
+            assertEquals(0, result.getConnectedCount());
+            assertEquals(20, result.getRefusedCount());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStormRequiresContinuousAccept() throws Exception {
+        tcpServer = new SimpleTcpServer("storm-server").start();
+
+        new ConnectionStorm(tcpServer).run();
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimpleTcpConversationTest {
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    @After
+    public void tearDown() throws Exception {
+        if (tcpClient != null && tcpClient.isStarted()) {
+            tcpClient.stop();
+        }
+        if (tcpServer != null && tcpServer.isStarted()) {
+            tcpServer.stop();
+        }
+    }
+
+    void connect() throws Exception {
+        tcpServer = new SimpleTcpServer("conversation-server").start();
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("conversation-client").port(tcpServer.getPort()).start();
+
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue("Server should have accepted the connection", tcpServer.isClientConnected());
+    }
+
+    @Test(timeout = 10000)
+    public void testScriptedServer() throws Exception {
+        connect();
+
+        Conversation smtp = new Conversation("smtp")
+            .send("220 ready\r\n")
+            .expect("HELO")
+            .expect("\r\n")
+            .send("250 hello\r\n")
+            .expect(Pattern.compile("MAIL FROM:<[^>]+>\r\n"))
+            .send("250 OK\r\n");
+        Conversation.Session session = tcpServer.converse(smtp);
+
+        assertEquals("220 ready\r\n", new String(tcpClient.readUntil("\r\n".getBytes(), 5000)));
+        tcpClient.write("HELO test.example.com\r\n".getBytes());
+        assertEquals("250 hello\r\n", new String(tcpClient.readUntil("\r\n".getBytes(), 5000)));
+        tcpClient.write("MAIL FROM:<test@example.com>\r\nRCPT".getBytes());
+        assertEquals("250 OK\r\n", new String(tcpClient.readUntil("\r\n".getBytes(), 5000)));
+
+        assertTrue(session.await(5, TimeUnit.SECONDS));
+        assertEquals(smtp.getStepCount(), session.getStep());
+        // Data after the last match is left for the test
+        assertEquals("RCPT", tcpServer.readString());
+    }
+
+    @Test(timeout = 10000)
+    public void testScriptedPeersWithFrames() throws Exception {
+        connect();
+        MessageFraming framing = MessageFraming.lengthPrefixed();
+
+        Conversation.Session server = tcpServer.converse(new Conversation("server")
+            .expectFrame(framing, "REQUEST".getBytes())
+            .delay(100, TimeUnit.MILLISECONDS)
+            .sendFrame(framing, "RESPONSE".getBytes())
+            .expectFrame(framing)
+            .close());
+        long start = System.nanoTime();
+        Conversation.Session client = tcpClient.converse(new Conversation("client")
+            .sendFrame(framing, "REQUEST".getBytes())
+            .expectFrame(framing, "RESPONSE".getBytes())
+            .sendFrame(framing, "BYE".getBytes()));
+
+        assertTrue(client.await(5, TimeUnit.SECONDS));
+        assertTrue("The delay step should hold the response", System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(server.await(5, TimeUnit.SECONDS));
+        assertEquals(-1, tcpClient.getInputStream().read());
+    }
+
+    @Test(timeout = 10000)
+    public void testUnmetExpectationFails() throws Exception {
+        connect();
+
+        Conversation.Session session = tcpServer.converse(new Conversation("timeout")
+            .expectTimeout(100, TimeUnit.MILLISECONDS)
+            .expect("NEVER"));
+        tcpClient.write("SOMETHING ELSE".getBytes());
+
+        try {
+            session.await(5, TimeUnit.SECONDS);
+            fail("The session should fail when the expectation is not met");
+        } catch (IllegalStateException expectedEx) {
+            assertTrue(expectedEx.getCause() instanceof IOException);
+            assertTrue(expectedEx.getCause().getCause() instanceof SocketTimeoutException);
+        }
+        assertTrue(session.isFailed());
+        assertEquals(0, session.getStep());
+    }
+
+    @Test(timeout = 10000)
+    public void testPeerCloseFailsWithEndOfStream() throws Exception {
+        connect();
+
+        Conversation.Session session = tcpServer.converse(new Conversation("peer-close")
+            .expectTimeout(5, TimeUnit.SECONDS)
+            .expect("NEVER"));
+        tcpClient.write("PARTIAL".getBytes());
+        long start = System.nanoTime();
+        tcpClient.stop();
+
+        try {
+            session.await(5, TimeUnit.SECONDS);
+            fail("The session should fail when the peer closes the connection");
+        } catch (IllegalStateException expectedEx) {
+            assertTrue(expectedEx.getCause() instanceof IOException);
+            assertTrue(expectedEx.getCause().getCause() instanceof EOFException);
+        }
+        assertTrue("The close should be noticed well before the timeout", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    }
+
+    @Test(timeout = 30000)
+    public void testManySessionsOnTheSharedLoop() throws Exception {
+        final int clientCount = 200;
+        tcpServer = new SimpleTcpServer("conversation-server").continuousAccept(true).backlog(clientCount)
+            .conversation(new Conversation("pong").expect("PING").send("PONG").close())
+            .start();
+
+        Conversation ping = new Conversation("ping").send("PING").expect("PONG");
+        List<SimpleTcpClient> clients = new ArrayList<>(clientCount);
+        List<Conversation.Session> sessions = new ArrayList<>(clientCount);
+        try {
+            for (int i = 0; i < clientCount; ++i) {
+                SimpleTcpClient client = new SimpleTcpClient("conversation-client-" + i).port(tcpServer.getPort()).jmxEnabled(false).start();
+                clients.add(client);
+                sessions.add(client.converse(ping));
+            }
+
+            for (Conversation.Session session : sessions) {
+                assertTrue(session.await(10, TimeUnit.SECONDS));
+            }
+            for (int i = 0; i < 500 && tcpServer.getConversationSessions().size() < clientCount; ++i) {
+                Thread.sleep(10);
+            }
+            for (Conversation.Session session : tcpServer.getConversationSessions()) {
+                assertTrue(session.await(10, TimeUnit.SECONDS));
+            }
+            assertEquals(clientCount, tcpServer.getConversationSessions().size());
+            assertTrue(ConversationLoop.shared().getThreadCount() <= ConversationLoop.MAX_THREADS);
+        } finally {
+            for (SimpleTcpClient client : clients) {
+                client.stop();
+            }
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testPeerThatStopsReadingDoesNotStallOtherSessions() throws Exception {
+        // Larger than the socket buffers, which can grow to several megabytes on loopback
+        byte[] payload = new byte[8 * 1024 * 1024];
+        tcpServer = new SimpleTcpServer("conversation-server").continuousAccept(true)
+            .conversation(new Conversation("flood").send(payload).send(payload).send(payload).expect("PING").send("PONG"))
+            .start();
+
+        // One peer that never reads for each loop thread, so whichever thread runs the reading peer's session has one
+        int stalledCount = ConversationLoop.shared().getThreadCount();
+        List<Socket> stalledClients = new ArrayList<>(stalledCount);
+        try {
+            for (int i = 0; i < stalledCount; ++i) {
+                stalledClients.add(new Socket(tcpServer.getInetAddress().getHostAddress(), tcpServer.getPort()));
+            }
+            for (int i = 0; i < 500 && tcpServer.getConversationSessions().size() < stalledCount; ++i) {
+                Thread.sleep(10);
+            }
+            assertEquals(stalledCount, tcpServer.getConversationSessions().size());
+
+            tcpClient = new SimpleTcpClient("conversation-client").port(tcpServer.getPort()).backgroundDrain(true).start();
+            tcpClient.write("PING".getBytes());
+            byte[] received = tcpClient.readUntil("PONG".getBytes(), 10000);
+            assertEquals(3 * payload.length + "PONG".length(), received.length);
+
+            for (Conversation.Session session : tcpServer.getConversationSessions()) {
+                if (session.connection.getRemoteAddress().equals(tcpClient.connection.getTransport().getLocalAddress())) {
+                    assertTrue(session.await(5, TimeUnit.SECONDS));
+                } else {
+                    assertFalse("The non-reading peer's session should be waiting to send", session.isDone());
+                }
+            }
+        } finally {
+            for (Socket stalledClient : stalledClients) {
+                stalledClient.close();
+            }
+        }
+    }
+
+    @Test
+    public void testConversationIsCompiledWhenRun() throws Exception {
+        connect();
+
+        Conversation conversation = new Conversation("growing").send("FIRST");
+        Conversation.Session session = tcpClient.converse(conversation);
+        conversation.expect("NEVER");
+
+        assertTrue(session.await(5, TimeUnit.SECONDS));
+        assertFalse(session.isFailed());
+        assertEquals(1, session.getStep());
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleTcpFileTransferTest {
+    static final int TEST_PAYLOAD_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    byte[] payload;
+    Path payloadFile;
+
+    @Before
+    public void setUp() throws Exception {
+        payload = new byte[TEST_PAYLOAD_SIZE];
+        new Random(0).nextBytes(payload);
+        payloadFile = temporaryFolder.newFile("payload.bin").toPath();
+        Files.write(payloadFile, payload);
+
+        tcpServer = new SimpleTcpServer("test-server").start();
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("test-client").port(tcpServer.getPort()).start();
+
+        Thread.sleep(100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tcpClient.stop();
+        tcpServer.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void testClientWritePathServerReadTo() throws Exception {
+        Path received = temporaryFolder.getRoot().toPath().resolve("received.bin");
+
+        tcpClient.write(payloadFile);
+
+        long total = 0;
+        while (total < TEST_PAYLOAD_SIZE) {
+            total += readAppending(received, TEST_PAYLOAD_SIZE - total);
+        }
+
+        assertArrayEquals("Actual payload does not match expected", payload, Files.readAllBytes(received));
+    }
+
+    @Test(timeout = 10000)
+    public void testTcpTransfersUseSocketChannel() throws Exception {
+        SimpleTcpConnection clientConnection = tcpClient.connection;
+        SimpleTcpConnection serverConnection = tcpServer.getConnection();
+
+        assertTrue("Client transport should have a SocketChannel", clientConnection.getTransport().getChannel() instanceof SocketChannel);
+        assertTrue("Server transport should have a SocketChannel", serverConnection.getTransport().getChannel() instanceof SocketChannel);
+        assertTrue("Client file writes should go straight to the channel", clientConnection.isChannelWritable());
+        assertTrue("Server file reads should come straight from the channel", serverConnection.isChannelReadable());
+
+        testClientWritePathServerReadTo();
+    }
+
+    @Test(timeout = 10000)
+    public void testServerWriteRegion() throws Exception {
+        final int position = 1000;
+        final int count = 5000;
+
+        try (FileChannel fileChannel = FileChannel.open(payloadFile, StandardOpenOption.READ)) {
+            tcpServer.write(fileChannel, position, count);
+        }
+
+        Path received = temporaryFolder.getRoot().toPath().resolve("region.bin");
+        long total = 0;
+        while (total < count) {
+            Thread.sleep(10);
+            total += tcpClient.readTo(received, count - total);
+        }
+
+        byte[] expected = new byte[count];
+        System.arraycopy(payload, position, expected, 0, count);
+
+        assertArrayEquals("Actual payload does not match expected", expected, Files.readAllBytes(received));
+    }
+
+    @Test(timeout = 10000)
+    public void testReadToHonorsMaxBytes() throws Exception {
+        tcpServer.write("0123456789").flush();
+
+        Thread.sleep(100);
+
+        Path received = temporaryFolder.getRoot().toPath().resolve("partial.bin");
+
+        assertEquals(4, tcpClient.readTo(received, 4));
+        assertEquals("0123", new String(Files.readAllBytes(received)));
+        assertEquals("456789", new String(tcpClient.read()));
+    }
+
+    /*
+     * readTo truncates the target, so accumulate successive partial reads into a single file.
+     */
+    private long readAppending(Path target, long maxBytes) throws Exception {
+        Thread.sleep(10);
+
+        Path chunk = temporaryFolder.getRoot().toPath().resolve("chunk.bin");
+        long count = tcpServer.readTo(chunk, maxBytes);
+        Files.write(target, Files.readAllBytes(chunk), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        return count;
+    }
+}
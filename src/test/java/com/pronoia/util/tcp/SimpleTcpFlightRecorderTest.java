@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class SimpleTcpFlightRecorderTest {
+    static final String TEST_REQUEST = "TEST REQUEST";
+    static final String TEST_RESPONSE = "TEST RESPONSE";
+
+    static final String[] EVENT_NAMES = {
+        "com.pronoia.util.tcp.Connect",
+        "com.pronoia.util.tcp.Accept",
+        "com.pronoia.util.tcp.Read",
+        "com.pronoia.util.tcp.Write",
+        "com.pronoia.util.tcp.Reset"
+    };
+
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+    Recording recording;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue("Flight Recorder is not available", FlightRecorderEvents.isAvailable());
+
+        tcpServer = new SimpleTcpServer("jfr-server").loopbackName("jfr-test").start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (recording != null) {
+            recording.close();
+        }
+        if (tcpClient != null && tcpClient.isStarted()) {
+            tcpClient.stop();
+        }
+        if (tcpServer != null && tcpServer.isStarted()) {
+            tcpServer.stop();
+        }
+    }
+
+    void startRecording() {
+        recording = new Recording();
+        for (String eventName : EVENT_NAMES) {
+            recording.enable(eventName).withoutThreshold();
+        }
+        recording.start();
+    }
+
+    List<RecordedEvent> stopRecording() throws Exception {
+        recording.stop();
+        Path dump = Files.createTempFile("tcp-test-util", ".jfr");
+        try {
+            recording.dump(dump);
+            List<RecordedEvent> answer = new ArrayList<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+                if (event.getEventType().getName().startsWith("com.pronoia.util.tcp.")) {
+                    answer.add(event);
+                }
+            }
+            return answer;
+        } finally {
+            Files.delete(dump);
+        }
+    }
+
+    static List<RecordedEvent> eventsNamed(List<RecordedEvent> events, String eventName, String source) {
+        List<RecordedEvent> answer = new ArrayList<>();
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(eventName) && source.equals(event.getString("source"))) {
+                answer.add(event);
+            }
+        }
+        return answer;
+    }
+
+    @Test(timeout = 10000)
+    public void testConnectionLifecycleEvents() throws Exception {
+        startRecording();
+
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("jfr-client").loopbackName("jfr-test").start();
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue("Server should have accepted the connection", tcpServer.isClientConnected());
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush();
+        assertEquals(TEST_REQUEST, tcpServer.readString());
+        tcpServer.write(TEST_RESPONSE).flush();
+        assertEquals(TEST_RESPONSE, new String(tcpClient.read()));
+        tcpClient.reset();
+
+        List<RecordedEvent> events = stopRecording();
+
+        List<RecordedEvent> connects = eventsNamed(events, "com.pronoia.util.tcp.Connect", "jfr-client");
+        assertEquals(1, connects.size());
+        assertTrue(connects.get(0).getLong("connectionId") > 0);
+        assertNull(connects.get(0).getString("cause"));
+
+        List<RecordedEvent> accepts = eventsNamed(events, "com.pronoia.util.tcp.Accept", "jfr-server");
+        assertEquals(1, accepts.size());
+        assertNotNull(accepts.get(0).getString("remoteAddress"));
+
+        List<RecordedEvent> clientWrites = eventsNamed(events, "com.pronoia.util.tcp.Write", "jfr-client");
+        assertEquals(1, clientWrites.size());
+        assertEquals(TEST_REQUEST.length(), clientWrites.get(0).getLong("byteCount"));
+        assertEquals(connects.get(0).getLong("connectionId"), clientWrites.get(0).getLong("connectionId"));
+
+        List<RecordedEvent> serverReads = eventsNamed(events, "com.pronoia.util.tcp.Read", "jfr-server");
+        assertEquals(1, serverReads.size());
+        assertEquals(TEST_REQUEST.length(), serverReads.get(0).getLong("byteCount"));
+
+        List<RecordedEvent> clientReads = eventsNamed(events, "com.pronoia.util.tcp.Read", "jfr-client");
+        assertEquals(1, clientReads.size());
+        assertEquals(TEST_RESPONSE.length(), clientReads.get(0).getLong("byteCount"));
+
+        List<RecordedEvent> resets = eventsNamed(events, "com.pronoia.util.tcp.Reset", "jfr-client");
+        assertEquals(1, resets.size());
+        assertEquals("reset requested", resets.get(0).getString("cause"));
+    }
+
+    @Test(timeout = 10000)
+    public void testFailedConnectEvent() throws Exception {
+        startRecording();
+
+        tcpClient = new SimpleTcpClient("jfr-client").loopbackName("nothing-listening");
+        try {
+            tcpClient.start();
+            fail("Connect should fail when no server is bound to the name");
+        } catch (RuntimeException expectedEx) {
+            assertFalse(tcpClient.isStarted());
+        }
+
+        List<RecordedEvent> connects = eventsNamed(stopRecording(), "com.pronoia.util.tcp.Connect", "jfr-client");
+        assertEquals(1, connects.size());
+        assertEquals(0, connects.get(0).getLong("connectionId"));
+        assertNotNull(connects.get(0).getString("cause"));
+    }
+
+    @Test(timeout = 10000)
+    public void testAcceptTimeoutEvent() throws Exception {
+        startRecording();
+
+        tcpServer.acceptTimeout(100).acceptConnection();
+        Thread.sleep(500);
+
+        List<RecordedEvent> accepts = eventsNamed(stopRecording(), "com.pronoia.util.tcp.Accept", "jfr-server");
+        assertEquals(1, accepts.size());
+        assertEquals("timeout", accepts.get(0).getString("cause"));
+    }
+
+    @Test
+    public void testNoEventsWhenNotRecording() throws Exception {
+        assertNull(FlightRecorderEvents.begin(FlightRecorderEvents.Kind.WRITE));
+    }
+}
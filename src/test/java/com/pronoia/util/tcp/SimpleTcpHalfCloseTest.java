@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleTcpHalfCloseTest {
+    static final String TEST_REQUEST = "TEST REQUEST";
+    static final String TEST_RESPONSE = "TEST RESPONSE";
+
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    @Before
+    public void setUp() throws Exception {
+        tcpServer = new SimpleTcpServer("test-server").start();
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("test-client").port(tcpServer.getPort()).start();
+
+        Thread.sleep(100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tcpClient.stop();
+        tcpServer.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void testRequestFinResponse() throws Exception {
+        tcpClient.write(TEST_REQUEST.getBytes()).flush().shutdownOutput();
+
+        Thread.sleep(100);
+
+        assertEquals(TEST_REQUEST, tcpServer.readString());
+        assertEquals("Server should see the end of the stream after the request", -1, tcpServer.getInputStream().read());
+
+        tcpServer.write(TEST_RESPONSE).flush();
+
+        Thread.sleep(100);
+
+        assertEquals(TEST_RESPONSE, new String(tcpClient.read()));
+        assertTrue("Client should still be connected after a half-close", tcpClient.isConnected());
+    }
+
+    @Test(timeout = 10000)
+    public void testServerShutdownOutput() throws Exception {
+        tcpServer.write(TEST_RESPONSE).flush().shutdownOutput();
+
+        Thread.sleep(100);
+
+        assertEquals(TEST_RESPONSE, new String(tcpClient.read()));
+        assertEquals("Client should see the end of the stream", -1, tcpClient.getInputStream().read());
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush();
+
+        Thread.sleep(100);
+
+        assertEquals(TEST_REQUEST, tcpServer.readString());
+    }
+
+    @Test(timeout = 10000)
+    public void testShutdownInput() throws Exception {
+        tcpClient.shutdownInput();
+        tcpServer.shutdownInput();
+
+        assertTrue(tcpClient.socket.isInputShutdown());
+        assertTrue(tcpServer.getClientConnection().isInputShutdown());
+    }
+}
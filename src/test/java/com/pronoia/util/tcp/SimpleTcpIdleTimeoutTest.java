@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.net.Socket;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleTcpIdleTimeoutTest {
+    SimpleTcpServer tcpServer;
+
+    @Before
+    public void setUp() throws Exception {
+        tcpServer = new SimpleTcpServer("test-server").idleTimeout(300, TimeUnit.MILLISECONDS).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tcpServer.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void testIdleConnectionIsReaped() throws Exception {
+        tcpServer.acceptConnection();
+        Socket client = new Socket(tcpServer.getInetAddress().getHostAddress(), tcpServer.getPort());
+
+        Thread.sleep(100);
+        assertTrue("Client should be connected", tcpServer.isClientConnected());
+
+        Thread.sleep(500);
+        assertFalse("Idle client connection should have been reaped", tcpServer.isClientConnected());
+        assertEquals(0, tcpServer.getClientConnections().size());
+        assertEquals("Client should see the end of the stream", -1, client.getInputStream().read());
+
+        client.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testActiveConnectionIsNotReaped() throws Exception {
+        tcpServer.acceptConnection();
+        Socket client = new Socket(tcpServer.getInetAddress().getHostAddress(), tcpServer.getPort());
+
+        // Wait for the accept rather than sleeping - the first test in the JVM can take a while to accept
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 10; ++i) {
+            tcpServer.write("ping").flush();
+            Thread.sleep(100);
+        }
+
+        assertTrue("Active client connection should not have been reaped", tcpServer.isClientConnected());
+
+        client.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testDeadDrainedConnectionIsReaped() throws Exception {
+        tcpServer.idleTimeout(1, TimeUnit.SECONDS).backgroundDrain(true).acceptConnection();
+        Socket client = new Socket(tcpServer.getInetAddress().getHostAddress(), tcpServer.getPort());
+
+        Thread.sleep(100);
+        for (int i = 0; i < 5; ++i) {
+            client.getOutputStream().write('X');
+            Thread.sleep(100);
+        }
+        assertEquals(5, tcpServer.read().length);
+
+        // The connection has been active recently, but the client has closed it
+        client.close();
+
+        Thread.sleep(700);
+        assertEquals("Dead client connection should have been reaped before it became idle", 0, tcpServer.getClientConnections().size());
+    }
+
+    @Test(timeout = 10000)
+    public void testConnectionWithFullWriteQueueIsReaped() throws Exception {
+        tcpServer.queueWrites(true).writeTimeout(0).acceptConnection();
+        Socket client = new Socket(tcpServer.getInetAddress().getHostAddress(), tcpServer.getPort());
+
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue("Client should be connected", tcpServer.isClientConnected());
+
+        // The client never reads, so most of this stays queued - and with no write timeout a flush would wait forever
+        tcpServer.write(new byte[8 * 1024 * 1024]);
+
+        CountDownLatch timerFired = new CountDownLatch(1);
+        HashedWheelTimer.shared().newTimeout(timerFired::countDown, 600, TimeUnit.MILLISECONDS);
+        assertTrue("Reaping the connection should not stall the shared timer", timerFired.await(3, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 300 && tcpServer.getClientConnections().size() > 0; ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals("Client connection should have been reaped", 0, tcpServer.getClientConnections().size());
+
+        client.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testClientIdleTimeout() throws Exception {
+        tcpServer.idleTimeout(0).acceptConnection();
+        SimpleTcpClient tcpClient = new SimpleTcpClient("test-client").port(tcpServer.getPort()).idleTimeout(300).start();
+
+        Thread.sleep(100);
+        assertTrue("Client should be connected", tcpClient.isConnected());
+
+        Thread.sleep(500);
+        assertFalse("Idle connection should have been closed", tcpClient.isConnected());
+
+        tcpClient.stop();
+    }
+}
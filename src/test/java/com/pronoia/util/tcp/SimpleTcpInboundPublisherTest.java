@@ -0,0 +1,259 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.ByteArrayOutputStream;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleTcpInboundPublisherTest {
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    @Before
+    public void setUp() throws Exception {
+        tcpServer = new SimpleTcpServer("publisher-server").loopbackName("publisher-test").start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (tcpClient != null && tcpClient.isStarted()) {
+            tcpClient.stop();
+        }
+        tcpServer.stop();
+    }
+
+    void connect() throws Exception {
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("publisher-client").loopbackName("publisher-test").start();
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue("Server should have accepted the connection", tcpServer.isClientConnected());
+    }
+
+    @Test(timeout = 10000)
+    public void testDemandDrivenReads() throws Exception {
+        connect();
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        tcpClient.getInboundPublisher().subscribe(subscriber);
+        subscriber.subscription.request(1);
+
+        tcpServer.write("FIRST").flush();
+        assertEquals("FIRST", new String(subscriber.items.poll(5, TimeUnit.SECONDS)));
+
+        tcpServer.write("SECOND").flush();
+        assertNull("Nothing should be published without demand", subscriber.items.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals("The data should be left unread", "SECOND".length(), tcpClient.available());
+
+        subscriber.subscription.request(1);
+        assertEquals("SECOND", new String(subscriber.items.poll(5, TimeUnit.SECONDS)));
+    }
+
+    @Test(timeout = 10000)
+    public void testBackpressureReachesSender() throws Exception {
+        connect();
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        tcpClient.getInboundPublisher().subscribe(subscriber);
+
+        final byte[] data = new byte[4 * LoopbackTransport.DEFAULT_CAPACITY];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        final AtomicLong written = new AtomicLong();
+        Thread writer = new Thread(() -> {
+            for (int offset = 0; offset < data.length; offset += 1024) {
+                tcpServer.write(Arrays.copyOfRange(data, offset, offset + 1024));
+                written.addAndGet(1024);
+            }
+        });
+        writer.start();
+
+        Thread.sleep(200);
+        assertTrue("The sender should be blocked while there is no demand", writer.isAlive());
+        assertTrue(written.get() <= LoopbackTransport.DEFAULT_CAPACITY);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        writer.join(5000);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        while (received.size() < data.length) {
+            byte[] item = subscriber.items.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Expected more data after " + received.size() + " bytes", item);
+            received.write(item);
+        }
+        assertArrayEquals(data, received.toByteArray());
+    }
+
+    @Test(timeout = 10000)
+    public void testCompleteAtEndOfStream() throws Exception {
+        connect();
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        tcpClient.getInboundPublisher().subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        tcpServer.write("LAST").flush().shutdownOutput();
+
+        assertEquals("LAST", new String(subscriber.items.poll(5, TimeUnit.SECONDS)));
+        assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+        assertNull(subscriber.error);
+    }
+
+    @Test(timeout = 10000)
+    public void testSingleSubscriber() throws Exception {
+        connect();
+        tcpClient.getInboundPublisher().subscribe(new CollectingSubscriber());
+
+        CollectingSubscriber second = new CollectingSubscriber();
+        tcpClient.getInboundPublisher().subscribe(second);
+
+        assertTrue(second.completed.await(5, TimeUnit.SECONDS));
+        assertTrue(second.error instanceof IllegalStateException);
+    }
+
+    @Test(timeout = 10000)
+    public void testIllegalRequest() throws Exception {
+        connect();
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        tcpClient.getInboundPublisher().subscribe(subscriber);
+        subscriber.subscription.request(0);
+
+        assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+
+    @Test(timeout = 10000)
+    public void testConnectionPublisher() throws Exception {
+        final BlockingQueue<TcpFlow.Publisher<byte[]>> connections = new LinkedBlockingQueue<>();
+        final CountDownLatch serverStopped = new CountDownLatch(1);
+        tcpServer.getConnectionPublisher().subscribe(new TcpFlow.Subscriber<TcpFlow.Publisher<byte[]>>() {
+            @Override
+            public void onSubscribe(TcpFlow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(TcpFlow.Publisher<byte[]> item) {
+                connections.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+                serverStopped.countDown();
+            }
+        });
+
+        connect();
+        TcpFlow.Publisher<byte[]> inbound = connections.poll(5, TimeUnit.SECONDS);
+        assertNotNull(inbound);
+
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        inbound.subscribe(subscriber);
+        subscriber.subscription.request(1);
+        tcpClient.write("REQUEST".getBytes()).flush();
+        assertEquals("REQUEST", new String(subscriber.items.poll(5, TimeUnit.SECONDS)));
+
+        tcpClient.stop();
+        tcpServer.stop();
+        assertTrue(serverStopped.await(5, TimeUnit.SECONDS));
+        tcpServer.start();
+    }
+
+    @Test(timeout = 10000)
+    public void testConnectionSubscriberCanCallTheServer() throws Exception {
+        final BlockingQueue<Boolean> acceptCompleted = new LinkedBlockingQueue<>();
+        tcpServer.getConnectionPublisher().subscribe(new TcpFlow.Subscriber<TcpFlow.Publisher<byte[]>>() {
+            @Override
+            public void onSubscribe(TcpFlow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(TcpFlow.Publisher<byte[]> item) {
+                // Another thread asking for the next connection must not wait for this subscriber to return
+                Thread acceptor = new Thread(() -> tcpServer.acceptConnection());
+                acceptor.start();
+                try {
+                    acceptor.join(2000);
+                } catch (InterruptedException interruptedEx) {
+                    Thread.currentThread().interrupt();
+                }
+                acceptCompleted.add(!acceptor.isAlive());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        connect();
+
+        assertEquals("acceptConnection should not block while a subscriber handles a connection", Boolean.TRUE, acceptCompleted.poll(5, TimeUnit.SECONDS));
+    }
+
+    static class CollectingSubscriber implements TcpFlow.Subscriber<byte[]> {
+        final BlockingQueue<byte[]> items = new LinkedBlockingQueue<>();
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        volatile TcpFlow.Subscription subscription;
+        volatile Throwable error;
+
+        @Override
+        public void onSubscribe(TcpFlow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(byte[] item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            completed.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleTcpJmxTest {
+    static final String TEST_REQUEST = "TEST REQUEST";
+    static final String TEST_RESPONSE = "TEST RESPONSE";
+
+    final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    @Before
+    public void setUp() throws Exception {
+        tcpServer = new SimpleTcpServer("jmx-server").loopbackName("jmx-test").start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (tcpClient != null && tcpClient.isStarted()) {
+            tcpClient.stop();
+        }
+        if (tcpServer.isStarted()) {
+            tcpServer.stop();
+        }
+    }
+
+    void connect() throws Exception {
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("jmx-client").loopbackName("jmx-test").start();
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue("Server should have accepted the connection", tcpServer.isClientConnected());
+    }
+
+    @Test(timeout = 10000)
+    public void testRegistration() throws Exception {
+        ObjectName serverName = tcpServer.getObjectName();
+        assertNotNull(serverName);
+        assertTrue(mbeanServer.isRegistered(serverName));
+        assertEquals("SimpleTcpServer", serverName.getKeyProperty("type"));
+        assertEquals("jmx-server", mbeanServer.getAttribute(serverName, "Name"));
+        assertEquals(Boolean.TRUE, mbeanServer.getAttribute(serverName, "Started"));
+
+        connect();
+        ObjectName clientName = tcpClient.getObjectName();
+        assertNotNull(clientName);
+        assertNotEquals(serverName, clientName);
+        assertEquals("SimpleTcpClient", mbeanServer.getAttribute(clientName, "Type"));
+
+        tcpClient.stop();
+        assertNull(tcpClient.getObjectName());
+        assertFalse(mbeanServer.isRegistered(clientName));
+
+        tcpServer.stop();
+        assertNull(tcpServer.getObjectName());
+        assertFalse(mbeanServer.isRegistered(serverName));
+    }
+
+    @Test(timeout = 10000)
+    public void testCounters() throws Exception {
+        connect();
+        ObjectName serverName = tcpServer.getObjectName();
+        ObjectName clientName = tcpClient.getObjectName();
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush();
+        assertEquals(TEST_REQUEST, tcpServer.readString());
+        tcpServer.write(TEST_RESPONSE).flush();
+        assertEquals(TEST_RESPONSE, new String(tcpClient.read()));
+
+        assertEquals(1, mbeanServer.getAttribute(serverName, "ConnectionCount"));
+        assertEquals(1L, mbeanServer.getAttribute(serverName, "TotalConnectionCount"));
+        assertEquals((long) TEST_REQUEST.length(), mbeanServer.getAttribute(serverName, "BytesRead"));
+        assertEquals((long) TEST_RESPONSE.length(), mbeanServer.getAttribute(serverName, "BytesWritten"));
+        assertEquals(1L, mbeanServer.getAttribute(serverName, "ReadCount"));
+        assertEquals(1L, mbeanServer.getAttribute(serverName, "WriteCount"));
+        assertEquals(0L, mbeanServer.getAttribute(serverName, "ErrorCount"));
+
+        assertEquals(1, mbeanServer.getAttribute(clientName, "ConnectionCount"));
+        assertEquals((long) TEST_RESPONSE.length(), mbeanServer.getAttribute(clientName, "BytesRead"));
+        assertEquals((long) TEST_REQUEST.length(), mbeanServer.getAttribute(clientName, "BytesWritten"));
+        assertEquals(0L, mbeanServer.getAttribute(clientName, "QueuedWriteBytes"));
+    }
+
+    @Test(timeout = 10000)
+    public void testDrainedDataIsCountedOnce() throws Exception {
+        tcpServer.stop();
+        tcpServer = new SimpleTcpServer("jmx-server").loopbackName("jmx-test").backgroundDrain(true).start();
+        connect();
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush();
+        for (int i = 0; i < 500 && tcpServer.available() < TEST_REQUEST.length(); ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(TEST_REQUEST, tcpServer.readString());
+
+        assertEquals((long) TEST_REQUEST.length(), mbeanServer.getAttribute(tcpServer.getObjectName(), "BytesRead"));
+    }
+
+    @Test(timeout = 10000)
+    public void testRates() throws Exception {
+        connect();
+        ObjectName clientName = tcpClient.getObjectName();
+
+        assertEquals(0.0, (Double) mbeanServer.getAttribute(clientName, "WritesPerSecond"), 0.0);
+        for (int i = 0; i < 10; ++i) {
+            tcpClient.write(TEST_REQUEST.getBytes());
+        }
+        Thread.sleep(1100);
+
+        double writesPerSecond = (Double) mbeanServer.getAttribute(clientName, "WritesPerSecond");
+        assertTrue("Expected a write rate, got " + writesPerSecond, writesPerSecond > 0 && writesPerSecond <= 10);
+        assertEquals(writesPerSecond * TEST_REQUEST.length(), (Double) mbeanServer.getAttribute(clientName, "BytesWrittenPerSecond"), 0.001);
+    }
+
+    @Test(timeout = 10000)
+    public void testResetConnectionsOperation() throws Exception {
+        connect();
+
+        mbeanServer.invoke(tcpServer.getObjectName(), "resetConnections", null, null);
+
+        assertFalse(tcpServer.isClientConnected());
+        assertEquals(0, mbeanServer.getAttribute(tcpServer.getObjectName(), "ConnectionCount"));
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseConnectionsOperation() throws Exception {
+        connect();
+
+        mbeanServer.invoke(tcpClient.getObjectName(), "closeConnections", null, null);
+
+        assertTrue(tcpClient.isClosed());
+        assertEquals(0, mbeanServer.getAttribute(tcpClient.getObjectName(), "ConnectionCount"));
+    }
+
+    @Test(timeout = 10000)
+    public void testConnectFailuresAreCounted() throws Exception {
+        tcpClient = new SimpleTcpClient("jmx-client").loopbackName("nothing-listening");
+        try {
+            tcpClient.start();
+        } catch (RuntimeException expectedEx) {
+            assertNull(tcpClient.getObjectName());
+        }
+
+        assertEquals(1, tcpClient.statistics.getErrorCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testJmxDisabled() throws Exception {
+        tcpServer.stop();
+        tcpServer = new SimpleTcpServer("jmx-server").loopbackName("jmx-test").jmxEnabled(false).start();
+
+        assertNull(tcpServer.getObjectName());
+    }
+}
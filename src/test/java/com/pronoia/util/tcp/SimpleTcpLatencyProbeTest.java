@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimpleTcpLatencyProbeTest {
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    @After
+    public void tearDown() throws Exception {
+        if (tcpClient != null && tcpClient.isStarted()) {
+            tcpClient.stop();
+        }
+        if (tcpServer != null) {
+            tcpServer.stop();
+        }
+    }
+
+    void startLoopback(boolean echo) throws Exception {
+        tcpServer = new SimpleTcpServer("probe-server").loopbackName("probe-test").echo(echo).start();
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("probe-client").loopbackName("probe-test").start();
+    }
+
+    @Test(timeout = 10000)
+    public void testPacedProbe() throws Exception {
+        startLoopback(true);
+
+        LatencyProbe.Result result = tcpClient.probe().rate(2000).duration(250, TimeUnit.MILLISECONDS).run();
+
+        assertEquals(500, result.getSentCount(), 1);
+        assertEquals(result.getSentCount(), result.getReceivedCount());
+        assertEquals(0, result.getOutOfOrderCount());
+        assertEquals(result.getReceivedCount(), result.getHistogram().getCount());
+        assertTrue(result.getHistogram().getMinNanos() > 0);
+        assertTrue(result.getHistogram().getValueAtPercentile(50) <= result.getHistogram().getValueAtPercentile(99.9));
+    }
+
+    @Test(timeout = 10000)
+    public void testPingPongProbe() throws Exception {
+        startLoopback(true);
+
+        LatencyProbe.Result result = tcpClient.probe().rate(0).frameSize(64).duration(100, TimeUnit.MILLISECONDS).run();
+
+        assertTrue(result.getSentCount() > 0);
+        assertEquals(result.getSentCount(), result.getReceivedCount());
+        assertEquals(0, result.getOutOfOrderCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testProbeOverTcp() throws Exception {
+        tcpServer = new SimpleTcpServer("probe-server").echo(true).reservePort().start();
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("probe-client", "localhost", tcpServer.getPort()).start();
+
+        LatencyProbe.Result result = tcpClient.probe().duration(100, TimeUnit.MILLISECONDS).run();
+
+        assertEquals(result.getSentCount(), result.getReceivedCount());
+        assertTrue(result.getHistogram().getMaxNanos() > 0);
+    }
+
+    @Test(timeout = 10000)
+    public void testProbeTimesOutWithoutEcho() throws Exception {
+        startLoopback(false);
+
+        try {
+            tcpClient.probe().rate(100).duration(50, TimeUnit.MILLISECONDS).responseTimeout(100, TimeUnit.MILLISECONDS).run();
+            fail("Probe should have timed out");
+        } catch (IllegalStateException expectedEx) {
+            assertTrue(expectedEx.getMessage(), expectedEx.getMessage().contains("timed out"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalFrameSize() throws Exception {
+        startLoopback(true);
+
+        tcpClient.probe().frameSize(LatencyProbe.MIN_FRAME_SIZE - 1);
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimpleTcpLoopbackTest {
+    static final String TEST_REQUEST = "TEST REQUEST";
+    static final String TEST_RESPONSE = "TEST RESPONSE";
+
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    @Before
+    public void setUp() throws Exception {
+        tcpServer = new SimpleTcpServer("loopback-server").loopbackName("loopback-test").start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (tcpClient != null && tcpClient.isStarted()) {
+            tcpClient.stop();
+        }
+        if (tcpServer.isStarted()) {
+            tcpServer.stop();
+        }
+    }
+
+    void connect() throws Exception {
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("loopback-client").loopbackName("loopback-test").start();
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue("Server should have accepted the connection", tcpServer.isClientConnected());
+    }
+
+    @Test(timeout = 10000)
+    public void testRequestResponse() throws Exception {
+        connect();
+        assertTrue(tcpClient.isConnected());
+        assertNull(tcpServer.getClientConnection());
+        assertEquals("loopback:loopback-test", tcpServer.getSocketAddress().toString());
+        assertEquals(tcpServer.getSocketAddress(), tcpClient.getRemoteSocketAddress());
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush();
+        assertEquals(TEST_REQUEST.length(), tcpServer.available());
+        assertEquals(TEST_REQUEST, tcpServer.readString());
+
+        tcpServer.write(TEST_RESPONSE).flush();
+        assertEquals(TEST_RESPONSE, new String(tcpClient.read()));
+    }
+
+    @Test(timeout = 10000)
+    public void testConnectionRefused() throws Exception {
+        tcpClient = new SimpleTcpClient("loopback-client").loopbackName("nothing-listening");
+        try {
+            tcpClient.start();
+            fail("Connect should fail when no server is bound to the name");
+        } catch (RuntimeException expectedEx) {
+            assertFalse(tcpClient.isStarted());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testNameInUse() throws Exception {
+        try {
+            new SimpleTcpServer("second-server").loopbackName("loopback-test").start();
+            fail("Bind should fail when the name is already in use");
+        } catch (RuntimeException expectedEx) {
+            assertTrue(tcpServer.isStarted());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testNameReleasedOnStop() throws Exception {
+        tcpServer.stop();
+
+        tcpServer = new SimpleTcpServer("loopback-server").loopbackName("loopback-test").start();
+        connect();
+    }
+
+    @Test(timeout = 10000)
+    public void testClientClose() throws Exception {
+        connect();
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush();
+        tcpClient.close();
+
+        assertEquals("Data sent before the close should be delivered", TEST_REQUEST, tcpServer.readString());
+        assertEquals("Server should see the end of the stream", -1, tcpServer.getInputStream().read());
+    }
+
+    @Test(timeout = 10000)
+    public void testClientReset() throws Exception {
+        connect();
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush();
+        tcpClient.reset();
+
+        try {
+            tcpServer.getInputStream().read();
+            fail("Server should see the connection reset");
+        } catch (SocketException expectedEx) {
+            assertEquals("Connection reset", expectedEx.getMessage());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testServerResetConnections() throws Exception {
+        connect();
+
+        tcpServer.resetConnections();
+
+        try {
+            tcpClient.getInputStream().read();
+            fail("Client should see the connection reset");
+        } catch (SocketException expectedEx) {
+            assertEquals("Connection reset", expectedEx.getMessage());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testHalfClose() throws Exception {
+        connect();
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush().shutdownOutput();
+
+        assertEquals(TEST_REQUEST, tcpServer.readString());
+        assertEquals("Server should see the end of the stream", -1, tcpServer.getInputStream().read());
+
+        tcpServer.write(TEST_RESPONSE).flush();
+        assertEquals(TEST_RESPONSE, new String(tcpClient.read()));
+        assertTrue("Client should still be connected after a half-close", tcpClient.isConnected());
+    }
+
+    @Test(timeout = 10000)
+    public void testShutdownInputDiscardsData() throws Exception {
+        connect();
+
+        tcpClient.shutdownInput();
+        tcpServer.write(TEST_RESPONSE).flush();
+
+        assertEquals(0, tcpClient.available());
+        assertEquals(-1, tcpClient.getInputStream().read());
+    }
+
+    @Test(timeout = 10000)
+    public void testWriteAfterPeerClose() throws Exception {
+        connect();
+
+        tcpServer.closeConnections();
+
+        try {
+            tcpClient.getOutputStream().write(TEST_REQUEST.getBytes());
+            fail("Write should fail once the server has closed the connection");
+        } catch (IOException expectedEx) {
+            assertTrue(tcpClient.isConnected());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testBlockedReadWokenByPeerClose() throws Exception {
+        connect();
+
+        final InputStream inputStream = tcpServer.getInputStream();
+        final int[] result = new int[] {0};
+        Thread reader = new Thread(() -> {
+            try {
+                result[0] = inputStream.read();
+            } catch (IOException readEx) {
+                result[0] = -2;
+            }
+        });
+        reader.start();
+        Thread.sleep(100);
+
+        tcpClient.close();
+        reader.join(5000);
+
+        assertFalse(reader.isAlive());
+        assertEquals(-1, result[0]);
+    }
+
+    @Test(timeout = 10000)
+    public void testLargeWriteWithBackgroundDrain() throws Exception {
+        tcpServer.backgroundDrain(true);
+        connect();
+
+        // Larger than the ring, so the writer has to wait for the drain to make space
+        byte[] data = new byte[4 * LoopbackTransport.DEFAULT_CAPACITY + 17];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+
+        tcpClient.write(data).flush();
+
+        byte[] received = new byte[data.length];
+        InputStream inputStream = tcpServer.getInputStream();
+        int offset = 0;
+        while (offset < received.length) {
+            int readCount = inputStream.read(received, offset, received.length - offset);
+            assertTrue("Unexpected end of stream", readCount > 0);
+            offset += readCount;
+        }
+
+        assertArrayEquals(data, received);
+    }
+
+    @Test(timeout = 10000)
+    public void testTls() throws Exception {
+        tcpServer.stop();
+        tcpServer = new SimpleTcpServer("loopback-server").loopbackName("loopback-test").tls(SimpleTcpTlsTest.serverTls()).start();
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("loopback-client").loopbackName("loopback-test").tls(SimpleTcpTlsTest.clientTls()).start();
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush();
+        Thread.sleep(100);
+        assertEquals(TEST_REQUEST, tcpServer.readString());
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.EOFException;
+import java.io.InputStream;
+
+import java.net.SocketTimeoutException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimpleTcpReadUntilTest {
+    static final byte[] MLLP_TRAILER = new byte[] {0x1c, 0x0d};
+
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    @After
+    public void tearDown() throws Exception {
+        if (tcpClient != null && tcpClient.isStarted()) {
+            tcpClient.stop();
+        }
+        if (tcpServer != null && tcpServer.isStarted()) {
+            tcpServer.stop();
+        }
+    }
+
+    void connect(SimpleTcpServer server, SimpleTcpClient client) throws Exception {
+        tcpServer = server.start();
+        tcpServer.acceptConnection();
+        tcpClient = client.port(tcpServer.getPort()).start();
+
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue("Server should have accepted the connection", tcpServer.isClientConnected());
+    }
+
+    static String string(byte[] data) {
+        return new String(data, StandardCharsets.ISO_8859_1);
+    }
+
+    static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test(timeout = 10000)
+    public void testReadUntilDelimiterLeavesTheRest() throws Exception {
+        connect(new SimpleTcpServer("until-server"), new SimpleTcpClient("until-client"));
+
+        tcpClient.write(bytes("\u000bFIRST\u001c\r\u000bSECOND\u001c\r")).flush();
+
+        assertEquals("\u000bFIRST\u001c\r", string(tcpServer.readUntil(MLLP_TRAILER, 5000)));
+        assertEquals("\u000bSECOND\u001c\r", string(tcpServer.readUntil(MLLP_TRAILER, 5000)));
+        assertEquals(0, tcpServer.available());
+    }
+
+    @Test(timeout = 10000)
+    public void testReadUntilWaitsForChunks() throws Exception {
+        connect(new SimpleTcpServer("until-server"), new SimpleTcpClient("until-client"));
+
+        Thread writer = new Thread("until-test-writer") {
+            @Override
+            public void run() {
+                try {
+                    for (String chunk : new String[] {"HTTP/1.1 200 OK\r", "\nContent-Length: 4\r\n\r", "\nBODY"}) {
+                        tcpServer.write(bytes(chunk)).flush();
+                        Thread.sleep(50);
+                    }
+                } catch (InterruptedException interruptedEx) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        writer.start();
+
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\n", string(tcpClient.readUntil(bytes("\r\n\r\n"), 5000)));
+        writer.join();
+        assertEquals("BODY", string(tcpClient.readUntil(Pattern.compile("BODY"), 5000)));
+    }
+
+    @Test(timeout = 10000)
+    public void testTimeoutConsumesNothing() throws Exception {
+        connect(new SimpleTcpServer("until-server"), new SimpleTcpClient("until-client"));
+
+        tcpClient.write(bytes("PARTIAL")).flush();
+        try {
+            tcpServer.readUntil(MLLP_TRAILER, 250);
+            fail("readUntil should time out without a delimiter");
+        } catch (RuntimeException expectedEx) {
+            assertTrue(expectedEx.getCause() instanceof SocketTimeoutException);
+        }
+
+        assertEquals("PARTIAL", tcpServer.readString());
+    }
+
+    @Test(timeout = 10000)
+    public void testSocketTimeoutIsRestored() throws Exception {
+        connect(new SimpleTcpServer("until-server"), new SimpleTcpClient("until-client"));
+        tcpServer.getClientConnection().setSoTimeout(1234);
+
+        // Send after readUntil starts, so it blocks reading the socket
+        HashedWheelTimer.shared().newTimeout(() -> tcpClient.write(bytes("LINE\r\n")).flush(), 100, TimeUnit.MILLISECONDS);
+        assertEquals("LINE\r\n", string(tcpServer.readUntil(bytes("\r\n"), 5000)));
+
+        assertEquals("readUntil should restore the socket timeout", 1234, tcpServer.getClientConnection().getSoTimeout());
+    }
+
+    @Test(timeout = 10000)
+    public void testPatternWithDrainedConnection() throws Exception {
+        connect(new SimpleTcpServer("until-server").backgroundDrain(true), new SimpleTcpClient("until-client"));
+
+        tcpClient.write(bytes("id=1 status=OK\nid=2 status=ERROR\n")).flush();
+
+        Pattern statusLine = Pattern.compile("status=\\w+\n");
+        assertEquals("id=1 status=OK\n", string(tcpServer.readUntil(statusLine, 5000)));
+        assertEquals("id=2 status=ERROR\n", string(tcpServer.readUntil(statusLine, 5000)));
+
+        tcpClient.write(bytes("id=3")).shutdownOutput();
+        try {
+            tcpServer.readUntil(statusLine, 5000);
+            fail("readUntil should fail when the stream ends without a match");
+        } catch (RuntimeException expectedEx) {
+            assertTrue(expectedEx.getCause() instanceof EOFException);
+        }
+
+        InputStream inputStream = tcpServer.getInputStream();
+        byte[] rest = new byte[4];
+        int offset = 0;
+        while (offset < rest.length) {
+            offset += inputStream.read(rest, offset, rest.length - offset);
+        }
+        assertEquals("id=3", string(rest));
+    }
+}
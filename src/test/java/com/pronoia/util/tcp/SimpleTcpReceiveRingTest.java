@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.InputStream;
+
+import java.net.SocketTimeoutException;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimpleTcpReceiveRingTest {
+    static final int TEST_RING_CAPACITY = 64 * 1024;
+    static final int TEST_PAYLOAD_SIZE = 8 * 1024 * 1024;
+
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    @After
+    public void tearDown() throws Exception {
+        if (tcpClient != null && tcpClient.isStarted()) {
+            tcpClient.stop();
+        }
+        if (tcpServer != null && tcpServer.isStarted()) {
+            tcpServer.stop();
+        }
+    }
+
+    /**
+     * @param loopbackName the loopback to connect through, or null to connect over TCP
+     */
+    void connect(String loopbackName) throws Exception {
+        tcpServer = new SimpleTcpServer("ring-server").receiveRing(TEST_RING_CAPACITY).receiveTimeout(250);
+        tcpClient = new SimpleTcpClient("ring-client").receiveRing(TEST_RING_CAPACITY);
+        if (loopbackName != null) {
+            tcpServer.loopbackName(loopbackName);
+            tcpClient.loopbackName(loopbackName);
+        }
+        tcpServer.start();
+        tcpServer.acceptConnection();
+        if (loopbackName == null) {
+            tcpClient.port(tcpServer.getPort());
+        }
+        tcpClient.start();
+
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue("Server should have accepted the connection", tcpServer.isClientConnected());
+    }
+
+    @Test(timeout = 10000)
+    public void testRequestResponse() throws Exception {
+        connect("receive-ring-request-response");
+
+        tcpClient.write("TEST REQUEST".getBytes()).flush();
+        waitForAvailable(tcpServer.getConnection(), "TEST REQUEST".length());
+        assertEquals("TEST REQUEST", tcpServer.readString());
+
+        tcpServer.write("TEST RESPONSE").flush();
+        waitForAvailable(tcpClient.connection, "TEST RESPONSE".length());
+        assertEquals("TEST RESPONSE", new String(tcpClient.read()));
+
+        assertEquals(0, tcpServer.available());
+        assertEquals("BytesRead should be counted once", "TEST REQUEST".length(), tcpServer.monitor.getBytesRead());
+    }
+
+    @Test(timeout = 30000)
+    public void testTransferLargerThanRing() throws Exception {
+        connect("receive-ring-transfer");
+
+        final byte[] payload = new byte[TEST_PAYLOAD_SIZE];
+        new Random(0).nextBytes(payload);
+
+        Thread writer = new Thread("ring-test-writer") {
+            @Override
+            public void run() {
+                tcpClient.write(payload).flush();
+            }
+        };
+        writer.start();
+
+        // The ring never grows - the writer is pushed back until the server reads
+        Thread.sleep(250);
+        assertTrue("The writer should be blocked by the full ring", writer.isAlive());
+        assertEquals(TEST_RING_CAPACITY, tcpServer.available());
+
+        byte[] received = new byte[TEST_PAYLOAD_SIZE];
+        InputStream inputStream = tcpServer.getInputStream();
+        int offset = 0;
+        while (offset < received.length) {
+            offset += inputStream.read(received, offset, received.length - offset);
+        }
+        writer.join();
+
+        assertArrayEquals("Actual payload does not match expected", payload, received);
+    }
+
+    @Test(timeout = 30000)
+    public void testTcpRingIsFilledFromTheChannel() throws Exception {
+        connect(null);
+        assertNotNull("TCP connections should fill the ring straight from the channel", tcpServer.getConnection().getTransport().getReadableChannel());
+
+        final byte[] payload = new byte[TEST_PAYLOAD_SIZE];
+        new Random(0).nextBytes(payload);
+
+        Thread writer = new Thread("ring-test-writer") {
+            @Override
+            public void run() {
+                tcpClient.write(payload).flush();
+            }
+        };
+        writer.start();
+
+        byte[] received = new byte[TEST_PAYLOAD_SIZE];
+        InputStream inputStream = tcpServer.getInputStream();
+        int offset = 0;
+        while (offset < received.length) {
+            offset += inputStream.read(received, offset, received.length - offset);
+        }
+        writer.join();
+
+        assertArrayEquals("Actual payload does not match expected", payload, received);
+    }
+
+    @Test(timeout = 10000)
+    public void testReadTimeoutAndEndOfStream() throws Exception {
+        connect("receive-ring-end-of-stream");
+
+        InputStream inputStream = tcpServer.getInputStream();
+        try {
+            inputStream.read();
+            fail("The read should time out when the peer sends nothing");
+        } catch (SocketTimeoutException expectedEx) {
+            // expected
+        }
+
+        tcpClient.write("LAST".getBytes()).shutdownOutput();
+        byte[] received = new byte[4];
+        int offset = 0;
+        while (offset < received.length) {
+            offset += inputStream.read(received, offset, received.length - offset);
+        }
+        assertEquals("LAST", new String(received));
+        assertEquals(-1, inputStream.read());
+    }
+
+    @Test
+    public void testNegativeCapacity() throws Exception {
+        try {
+            new SimpleTcpServer("ring-server").receiveRing(-1);
+            fail("A negative receive ring capacity should be rejected");
+        } catch (IllegalArgumentException expectedEx) {
+            // expected
+        }
+    }
+
+    private void waitForAvailable(SimpleTcpConnection connection, int expected) throws Exception {
+        while (connection.available() < expected) {
+            Thread.sleep(10);
+        }
+    }
+}
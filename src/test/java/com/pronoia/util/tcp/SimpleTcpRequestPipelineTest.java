@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimpleTcpRequestPipelineTest {
+    static final MessageFraming FRAMING = MessageFraming.lengthPrefixed();
+
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    @Before
+    public void setUp() throws Exception {
+        tcpServer = new SimpleTcpServer("pipeline-server").loopbackName("pipeline-test").start();
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("pipeline-client").loopbackName("pipeline-test").start();
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue("Server should have accepted the connection", tcpServer.isClientConnected());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (tcpClient != null && tcpClient.isStarted()) {
+            tcpClient.stop();
+        }
+        tcpServer.stop();
+    }
+
+    /**
+     * Echo each request in batches, responding to each batch in reverse order.
+     */
+    Thread startResponder(final int batchSize) {
+        Thread responder = new Thread(() -> {
+            try {
+                InputStream inputStream = tcpServer.getInputStream();
+                OutputStream outputStream = tcpServer.getOutputStream();
+                List<byte[]> batch = new ArrayList<>(batchSize);
+                for (byte[] request = FRAMING.readFrame(inputStream); request != null; request = FRAMING.readFrame(inputStream)) {
+                    batch.add(request);
+                    if (batch.size() == batchSize) {
+                        for (int i = batch.size() - 1; i >= 0; --i) {
+                            FRAMING.writeFrame(outputStream, batch.get(i));
+                        }
+                        outputStream.flush();
+                        batch.clear();
+                    }
+                }
+            } catch (IOException | IllegalStateException closedEx) {
+                // Connection closed at the end of the test
+            }
+        });
+        responder.setDaemon(true);
+        responder.start();
+        return responder;
+    }
+
+    @Test(timeout = 10000)
+    public void testResponsesMatchedInOrder() throws Exception {
+        startResponder(1);
+        RequestPipeline pipeline = tcpClient.pipeline(FRAMING, 16);
+
+        List<CompletableFuture<RequestPipeline.Response>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            futures.add(pipeline.send(("request-" + i).getBytes()));
+            assertTrue(pipeline.getOutstanding() <= 16);
+        }
+
+        for (int i = 0; i < futures.size(); ++i) {
+            RequestPipeline.Response response = futures.get(i).get(5, TimeUnit.SECONDS);
+            assertArrayEquals(("request-" + i).getBytes(), response.getPayload());
+            assertArrayEquals(response.getRequest(), response.getPayload());
+            assertTrue(response.getLatencyNanos() > 0);
+        }
+        assertTrue(pipeline.awaitOutstanding(5, TimeUnit.SECONDS));
+        assertEquals(1000, pipeline.getSentCount());
+        assertEquals(1000, pipeline.getCompletedCount());
+        assertFalse(pipeline.isFailed());
+    }
+
+    @Test(timeout = 10000)
+    public void testResponsesMatchedByCorrelationId() throws Exception {
+        startResponder(4);
+        RequestPipeline pipeline = tcpClient.pipeline(FRAMING, 8, payload -> new String(payload).split(":")[0]);
+
+        List<CompletableFuture<RequestPipeline.Response>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            futures.add(pipeline.send((i + ":payload").getBytes()));
+        }
+
+        for (int i = 0; i < futures.size(); ++i) {
+            RequestPipeline.Response response = futures.get(i).get(5, TimeUnit.SECONDS);
+            assertEquals(String.valueOf(i), response.getCorrelationId());
+            assertArrayEquals((i + ":payload").getBytes(), response.getPayload());
+        }
+        assertFalse(pipeline.isFailed());
+    }
+
+    @Test(timeout = 10000)
+    public void testOutstandingRequestsAreLimited() throws Exception {
+        final RequestPipeline pipeline = tcpClient.pipeline(FRAMING, 4);
+        for (int i = 0; i < 4; ++i) {
+            pipeline.send(("request-" + i).getBytes());
+        }
+        assertEquals(4, pipeline.getOutstanding());
+
+        Thread sender = new Thread(() -> pipeline.send("blocked".getBytes()));
+        sender.start();
+        sender.join(200);
+        assertTrue("The fifth request should wait for a response", sender.isAlive());
+        assertEquals(4, pipeline.getSentCount());
+
+        startResponder(1);
+        sender.join(5000);
+        assertFalse(sender.isAlive());
+        assertTrue(pipeline.awaitOutstanding(5, TimeUnit.SECONDS));
+        assertEquals(5, pipeline.getCompletedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testConnectionClosedWithRequestsOutstanding() throws Exception {
+        RequestPipeline pipeline = tcpClient.pipeline(FRAMING, 4);
+        CompletableFuture<RequestPipeline.Response> future = pipeline.send("unanswered".getBytes());
+
+        tcpServer.closeConnections();
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Request should have failed");
+        } catch (ExecutionException expectedEx) {
+            assertTrue(expectedEx.getCause() instanceof EOFException);
+        }
+        assertTrue(pipeline.isFailed());
+        assertTrue(pipeline.send("late".getBytes()).isCompletedExceptionally());
+    }
+
+    @Test(timeout = 10000)
+    public void testUnmatchedResponseFailsPipeline() throws Exception {
+        RequestPipeline pipeline = tcpClient.pipeline(FRAMING, 4, payload -> new String(payload));
+        CompletableFuture<RequestPipeline.Response> future = pipeline.send("expected".getBytes());
+
+        FRAMING.writeFrame(tcpServer.getOutputStream(), "unexpected".getBytes());
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Request should have failed");
+        } catch (ExecutionException expectedEx) {
+            assertTrue(expectedEx.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSinglePipelinePerConnection() throws Exception {
+        tcpClient.pipeline(FRAMING, 4);
+        tcpClient.pipeline(FRAMING, 4);
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.net.Socket;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleTcpServerAcceptTimeoutTest {
+    SimpleTcpServer tcpServer;
+
+    @Before
+    public void setUp() throws Exception {
+        tcpServer = new SimpleTcpServer("test-server").acceptTimeout(200, TimeUnit.MILLISECONDS).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tcpServer.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void testAcceptTimeoutExpires() throws Exception {
+        long start = System.nanoTime();
+
+        tcpServer.acceptConnection(true);
+
+        assertTrue("acceptConnection should have waited for the accept timeout", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 190);
+        assertFalse("Client should not be connected", tcpServer.isClientConnected());
+    }
+
+    @Test(timeout = 10000)
+    public void testLateConnectionIsHeldForNextAccept() throws Exception {
+        tcpServer.acceptConnection(true);
+
+        Socket client = new Socket(tcpServer.getInetAddress().getHostAddress(), tcpServer.getPort());
+        Thread.sleep(100);
+
+        assertFalse("Client should not be accepted without a pending acceptConnection call", tcpServer.isClientConnected());
+
+        tcpServer.acceptConnection(true);
+
+        assertTrue("Client should be connected", tcpServer.isClientConnected());
+
+        client.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testAcceptBeforeTimeout() throws Exception {
+        tcpServer.acceptTimeout(5, TimeUnit.SECONDS).acceptConnection();
+
+        Socket client = new Socket(tcpServer.getInetAddress().getHostAddress(), tcpServer.getPort());
+        Thread.sleep(100);
+
+        assertTrue("Client should be connected", tcpServer.isClientConnected());
+
+        client.close();
+    }
+}
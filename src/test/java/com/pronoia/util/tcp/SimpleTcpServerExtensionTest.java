@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.net.Socket;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * JUnit 5 does not order test methods here, so each test checks the state left by whichever test ran before it.
+ */
+public class SimpleTcpServerExtensionTest {
+    @RegisterExtension
+    static SimpleTcpServerExtension servers = new SimpleTcpServerExtension()
+        .server("extension-server-one")
+        .server(new SimpleTcpServer("extension-server-two").backgroundDrain(true));
+
+    @RegisterExtension
+    static SimpleTcpServerExtension sharedServers = new SimpleTcpServerExtension()
+        .server("extension-shared-server")
+        .shared(true);
+
+    @RegisterExtension
+    SimpleTcpServerExtension perTest = new SimpleTcpServerExtension().server("extension-per-test-server");
+
+    static int firstPort;
+    static SimpleTcpServer previousPerTestServer;
+
+    @Test
+    public void testServersStartedForClassAndRecycledBetweenTests() throws Exception {
+        assertTrue(servers.get("extension-server-one").isStarted());
+        assertTrue(servers.get("extension-server-two").isStarted());
+
+        SimpleTcpServer server = servers.get("extension-server-one");
+        synchronized (SimpleTcpServerExtensionTest.class) {
+            if (firstPort == 0) {
+                firstPort = server.getPort();
+            } else {
+                assertEquals(firstPort, server.getPort(), "Server should not have been re-bound");
+            }
+        }
+
+        assertFalse(server.isClientConnected(), "Connection from a previous test should have been closed");
+        assertEquals(0, server.getClientConnections().size());
+
+        server.acceptConnection();
+        Socket client = new Socket(server.getInetAddress().getHostAddress(), server.getPort());
+
+        // The first test in the JVM can take a while to accept
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!server.isClientConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(server.isClientConnected(), "Client should be connected");
+    }
+
+    @Test
+    public void testInstanceServersStartedAndStoppedAroundEachTest() throws Exception {
+        SimpleTcpServer server = perTest.get("extension-per-test-server");
+
+        assertTrue(server.isStarted());
+        synchronized (SimpleTcpServerExtensionTest.class) {
+            if (previousPerTestServer != null) {
+                assertNotSame(previousPerTestServer, server);
+                assertFalse(previousPerTestServer.isStarted(), "Server from the previous test should have been stopped");
+            }
+            previousPerTestServer = server;
+        }
+    }
+
+    @Test
+    public void testSharedServerReused() throws Exception {
+        SimpleTcpServer server = sharedServers.get("extension-shared-server");
+        assertTrue(server.isStarted());
+
+        SimpleTcpServerFixtures otherClass = new SimpleTcpServerFixtures()
+            .server("extension-shared-server")
+            .shared(true);
+
+        otherClass.start();
+        try {
+            assertSame(server, otherClass.get("extension-shared-server"), "A running shared server should be reused");
+        } finally {
+            otherClass.stop();
+        }
+
+        assertTrue(server.isStarted(), "Stopping shared fixtures should only recycle the server");
+    }
+
+    @Test
+    public void testUnknownServer() throws Exception {
+        assertThrows(IllegalArgumentException.class, () -> servers.get("not-a-server"));
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleTcpServerFixturesTest {
+    @Test
+    public void testStartAndStop() throws Exception {
+        SimpleTcpServerFixtures fixtures = new SimpleTcpServerFixtures().server("fixture-one").server("fixture-two").server("fixture-three");
+
+        fixtures.start();
+        for (SimpleTcpServer server : fixtures.getServers().values()) {
+            assertTrue(server.getName() + " should be started", server.isStarted());
+        }
+        assertNotEquals(fixtures.get("fixture-one").getPort(), fixtures.get("fixture-two").getPort());
+
+        fixtures.stop();
+        for (SimpleTcpServer server : fixtures.getServers().values()) {
+            assertFalse(server.getName() + " should be stopped", server.isStarted());
+        }
+
+        // Stopped servers can be started again
+        fixtures.start();
+        assertTrue(fixtures.get("fixture-one").isStarted());
+        fixtures.stop();
+    }
+
+    @Test
+    public void testSharedServersAreReused() throws Exception {
+        SimpleTcpServerFixtures first = new SimpleTcpServerFixtures().server("shared-fixture").shared(true);
+        SimpleTcpServerFixtures second = new SimpleTcpServerFixtures().server("shared-fixture").shared(true);
+
+        first.start();
+        int port = first.get("shared-fixture").getPort();
+        first.stop();
+
+        assertTrue("Shared server should still be running", first.get("shared-fixture").isStarted());
+
+        second.start();
+        assertSame(first.get("shared-fixture"), second.get("shared-fixture"));
+        assertEquals(port, second.get("shared-fixture").getPort());
+        second.stop();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateServerName() throws Exception {
+        new SimpleTcpServerFixtures().server("duplicate").server("duplicate");
+    }
+}
@@ -17,6 +17,7 @@
 package com.pronoia.util.tcp;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
@@ -46,7 +47,9 @@ public class SimpleTcpServerReadWriteTest {
 
         clientSocket = new Socket("0.0.0.0", tcpServer.getPort());
 
-        Thread.sleep(100);
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
 
         log.info("clientSocket - connected to {} - {}", clientSocket.getLocalSocketAddress().toString(), clientSocket.getRemoteSocketAddress().toString());
     }
@@ -131,4 +134,28 @@ public class SimpleTcpServerReadWriteTest {
         assertEquals("Read size does not match expected size", expected.size(), actualCount);
         assertArrayEquals("Read payload does not match expected", expected.toByteArray(), actual.toByteArray());
     }
-}
\ No newline at end of file
+
+    @Test(timeout = 10000)
+    public void testAvailableDoesNotWaitForBlockedRead() throws Exception {
+        final InputStream serverInputStream = tcpServer.getInputStream();
+        final byte[] received = new byte[1];
+        Thread reader = new Thread(() -> {
+            try {
+                serverInputStream.read(received);
+            } catch (IOException readEx) {
+                log.warn("Blocked read failed", readEx);
+            }
+        });
+        reader.start();
+
+        // Give the reader time to block waiting for data
+        Thread.sleep(100);
+
+        assertEquals("Nothing has been sent yet", 0, tcpServer.available());
+
+        clientSocket.getOutputStream().write('X');
+        reader.join(5000);
+
+        assertEquals("The blocked read should receive the data", 'X', received[0]);
+    }
+}
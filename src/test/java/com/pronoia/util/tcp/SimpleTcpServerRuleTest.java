@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.net.Socket;
+
+import org.junit.ClassRule;
+import org.junit.FixMethodOrder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SimpleTcpServerRuleTest {
+    @ClassRule
+    public static SimpleTcpServerRule servers = new SimpleTcpServerRule()
+        .server("rule-server-one")
+        .server(new SimpleTcpServer("rule-server-two").backgroundDrain(true));
+
+    @Rule
+    public SimpleTcpServerRule perTest = servers;
+
+    static int firstPort;
+
+    @Test(timeout = 10000)
+    public void test1ServersStartedInParallel() throws Exception {
+        assertTrue(servers.get("rule-server-one").isStarted());
+        assertTrue(servers.get("rule-server-two").isStarted());
+
+        SimpleTcpServer server = servers.get("rule-server-one");
+        firstPort = server.getPort();
+
+        server.acceptConnection();
+        Socket client = new Socket(server.getInetAddress().getHostAddress(), server.getPort());
+
+        Thread.sleep(100);
+
+        assertTrue("Client should be connected", server.isClientConnected());
+    }
+
+    @Test(timeout = 10000)
+    public void test2ServersRecycledBetweenTests() throws Exception {
+        SimpleTcpServer server = servers.get("rule-server-one");
+
+        assertEquals("Server should not have been re-bound", firstPort, server.getPort());
+        assertFalse("Connection from the previous test should have been closed", server.isClientConnected());
+        assertEquals(0, server.getClientConnections().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test3UnknownServer() throws Exception {
+        servers.get("not-a-server");
+    }
+}
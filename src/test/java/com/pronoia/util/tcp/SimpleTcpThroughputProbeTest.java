@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleTcpThroughputProbeTest {
+    SimpleTcpServer tcpServer;
+
+    @After
+    public void tearDown() throws Exception {
+        if (tcpServer != null) {
+            tcpServer.stop();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testFixedByteCountOverLoopback() throws Exception {
+        tcpServer = new SimpleTcpServer("throughput-server").loopbackName("throughput-test").start();
+
+        ThroughputProbe.Result result = new ThroughputProbe(tcpServer)
+            .streams(3)
+            .bytesPerStream(1024 * 1024)
+            .bufferSize(8192)
+            .run();
+
+        assertEquals(3, result.getStreams().size());
+        for (ThroughputProbe.StreamResult stream : result.getStreams()) {
+            assertEquals(1024 * 1024, stream.getClientToServerBytes());
+            assertEquals(0, stream.getServerToClientBytes());
+        }
+        assertEquals(3 * 1024 * 1024, result.getBytes());
+        assertEquals(1.0, result.getFairness(), 0.0001);
+
+        long intervalBytes = 0;
+        for (ThroughputProbe.Interval interval : result.getIntervals()) {
+            intervalBytes += interval.getBytes();
+        }
+        assertEquals(result.getBytes(), intervalBytes);
+        assertTrue("Server side of the streams should be closed", tcpServer.getConnections().isEmpty());
+    }
+
+    @Test(timeout = 20000)
+    public void testBidirectionalForDurationOverTcp() throws Exception {
+        tcpServer = new SimpleTcpServer("throughput-server").reservePort().start();
+
+        ThroughputProbe.Result result = new ThroughputProbe(tcpServer)
+            .streams(2)
+            .direction(ThroughputProbe.Direction.BIDIRECTIONAL)
+            .duration(300, TimeUnit.MILLISECONDS)
+            .reportInterval(100, TimeUnit.MILLISECONDS)
+            .run();
+
+        assertTrue("Expected several intervals but got " + result.getIntervals(), result.getIntervals().size() >= 2);
+        for (ThroughputProbe.StreamResult stream : result.getStreams()) {
+            assertTrue(stream.toString(), stream.getClientToServerBytes() > 0);
+            assertTrue(stream.toString(), stream.getServerToClientBytes() > 0);
+        }
+        assertTrue(result.getMegabytesPerSecond() > 0);
+        assertTrue(result.getFairness() > 0.5);
+        assertTrue(result.getElapsedNanos() >= TimeUnit.MILLISECONDS.toNanos(300));
+    }
+
+    @Test(timeout = 20000)
+    public void testServerToClient() throws Exception {
+        tcpServer = new SimpleTcpServer("throughput-server").loopbackName("throughput-test").start();
+
+        ThroughputProbe.Result result = new ThroughputProbe(tcpServer)
+            .direction(ThroughputProbe.Direction.SERVER_TO_CLIENT)
+            .bytesPerStream(100000)
+            .run();
+
+        assertEquals(0, result.getStreams().get(0).getClientToServerBytes());
+        assertEquals(100000, result.getStreams().get(0).getServerToClientBytes());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEchoingServerRejected() throws Exception {
+        tcpServer = new SimpleTcpServer("throughput-server").loopbackName("throughput-test").echo(true).start();
+
+        new ThroughputProbe(tcpServer).run();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReceiveRingServerRejected() throws Exception {
+        tcpServer = new SimpleTcpServer("throughput-server").loopbackName("throughput-test").receiveRing(64 * 1024).start();
+
+        new ThroughputProbe(tcpServer).run();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConversationServerRejected() throws Exception {
+        tcpServer = new SimpleTcpServer("throughput-server").loopbackName("throughput-test").conversation(new Conversation("script").expect("HELLO")).start();
+
+        new ThroughputProbe(tcpServer).run();
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.InputStream;
+
+import java.net.Socket;
+
+import java.security.KeyStore;
+
+import java.util.Arrays;
+
+import javax.net.ssl.SSLSession;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimpleTcpTlsTest {
+    static final char[] PASSWORD = "changeit".toCharArray();
+
+    static final String TEST_REQUEST = "TEST REQUEST";
+    static final String TEST_RESPONSE = "TEST RESPONSE";
+
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    static KeyStore loadKeyStore(String resource) {
+        InputStream inputStream = SimpleTcpTlsTest.class.getResourceAsStream(resource);
+        assertNotNull("Missing test keystore " + resource, inputStream);
+        return TlsConfiguration.loadKeyStore(inputStream, "JKS", PASSWORD);
+    }
+
+    static TlsConfiguration serverTls() {
+        return new TlsConfiguration().keyStore(loadKeyStore("/tls/server-keystore.jks"), PASSWORD);
+    }
+
+    static TlsConfiguration clientTls() {
+        return new TlsConfiguration().trustStore(loadKeyStore("/tls/client-truststore.jks"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (tcpClient != null && tcpClient.isStarted()) {
+            tcpClient.stop();
+        }
+        if (tcpServer != null && tcpServer.isStarted()) {
+            tcpServer.stop();
+        }
+    }
+
+    void startServer(TlsConfiguration tlsConfiguration) {
+        tcpServer = new SimpleTcpServer("tls-server").tls(tlsConfiguration).start();
+    }
+
+    SimpleTcpClient connect(TlsConfiguration tlsConfiguration) throws Exception {
+        tcpServer.acceptConnection();
+        SimpleTcpClient client = new SimpleTcpClient("tls-client").host("localhost").port(tcpServer.getPort()).tls(tlsConfiguration).start();
+        waitForServerConnection();
+        return client;
+    }
+
+    void waitForServerConnection() throws Exception {
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue("Server should have accepted the connection", tcpServer.isClientConnected());
+    }
+
+    @Test(timeout = 10000)
+    public void testRequestResponse() throws Exception {
+        startServer(serverTls());
+        tcpClient = connect(clientTls());
+
+        SSLSession session = tcpClient.getSslSession();
+        assertNotNull(session);
+        assertTrue(session.getProtocol(), session.getProtocol().startsWith("TLS"));
+        assertNotNull(tcpServer.getSslSession());
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush();
+        Thread.sleep(100);
+        assertEquals(TEST_REQUEST, tcpServer.readString());
+
+        tcpServer.write(TEST_RESPONSE).flush();
+        Thread.sleep(100);
+        assertEquals(TEST_RESPONSE, new String(tcpClient.read()));
+    }
+
+    @Test(timeout = 10000)
+    public void testStalledHandshakeDoesNotDelayOtherClients() throws Exception {
+        startServer(serverTls());
+
+        // Connects but never starts the handshake - the server would wait for the receive timeout (15 seconds)
+        try (Socket stalledClient = new Socket("localhost", tcpServer.getPort())) {
+            tcpClient = connect(clientTls());
+
+            tcpClient.write(TEST_REQUEST.getBytes()).flush();
+            Thread.sleep(100);
+            assertEquals(TEST_REQUEST, tcpServer.readString());
+            assertTrue("The stalled client should still be waiting on its handshake", stalledClient.isConnected() && !stalledClient.isClosed());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testLargeWrite() throws Exception {
+        startServer(serverTls());
+        tcpServer.backgroundDrain(true);
+        tcpClient = connect(clientTls());
+
+        byte[] data = new byte[1024 * 1024];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+
+        tcpClient.write(data).flush();
+
+        byte[] received = new byte[data.length];
+        InputStream inputStream = tcpServer.getInputStream();
+        int offset = 0;
+        while (offset < received.length) {
+            int readCount = inputStream.read(received, offset, received.length - offset);
+            assertTrue("Unexpected end of stream", readCount > 0);
+            offset += readCount;
+        }
+
+        assertArrayEquals(data, received);
+    }
+
+    @Test(timeout = 10000)
+    public void testHalfClose() throws Exception {
+        startServer(serverTls());
+        tcpClient = connect(clientTls());
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush().shutdownOutput();
+        Thread.sleep(100);
+
+        assertEquals(TEST_REQUEST, tcpServer.readString());
+        assertEquals("Server should see the end of the stream after the close_notify", -1, tcpServer.getInputStream().read());
+
+        tcpServer.write(TEST_RESPONSE).flush();
+        Thread.sleep(100);
+
+        assertEquals(TEST_RESPONSE, new String(tcpClient.read()));
+    }
+
+    @Test(timeout = 10000)
+    public void testSessionResumption() throws Exception {
+        startServer(serverTls().enabledProtocols("TLSv1.2"));
+        TlsConfiguration clientTls = clientTls().enabledProtocols("TLSv1.2");
+
+        tcpClient = connect(clientTls);
+        byte[] firstSessionId = tcpClient.getSslSession().getId();
+        tcpClient.close();
+        tcpServer.closeConnections();
+
+        tcpClient = connect(clientTls);
+        assertArrayEquals("Session should have been resumed", firstSessionId, tcpClient.getSslSession().getId());
+    }
+
+    @Test(timeout = 10000)
+    public void testSessionResumptionDisabled() throws Exception {
+        startServer(serverTls().enabledProtocols("TLSv1.2"));
+        TlsConfiguration clientTls = clientTls().enabledProtocols("TLSv1.2").sessionResumption(false);
+
+        tcpClient = connect(clientTls);
+        byte[] firstSessionId = tcpClient.getSslSession().getId();
+        tcpClient.close();
+        tcpServer.closeConnections();
+
+        tcpClient = connect(clientTls);
+        assertFalse("Session should not have been resumed", Arrays.equals(firstSessionId, tcpClient.getSslSession().getId()));
+    }
+
+    @Test(timeout = 10000)
+    public void testUntrustedServer() throws Exception {
+        startServer(serverTls());
+        tcpServer.acceptConnection();
+
+        // Only the default JVM trust store - which does not include the self-signed test certificate
+        tcpClient = new SimpleTcpClient("tls-client").host("localhost").port(tcpServer.getPort()).tls(new TlsConfiguration());
+        try {
+            tcpClient.start();
+            fail("The handshake should fail when the server certificate is not trusted");
+        } catch (RuntimeException expectedEx) {
+            assertFalse(tcpClient.isStarted());
+        }
+    }
+}
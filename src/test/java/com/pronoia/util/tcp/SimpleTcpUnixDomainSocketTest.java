@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.InputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleTcpUnixDomainSocketTest {
+    static final String TEST_REQUEST = "TEST REQUEST";
+    static final String TEST_RESPONSE = "TEST RESPONSE";
+
+    Path socketDirectory;
+    Path socketPath;
+
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue("Unix domain sockets are not supported by this JVM", UnixDomainSockets.isSupported());
+
+        socketDirectory = Files.createTempDirectory("tcp-test-util");
+        socketPath = socketDirectory.resolve("server.sock");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (tcpClient != null && tcpClient.isStarted()) {
+            tcpClient.stop();
+        }
+        if (tcpServer != null && tcpServer.isStarted()) {
+            tcpServer.stop();
+        }
+        if (socketDirectory != null) {
+            Files.deleteIfExists(socketPath);
+            Files.deleteIfExists(socketDirectory);
+        }
+    }
+
+    void connect() throws Exception {
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("unix-client").unixSocketPath(socketPath).start();
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue("Server should have accepted the connection", tcpServer.isClientConnected());
+    }
+
+    @Test(timeout = 10000)
+    public void testRequestResponse() throws Exception {
+        tcpServer = new SimpleTcpServer("unix-server").unixSocketPath(socketPath).start();
+        assertTrue("Socket file should exist while the server is running", Files.exists(socketPath));
+
+        connect();
+        assertTrue(tcpClient.isConnected());
+        assertNull(tcpServer.getClientConnection());
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush();
+        Thread.sleep(100);
+        assertEquals(TEST_REQUEST, tcpServer.readString());
+
+        tcpServer.write(TEST_RESPONSE).flush();
+        Thread.sleep(100);
+        assertEquals(TEST_RESPONSE, new String(tcpClient.read()));
+
+        tcpClient.stop();
+        tcpServer.stop();
+        assertFalse("Socket file should be deleted when the server is stopped", Files.exists(socketPath));
+    }
+
+    @Test(timeout = 10000)
+    public void testStaleSocketFile() throws Exception {
+        Files.createFile(socketPath);
+
+        tcpServer = new SimpleTcpServer("unix-server").unixSocketPath(socketPath).start();
+        connect();
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush();
+        Thread.sleep(100);
+        assertEquals(TEST_REQUEST, tcpServer.readString());
+    }
+
+    @Test(timeout = 10000)
+    public void testHalfClose() throws Exception {
+        tcpServer = new SimpleTcpServer("unix-server").unixSocketPath(socketPath).start();
+        connect();
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush().shutdownOutput();
+        Thread.sleep(100);
+
+        assertEquals(TEST_REQUEST, tcpServer.readString());
+        assertEquals("Server should see the end of the stream", -1, tcpServer.getInputStream().read());
+
+        tcpServer.write(TEST_RESPONSE).flush();
+        Thread.sleep(100);
+
+        assertEquals(TEST_RESPONSE, new String(tcpClient.read()));
+    }
+
+    @Test(timeout = 10000)
+    public void testLargeWriteWithBackgroundDrain() throws Exception {
+        tcpServer = new SimpleTcpServer("unix-server").unixSocketPath(socketPath).backgroundDrain(true).start();
+        connect();
+
+        byte[] data = new byte[1024 * 1024];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+
+        tcpClient.write(data).flush();
+
+        byte[] received = new byte[data.length];
+        InputStream inputStream = tcpServer.getInputStream();
+        int offset = 0;
+        while (offset < received.length) {
+            int readCount = inputStream.read(received, offset, received.length - offset);
+            assertTrue("Unexpected end of stream", readCount > 0);
+            offset += readCount;
+        }
+
+        assertArrayEquals(data, received);
+    }
+
+    @Test(timeout = 10000)
+    public void testTls() throws Exception {
+        tcpServer = new SimpleTcpServer("unix-server").unixSocketPath(socketPath).tls(SimpleTcpTlsTest.serverTls()).start();
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("unix-client").unixSocketPath(socketPath).tls(SimpleTcpTlsTest.clientTls()).start();
+
+        tcpClient.write(TEST_REQUEST.getBytes()).flush();
+        Thread.sleep(100);
+        assertEquals(TEST_REQUEST, tcpServer.readString());
+    }
+}
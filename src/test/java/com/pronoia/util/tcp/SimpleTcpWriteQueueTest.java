@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.InputStream;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimpleTcpWriteQueueTest {
+    static final int LOW_WATERMARK = 16 * 1024;
+    static final int HIGH_WATERMARK = 64 * 1024;
+
+    SimpleTcpServer tcpServer;
+    SimpleTcpClient tcpClient;
+
+    final List<Boolean> writabilityChanges = new CopyOnWriteArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        if (tcpClient != null && tcpClient.isStarted()) {
+            tcpClient.reset();
+        }
+        if (tcpServer != null && tcpServer.isStarted()) {
+            tcpServer.stop();
+        }
+    }
+
+    /**
+     * Connect over the in-memory transport, so the peer's buffering is a fixed size.
+     */
+    void connect(int writeTimeout) throws Exception {
+        tcpServer = new SimpleTcpServer("queue-server").loopbackName("write-queue-test").start();
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("queue-client").loopbackName("write-queue-test")
+            .queueWrites(true)
+            .writeWatermarks(LOW_WATERMARK, HIGH_WATERMARK)
+            .writeTimeout(writeTimeout)
+            .writabilityListener(writabilityChanges::add)
+            .start();
+
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue("Server should have accepted the connection", tcpServer.isClientConnected());
+    }
+
+    @Test(timeout = 10000)
+    public void testWritesDoNotBlockBelowHighWatermark() throws Exception {
+        connect(5000);
+
+        // The peer is not reading, but the queued data never exceeds the high watermark
+        byte[] chunk = new byte[16 * 1024];
+        for (int i = 0; i < HIGH_WATERMARK / chunk.length; ++i) {
+            tcpClient.write(chunk);
+        }
+
+        assertTrue(tcpClient.isWritable());
+        assertTrue(writabilityChanges.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void testHighAndLowWatermarks() throws Exception {
+        connect(5000);
+
+        byte[] chunk = new byte[8 * 1024];
+        int written = 0;
+        while (tcpClient.isWritable()) {
+            tcpClient.write(chunk);
+            written += chunk.length;
+            assertTrue("The client should become unwritable once the peer stops reading", written < 4 * 1024 * 1024);
+        }
+
+        assertEquals(1, writabilityChanges.size());
+        assertFalse(writabilityChanges.get(0));
+        // The writer thread keeps moving queued data into the peer's buffer, so only the total written is exact
+        assertTrue(written > HIGH_WATERMARK);
+        assertTrue(tcpClient.getQueuedWriteBytes() > LOW_WATERMARK);
+
+        byte[] received = new byte[written];
+        InputStream inputStream = tcpServer.getInputStream();
+        int offset = 0;
+        while (offset < received.length) {
+            offset += inputStream.read(received, offset, received.length - offset);
+        }
+
+        tcpClient.flush();
+        assertTrue(tcpClient.isWritable());
+        assertEquals(0, tcpClient.getQueuedWriteBytes());
+        // The writer thread notifies the listener after it makes the queue writable again
+        for (int i = 0; i < 500 && writabilityChanges.size() < 2; ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, writabilityChanges.size());
+        assertTrue(writabilityChanges.get(1));
+    }
+
+    @Test(timeout = 10000)
+    public void testWriteDeadline() throws Exception {
+        connect(250);
+
+        long start = System.nanoTime();
+        byte[] chunk = new byte[8 * 1024];
+        try {
+            for (int i = 0; i < 1024; ++i) {
+                tcpClient.write(chunk);
+            }
+            fail("Writes should fail once the peer has accepted no data for the write timeout");
+        } catch (RuntimeException expectedEx) {
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+            assertTrue("Backpressure should be bounded by the write timeout - took " + elapsedMillis + "-ms", elapsedMillis < 2000);
+        }
+
+        assertFalse(tcpClient.isWritable());
+    }
+
+    @Test(timeout = 10000)
+    public void testFlushBeforeShutdownOutput() throws Exception {
+        connect(5000);
+
+        byte[] data = new byte[HIGH_WATERMARK];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        tcpClient.write(data).shutdownOutput();
+
+        byte[] received = new byte[data.length];
+        InputStream inputStream = tcpServer.getInputStream();
+        int offset = 0;
+        int readCount;
+        while ((readCount = inputStream.read(received, offset, received.length - offset)) > 0) {
+            offset += readCount;
+        }
+
+        assertArrayEquals("Queued data should be written before the end of the stream", data, received);
+        assertEquals(-1, inputStream.read());
+    }
+
+    @Test(timeout = 10000)
+    public void testServerQueuedWritesOverTcp() throws Exception {
+        tcpServer = new SimpleTcpServer("queue-server").queueWrites(true).start();
+        tcpServer.acceptConnection();
+        tcpClient = new SimpleTcpClient("queue-client").port(tcpServer.getPort()).backgroundDrain(true).start();
+        for (int i = 0; i < 500 && !tcpServer.isClientConnected(); ++i) {
+            Thread.sleep(10);
+        }
+
+        tcpServer.write("TEST RESPONSE").flush();
+        Thread.sleep(100);
+
+        assertEquals("TEST RESPONSE", new String(tcpClient.read()));
+        assertEquals(0, tcpServer.getQueuedWriteBytes());
+    }
+}
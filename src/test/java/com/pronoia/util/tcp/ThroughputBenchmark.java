@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures sustained throughput over TCP on 127.0.0.1 - e.g. to compare hosts or kernel settings.
+ *
+ * Not run by default (the class name does not match the Surefire includes) - run it explicitly with
+ * <pre>
+ *     mvn test -Dtest=ThroughputBenchmark -Dthroughput.streams=4 -Dthroughput.seconds=10 -Dthroughput.direction=BIDIRECTIONAL
+ * </pre>
+ */
+public class ThroughputBenchmark {
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    int streams = Integer.getInteger("throughput.streams", 1);
+    int seconds = Integer.getInteger("throughput.seconds", 5);
+    int bufferSize = Integer.getInteger("throughput.buffer-size", 128 * 1024);
+    ThroughputProbe.Direction direction = ThroughputProbe.Direction.valueOf(System.getProperty("throughput.direction", "CLIENT_TO_SERVER"));
+
+    @Test
+    public void testThroughput() throws Exception {
+        SimpleTcpServer tcpServer = new SimpleTcpServer("throughput-benchmark-server").start();
+        try {
+            ThroughputProbe.Result result = new ThroughputProbe(tcpServer)
+                .clientFactory(() -> new SimpleTcpClient("throughput-benchmark-client").host("127.0.0.1").port(tcpServer.getPort()))
+                .streams(streams)
+                .direction(direction)
+                .duration(seconds, TimeUnit.SECONDS)
+                .bufferSize(bufferSize)
+                .run();
+
+            for (ThroughputProbe.Interval interval : result.getIntervals()) {
+                log.info("  {}", interval);
+            }
+            log.info("{} stream(s) {}: {}", streams, direction, String.format("%.1f MB/s fairness=%.3f cpu=%.1f-ms/MB",
+                result.getMegabytesPerSecond(), result.getFairness(), result.getCpuNanosPerMegabyte() / 1e6));
+            assertTrue(result.getBytes() > 0);
+        } finally {
+            tcpServer.stop();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the cost of full and resumed TLS handshakes.
+ *
+ * Not run by default (the class name does not match the Surefire includes) - run it explicitly with
+ * <pre>
+ *     mvn test -Dtest=TlsHandshakeBenchmark -Dtls.benchmark.iterations=500
+ * </pre>
+ */
+public class TlsHandshakeBenchmark {
+    static final int WARMUP_ITERATIONS = 50;
+
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    int iterations = Integer.getInteger("tls.benchmark.iterations", 200);
+
+    SimpleTcpServer tcpServer;
+
+    @Before
+    public void setUp() throws Exception {
+        tcpServer = new SimpleTcpServer("tls-benchmark-server").tls(SimpleTcpTlsTest.serverTls()).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tcpServer.stop();
+    }
+
+    @Test
+    public void testTls12() throws Exception {
+        compareHandshakes("TLSv1.2");
+    }
+
+    @Test
+    public void testTls13() throws Exception {
+        compareHandshakes("TLSv1.3");
+    }
+
+    void compareHandshakes(String protocol) throws Exception {
+        long[] full = measureHandshakes(SimpleTcpTlsTest.clientTls().enabledProtocols(protocol).sessionResumption(false));
+        long[] resumed = measureHandshakes(SimpleTcpTlsTest.clientTls().enabledProtocols(protocol));
+
+        log.info("{} full handshake:    {}", protocol, summarize(full));
+        log.info("{} resumed handshake: {}", protocol, summarize(resumed));
+        log.info("{} resumed/full median ratio: {}", protocol, String.format("%.2f", (double) median(resumed) / median(full)));
+    }
+
+    /**
+     * @return the time taken by each connect (TCP connect + TLS handshake) in nanoseconds, excluding warmup
+     */
+    long[] measureHandshakes(TlsConfiguration clientTls) throws Exception {
+        long[] answer = new long[iterations];
+
+        for (int i = -WARMUP_ITERATIONS; i < iterations; ++i) {
+            tcpServer.acceptConnection();
+            SimpleTcpClient client = new SimpleTcpClient("tls-benchmark-client").host("localhost").port(tcpServer.getPort()).tls(clientTls);
+
+            long start = System.nanoTime();
+            client.connect();
+            long elapsed = System.nanoTime() - start;
+            if (i >= 0) {
+                answer[i] = elapsed;
+            }
+
+            // A round trip, so TLS 1.3 session tickets sent after the handshake are received before the next connect
+            while (!tcpServer.isClientConnected()) {
+                Thread.yield();
+            }
+            client.write(new byte[] {1}).flush();
+            tcpServer.getInputStream().read();
+            tcpServer.write(new byte[] {2}).flush();
+            assertEquals(2, client.getInputStream().read());
+
+            client.close();
+            tcpServer.closeConnections();
+        }
+
+        return answer;
+    }
+
+    String summarize(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        assertTrue(sorted.length > 0);
+
+        return String.format("min=%d-us median=%d-us p99=%d-us max=%d-us",
+            TimeUnit.NANOSECONDS.toMicros(sorted[0]),
+            TimeUnit.NANOSECONDS.toMicros(median(sorted)),
+            TimeUnit.NANOSECONDS.toMicros(sorted[(int) (sorted.length * 0.99)]),
+            TimeUnit.NANOSECONDS.toMicros(sorted[sorted.length - 1]));
+    }
+
+    long median(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pronoia.util.tcp;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the round-trip latency of a Unix domain socket with TCP over 127.0.0.1.
+ *
+ * Not run by default (the class name does not match the Surefire includes) - run it explicitly with
+ * <pre>
+ *     mvn test -Dtest=UnixDomainSocketLatencyBenchmark -Dunix.benchmark.iterations=100000
+ * </pre>
+ */
+public class UnixDomainSocketLatencyBenchmark {
+    static final int WARMUP_ITERATIONS = 5000;
+
+    Logger log = LoggerFactory.getLogger(this.getClass());
+
+    int iterations = Integer.getInteger("unix.benchmark.iterations", 20000);
+
+    Path socketDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue("Unix domain sockets are not supported by this JVM", UnixDomainSockets.isSupported());
+
+        socketDirectory = Files.createTempDirectory("tcp-test-util");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (socketDirectory != null) {
+            Files.deleteIfExists(socketDirectory.resolve("benchmark.sock"));
+            Files.deleteIfExists(socketDirectory);
+        }
+    }
+
+    @Test
+    public void testRoundTripLatency() throws Exception {
+        SimpleTcpServer tcpServer = new SimpleTcpServer("tcp-benchmark-server").start();
+        long[] tcp;
+        try {
+            tcpServer.acceptConnection();
+            tcp = measureRoundTrips(tcpServer, new SimpleTcpClient("tcp-benchmark-client").host("127.0.0.1").port(tcpServer.getPort()));
+        } finally {
+            tcpServer.stop();
+        }
+
+        Path socketPath = socketDirectory.resolve("benchmark.sock");
+        SimpleTcpServer unixServer = new SimpleTcpServer("unix-benchmark-server").unixSocketPath(socketPath).start();
+        long[] unix;
+        try {
+            unixServer.acceptConnection();
+            unix = measureRoundTrips(unixServer, new SimpleTcpClient("unix-benchmark-client").unixSocketPath(socketPath));
+        } finally {
+            unixServer.stop();
+        }
+
+        log.info("TCP 127.0.0.1 round trip:    {}", summarize(tcp));
+        log.info("Unix domain socket round trip: {}", summarize(unix));
+        log.info("Unix/TCP median ratio: {}", String.format("%.2f", (double) median(unix) / median(tcp)));
+    }
+
+    /**
+     * @return the time taken by each one-byte ping/pong round trip in nanoseconds, excluding warmup
+     */
+    long[] measureRoundTrips(SimpleTcpServer server, SimpleTcpClient client) throws Exception {
+        long[] answer = new long[iterations];
+
+        client.connect();
+        try {
+            while (!server.isClientConnected()) {
+                Thread.yield();
+            }
+
+            InputStream serverInput = server.getInputStream();
+            OutputStream serverOutput = server.getOutputStream();
+            Thread echoThread = new Thread(() -> {
+                try {
+                    int value;
+                    while ((value = serverInput.read()) != -1) {
+                        serverOutput.write(value);
+                        serverOutput.flush();
+                    }
+                } catch (Exception ignoredEx) {
+                    // The connection was closed
+                }
+            }, "benchmark-echo");
+            echoThread.setDaemon(true);
+            echoThread.start();
+
+            InputStream clientInput = client.getInputStream();
+            OutputStream clientOutput = client.getOutputStream();
+            for (int i = -WARMUP_ITERATIONS; i < iterations; ++i) {
+                long start = System.nanoTime();
+                clientOutput.write(i & 0x7F);
+                clientOutput.flush();
+                assertEquals(i & 0x7F, clientInput.read());
+                long elapsed = System.nanoTime() - start;
+                if (i >= 0) {
+                    answer[i] = elapsed;
+                }
+            }
+
+            client.shutdownOutput();
+            echoThread.join(TimeUnit.SECONDS.toMillis(5));
+        } finally {
+            client.close();
+            server.closeConnections();
+        }
+
+        return answer;
+    }
+
+    String summarize(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        assertTrue(sorted.length > 0);
+
+        return String.format("min=%d-ns median=%d-ns p99=%d-ns max=%d-ns",
+            sorted[0], median(sorted), sorted[(int) (sorted.length * 0.99)], sorted[sorted.length - 1]);
+    }
+
+    long median(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}